@@ -1,16 +1,15 @@
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.File;
 import java.io.IOException;
-import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.security.PublicKey;
-import java.util.Base64;
+import java.nio.file.Path;
+import java.security.UnrecoverableKeyException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
-import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
 
 import javafx.application.Application;
 import javafx.application.Platform;
@@ -18,32 +17,74 @@ import javafx.scene.Scene;
 import javafx.scene.control.Button;
 import javafx.scene.control.CheckBox;
 import javafx.scene.control.Label;
+import javafx.scene.control.PasswordField;
 import javafx.scene.control.TextArea;
 import javafx.scene.control.TextField;
+import javafx.scene.control.Tooltip;
 import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
+import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
-public class AsyncChatClient extends Application {
+import history.HistoryStore;
+import protocol.ChatConnection;
+import protocol.ChatMetrics;
+import protocol.CipherSuite;
+import protocol.CipherSuites;
+import protocol.Compression;
+import protocol.Envelope;
+import protocol.FileTransfers;
+import protocol.Frame;
+import protocol.FrameCapture;
+import protocol.FrameCodec;
+import protocol.FrameListener;
+import protocol.InboundPipeline;
+import protocol.KeyAnnouncement;
+import protocol.KeyDirectory;
+import protocol.ResumableConnection;
+import protocol.SuiteNegotiation;
+import protocol.TransportMode;
+import ui.ChatLog;
+import ui.HistorySearch;
+
+public class AsyncChatClient extends Application implements FrameListener, FileTransfers.Keys {
     //TODO Вынести в параметры запуска
-    private static final int HEADER_LENGTH = 10;
     private static final String SERVER_IP = "127.0.0.1";
     private static final int SERVER_PORT = 1234;
 
-    private static final String PUBLIC_KEYS_FILE = "public_keys.txt";
-
-    private DataOutputStream outputStream;
-    private DataInputStream inputStream;
-    private Socket socket;
-
-    private TextArea chatArea;
+    private ChatConnection connection;
+    private TransportMode transportMode;
+    // --capture=<файл>: кадры соединения пишутся в файл для воспроизведения без сети (см. FrameReplay)
+    private Path captureFile;
+    private FrameCapture capture;
+    private final FrameCodec frameCodec = new FrameCodec();
+    // До входа пользователя - заглушка без регистрации в JMX
+    private ChatMetrics metrics = new ChatMetrics();
+    private final Compression compression = new Compression(frameCodec.maxFrameSize());
+    // Набор шифров для сообщений с сеансовым ключом; клиентам без списка наборов - прежний формат SessionCipher
+    private final SuiteNegotiation ciphers = new SuiteNegotiation(null);
+
+    private ChatLog chatLog;
+    // Входящие кадры расшифровываются на пуле потоков, транспорт только читает сокет
+    private InboundPipeline<String> inbound;
+    private HistoryStore history;
+    // Журнал хранит расшифрованные сообщения открытым текстом, поэтому ведётся только с --history=on
+    private boolean historyEnabled;
     private TextField inputField;
     private TextField recipientField;
     private CheckBox encryptCheckBox;
+    private FileTransfers fileTransfers;
+    private SenderKeys senderKeys;
+    private SessionMessages sessionMessages;
 
     private KeyManager keyManager;
+    // Гибридный режим (RSA только для сеансового ключа, сообщения - AES-GCM) или RSA на каждое сообщение
+    private boolean hybridEncryption = true;
     private String username;
-    private Thread connectionThread;
+    private byte[] usernameBytes;
+    // Подписанное объявление своих ключей, создаётся один раз, когда готов RSA
+    private volatile byte[] keyAnnouncement;
 
     public static void main(String[] args) {
         launch(args);
@@ -51,12 +92,11 @@ public class AsyncChatClient extends Application {
 
     @Override
     public void start(Stage stage) {
-        try {
-            keyManager = new KeyManager();
-        } catch (Exception e) {
-            e.printStackTrace();
-            Platform.exit();
-        }
+        transportMode = TransportMode.parse(getParameters().getNamed().get("transport"));
+        String captureParameter = getParameters().getNamed().get("capture");
+        captureFile = captureParameter == null || captureParameter.isBlank() ? null : Path.of(captureParameter);
+        hybridEncryption = !"rsa".equalsIgnoreCase(getParameters().getNamed().get("encryption"));
+        historyEnabled = "on".equalsIgnoreCase(getParameters().getNamed().get("history"));
 
         // Окно для ввода имени пользователя
         Stage usernameStage = new Stage();
@@ -66,11 +106,14 @@ public class AsyncChatClient extends Application {
         Label promptLabel = new Label("Введите ваше имя:");
         TextField usernameField = new TextField();
         usernameField.setPromptText("Ваше имя");
+        // Ключи хранятся в keys/<имя>/identity.p12 под этим паролем
+        PasswordField passwordField = new PasswordField();
+        passwordField.setPromptText("Пароль к ключам");
 
-        Button confirmButton = getConfirmationButton(stage, usernameField, usernameStage);
+        Button confirmButton = getConfirmationButton(stage, usernameField, passwordField, promptLabel, usernameStage);
 
 
-        usernameRoot.getChildren().addAll(promptLabel, usernameField, confirmButton);
+        usernameRoot.getChildren().addAll(promptLabel, usernameField, passwordField, confirmButton);
         Scene usernameScene = new Scene(usernameRoot);
         usernameStage.setScene(usernameScene);
         usernameStage.setTitle("Введите имя");
@@ -82,33 +125,76 @@ public class AsyncChatClient extends Application {
         });
     }
 
-    private Button getConfirmationButton(Stage stage, TextField usernameField, Stage usernameStage) {
+    private Button getConfirmationButton(Stage stage, TextField usernameField, PasswordField passwordField,
+                                         Label promptLabel, Stage usernameStage) {
         Button confirmButton = new Button("Подтвердить");
         confirmButton.setOnAction(help -> {
             username = usernameField.getText();
             if (username != null && !username.trim().isEmpty()) {
-                //Очищаем, либо создаём файл, где будут храниться публичные ключи
-                clearPublicKeysFile();
+                if (passwordField.getText().isEmpty()) {
+                    promptLabel.setText("Введите пароль к ключам:");
+                    return;
+                }
+                if (!openKeys(passwordField.getText().toCharArray(), promptLabel)) {
+                    return;
+                }
                 usernameStage.close();
                 showChatWindow(stage);
-                connectionThread = new Thread(this::connectToServer);
-                connectionThread.start();
-                appendMessage("Ваш публичный ключ: " + keyManager.exportPublicKey());
+                openHistory();
+                connectToServer();
+                showPublicKey();
             }
         });
         return confirmButton;
     }
 
+    // Загрузка хранилища ключей вместо генерации RSA при каждом запуске
+    private boolean openKeys(char[] password, Label promptLabel) {
+        try {
+            keyManager = KeyManager.open(HistoryStore.directoryFor(Path.of("keys"), username).resolve("identity.p12"),
+                    password, this::appendMessage);
+            return true;
+        } catch (IOException e) {
+            promptLabel.setText(e.getCause() instanceof UnrecoverableKeyException
+                    ? "Неверный пароль к ключам:" : "Ошибка чтения ключей: " + e.getMessage());
+        } catch (Exception e) {
+            promptLabel.setText("Ошибка чтения ключей: " + e.getMessage());
+        } finally {
+            Arrays.fill(password, '\0');
+        }
+        return false;
+    }
+
+    // При первом запуске RSA ещё генерируется в фоне, ключ покажем, когда он будет готов
+    private void showPublicKey() {
+        keyManager.generated().whenComplete((ignored, e) -> appendMessage(e == null
+                ? "Ваш публичный ключ: " + keyManager.exportPublicKey() + "\nОтпечаток: " + keyManager.fingerprint()
+                : "Ошибка генерации ключа RSA: " + e.getMessage()));
+        keyManager.ready().exceptionally(e -> {
+            if (keyManager.generated().isDone() && !keyManager.generated().isCompletedExceptionally()) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                appendMessage("Не удалось сохранить ключ RSA, при следующем запуске он будет создан заново: "
+                        + cause.getMessage());
+            }
+            return null;
+        });
+    }
+
     private void showChatWindow(Stage stage) {
         VBox root = new VBox(10);
         root.setPrefSize(400, 600);
 
         Label usernameLabel = new Label("Вы вошли как: " + username);
         usernameLabel.setStyle("-fx-font-size: 14px; -fx-font-weight: bold;");
+        // Степень сжатия и затраты на него видны в подсказке
+        Tooltip compressionTooltip = new Tooltip();
+        compressionTooltip.setOnShowing(event ->
+                compressionTooltip.setText(compression.report() + "\n" + CipherSuites.report()));
+        usernameLabel.setTooltip(compressionTooltip);
 
         // Поле для ввода имени собеседника
         recipientField = new TextField();
-        recipientField.setPromptText("Введите имя собеседника");
+        recipientField.setPromptText("Имя собеседника; группа - имена через запятую или *");
 
         // Переключатель для включения шифрования
         encryptCheckBox = new CheckBox("Шифровать сообщения");
@@ -119,11 +205,10 @@ public class AsyncChatClient extends Application {
 
         // Кнопка для просмотра публичного ключа
         Button showKeyButton = new Button("Показать мой публичный ключ");
-        showKeyButton.setOnAction(e -> appendMessage("Ваш публичный ключ: " + keyManager.exportPublicKey()));
+        showKeyButton.setOnAction(e -> showPublicKey());
 
-        chatArea = new TextArea();
-        chatArea.setEditable(false);
-        chatArea.setWrapText(true);
+        // История ограничена, старые сообщения вытесняются
+        chatLog = new ChatLog(ChatLog.DEFAULT_CAPACITY);
 
         inputField = new TextField();
         inputField.setPromptText("Введите сообщение...");
@@ -132,14 +217,28 @@ public class AsyncChatClient extends Application {
         Button sendButton = new Button("Отправить");
         sendButton.setOnAction(event -> sendMessage());
 
-        Button clearChatButton = new Button("Очистить чат");
-        clearChatButton.setOnAction(event -> chatArea.clear());
+        // Файл всегда передаётся в гибридном режиме, RSA его не унесёт
+        Button sendFileButton = new Button("Файл");
+        sendFileButton.setOnAction(event -> sendFile(stage));
 
-        HBox inputBox = new HBox(10, inputField, sendButton);
+        Button clearChatButton = new Button("Очистить чат");
+        clearChatButton.setOnAction(event -> chatLog.clear());
+
+        // Более ранние сообщения подгружаются из журнала страницами
+        Button olderButton = new Button("Ранее");
+        olderButton.setOnAction(event -> showOlderHistory());
+        // Поиск по всей истории через полнотекстовый индекс журнала
+        TextField searchField = new HistorySearch(chatLog).getField();
+        HBox.setHgrow(searchField, Priority.ALWAYS);
+        olderButton.setDisable(!historyEnabled);
+        searchField.setDisable(!historyEnabled);
+        HBox historyBox = new HBox(10, olderButton, clearChatButton, searchField);
+
+        HBox inputBox = new HBox(10, inputField, sendButton, sendFileButton);
         inputBox.setPrefHeight(50);
 
         root.getChildren().addAll(usernameLabel, recipientField, encryptCheckBox, manageKeysButton, showKeyButton,
-                chatArea, inputBox, clearChatButton);
+                chatLog.getView(), inputBox, historyBox);
 
         Scene scene = new Scene(root);
         stage.setScene(scene);
@@ -148,45 +247,164 @@ public class AsyncChatClient extends Application {
     }
 
     private void connectToServer() {
+        usernameBytes = username.getBytes(StandardCharsets.UTF_8);
+        fileTransfers = new FileTransfers(username, Path.of("downloads"), this, this::sendHeaderMessage,
+                this::appendMessage);
         try {
-            socket = new Socket(SERVER_IP, SERVER_PORT);
-            outputStream = new DataOutputStream(socket.getOutputStream());
-            inputStream = new DataInputStream(socket.getInputStream());
-
-            // Сервер сначала получает от кого приходит сообщение
-            sendHeaderMessage(username);
+            metrics = ChatMetrics.register("asymmetric", username);
+            chatLog.setDelayRecorder(metrics.uiDelay()::record);
+            senderKeys = new SenderKeys(username, this::sendHeaderMessage, metrics);
+            sessionMessages = new SessionMessages(username, keyManager, ciphers, metrics, this::sendHeaderMessage);
+            inbound = new InboundPipeline<>(this::decode, chatLog::record);
+            if (captureFile != null) {
+                capture = FrameCapture.open(captureFile);
+            }
+            // Неподтверждённые сервером сообщения лежат на диске и отправляются заново после переподключения
+            connection = ResumableConnection.open(transportMode, SERVER_IP, SERVER_PORT, frameCodec, this, metrics,
+                    HistoryStore.directoryFor(Path.of("spool"), username).resolve("outbound.spool"), capture);
+        } catch (IOException e) {
+            appendMessage("Ошибка соединения: " + e.getMessage());
+        }
+    }
 
-            while (!Thread.currentThread().isInterrupted()) {
-                String fullMessage = receiveHeaderMessage();
+    @Override
+    public void onConnected(ChatConnection connection) throws IOException {
+        // Сервер сначала получает от кого приходит сообщение
+        connection.send(username);
+        // Объявляем поддержку сжатия, собеседники ответят своими возможностями
+        connection.send(Compression.hello(username, ""));
+        // Ключи рассылаются всем, вручную обмениваться ими не нужно. RSA при первом запуске ещё генерируется
+        keyManager.generated().thenRun(() -> announceKeys(""));
+    }
 
-                //Нужно, чтобы пропускать сообщения вида username (которые серверу отправляются, чтобы понять - от
-                // кого сообщение)
-                if (!fullMessage.contains(":")) {
-                    continue;
-                }
+    @Override
+    public void onFrame(Frame frame) {
+        // Кадры без отправителя (вида username) конвейер пропускает сам
+        inbound.submit(frame, connection);
+    }
 
-                String[] parts = fullMessage.split(":", 2);
-                String sender = parts[0];
-                String message = parts[1];
+    // Вызывается из пула конвейера; служебные сообщения (например, сеансовый ключ) не выводятся - null
+    private String decode(String sender, ByteBuffer body) {
+        // Зашифрованные сообщения приходят в двоичном конверте. По заголовку сразу видно, кому оно адресовано,
+        // поэтому закрытый ключ применяется только к своим сообщениям
+        return Envelope.isEnvelope(body) ? openEnvelope(sender, body) : Frame.decode(body);
+    }
 
-                // Данная проверка еобходима, чтобы понять в ккой кодровке находится сообщение,
-                // Если будет base64, то клиент попробует дешифровать
-                if (isBase64(message)) {
-                    try {
-                        message = "[Зашифровано] > " + decryptMessage(message);
-                    } catch (Exception e) {
-                    }
+    private String openEnvelope(String sender, ByteBuffer body) {
+        try {
+            Envelope envelope = Envelope.parse(body);
+            if (fileTransfers.handle(sender, envelope)) {
+                return null;
+            }
+            if (envelope.type() == Envelope.TYPE_HELLO) {
+                ciphers.onHello(sender, envelope);
+                if (compression.onHello(sender, envelope)) {
+                    // Собеседник подключился заново: после перезапуска ему нужны наши групповой и сеансовый ключи,
+                    // иначе до смены сеансового ключа по сроку он не прочитает ни одного сообщения
+                    senderKeys.rejoined(sender);
+                    keyManager.forgetOutboundSession(sender);
+                    sendHeaderMessage(Compression.hello(username, sender));
                 }
+                return null;
+            }
+            if (envelope.type() == Envelope.TYPE_KEY_ANNOUNCE) {
+                onKeyAnnouncement(sender, envelope);
+                return null;
+            }
+            // Групповое сообщение одно на всех: прочитать его может тот, кому отправитель раздал ключ
+            if (envelope.type() == Envelope.TYPE_GROUP_ENCRYPTED && envelope.suite() == Envelope.SUITE_AES_GCM) {
+                ByteBuffer plain = decryptGroupMessage(sender, envelope.payload());
+                return plain == null ? "[Зашифровано для группы]" : "[Группа] > " + Frame.decode(plain);
+            }
+            if (!envelope.isAddressedTo(usernameBytes)) {
+                return envelope.type() == Envelope.TYPE_ENCRYPTED
+                        ? "[Зашифровано для " + envelope.recipientAsString() + "]" : null;
+            }
+            if (envelope.type() == Envelope.TYPE_SESSION_KEY && envelope.suite() == Envelope.SUITE_RSA_OAEP) {
+                sessionMessages.acceptSessionKey(sender, envelope.payload());
+                return null;
+            }
+            if (envelope.type() == Envelope.TYPE_SENDER_KEY && envelope.suite() == Envelope.SUITE_RSA_OAEP) {
+                senderKeys.accept(sender, envelope.payload(), keyManager.getPrivateKey());
+                return null;
+            }
+            if (envelope.type() == Envelope.TYPE_ENCRYPTED && envelope.suite() == Envelope.SUITE_AES_GCM) {
+                return "[Зашифровано] > "
+                        + compression.text(envelope,
+                                sessionMessages.decryptSessionMessage(sender, null, envelope.payload()));
+            }
+            CipherSuite suite = ciphers.accepted(sender, envelope.suite());
+            if (envelope.type() == Envelope.TYPE_ENCRYPTED && suite != null) {
+                return "[Зашифровано] > "
+                        + compression.text(envelope,
+                                sessionMessages.decryptSessionMessage(sender, suite, envelope.payload()));
+            }
+            if (envelope.type() == Envelope.TYPE_ENCRYPTED && envelope.suite() == Envelope.SUITE_RSA_PKCS1) {
+                return "[Зашифровано] > "
+                        + compression.text(envelope, sessionMessages.decryptMessage(envelope.payload()));
+            }
+            return "[Неподдерживаемое сообщение]";
+        } catch (Exception e) {
+            metrics.failedDecryption();
+            return "[Не удалось расшифровать сообщение]";
+        }
+    }
 
-                appendMessage(sender + " > " + message);
+    // Подпись проверяет справочник; на общее объявление отвечаем своим, адресно, чтобы новичок узнал наши ключи
+    private void onKeyAnnouncement(String sender, Envelope envelope) {
+        boolean broadcast = !envelope.recipient().hasRemaining();
+        if (!broadcast && !envelope.isAddressedTo(usernameBytes)) {
+            return;
+        }
+        KeyDirectory.Result result = keyManager.directory().offer(sender, envelope.payload());
+        if (broadcast && result != KeyDirectory.Result.INVALID) {
+            keyManager.generated().thenRun(() -> announceKeys(sender));
+        }
+        KeyDirectory.Entry entry = keyManager.directory().get(sender);
+        switch (result) {
+            case ADDED -> appendMessage("Получены ключи пользователя " + sender + ", отпечаток: " + entry.fingerprint());
+            case UPDATED -> appendMessage("Пользователь " + sender + " сменил ключи шифрования");
+            case CHANGED -> appendMessage("ВНИМАНИЕ: ключ подписи пользователя " + sender + " изменился, новые ключи "
+                    + "не приняты. Сверьте отпечаток с собеседником и, если смена ожидаема, удалите прежний ключ "
+                    + "в окне управления ключами");
+            case INVALID -> appendMessage("Отклонено объявление ключей с неверной подписью от " + sender);
+            default -> {
             }
-        } catch (IOException e) {
-            appendMessage("Ошибка соединения: " + e.getMessage());
-        } finally {
-            closeConnection();
         }
     }
 
+    private void announceKeys(String recipient) {
+        try {
+            byte[] announcement = keyAnnouncement;
+            if (announcement == null) {
+                announcement = keyManager.announcement(username);
+                keyAnnouncement = announcement;
+            }
+            sendHeaderMessage(KeyAnnouncement.envelope(username, recipient, announcement))
+                    .exceptionally(this::reportSendFailure);
+        } catch (Exception e) {
+            appendMessage("Не удалось разослать ключи: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void onDisconnected(IOException e) {
+        appendMessage("Ошибка соединения: " + e.getMessage());
+        closeConnection();
+    }
+
+    @Override
+    public void onReconnecting(IOException e, long delayMillis) {
+        appendMessage(String.format("Соединение потеряно (%s), повторное подключение через %.1f с",
+                e.getMessage(), delayMillis / 1000.0));
+    }
+
+    @Override
+    public void onResumed(int replayed) {
+        appendMessage(replayed > 0 ? "Соединение восстановлено, повторно отправлено сообщений: " + replayed
+                : "Соединение восстановлено");
+    }
+
     private void sendMessage() {
         String message = inputField.getText();
         if (!message.isEmpty()) {
@@ -197,12 +415,20 @@ public class AsyncChatClient extends Application {
                         appendMessage("Ошибка: Вы не указали получателя");
                         return;
                     }
-                    message = encryptMessage(recipient, message);
+                    // Несколько получателей через запятую или "*" (все с известными ключами) - группа
+                    List<String> group = groupMembers(recipient);
+                    if (group != null) {
+                        sendGroupMessage(group, message).exceptionally(this::reportSendFailure);
+                    } else {
+                        // Отправка зашифрованного сообщения в двоичном конверте
+                        sendEncryptedMessage(recipient, message).exceptionally(this::reportSendFailure);
+                    }
+                } else {
+                    // Отправка собственного сообщения
+                    sendHeaderMessage(username + ":" + message).exceptionally(this::reportSendFailure);
                 }
-                // Отправка собственного сообщения
-                sendHeaderMessage(username + ":" + message);
                 //Вывод собственного сообщения на экран
-                appendMessage(username + " > " + inputField.getText());
+                chatLog.record(username, inputField.getText());
                 inputField.clear();
             } catch (Exception e) {
                 appendMessage("Ошибка отправки сообщения: " + e.getMessage());
@@ -215,10 +441,12 @@ public class AsyncChatClient extends Application {
         VBox root = new VBox(10);
 
         Label titleLabel = new Label("Публичные ключи пользователей");
+        // Свой отпечаток для сверки с собеседником по другому каналу
+        Label fingerprintLabel = new Label("Ваш отпечаток: " + keyManager.fingerprint());
 
         TextArea keyArea = new TextArea();
         keyArea.setEditable(false);
-        loadPublicKeysToTextArea(keyArea);
+        showDirectory(keyArea);
 
         TextField usernameField = new TextField();
         usernameField.setPromptText("Имя пользователя");
@@ -228,16 +456,33 @@ public class AsyncChatClient extends Application {
 
         Button addKeyButton = getAddPublicKeyButton(usernameField, publicKeyField, keyArea);
 
-        Button clearKeysButton = new Button("Очистить файл ключей");
+        // После удаления следующее объявление пользователя будет принято как новое
+        Button removeKeyButton = new Button("Забыть ключ");
+        removeKeyButton.setOnAction(event -> {
+            try {
+                keyManager.directory().remove(usernameField.getText());
+                showDirectory(keyArea);
+            } catch (IOException e) {
+                appendMessage("Ошибка удаления ключа: " + e.getMessage());
+            }
+            usernameField.clear();
+        });
+
+        Button clearKeysButton = new Button("Очистить");
         clearKeysButton.setOnAction(event -> {
-            clearPublicKeysFile();
-            keyArea.clear();
-            appendMessage("Все публичные ключи удалены");
+            try {
+                keyManager.directory().clear();
+                keyArea.clear();
+                appendMessage("Все публичные ключи удалены");
+            } catch (IOException e) {
+                appendMessage("Ошибка очистки ключей: " + e.getMessage());
+            }
         });
 
-        root.getChildren().addAll(titleLabel, keyArea, usernameField, publicKeyField, addKeyButton, clearKeysButton);
+        HBox buttons = new HBox(10, addKeyButton, removeKeyButton, clearKeysButton);
+        root.getChildren().addAll(titleLabel, fingerprintLabel, keyArea, usernameField, publicKeyField, buttons);
 
-        Scene scene = new Scene(root, 400, 400);
+        Scene scene = new Scene(root, 500, 400);
         keyStage.setScene(scene);
         keyStage.setTitle("Управление ключами");
         keyStage.show();
@@ -250,8 +495,7 @@ public class AsyncChatClient extends Application {
             String publicKey = publicKeyField.getText();
             try {
                 keyManager.addPublicKey(usernameToStore, publicKey);
-                savePublicKeyToFile(usernameToStore, publicKey);
-                keyArea.appendText("Ключ добавлен для пользователя: " + usernameToStore + "\n");
+                showDirectory(keyArea);
             } catch (Exception e) {
                 keyArea.appendText("Ошибка добавления ключа: " + e.getMessage() + "\n");
             }
@@ -261,104 +505,183 @@ public class AsyncChatClient extends Application {
         return addKeyButton;
     }
 
-    private void savePublicKeyToFile(String username, String publicKey) {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(this.username + "_" + PUBLIC_KEYS_FILE, true))) {
-            writer.write(username + ":" + publicKey);
-            writer.newLine();
-        } catch (IOException e) {
-            appendMessage("Ошибка сохранения ключа: " + e.getMessage());
+    private void showDirectory(TextArea keyArea) {
+        StringBuilder text = new StringBuilder();
+        for (KeyDirectory.Entry entry : keyManager.directory().entries()) {
+            text.append(entry.user()).append(entry.manual() ? " (вручную, RSA)" : "").append('\n')
+                    .append("  ").append(entry.fingerprint()).append('\n');
         }
+        keyArea.setText(text.toString());
     }
 
-    private void loadPublicKeysToTextArea(TextArea keyArea) {
-        try (BufferedReader reader = new BufferedReader(new FileReader(this.username + "_" + PUBLIC_KEYS_FILE))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                keyArea.appendText(line + "\n");
+    private List<String> groupMembers(String recipient) {
+        if (recipient.trim().equals("*")) {
+            List<String> everyone = new ArrayList<>();
+            for (KeyDirectory.Entry entry : keyManager.directory().entries()) {
+                if (entry.rsa() != null) {
+                    everyone.add(entry.user());
+                }
+            }
+            return everyone;
+        }
+        if (recipient.indexOf(',') < 0) {
+            return null;
+        }
+        List<String> members = new ArrayList<>();
+        for (String member : recipient.split(",")) {
+            if (!member.isBlank()) {
+                members.add(member.trim());
             }
-        } catch (IOException e) {
-            appendMessage("Ошибка загрузки ключей: " + e.getMessage());
         }
+        return members;
     }
 
-    private void clearPublicKeysFile() {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(this.username + "_" + PUBLIC_KEYS_FILE))) {
-            writer.write("");
-        } catch (IOException e) {
-            appendMessage("Ошибка очистки файла ключей: " + e.getMessage());
+    // Одно шифрование и один кадр на всю группу. Сжатие договаривается попарно, поэтому здесь его нет
+    private CompletableFuture<Void> sendGroupMessage(List<String> group, String message) throws Exception {
+        SessionKey key = senderKeys.outbound(group, keyManager::getPublicKey);
+        return sendHeaderMessage(Envelope.encode(username, Envelope.TYPE_GROUP_ENCRYPTED, Envelope.SUITE_AES_GCM,
+                "", sessionMessages.encryptSessionMessage(key, null, message.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    private CompletableFuture<Void> sendEncryptedMessage(String recipient, String message) throws Exception {
+        // Текст сжимается до шифрования, если получатель это поддерживает
+        byte[] plain = message.getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = compression.compress(recipient, plain);
+        byte type = Compression.type(Envelope.TYPE_ENCRYPTED, compressed != null);
+        if (compressed != null) {
+            plain = compressed;
         }
+        return sendHeaderMessage(sessionMessages.encode(recipient, type, plain, hybridEncryption));
     }
 
-    private String encryptMessage(String user, String message) throws Exception {
-        PublicKey recipientKey = keyManager.getPublicKey(user);
-        if (recipientKey == null) {
-            throw new Exception("Публичный ключ для пользователя " + user + " не найден");
+    private void sendFile(Stage stage) {
+        String recipient = recipientField.getText();
+        if (recipient == null || recipient.isBlank()) {
+            appendMessage("Ошибка: Вы не указали получателя");
+            return;
+        }
+        File file = new FileChooser().showOpenDialog(stage);
+        if (file != null) {
+            appendMessage("Отправка файла " + file.getName() + " пользователю " + recipient);
+            fileTransfers.send(recipient, file.toPath());
         }
-        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
-        cipher.init(Cipher.ENCRYPT_MODE, recipientKey);
-        byte[] encryptedBytes = cipher.doFinal(message.getBytes(StandardCharsets.UTF_8));
-        return Base64.getEncoder().encodeToString(encryptedBytes);
     }
 
-    private String decryptMessage(String encryptedMessage) throws Exception {
-        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
-        cipher.init(Cipher.DECRYPT_MODE, keyManager.getPrivateKey());
-        byte[] decryptedBytes = cipher.doFinal(Base64.getDecoder().decode(encryptedMessage));
-        return new String(decryptedBytes, StandardCharsets.UTF_8);
+    // Ключ файла выводится из сеансового ключа, id сеанса передаётся в заголовке фрагментов
+    @Override
+    public FileTransfers.TransferKey outboundKey(String recipient) throws Exception {
+        SessionKey session = sessionMessages.outboundSession(recipient);
+        return new FileTransfers.TransferKey(session.getId(), session.getKey());
     }
 
-    private boolean isBase64(String message) {
-        try {
-            Base64.getDecoder().decode(message);
-            return true;
-        } catch (IllegalArgumentException e) {
-            return false;
+    @Override
+    public SecretKey inboundKey(String sender, long keyId) {
+        SessionKey session = keyManager.getInboundSession(sender, keyId);
+        return session == null ? null : session.getKey();
+    }
+
+    // null, если отправитель не раздавал нам ключ
+    private ByteBuffer decryptGroupMessage(String sender, ByteBuffer encryptedMessage) throws Exception {
+        SecretKey key = senderKeys.inbound(sender, SessionCipher.sessionId(encryptedMessage));
+        if (key == null) {
+            return null;
         }
+        long started = System.nanoTime();
+        ByteBuffer plain = SessionCipher.open(key, encryptedMessage);
+        metrics.aesDecrypt().recordSince(started);
+        return plain;
     }
 
-    private void sendHeaderMessage(String message) throws IOException {
-        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
-        String header = String.format("%-" + HEADER_LENGTH + "d", messageBytes.length);
-        outputStream.write(header.getBytes(StandardCharsets.UTF_8));
-        outputStream.write(messageBytes);
-        outputStream.flush();
+    private CompletableFuture<Void> sendHeaderMessage(String message) throws IOException {
+        if (connection == null) {
+            throw new IOException("Нет соединения с сервером");
+        }
+        return connection.send(message);
+    }
+
+    private CompletableFuture<Void> sendHeaderMessage(ByteBuffer body) throws IOException {
+        if (connection == null) {
+            throw new IOException("Нет соединения с сервером");
+        }
+        return connection.send(body);
+    }
+
+    // Запись идёт в потоке транспорта, о неудаче сообщаем, когда она станет известна
+    private Void reportSendFailure(Throwable e) {
+        appendMessage("Сообщение не доставлено: " + e.getMessage());
+        return null;
+    }
+
+    private void openHistory() {
+        if (!historyEnabled) {
+            appendMessage("История не сохраняется на диск; включается параметром --history=on");
+            return;
+        }
+        try {
+            // Окно одно на всех собеседников, поэтому и журнал один на пользователя, а не на переписку
+            history = HistoryStore.open(HistoryStore.directoryFor(Path.of("history"), username));
+            chatLog.attachHistory(history, ChatLog.HISTORY_PAGE);
+        } catch (IOException e) {
+            appendMessage("Не удалось открыть историю: " + e.getMessage());
+        }
     }
 
-    private String receiveHeaderMessage() throws IOException {
-        byte[] headerBytes = new byte[HEADER_LENGTH];
-        inputStream.readFully(headerBytes);
-        int messageLength = Integer.parseInt(new String(headerBytes).trim());
-        byte[] messageBytes = new byte[messageLength];
-        inputStream.readFully(messageBytes);
-        return new String(messageBytes, StandardCharsets.UTF_8);
+    private void showOlderHistory() {
+        try {
+            if (!chatLog.showOlder()) {
+                appendMessage("Более ранних сообщений нет");
+            }
+        } catch (IOException e) {
+            appendMessage("Ошибка чтения истории: " + e.getMessage());
+        }
     }
 
     private void appendMessage(String message) {
-        Platform.runLater(() -> chatArea.appendText(message + "\n"));
+        // Сообщения копятся в очереди и выводятся пачкой раз за кадр. Без окна (воспроизведение записи
+        // в CaptureReplay) служебные сообщения не выводятся
+        if (chatLog != null) {
+            chatLog.append(message);
+        }
     }
 
     private void closeConnection() {
+        if (fileTransfers != null) {
+            fileTransfers.close();
+        }
         try {
-            clearPublicKeysFile();
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
-            }
-            if (outputStream != null) {
-                outputStream.close();
-            }
-            if (inputStream != null) {
-                inputStream.close();
+            if (connection != null) {
+                connection.close();
             }
         } catch (IOException e) {
             appendMessage("Ошибка при закрытии соединения: " + e.getMessage());
         }
+        if (capture != null) {
+            try {
+                capture.close();
+            } catch (IOException e) {
+                appendMessage("Ошибка записи кадров: " + e.getMessage());
+            }
+        }
+        if (inbound != null) {
+            inbound.close();
+        }
     }
 
     private void exitApplication() {
-        if (connectionThread != null) {
-            connectionThread.interrupt();
-        }
         closeConnection();
+        metrics.close();
+        if (keyManager != null) {
+            try {
+                keyManager.close();
+            } catch (IOException ignored) {
+            }
+        }
+        if (history != null) {
+            try {
+                history.close();
+            } catch (IOException ignored) {
+            }
+        }
         Platform.exit();
         System.exit(0);
     }
@@ -1,49 +1,309 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.Key;
 import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
+import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
 import java.util.Base64;
-import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
+import javax.crypto.KeyAgreement;
+import javax.crypto.spec.SecretKeySpec;
+
+import protocol.KeyAnnouncement;
+import protocol.KeyDirectory;
+
+// Ключи пользователя: RSA-2048 для прежних режимов шифрования, X25519 для согласования ключей
+// и Ed25519 для подписи. С хранилищем (open) ключи создаются один раз и дальше только читаются из PKCS12.
+// RSA генерируется в фоне: поиск простых чисел занимает секунды, а X25519 и Ed25519 - доли миллисекунды
 public class KeyManager {
-    private PrivateKey privateKey;
-    private PublicKey publicKey;
-    private final HashMap<String, PublicKey> publicKeys = new HashMap<>();
+    static final String RSA = "RSA";
+    static final String X25519 = "X25519";
+    static final String ED25519 = "Ed25519";
+
+    // Пара RSA; фоновая генерация завершает его только после попытки сохранения
+    private final CompletableFuture<KeyPair> rsa;
+    // Хранилище записано со всеми ключами
+    private final CompletableFuture<Void> saved;
+    private final KeyPair agreement;
+    private final KeyPair signing;
+    private final Path keystore;
+    private final char[] password;
+
+    // Открытые ключи собеседников: из объявлений и вставленные вручную
+    private final KeyDirectory directory;
+    // Сеансовые ключи: исходящие по получателю, входящие по отправителю
+    private final ConcurrentHashMap<String, SessionKey> outboundSessions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, SessionKey> inboundSessions = new ConcurrentHashMap<>();
 
+    // Ключи только в памяти, новые при каждом создании
     public KeyManager() throws Exception {
-        generateKeys();
+        this(generate(RSA));
+    }
+
+    // Ключи только в памяти с готовой парой RSA: нагрузочный генератор даёт одну пару всем пользователям
+    public KeyManager(KeyPair rsaPair) throws GeneralSecurityException {
+        this(CompletableFuture.completedFuture(rsaPair), CompletableFuture.completedFuture(null),
+                generate(X25519), generate(ED25519), null, null, KeyDirectory.inMemory());
+    }
+
+    private KeyManager(CompletableFuture<KeyPair> rsa, CompletableFuture<Void> saved, KeyPair agreement,
+                       KeyPair signing, Path keystore, char[] password, KeyDirectory directory) {
+        this.rsa = rsa;
+        this.saved = saved;
+        this.agreement = agreement;
+        this.signing = signing;
+        this.keystore = keystore;
+        this.password = password;
+        this.directory = directory;
+    }
+
+    // Ключи из хранилища PKCS12, защищённого паролем. Недостающие создаются и сохраняются:
+    // X25519 и Ed25519 сразу, RSA - в фоне, до готовности getPrivateKey и getPublicKey ждут его.
+    // Неверный пароль - IOException с причиной UnrecoverableKeyException.
+    // Справочник ключей собеседников лежит рядом, в directory.log; status - о сбоях записи справочника
+    public static KeyManager open(Path keystore, char[] password, Consumer<String> status) throws Exception {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        if (Files.exists(keystore)) {
+            try (InputStream in = Files.newInputStream(keystore)) {
+                store.load(in, password);
+            }
+        } else {
+            store.load(null, password);
+        }
+        KeyPair storedRsa = read(store, RSA, password);
+        KeyPair agreement = read(store, X25519, password);
+        KeyPair signing = read(store, ED25519, password);
+
+        boolean generated = agreement == null || signing == null;
+        if (agreement == null) {
+            agreement = generate(X25519);
+        }
+        if (signing == null) {
+            signing = generate(ED25519);
+        }
+        CompletableFuture<KeyPair> rsa = storedRsa != null
+                ? CompletableFuture.completedFuture(storedRsa) : new CompletableFuture<>();
+        CompletableFuture<Void> saved = storedRsa != null
+                ? CompletableFuture.completedFuture(null) : new CompletableFuture<>();
+        KeyManager manager = new KeyManager(rsa, saved, agreement, signing, keystore, password.clone(),
+                KeyDirectory.open(keystore.resolveSibling("directory.log"), status));
+        if (generated) {
+            manager.save(storedRsa);
+        }
+        if (storedRsa == null) {
+            Thread.ofVirtual().name("rsa-keygen").start(() -> {
+                KeyPair pair;
+                try {
+                    pair = generate(RSA);
+                } catch (GeneralSecurityException e) {
+                    rsa.completeExceptionally(e);
+                    saved.completeExceptionally(e);
+                    return;
+                }
+                try {
+                    manager.save(pair);
+                    saved.complete(null);
+                } catch (Exception e) {
+                    // Ключ работает до конца сеанса, при следующем запуске будет создан заново
+                    saved.completeExceptionally(e);
+                } finally {
+                    rsa.complete(pair);
+                }
+            });
+        }
+        return manager;
     }
 
-    // Генерация пары ключей RSA
-    private void generateKeys() throws Exception {
-        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
-        keyGen.initialize(2048); // 2048-битный ключ
-        KeyPair keyPair = keyGen.generateKeyPair();
-        privateKey = keyPair.getPrivate();
-        publicKey = keyPair.getPublic();
+    // Завершается, когда все ключи, в том числе фоновый RSA, созданы и сохранены.
+    // Ошибка сохранения приходит сюда же, а ключи при этом работают до конца сеанса (см. generated)
+    public CompletableFuture<Void> ready() {
+        return rsa.thenCompose(pair -> saved);
+    }
+
+    // Завершается, когда ключ RSA создан, даже если сохранить его не удалось
+    public CompletableFuture<Void> generated() {
+        return rsa.thenApply(pair -> null);
     }
 
     public PrivateKey getPrivateKey() {
-        return privateKey;
+        return rsa.join().getPrivate();
     }
 
     public PublicKey getPublicKey() {
-        return publicKey;
+        return rsa.join().getPublic();
+    }
+
+    public KeyPair getAgreementKeys() {
+        return agreement;
+    }
+
+    public KeyPair getSigningKeys() {
+        return signing;
+    }
+
+    // Общий секрет X25519 с собеседником; как ключ его использовать только через KDF
+    public byte[] agree(PublicKey peerAgreementKey) throws GeneralSecurityException {
+        KeyAgreement keyAgreement = KeyAgreement.getInstance(X25519);
+        keyAgreement.init(agreement.getPrivate());
+        keyAgreement.doPhase(peerAgreementKey, true);
+        return keyAgreement.generateSecret();
+    }
+
+    public byte[] sign(byte[] data) throws GeneralSecurityException {
+        Signature signature = Signature.getInstance(ED25519);
+        signature.initSign(signing.getPrivate());
+        signature.update(data);
+        return signature.sign();
     }
 
+    public static boolean verify(PublicKey signingKey, byte[] data, byte[] signatureBytes)
+            throws GeneralSecurityException {
+        Signature signature = Signature.getInstance(ED25519);
+        signature.initVerify(signingKey);
+        signature.update(data);
+        return signature.verify(signatureBytes);
+    }
+
+    // Объявление своих ключей для рассылки; ждёт RSA, поэтому вызывать после generated()
+    public byte[] announcement(String sender) throws GeneralSecurityException {
+        return KeyAnnouncement.create(sender, System.currentTimeMillis(), getPublicKey(), agreement.getPublic(),
+                signing.getPublic(), this::sign);
+    }
+
+    public String fingerprint() {
+        return KeyAnnouncement.fingerprint(signing.getPublic().getEncoded());
+    }
+
+    public KeyDirectory directory() {
+        return directory;
+    }
+
+    // Ключ RSA, вставленный вручную, заменяет известный по объявлениям
     public void addPublicKey(String username, String base64Key) throws Exception {
-        byte[] decodedKey = Base64.getDecoder().decode(base64Key);
-        PublicKey key = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(decodedKey));
-        publicKeys.put(username, key);
+        directory.pin(username, Base64.getDecoder().decode(base64Key));
     }
 
     public PublicKey getPublicKey(String username) {
-        return publicKeys.get(username);
+        return directory.rsaKey(username);
+    }
+
+    // Действующий исходящий ключ или null, если его нет или пора сменить
+    public SessionKey getOutboundSession(String username) {
+        SessionKey session = outboundSessions.get(username);
+        return session == null || session.needsRekey() ? null : session;
+    }
+
+    public void putOutboundSession(String username, SessionKey session) {
+        outboundSessions.put(username, session);
+    }
+
+    // Собеседник перезапустился и не знает прежнего ключа: следующее сообщение начнётся с нового
+    public void forgetOutboundSession(String username) {
+        outboundSessions.remove(username);
+    }
+
+    public void putInboundSession(String username, SessionKey session) {
+        inboundSessions.put(username, session);
+    }
+
+    public SessionKey getInboundSession(String username, long id) {
+        SessionKey session = inboundSessions.get(username);
+        if (session == null || session.getId() != id) {
+            return null;
+        }
+        if (session.isStale()) {
+            inboundSessions.remove(username, session);
+            return null;
+        }
+        return session;
     }
 
     public String exportPublicKey() {
-        return Base64.getEncoder().encodeToString(publicKey.getEncoded());
+        return Base64.getEncoder().encodeToString(getPublicKey().getEncoded());
+    }
+
+    public String exportAgreementKey() {
+        return Base64.getEncoder().encodeToString(agreement.getPublic().getEncoded());
+    }
+
+    public String exportSigningKey() {
+        return Base64.getEncoder().encodeToString(signing.getPublic().getEncoded());
+    }
+
+    public void close() throws IOException {
+        directory.close();
+    }
+
+    static KeyPair generate(String algorithm) throws GeneralSecurityException {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance(algorithm);
+        if (RSA.equals(algorithm)) {
+            keyGen.initialize(2048); // 2048-битный ключ
+        }
+        return keyGen.generateKeyPair();
+    }
+
+    // Хранилище переписывается целиком во временный файл и атомарно заменяет прежнее
+    // rsaPair == null - ключ RSA ещё генерируется и допишется следующим сохранением
+    private synchronized void save(KeyPair rsaPair) throws Exception {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        store.load(null, password);
+        write(store, X25519, agreement);
+        write(store, ED25519, signing);
+        if (rsaPair != null) {
+            write(store, RSA, rsaPair);
+        }
+        Path parent = keystore.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temporary = parent.resolve(keystore.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temporary)) {
+            store.store(out, password);
+        }
+        Files.move(temporary, keystore, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // PKCS12 хранит закрытый ключ только вместе с сертификатом, а выпустить его стандартным API нельзя,
+    // поэтому обе половины пары лежат как секретные записи в кодировках PKCS#8 и X.509
+    private void write(KeyStore store, String algorithm, KeyPair pair) throws GeneralSecurityException {
+        KeyStore.PasswordProtection protection = new KeyStore.PasswordProtection(password);
+        store.setEntry(alias(algorithm, "private"), new KeyStore.SecretKeyEntry(
+                new SecretKeySpec(pair.getPrivate().getEncoded(), algorithm)), protection);
+        store.setEntry(alias(algorithm, "public"), new KeyStore.SecretKeyEntry(
+                new SecretKeySpec(pair.getPublic().getEncoded(), algorithm)), protection);
+    }
+
+    private static KeyPair read(KeyStore store, String algorithm, char[] password) throws GeneralSecurityException {
+        Key privateEntry = store.getKey(alias(algorithm, "private"), password);
+        Key publicEntry = store.getKey(alias(algorithm, "public"), password);
+        if (privateEntry == null || publicEntry == null) {
+            return null;
+        }
+        KeyFactory factory = KeyFactory.getInstance(algorithm);
+        byte[] privateBytes = privateEntry.getEncoded();
+        try {
+            return new KeyPair(factory.generatePublic(new X509EncodedKeySpec(publicEntry.getEncoded())),
+                    factory.generatePrivate(new PKCS8EncodedKeySpec(privateBytes)));
+        } finally {
+            Arrays.fill(privateBytes, (byte) 0);
+        }
+    }
+
+    private static String alias(String algorithm, String half) {
+        return algorithm.toLowerCase(Locale.ROOT) + "-" + half;
     }
 }
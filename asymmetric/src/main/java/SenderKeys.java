@@ -0,0 +1,222 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import protocol.ChatMetrics;
+import protocol.Envelope;
+import protocol.FileTransfers;
+
+// Групповое шифрование ключом отправителя: ключ цепочки раздаётся участникам один раз, обёрнутый RSA-OAEP
+// каждого (TYPE_SENDER_KEY), а сообщение шифруется AES-GCM один раз и уходит группе одним кадром
+// (TYPE_GROUP_ENCRYPTED с пустым получателем, формат SessionCipher). Цена отправки не зависит от размера группы.
+// Из звена цепочки выводятся ключ сообщений и следующее звено; номер звена - id в заголовке сообщения.
+// Новому участнику достаётся следующее звено (одна операция RSA), старые участники сдвигают цепочку сами,
+// а прошлые сообщения новичку не прочитать. Если кто-то вышел из группы, цепочка создаётся заново
+// и раздаётся оставшимся. По времени и числу сообщений цепочка сдвигается без RSA
+public class SenderKeys {
+    private static final int CHAIN_LENGTH = 32;
+    // Настолько вперёд получатель сдвигает цепочку за одно сообщение
+    private static final int MAX_SKIP = 1024;
+    // Цепочек одного отправителя помним несколько: после пересоздания дочитываются сообщения в пути
+    private static final int KEPT_CHAINS = 2;
+    private static final byte[] CHAIN_STEP = "chat-sender-chain".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MESSAGE_STEP = "chat-sender-message".getBytes(StandardCharsets.US_ASCII);
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // Ключ RSA участника по имени, null если неизвестен
+    @FunctionalInterface
+    interface PublicKeys {
+        PublicKey find(String user);
+    }
+
+    private final String username;
+    private final FileTransfers.Output output;
+    private final ChatMetrics metrics;
+
+    // Своя цепочка, защищена this
+    private Set<String> members = Set.of();
+    private byte[] chain;
+    private SessionKey current;
+
+    // Чужие цепочки по отправителю, новые в начале списка
+    private final ConcurrentHashMap<String, List<Chain>> inbound = new ConcurrentHashMap<>();
+
+    private static final class Chain {
+        private long id;
+        private byte[] chain;
+        private SecretKey key;
+        // Ключ предыдущего звена: сообщения расшифровываются параллельно и могут прийти к цепочке не по порядку
+        private SecretKey previousKey;
+
+        Chain(long id, byte[] chain) throws GeneralSecurityException {
+            this.id = id;
+            this.chain = chain;
+            this.key = messageKey(chain);
+        }
+    }
+
+    public SenderKeys(String username, FileTransfers.Output output, ChatMetrics metrics) {
+        this.username = username;
+        this.output = output;
+        this.metrics = metrics;
+    }
+
+    // Ключ для сообщения группе. Конверты с ключом уходят до сообщения тем же соединением,
+    // поэтому участник получает ключ раньше, чем первое сообщение на нём
+    public synchronized SessionKey outbound(Collection<String> group, PublicKeys publicKeys)
+            throws GeneralSecurityException, IOException {
+        Set<String> next = new TreeSet<>(group);
+        next.remove(username);
+        if (next.isEmpty()) {
+            throw new GeneralSecurityException("В группе нет других участников");
+        }
+        List<String> missing = new ArrayList<>();
+        for (String member : next) {
+            if (publicKeys.find(member) == null) {
+                missing.add(member);
+            }
+        }
+        if (!missing.isEmpty()) {
+            throw new GeneralSecurityException("Нет публичного ключа для " + String.join(", ", missing));
+        }
+
+        if (current == null || !next.containsAll(members)) {
+            // Первое сообщение или кто-то вышел: новая цепочка для всех оставшихся
+            byte[] fresh = new byte[CHAIN_LENGTH];
+            RANDOM.nextBytes(fresh);
+            install(RANDOM.nextLong(), fresh);
+            distribute(next, publicKeys);
+        } else if (!members.containsAll(next)) {
+            // Только новые участники: сдвигаем цепочку и раздаём новое звено лишь им
+            advance();
+            Set<String> joined = new HashSet<>(next);
+            joined.removeAll(members);
+            distribute(joined, publicKeys);
+        } else if (current.needsRekey()) {
+            advance();
+        }
+        members = next;
+        return current;
+    }
+
+    // Принимает ключ отправителя из конверта TYPE_SENDER_KEY, адресованного этому пользователю
+    public void accept(String sender, ByteBuffer payload, PrivateKey privateKey) throws GeneralSecurityException {
+        long started = System.nanoTime();
+        SessionKey wrapped = SessionCipher.unwrap(payload, privateKey);
+        metrics.rsaDecrypt().recordSince(started);
+        Chain chain = new Chain(wrapped.getId(), wrapped.getKey().getEncoded());
+        inbound.compute(sender, (name, chains) -> {
+            List<Chain> updated = new ArrayList<>(KEPT_CHAINS);
+            updated.add(chain);
+            if (chains != null) {
+                for (Chain known : chains) {
+                    // Звено той же цепочки (новичку раздано следующее) заменяет прежнее
+                    if (updated.size() < KEPT_CHAINS && !sameChain(known, chain)) {
+                        updated.add(known);
+                    }
+                }
+            }
+            return updated;
+        });
+    }
+
+    // Ключ сообщения с номером id от отправителя или null, если отправитель его не раздавал
+    public SecretKey inbound(String sender, long id) throws GeneralSecurityException {
+        List<Chain> chains = inbound.get(sender);
+        if (chains == null) {
+            return null;
+        }
+        for (Chain chain : chains) {
+            synchronized (chain) {
+                long skip = id - chain.id;
+                if (skip == -1 && chain.previousKey != null) {
+                    return chain.previousKey;
+                }
+                if (skip < 0 || skip > MAX_SKIP) {
+                    continue;
+                }
+                for (; skip > 0; skip--) {
+                    step(chain);
+                }
+                return chain.key;
+            }
+        }
+        return null;
+    }
+
+    // Участник подключился заново и мог потерять цепочку после перезапуска: при следующей отправке
+    // он получит ключ как новый участник
+    public synchronized void rejoined(String member) {
+        if (members.contains(member)) {
+            Set<String> remaining = new TreeSet<>(members);
+            remaining.remove(member);
+            members = remaining;
+        }
+    }
+
+    // Вызывается под this
+    private void distribute(Collection<String> recipients, PublicKeys publicKeys)
+            throws GeneralSecurityException, IOException {
+        SessionKey chainKey = new SessionKey(current.getId(), new SecretKeySpec(chain, "AES"));
+        for (String member : recipients) {
+            long started = System.nanoTime();
+            byte[] wrapped = SessionCipher.wrap(chainKey, publicKeys.find(member));
+            metrics.rsaEncrypt().recordSince(started);
+            output.send(Envelope.encode(username, Envelope.TYPE_SENDER_KEY, Envelope.SUITE_RSA_OAEP, member, wrapped));
+        }
+    }
+
+    // Вызывается под this
+    private void install(long id, byte[] nextChain) throws GeneralSecurityException {
+        chain = nextChain;
+        current = new SessionKey(id, messageKey(nextChain));
+    }
+
+    // Вызывается под this: прежнее звено затирается, прошлые сообщения из нового не восстановить
+    private void advance() throws GeneralSecurityException {
+        byte[] next = hmac(chain, CHAIN_STEP);
+        Arrays.fill(chain, (byte) 0);
+        install(current.getId() + 1, next);
+    }
+
+    private static void step(Chain chain) throws GeneralSecurityException {
+        byte[] next = hmac(chain.chain, CHAIN_STEP);
+        Arrays.fill(chain.chain, (byte) 0);
+        chain.chain = next;
+        chain.id++;
+        chain.previousKey = chain.key;
+        chain.key = messageKey(next);
+    }
+
+    // Звено с номером ближе MAX_SKIP считается той же цепочкой: id новой цепочки случаен
+    private static boolean sameChain(Chain a, Chain b) {
+        long distance = a.id - b.id;
+        return distance >= -MAX_SKIP && distance <= MAX_SKIP;
+    }
+
+    private static SecretKey messageKey(byte[] chain) throws GeneralSecurityException {
+        return new SecretKeySpec(hmac(chain, MESSAGE_STEP), "AES");
+    }
+
+    private static byte[] hmac(byte[] key, byte[] label) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(label);
+    }
+}
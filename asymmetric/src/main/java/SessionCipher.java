@@ -0,0 +1,94 @@
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+// Гибридное шифрование: RSA-OAEP только для передачи сеансового ключа,
+// сами сообщения - AES-256-GCM, поэтому размер сообщения не ограничен 245 байтами.
+// Формат сеансового ключа: [id 8 байт][ключ, обёрнутый RSA]
+// Формат сообщения: [id 8 байт][nonce 12 байт][шифртекст + тег 16 байт], первые 20 байт - AAD
+public final class SessionCipher {
+    static final int ID_LENGTH = 8;
+    static final int NONCE_LENGTH = 12;
+    static final int HEADER_LENGTH = ID_LENGTH + NONCE_LENGTH;
+    static final int TAG_BITS = 128;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ThreadLocal<Cipher> GCM = ThreadLocal.withInitial(() -> cipher("AES/GCM/NoPadding"));
+    private static final ThreadLocal<Cipher> OAEP =
+            ThreadLocal.withInitial(() -> cipher("RSA/ECB/OAEPWithSHA-256AndMGF1Padding"));
+
+    private SessionCipher() {
+    }
+
+    public static SessionKey generate() throws GeneralSecurityException {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        return new SessionKey(RANDOM.nextLong(), keyGen.generateKey());
+    }
+
+    public static byte[] wrap(SessionKey session, PublicKey recipientKey) throws GeneralSecurityException {
+        Cipher cipher = OAEP.get();
+        cipher.init(Cipher.WRAP_MODE, recipientKey);
+        byte[] wrapped = cipher.wrap(session.getKey());
+        return ByteBuffer.allocate(ID_LENGTH + wrapped.length).putLong(session.getId()).put(wrapped).array();
+    }
+
+    public static SessionKey unwrap(ByteBuffer payload, PrivateKey privateKey) throws GeneralSecurityException {
+        long id = payload.getLong(payload.position());
+        byte[] wrapped = new byte[payload.remaining() - ID_LENGTH];
+        payload.get(payload.position() + ID_LENGTH, wrapped);
+        Cipher cipher = OAEP.get();
+        cipher.init(Cipher.UNWRAP_MODE, privateKey);
+        Key key = cipher.unwrap(wrapped, "AES", Cipher.SECRET_KEY);
+        return new SessionKey(id, (SecretKey) key);
+    }
+
+    public static long sessionId(ByteBuffer payload) {
+        return payload.getLong(payload.position());
+    }
+
+    public static ByteBuffer seal(SessionKey session, byte[] plaintext) throws GeneralSecurityException {
+        ByteBuffer out = ByteBuffer.allocate(HEADER_LENGTH + plaintext.length + TAG_BITS / 8);
+        // nonce: 4 нулевых байта и номер сообщения в сеансе
+        out.putLong(session.getId()).putInt(0).putLong(session.nextNonce());
+
+        Cipher cipher = GCM.get();
+        cipher.init(Cipher.ENCRYPT_MODE, session.getKey(),
+                new GCMParameterSpec(TAG_BITS, out.array(), ID_LENGTH, NONCE_LENGTH));
+        cipher.updateAAD(out.array(), 0, HEADER_LENGTH);
+        cipher.doFinal(ByteBuffer.wrap(plaintext), out);
+        return out.flip();
+    }
+
+    public static ByteBuffer open(SecretKey key, ByteBuffer payload) throws GeneralSecurityException {
+        if (payload.remaining() < HEADER_LENGTH + TAG_BITS / 8) {
+            throw new GeneralSecurityException("Сообщение слишком короткое");
+        }
+        byte[] header = new byte[HEADER_LENGTH];
+        payload.get(payload.position(), header);
+
+        Cipher cipher = GCM.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, header, ID_LENGTH, NONCE_LENGTH));
+        cipher.updateAAD(header);
+        ByteBuffer ciphertext = payload.slice(payload.position() + HEADER_LENGTH, payload.remaining() - HEADER_LENGTH);
+        ByteBuffer plaintext = ByteBuffer.allocate(cipher.getOutputSize(ciphertext.remaining()));
+        cipher.doFinal(ciphertext, plaintext);
+        return plaintext.flip();
+    }
+
+    private static Cipher cipher(String transformation) {
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Шифр " + transformation + " недоступен", e);
+        }
+    }
+}
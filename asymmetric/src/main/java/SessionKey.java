@@ -0,0 +1,59 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.SecretKey;
+
+import protocol.KeyMaterial;
+
+// Сеансовый ключ AES-GCM между двумя пользователями. Одноразовые номера (nonce) берутся из счётчика,
+// поэтому ключ обновляется по времени жизни или по числу сообщений
+public class SessionKey {
+    private static final long TTL_NANOS = TimeUnit.MINUTES.toNanos(30);
+    private static final long MAX_MESSAGES = 1L << 24;
+
+    private final long id;
+    private final SecretKey key;
+    private final long createdAt = System.nanoTime();
+    private final AtomicLong counter = new AtomicLong();
+    // Секрет для согласованных наборов шифров, создаётся при первом сообщении таким набором
+    private volatile KeyMaterial material;
+
+    public SessionKey(long id, SecretKey key) {
+        this.id = id;
+        this.key = key;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public SecretKey getKey() {
+        return key;
+    }
+
+    public KeyMaterial material() {
+        KeyMaterial current = material;
+        if (current == null) {
+            current = new KeyMaterial(key.getEncoded());
+            material = current;
+        }
+        return current;
+    }
+
+    public long nextNonce() {
+        return counter.getAndIncrement();
+    }
+
+    public boolean needsRekey() {
+        return isExpired() || counter.get() >= MAX_MESSAGES;
+    }
+
+    // Входящий ключ держим вдвое дольше, чтобы дочитать сообщения, отправленные перед сменой ключа
+    public boolean isExpired() {
+        return System.nanoTime() - createdAt > TTL_NANOS;
+    }
+
+    public boolean isStale() {
+        return System.nanoTime() - createdAt > 2 * TTL_NANOS;
+    }
+}
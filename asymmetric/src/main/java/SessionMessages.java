@@ -0,0 +1,136 @@
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+
+import protocol.ChatMetrics;
+import protocol.CipherSuite;
+import protocol.Envelope;
+import protocol.FileTransfers;
+import protocol.SuiteNegotiation;
+
+// Личные зашифрованные сообщения AsyncChatClient без окна: гибридный режим (сеансовый ключ под RSA-OAEP,
+// текст под согласованным набором или в формате SessionCipher) и прежний RSA с PKCS#1.
+// Сеансовые ключи и ключи собеседников хранит KeyManager. Нагрузочный генератор вызывает те же методы
+public class SessionMessages {
+    private final String username;
+    private final KeyManager keyManager;
+    private final SuiteNegotiation ciphers;
+    private final ChatMetrics metrics;
+    // Куда уходит конверт с новым сеансовым ключом
+    private final FileTransfers.Output output;
+
+    public SessionMessages(String username, KeyManager keyManager, SuiteNegotiation ciphers, ChatMetrics metrics,
+                           FileTransfers.Output output) {
+        this.username = username;
+        this.keyManager = keyManager;
+        this.ciphers = ciphers;
+        this.metrics = metrics;
+        this.output = output;
+    }
+
+    // Конверт для получателя. Собеседнику со списком наборов - согласованный набор, остальным прежний
+    // формат SessionCipher; hybrid == false - прежний RSA
+    public ByteBuffer encode(String recipient, byte type, byte[] message, boolean hybrid) throws Exception {
+        if (!hybrid) {
+            return Envelope.encode(username, type, Envelope.SUITE_RSA_PKCS1, recipient,
+                    encryptMessage(recipient, message));
+        }
+        CipherSuite suite = ciphers.suiteFor(recipient);
+        return Envelope.encode(username, type, suite == null ? Envelope.SUITE_AES_GCM : suite.id(), recipient,
+                encryptSessionMessage(outboundSession(recipient), suite, message));
+    }
+
+    public SessionKey outboundSession(String recipient) throws Exception {
+        SessionKey session = keyManager.getOutboundSession(recipient);
+        if (session == null) {
+            // Первое сообщение собеседнику или пора сменить ключ: сначала отправляем новый сеансовый ключ
+            session = SessionCipher.generate();
+            long started = System.nanoTime();
+            byte[] wrapped = SessionCipher.wrap(session, getRecipientKey(recipient));
+            metrics.rsaEncrypt().recordSince(started);
+            output.send(Envelope.encode(username, Envelope.TYPE_SESSION_KEY, Envelope.SUITE_RSA_OAEP,
+                    recipient, wrapped));
+            keyManager.putOutboundSession(recipient, session);
+        }
+        return session;
+    }
+
+    // Единственная операция с закрытым ключом на весь сеанс
+    public void acceptSessionKey(String sender, ByteBuffer payload) throws Exception {
+        long started = System.nanoTime();
+        SessionKey session = SessionCipher.unwrap(payload, keyManager.getPrivateKey());
+        metrics.rsaDecrypt().recordSince(started);
+        keyManager.putInboundSession(sender, session);
+    }
+
+    // suite == null - формат SessionCipher, иначе [id сеанса 8][шифртекст набора], id проверяется как aad
+    public ByteBuffer encryptSessionMessage(SessionKey session, CipherSuite suite, byte[] message) throws Exception {
+        long started = System.nanoTime();
+        ByteBuffer sealed;
+        if (suite == null) {
+            sealed = SessionCipher.seal(session, message);
+        } else {
+            // Счётчик сообщений сеанса - для смены ключа, nonce набор выбирает сам
+            session.nextNonce();
+            sealed = ByteBuffer.allocate(SessionCipher.ID_LENGTH + suite.sealedLength(message.length))
+                    .putLong(session.getId());
+            byte[] aad = Arrays.copyOf(sealed.array(), SessionCipher.ID_LENGTH);
+            suite.seal(session.material().keyFor(suite), aad, ByteBuffer.wrap(message), sealed);
+            sealed.flip();
+        }
+        metrics.aesEncrypt().recordSince(started);
+        return sealed;
+    }
+
+    public ByteBuffer decryptSessionMessage(String sender, CipherSuite suite, ByteBuffer encryptedMessage)
+            throws Exception {
+        if (encryptedMessage.remaining() < SessionCipher.ID_LENGTH) {
+            throw new Exception("Сообщение обрезано");
+        }
+        SessionKey session = keyManager.getInboundSession(sender, SessionCipher.sessionId(encryptedMessage));
+        if (session == null) {
+            throw new Exception("Нет сеансового ключа от пользователя " + sender);
+        }
+        long started = System.nanoTime();
+        ByteBuffer plain;
+        if (suite == null) {
+            plain = SessionCipher.open(session.getKey(), encryptedMessage);
+        } else {
+            byte[] aad = new byte[SessionCipher.ID_LENGTH];
+            encryptedMessage.get(aad);
+            plain = suite.open(session.material().keyFor(suite), aad, encryptedMessage);
+        }
+        metrics.aesDecrypt().recordSince(started);
+        return plain;
+    }
+
+    public byte[] encryptMessage(String user, byte[] message) throws Exception {
+        PublicKey recipientKey = getRecipientKey(user);
+        long started = System.nanoTime();
+        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, recipientKey);
+        byte[] encrypted = cipher.doFinal(message);
+        metrics.rsaEncrypt().recordSince(started);
+        return encrypted;
+    }
+
+    public ByteBuffer decryptMessage(ByteBuffer encryptedMessage) throws Exception {
+        long started = System.nanoTime();
+        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+        cipher.init(Cipher.DECRYPT_MODE, keyManager.getPrivateKey());
+        ByteBuffer decrypted = ByteBuffer.allocate(cipher.getOutputSize(encryptedMessage.remaining()));
+        cipher.doFinal(encryptedMessage, decrypted);
+        metrics.rsaDecrypt().recordSince(started);
+        return decrypted.flip();
+    }
+
+    private PublicKey getRecipientKey(String user) throws Exception {
+        PublicKey recipientKey = keyManager.getPublicKey(user);
+        if (recipientKey == null) {
+            throw new Exception("Публичный ключ для пользователя " + user + " не найден");
+        }
+        return recipientKey;
+    }
+}
@@ -0,0 +1,81 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import protocol.ChatMetrics;
+import protocol.FileTransfers;
+import protocol.Frame;
+import protocol.SuiteNegotiation;
+
+/**
+ * Путь сообщения в AsyncChatClient (SessionMessages): RSA/ECB/PKCS1Padding на каждое сообщение.
+ * Размер ограничен 245 байтами - больше RSA-2048 с PKCS#1 не зашифрует.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AsymmetricBenchmark {
+    private static final String MESSAGES = "SessionMessages";
+    private static final String KEY_MANAGER = "KeyManager";
+    private static final String PEER = "bench_bob";
+
+    private static final MethodHandle NEW_MESSAGES = ClientHandles.constructor(MESSAGES, String.class,
+            ClientHandles.type(KEY_MANAGER), SuiteNegotiation.class, ChatMetrics.class, FileTransfers.Output.class);
+    private static final MethodHandle ENCRYPT =
+            ClientHandles.method(MESSAGES, "encryptMessage", byte[].class, String.class, byte[].class);
+    private static final MethodHandle DECRYPT =
+            ClientHandles.method(MESSAGES, "decryptMessage", ByteBuffer.class, ByteBuffer.class);
+    private static final MethodHandle ADD_PUBLIC_KEY =
+            ClientHandles.method(KEY_MANAGER, "addPublicKey", void.class, String.class, String.class);
+    private static final MethodHandle EXPORT_PUBLIC_KEY =
+            ClientHandles.method(KEY_MANAGER, "exportPublicKey", String.class);
+
+    @Param({"16", "128", "245"})
+    private int messageSize;
+
+    private Object messages;
+    private String message;
+    private ByteBuffer encrypted;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        // Шифруем самому себе, чтобы расшифровка проходила своим закрытым ключом
+        Object keyManager = ClientHandles.newInstance(KEY_MANAGER);
+        ADD_PUBLIC_KEY.invoke(keyManager, PEER, (String) EXPORT_PUBLIC_KEY.invoke(keyManager));
+
+        messages = NEW_MESSAGES.invoke("bench_alice", keyManager, new SuiteNegotiation(null), new ChatMetrics(),
+                (FileTransfers.Output) body -> {
+                });
+        message = ClientHandles.message(messageSize);
+        encrypted = ByteBuffer.wrap((byte[]) ENCRYPT.invoke(messages, PEER, message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws Throwable {
+        return (byte[]) ENCRYPT.invoke(messages, PEER, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public String decrypt() throws Throwable {
+        return Frame.decode((ByteBuffer) DECRYPT.invoke(messages, encrypted.duplicate()));
+    }
+}
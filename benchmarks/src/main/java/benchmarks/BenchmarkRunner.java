@@ -0,0 +1,40 @@
+package benchmarks;
+
+import java.util.Arrays;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Прогон набора бенчмарков для нескольких чисел потоков с профилировщиком GC,
+ * который добавляет к результатам скорость аллокаций (gc.alloc.rate.norm - байт на операцию).
+ *
+ * java -jar benchmarks/target/benchmarks.jar [регулярка] [потоки через запятую]
+ * например: java -jar benchmarks/target/benchmarks.jar Framing 1,4,8
+ */
+public final class BenchmarkRunner {
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : ".*";
+        int[] threads = args.length > 1
+                ? Arrays.stream(args[1].split(",")).mapToInt(s -> Integer.parseInt(s.trim())).toArray()
+                : new int[]{1, 4};
+
+        for (int threadCount : threads) {
+            Options options = new OptionsBuilder()
+                    .include(include)
+                    .threads(threadCount)
+                    .addProfiler(GCProfiler.class)
+                    .result("jmh-result-" + threadCount + "t.json")
+                    .resultFormat(ResultFormatType.JSON)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import protocol.ChatConnection;
+import protocol.ChatMetrics;
+import protocol.Envelope;
+import protocol.FileTransfers;
+import protocol.Frame;
+import protocol.FrameCapture;
+import protocol.FrameCodec;
+import protocol.FrameListener;
+import protocol.FrameReplay;
+import protocol.InboundPipeline;
+import protocol.LatencyHistogram;
+import protocol.SuiteNegotiation;
+
+/**
+ * Воспроизведение записи кадров (клиенты с --capture=<файл>) без сети и JavaFX: FrameDecoder, onFrame,
+ * InboundPipeline, разбор конвертов и расшифровка настоящим кодом клиента. Запись реальной переписки
+ * становится повторяемым замером приёмного пути.
+ * <pre>
+ * --capture=capture.bin   файл записи
+ * --client=symmetric      symmetric, asymmetric или none (только кадры и заголовки конвертов)
+ * --user=alice            владелец записи, по умолчанию - имя из первого отправленного кадра
+ * --speed=0               0 - как можно быстрее, 1 - в записанном темпе, 2 - вдвое быстрее
+ * --repeat=3              число прогонов, каждый с новым экземпляром клиента
+ * </pre>
+ * Эфемерных ключей в записи нет: обмены ключами проходят заново с новыми ключами, которые собеседнику
+ * уже не отправить, поэтому сообщения записи не расшифровываются и считаются как ошибки расшифровки.
+ * Работа при этом та же - AEAD и ECB проверяют весь шифртекст, прежде чем отказать.
+ *
+ * java -cp benchmarks/target/benchmarks.jar benchmarks.CaptureReplay --capture=capture.bin --client=symmetric
+ */
+public final class CaptureReplay {
+    private static final MethodHandle SYMMETRIC_DECODE =
+            ClientHandles.method("SyncChatClient", "decode", String.class, String.class, ByteBuffer.class);
+    private static final MethodHandle ASYMMETRIC_DECODE =
+            ClientHandles.method("AsyncChatClient", "decode", String.class, String.class, ByteBuffer.class);
+    private static final MethodHandle NEW_PAIRWISE_KEYS =
+            ClientHandles.constructor("PairwiseKeys", String.class, FileTransfers.Output.class);
+    private static final MethodHandle NEW_SENDER_KEYS =
+            ClientHandles.constructor("SenderKeys", String.class, FileTransfers.Output.class, ChatMetrics.class);
+    private static final MethodHandle NEW_PAIRWISE_MESSAGES = ClientHandles.constructor("PairwiseMessages",
+            String.class, ClientHandles.type("PairwiseKeys"), SuiteNegotiation.class, ChatMetrics.class);
+    private static final MethodHandle NEW_SESSION_MESSAGES = ClientHandles.constructor("SessionMessages",
+            String.class, ClientHandles.type("KeyManager"), SuiteNegotiation.class, ChatMetrics.class,
+            FileTransfers.Output.class);
+
+    // Клиент, собранный без окна: слушатель кадров и его конвейер
+    // output - соединение клиента: его же получает onConnected, и через него конвейер останавливает чтение
+    private record Target(FrameListener listener, InboundPipeline<String> inbound, FrameReplay.Sink output,
+                          ChatMetrics metrics) {
+    }
+
+    private CaptureReplay() {
+    }
+
+    public static void main(String[] args) throws Throwable {
+        Map<String, String> named = parse(args);
+        String file = named.get("capture");
+        if (file == null) {
+            throw new IllegalArgumentException("Не указан файл записи: --capture=<файл>");
+        }
+        String client = named.getOrDefault("client", "none");
+        double speed = Double.parseDouble(named.getOrDefault("speed", "0"));
+        int repeat = Integer.parseInt(named.getOrDefault("repeat", "3"));
+
+        List<FrameCapture.Entry> entries = FrameCapture.read(Path.of(file));
+        String user = named.containsKey("user") ? named.get("user") : owner(entries);
+        describe(file, user, entries);
+
+        Path downloads = Files.createTempDirectory("capture-replay");
+        try {
+            for (int run = 1; run <= repeat; run++) {
+                AtomicLong rendered = new AtomicLong();
+                Target target = switch (client) {
+                    case "none" -> framesOnly(rendered);
+                    case "symmetric" -> symmetric(user, downloads, rendered);
+                    case "asymmetric" -> asymmetric(user, downloads, rendered);
+                    default -> throw new IllegalArgumentException("Неизвестный клиент: " + client);
+                };
+                long started = System.nanoTime();
+                FrameReplay.Result result = FrameReplay.replay(entries, new FrameCodec(), target.listener(), speed,
+                        target.output());
+                // Кадры ещё расшифровываются в пуле конвейера, замер заканчивается на последнем выведенном
+                target.inbound().awaitIdle();
+                long nanos = System.nanoTime() - started;
+                target.inbound().close();
+                report(run, result, nanos, rendered.get(), result.sent(), target.metrics());
+            }
+        } finally {
+            deleteRecursively(downloads);
+        }
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> named = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Ожидался параметр вида --имя=значение: " + arg);
+            }
+            named.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        return named;
+    }
+
+    // Клиент первым делом отправляет своё имя - кадр без ":"
+    private static String owner(List<FrameCapture.Entry> entries) {
+        for (FrameCapture.Entry entry : entries) {
+            if (entry.kind() == FrameCapture.OUTBOUND) {
+                String text = Frame.decode(entry.body().duplicate());
+                if (!text.isEmpty() && text.indexOf(':') < 0) {
+                    return text;
+                }
+            }
+        }
+        throw new IllegalArgumentException("В записи нет имени пользователя, укажите --user=<имя>");
+    }
+
+    private static void describe(String file, String user, List<FrameCapture.Entry> entries) {
+        int inbound = 0;
+        int outbound = 0;
+        int connects = 0;
+        long bytes = 0;
+        for (FrameCapture.Entry entry : entries) {
+            switch (entry.kind()) {
+                case FrameCapture.INBOUND -> {
+                    inbound++;
+                    bytes += FrameCodec.HEADER_LENGTH + entry.body().remaining();
+                }
+                case FrameCapture.OUTBOUND -> outbound++;
+                case FrameCapture.CONNECTED -> connects++;
+                default -> {
+                }
+            }
+        }
+        double seconds = entries.isEmpty() ? 0 : entries.get(entries.size() - 1).nanos() / 1e9;
+        System.out.printf(Locale.ROOT, "Запись %s (%s): принято %d кадров, %.2f МиБ, отправлено %d, "
+                        + "подключений %d, длительность %.1f с%n",
+                file, user, inbound, bytes / (double) (1 << 20), outbound, connects, seconds);
+    }
+
+    // Только кадры и заголовки конвертов, без клиента и криптографии
+    private static Target framesOnly(AtomicLong rendered) {
+        InboundPipeline<String> inbound = new InboundPipeline<>(CaptureReplay::peek,
+                (sender, result) -> rendered.incrementAndGet());
+        FrameReplay.Sink output = new FrameReplay.Sink();
+        FrameListener listener = new FrameListener() {
+            @Override
+            public void onConnected(ChatConnection connection) {
+            }
+
+            @Override
+            public void onFrame(Frame frame) {
+                inbound.submit(frame, output);
+            }
+
+            @Override
+            public void onDisconnected(IOException cause) {
+            }
+        };
+        return new Target(listener, inbound, output, new ChatMetrics());
+    }
+
+    private static String peek(String sender, ByteBuffer body) {
+        if (!Envelope.isEnvelope(body)) {
+            return Frame.decode(body);
+        }
+        try {
+            return Envelope.parse(body).recipientAsString();
+        } catch (ProtocolException e) {
+            return null;
+        }
+    }
+
+    private static Target symmetric(String user, Path downloads, AtomicLong rendered) throws Throwable {
+        Object client = ClientHandles.newInstance("SyncChatClient");
+        ChatMetrics metrics = new ChatMetrics();
+        FrameReplay.Sink output = prepare(client, user, metrics);
+        Object pairwiseKeys = NEW_PAIRWISE_KEYS.invoke(user, output(output));
+        ClientHandles.setField(client, "pairwiseKeys", pairwiseKeys);
+        ClientHandles.setField(client, "pairwiseMessages", NEW_PAIRWISE_MESSAGES.invoke(user, pairwiseKeys,
+                (SuiteNegotiation) ClientHandles.getField(client, "ciphers"), metrics));
+        return attach(client, user, SYMMETRIC_DECODE, downloads, output, metrics, rendered);
+    }
+
+    private static Target asymmetric(String user, Path downloads, AtomicLong rendered) throws Throwable {
+        Object client = ClientHandles.newInstance("AsyncChatClient");
+        ChatMetrics metrics = new ChatMetrics();
+        FrameReplay.Sink output = prepare(client, user, metrics);
+        Object keyManager = ClientHandles.newInstance("KeyManager");
+        ClientHandles.setField(client, "keyManager", keyManager);
+        ClientHandles.setField(client, "sessionMessages", NEW_SESSION_MESSAGES.invoke(user, keyManager,
+                (SuiteNegotiation) ClientHandles.getField(client, "ciphers"), metrics, output(output)));
+        ClientHandles.setField(client, "senderKeys", NEW_SENDER_KEYS.invoke(user, output(output), metrics));
+        return attach(client, user, ASYMMETRIC_DECODE, downloads, output, metrics, rendered);
+    }
+
+    // То, что клиент делает в connectToServer, только вместо сокета - заглушка
+    private static FrameReplay.Sink prepare(Object client, String user, ChatMetrics metrics) {
+        FrameReplay.Sink output = new FrameReplay.Sink();
+        ClientHandles.setField(client, "username", user);
+        ClientHandles.setField(client, "usernameBytes", user.getBytes(StandardCharsets.UTF_8));
+        ClientHandles.setField(client, "connection", output);
+        ClientHandles.setField(client, "metrics", metrics);
+        return output;
+    }
+
+    private static Target attach(Object client, String user, MethodHandle decode, Path downloads,
+                                 FrameReplay.Sink output, ChatMetrics metrics, AtomicLong rendered) {
+        ClientHandles.setField(client, "fileTransfers", new FileTransfers(user, downloads,
+                (FileTransfers.Keys) client, output(output), status -> {
+        }));
+        InboundPipeline<String> inbound = new InboundPipeline<>((sender, body) -> {
+            try {
+                return (String) decode.invoke(client, sender, body);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }, (sender, result) -> rendered.incrementAndGet());
+        ClientHandles.setField(client, "inbound", inbound);
+        return new Target((FrameListener) client, inbound, output, metrics);
+    }
+
+    private static FileTransfers.Output output(FrameReplay.Sink sink) {
+        return sink::send;
+    }
+
+    private static void report(int run, FrameReplay.Result result, long nanos, long rendered, int sent,
+                               ChatMetrics metrics) {
+        double seconds = nanos / 1e9;
+        System.out.printf(Locale.ROOT, "Прогон %d: %d кадров, %.2f МиБ за %.3f с - %.0f кадров/с, %.1f МиБ/с; "
+                        + "выведено %d, не расшифровано %d, отправлено %d%n",
+                run, result.frames(), result.bytes() / (double) (1 << 20), seconds,
+                seconds == 0 ? 0 : result.frames() / seconds,
+                seconds == 0 ? 0 : result.bytes() / seconds / (1 << 20),
+                rendered, metrics.getFailedDecryptions(), sent);
+        LatencyHistogram decrypt = metrics.aesDecrypt();
+        if (decrypt.count() > 0) {
+            System.out.printf(Locale.ROOT, "  расшифровка: %d раз, p50 %.1f мкс, p99 %.1f мкс%n",
+                    decrypt.count(), decrypt.percentile(0.5) / 1e3, decrypt.percentile(0.99) / 1e3);
+        }
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
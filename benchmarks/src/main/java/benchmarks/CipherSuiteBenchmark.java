@@ -0,0 +1,76 @@
+package benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import protocol.CipherSuite;
+import protocol.CipherSuites;
+import protocol.KeyMaterial;
+
+/**
+ * Наборы шифров из CipherSuites без клиента: шифрование и расшифровка одного сообщения.
+ * То же, что замеряет самопроверка CipherSuites.benchmark, но с прогревом JMH и по размерам сообщений.
+ * Пропускная способность в МБ/с - messageSize / время операции.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CipherSuiteBenchmark {
+    private static final byte[] AAD = new byte[8];
+
+    @Param({"AES-128-GCM", "AES-256-GCM", "ChaCha20-Poly1305", "AES-128-ECB"})
+    private String suiteName;
+
+    @Param({"16", "1024", "65536"})
+    private int messageSize;
+
+    private CipherSuite suite;
+    private SecretKey key;
+    private ByteBuffer plain;
+    private ByteBuffer out;
+    private ByteBuffer sealed;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        suite = CipherSuites.all().stream().filter(s -> s.name().equals(suiteName)).findFirst().orElseThrow();
+        byte[] secret = new byte[KeyMaterial.LENGTH];
+        new SecureRandom().nextBytes(secret);
+        key = new KeyMaterial(secret).keyFor(suite);
+        plain = ByteBuffer.wrap(ClientHandles.message(messageSize).getBytes(StandardCharsets.UTF_8));
+        out = ByteBuffer.allocate(suite.sealedLength(plain.remaining()));
+        sealed = ByteBuffer.allocate(out.capacity());
+        suite.seal(key, AAD, plain.duplicate(), sealed);
+        sealed.flip();
+    }
+
+    @Benchmark
+    public ByteBuffer seal() throws GeneralSecurityException {
+        suite.seal(key, AAD, plain.duplicate(), out.clear());
+        return out;
+    }
+
+    @Benchmark
+    public ByteBuffer open() throws GeneralSecurityException {
+        return suite.open(key, AAD, sealed.duplicate());
+    }
+}
@@ -0,0 +1,116 @@
+package benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import protocol.Frame;
+import protocol.FrameCodec;
+
+/**
+ * Отправка и приём кадра: общий кодек против прежней реализации sendHeaderMessage/receiveHeaderMessage.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FramingBenchmark {
+    private static final int HEADER_LENGTH = FrameCodec.HEADER_LENGTH;
+
+    @Param({"16", "256", "4096", "65536"})
+    private int messageSize;
+
+    private String message;
+    private byte[] encoded;
+    private FrameCodec codec;
+    private NullOutputStream sink;
+    private ResettableInputStream source;
+    private DataInputStream legacyInput;
+
+    @Setup
+    public void setUp() throws IOException {
+        message = "alice:" + ClientHandles.message(messageSize);
+        codec = new FrameCodec();
+        sink = new NullOutputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.writeFrame(out, message);
+        encoded = out.toByteArray();
+        source = new ResettableInputStream(encoded);
+        legacyInput = new DataInputStream(source);
+    }
+
+    @Benchmark
+    public void codecSend() throws IOException {
+        codec.writeFrame(sink, message);
+    }
+
+    @Benchmark
+    public void codecReceive(Blackhole blackhole) throws IOException {
+        source.reset();
+        try (Frame frame = codec.readFrame(source)) {
+            blackhole.consume(frame.hasSender());
+            blackhole.consume(frame.body());
+        }
+    }
+
+    @Benchmark
+    public void legacySend() throws IOException {
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        String header = String.format("%-" + HEADER_LENGTH + "d", messageBytes.length);
+        sink.write(header.getBytes(StandardCharsets.UTF_8));
+        sink.write(messageBytes);
+        sink.flush();
+    }
+
+    @Benchmark
+    public void legacyReceive(Blackhole blackhole) throws IOException {
+        source.reset();
+        byte[] headerBytes = new byte[HEADER_LENGTH];
+        legacyInput.readFully(headerBytes);
+        int messageLength = Integer.parseInt(new String(headerBytes).trim());
+        byte[] messageBytes = new byte[messageLength];
+        legacyInput.readFully(messageBytes);
+        String fullMessage = new String(messageBytes, StandardCharsets.UTF_8);
+        blackhole.consume(fullMessage.split(":", 2));
+    }
+
+    private static final class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    private static final class ResettableInputStream extends ByteArrayInputStream {
+        ResettableInputStream(byte[] bytes) {
+            super(bytes);
+        }
+
+        @Override
+        public synchronized void reset() {
+            pos = 0;
+        }
+    }
+}
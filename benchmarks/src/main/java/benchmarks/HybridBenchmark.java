@@ -0,0 +1,116 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import protocol.ChatMetrics;
+import protocol.CipherSuite;
+import protocol.CipherSuites;
+import protocol.FileTransfers;
+import protocol.Frame;
+import protocol.SuiteNegotiation;
+
+/**
+ * Гибридный режим AsyncChatClient (SessionMessages): AES-GCM на сообщение и однократная передача
+ * сеансового ключа через RSA-OAEP.
+ * Размеры сообщений не ограничены 245 байтами, в отличие от AsymmetricBenchmark. Сообщения шифруются
+ * прежним форматом SessionCipher (suiteName = SessionCipher) или согласованным набором шифров.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HybridBenchmark {
+    private static final String MESSAGES = "SessionMessages";
+    private static final String KEY_MANAGER = "KeyManager";
+    private static final String PEER = "bench_bob";
+    private static final Class<?> SESSION_KEY = ClientHandles.type("SessionKey");
+
+    private static final MethodHandle NEW_MESSAGES = ClientHandles.constructor(MESSAGES, String.class,
+            ClientHandles.type(KEY_MANAGER), SuiteNegotiation.class, ChatMetrics.class, FileTransfers.Output.class);
+    private static final MethodHandle ENCRYPT = ClientHandles.method(MESSAGES, "encryptSessionMessage",
+            ByteBuffer.class, SESSION_KEY, CipherSuite.class, byte[].class);
+    private static final MethodHandle DECRYPT = ClientHandles.method(MESSAGES, "decryptSessionMessage",
+            ByteBuffer.class, String.class, CipherSuite.class, ByteBuffer.class);
+    private static final MethodHandle GENERATE =
+            ClientHandles.staticMethod("SessionCipher", "generate", SESSION_KEY);
+    private static final MethodHandle WRAP =
+            ClientHandles.staticMethod("SessionCipher", "wrap", byte[].class, SESSION_KEY, PublicKey.class);
+    private static final MethodHandle UNWRAP =
+            ClientHandles.staticMethod("SessionCipher", "unwrap", SESSION_KEY, ByteBuffer.class, PrivateKey.class);
+    private static final MethodHandle PUT_INBOUND =
+            ClientHandles.method(KEY_MANAGER, "putInboundSession", void.class, String.class, SESSION_KEY);
+    private static final MethodHandle GET_PUBLIC_KEY =
+            ClientHandles.method(KEY_MANAGER, "getPublicKey", PublicKey.class);
+    private static final MethodHandle GET_PRIVATE_KEY =
+            ClientHandles.method(KEY_MANAGER, "getPrivateKey", PrivateKey.class);
+
+    @Param({"16", "256", "4096", "65536"})
+    private int messageSize;
+
+    @Param({"SessionCipher", "AES-256-GCM", "ChaCha20-Poly1305"})
+    private String suiteName;
+
+    // null - формат SessionCipher
+    private CipherSuite suite;
+    private Object messages;
+    private Object session;
+    private String message;
+    private ByteBuffer encrypted;
+    private PublicKey publicKey;
+    private PrivateKey privateKey;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        suite = CipherSuites.all().stream().filter(s -> s.name().equals(suiteName)).findFirst().orElse(null);
+        Object keyManager = ClientHandles.newInstance(KEY_MANAGER);
+        publicKey = (PublicKey) GET_PUBLIC_KEY.invoke(keyManager);
+        privateKey = (PrivateKey) GET_PRIVATE_KEY.invoke(keyManager);
+
+        // Сообщения "от собеседника" расшифровываются тем же сеансовым ключом
+        session = GENERATE.invoke();
+        PUT_INBOUND.invoke(keyManager, PEER, session);
+
+        messages = NEW_MESSAGES.invoke("bench_alice", keyManager, new SuiteNegotiation(null), new ChatMetrics(),
+                (FileTransfers.Output) body -> {
+                });
+        message = ClientHandles.message(messageSize);
+        encrypted = (ByteBuffer) ENCRYPT.invoke(messages, session, suite, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public ByteBuffer encrypt() throws Throwable {
+        return (ByteBuffer) ENCRYPT.invoke(messages, session, suite, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public String decrypt() throws Throwable {
+        return Frame.decode((ByteBuffer) DECRYPT.invoke(messages, PEER, suite, encrypted.duplicate()));
+    }
+
+    // Стоимость установки сеанса: обёртка ключа у отправителя и разворачивание у получателя
+    @Benchmark
+    public Object establishSession() throws Throwable {
+        byte[] wrapped = (byte[]) WRAP.invoke(session, publicKey);
+        return UNWRAP.invoke(ByteBuffer.wrap(wrapped), privateKey);
+    }
+}
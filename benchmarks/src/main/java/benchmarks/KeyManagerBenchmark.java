@@ -0,0 +1,121 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * KeyManager: генерация пары RSA-2048 (раньше - при каждом запуске AsyncChatClient) против загрузки
+ * хранилища PKCS12 (теперь при каждом запуске), генерация и согласование X25519,
+ * разбор вставленного публичного ключа в addPublicKey.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@State(Scope.Thread)
+public class KeyManagerBenchmark {
+    private static final String KEY_MANAGER = "KeyManager";
+
+    private static final MethodHandle ADD_PUBLIC_KEY =
+            ClientHandles.method(KEY_MANAGER, "addPublicKey", void.class, String.class, String.class);
+    private static final MethodHandle EXPORT_PUBLIC_KEY =
+            ClientHandles.method(KEY_MANAGER, "exportPublicKey", String.class);
+    private static final MethodHandle OPEN = ClientHandles.staticMethod(KEY_MANAGER, "open",
+            ClientHandles.type(KEY_MANAGER), Path.class, char[].class, Consumer.class);
+    private static final MethodHandle READY =
+            ClientHandles.method(KEY_MANAGER, "ready", CompletableFuture.class);
+    private static final MethodHandle GENERATE =
+            ClientHandles.staticMethod(KEY_MANAGER, "generate", KeyPair.class, String.class);
+    private static final MethodHandle AGREE =
+            ClientHandles.method(KEY_MANAGER, "agree", byte[].class, PublicKey.class);
+    private static final MethodHandle CLOSE = ClientHandles.method(KEY_MANAGER, "close", void.class);
+    private static final char[] PASSWORD = "bench-password".toCharArray();
+    private static final Consumer<String> IGNORE_STATUS = message -> {
+    };
+
+    private Object keyManager;
+    private String publicKey;
+    private Path keystore;
+    // Открытый из хранилища; держит справочник ключей directory.log
+    private Object storedManager;
+    private PublicKey peerAgreementKey;
+
+    @Setup
+    public void setUp() throws Throwable {
+        keyManager = ClientHandles.newInstance(KEY_MANAGER);
+        publicKey = (String) EXPORT_PUBLIC_KEY.invoke(keyManager);
+        keystore = Files.createTempDirectory("bench-keys").resolve("identity.p12");
+        // Первое открытие создаёт хранилище, дожидаемся фоновой генерации RSA
+        storedManager = OPEN.invoke(keystore, PASSWORD, IGNORE_STATUS);
+        ((CompletableFuture<?>) READY.invoke(storedManager)).join();
+        peerAgreementKey = ((KeyPair) GENERATE.invoke("X25519")).getPublic();
+    }
+
+    @TearDown
+    public void tearDown() throws Throwable {
+        CLOSE.invoke(storedManager);
+        // Кроме хранилища там справочник directory.log и, возможно, недописанный identity.p12.tmp
+        try (Stream<Path> paths = Files.walk(keystore.getParent())) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    // Поиск простых чисел занимает десятки-сотни миллисекунд, поэтому итераций меньше
+    @Benchmark
+    @Warmup(iterations = 2, time = 5)
+    @Measurement(iterations = 3, time = 5)
+    public Object generateKeys() {
+        return ClientHandles.newInstance(KEY_MANAGER);
+    }
+
+    // Чтение PKCS12 и PBKDF2 пароля для каждой записи. Закрытие (справочник ключей) входит в замер,
+    // иначе каждая итерация оставляла бы открытый directory.log
+    @Benchmark
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public void loadKeystore() throws Throwable {
+        CLOSE.invoke(OPEN.invoke(keystore, PASSWORD, IGNORE_STATUS));
+    }
+
+    @Benchmark
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public Object generateX25519() throws Throwable {
+        return GENERATE.invoke("X25519");
+    }
+
+    @Benchmark
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public byte[] agreeX25519() throws Throwable {
+        return (byte[]) AGREE.invoke(keyManager, peerAgreementKey);
+    }
+
+    @Benchmark
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public void addPublicKey() throws Throwable {
+        ADD_PUBLIC_KEY.invoke(keyManager, "bench_bob", publicKey);
+    }
+}
@@ -0,0 +1,132 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import netem.NetworkProxy;
+import protocol.ChatMetrics;
+import server.ChatServer;
+
+/**
+ * Нагрузочный клиент без JavaFX: N пользователей в виртуальных потоках с заданной частотой, размером
+ * сообщений и смесью шифрования. Печатает пропускную способность каждую секунду и итоговые
+ * процентили сквозной задержки по видам шифрования.
+ *
+ * java -cp benchmarks/target/benchmarks.jar benchmarks.LoadGenerator --users=1000 --rate=2 --mix=none:50,aes:50
+ * Параметры описаны в LoadProfile. С --link=... пользователи подключаются через NetworkProxy с задержкой,
+ * пределом скорости и мелкими сегментами.
+ */
+public final class LoadGenerator {
+    private static final MethodHandle GET_PUBLIC_KEY =
+            ClientHandles.method("KeyManager", "getPublicKey", PublicKey.class);
+    private static final MethodHandle GET_PRIVATE_KEY =
+            ClientHandles.method("KeyManager", "getPrivateKey", PrivateKey.class);
+    private static final long CONNECT_TIMEOUT_SECONDS = 30;
+    // Время на доставку сообщений, отправленных в последнюю секунду замера
+    private static final long DRAIN_MILLIS = 1000;
+
+    private LoadGenerator() {
+    }
+
+    public static void main(String[] args) throws Throwable {
+        LoadProfile profile = LoadProfile.parse(args);
+        ChatServer server = null;
+        if (profile.embeddedServer()) {
+            server = new ChatServer(profile.port());
+            server.start();
+            profile = profile.withAddress(profile.host(), server.port());
+        }
+        NetworkProxy proxy = null;
+        if (profile.link() != null) {
+            proxy = new NetworkProxy(0, profile.host(), profile.port(), profile.link());
+            proxy.start();
+            profile = profile.withAddress("127.0.0.1", proxy.port());
+        }
+        System.out.println(profile.describe());
+
+        // Пара ключей RSA генерируется тем же KeyManager, что в AsyncChatClient
+        Object keyManager = ClientHandles.newInstance("KeyManager");
+        KeyPair rsaPair = new KeyPair((PublicKey) GET_PUBLIC_KEY.invoke(keyManager),
+                (PrivateKey) GET_PRIVATE_KEY.invoke(keyManager));
+
+        LoadStats stats = new LoadStats();
+        ChatMetrics metrics = ChatMetrics.register("load-generator", "all");
+        List<SimulatedUser> users = new ArrayList<>(profile.users());
+        for (int i = 0; i < profile.users(); i++) {
+            users.add(new SimulatedUser(profile, stats, metrics, userName(i), userName((i + 1) % profile.users()),
+                    rsaPair));
+        }
+
+        long connectStarted = System.nanoTime();
+        for (SimulatedUser user : users) {
+            user.connect();
+        }
+        for (SimulatedUser user : users) {
+            if (!user.awaitConnected(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Не все пользователи подключились за "
+                        + CONNECT_TIMEOUT_SECONDS + " с");
+            }
+        }
+        System.out.printf(Locale.ROOT, "Подключено %d пользователей за %d мс%n", users.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStarted));
+
+        List<Thread> senders = new ArrayList<>(users.size());
+        for (SimulatedUser user : users) {
+            senders.add(Thread.ofVirtual().name("load-user").start(user::sendLoop));
+        }
+
+        TimeUnit.SECONDS.sleep(profile.warmupSeconds());
+        stats.startMeasurement();
+        long measureStarted = System.nanoTime();
+        long previousSent = 0;
+        long previousDelivered = 0;
+        for (int second = 1; second <= profile.durationSeconds(); second++) {
+            TimeUnit.NANOSECONDS.sleep(measureStarted + TimeUnit.SECONDS.toNanos(second) - System.nanoTime());
+            long sent = stats.totalSent();
+            long delivered = stats.totalDelivered();
+            System.out.printf(Locale.ROOT, "%3d с: отправлено %d/с, доставлено %d/с%n",
+                    second, sent - previousSent, delivered - previousDelivered);
+            previousSent = sent;
+            previousDelivered = delivered;
+        }
+        double seconds = (System.nanoTime() - measureStarted) / 1e9;
+
+        for (SimulatedUser user : users) {
+            user.stop();
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        TimeUnit.MILLISECONDS.sleep(DRAIN_MILLIS);
+
+        System.out.println();
+        stats.print(System.out, seconds);
+        System.out.printf(Locale.ROOT, "кадров принято %d (%d МиБ), отправлено %d (%d МиБ); разбор кадра p99 %.1f мкс%n",
+                metrics.getFramesIn(), metrics.getBytesIn() >> 20, metrics.getFramesOut(), metrics.getBytesOut() >> 20,
+                metrics.frameParse().percentile(0.99) / 1e3);
+
+        for (SimulatedUser user : users) {
+            user.close();
+        }
+        metrics.close();
+        if (proxy != null) {
+            System.out.printf(Locale.ROOT, "через прокси передано %d МиБ в %d сегментах%n",
+                    proxy.bytesForwarded() >> 20, proxy.segmentsForwarded());
+            proxy.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+        System.exit(0);
+    }
+
+    private static String userName(int index) {
+        return "load" + index;
+    }
+}
@@ -0,0 +1,126 @@
+package benchmarks;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.random.RandomGenerator;
+
+import netem.NetworkConditions;
+import protocol.TransportMode;
+
+/**
+ * Параметры нагрузки в формате клиентов: --имя=значение.
+ * <pre>
+ * --host=127.0.0.1 --port=1234   адрес сервера
+ * --server                       запустить эталонный ChatServer в этом же процессе
+ * --transport=socket|nio         транспорт, как у клиентов
+ * --users=100                    число пользователей
+ * --rate=1                       сообщений в секунду на пользователя (пуассоновский поток)
+ * --size=128                     размер текста сообщения в байтах
+ * --mix=none:70,aes:20,rsa:5,hybrid:5   доли видов шифрования
+ * --warmup=5 --duration=30       прогрев и замер в секундах
+ * --link=latency=50,segment=7    пользователи подключаются через NetworkProxy с такими условиями канала
+ * </pre>
+ */
+record LoadProfile(String host, int port, boolean embeddedServer, TransportMode transport, int users, double rate,
+                   int size, int[] weights, int warmupSeconds, int durationSeconds, NetworkConditions link) {
+
+    // Те же режимы, что у клиентов: default, symmetric, asymmetric с --encryption=rsa и по умолчанию
+    enum Encryption {
+        NONE, AES, RSA, HYBRID
+    }
+
+    // Отметка времени в начале текста: 16 шестнадцатеричных цифр и пробел
+    static final int STAMP_LENGTH = 17;
+    // Предел RSA/ECB/PKCS1Padding для ключа 2048 бит
+    static final int RSA_MAX_PLAINTEXT = 245;
+
+    static LoadProfile parse(String[] args) {
+        Map<String, String> named = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Ожидался параметр вида --имя=значение: " + arg);
+            }
+            int separator = arg.indexOf('=');
+            if (separator < 0) {
+                named.put(arg.substring(2), "true");
+            } else {
+                named.put(arg.substring(2, separator), arg.substring(separator + 1));
+            }
+        }
+        LoadProfile profile = new LoadProfile(
+                named.getOrDefault("host", "127.0.0.1"),
+                Integer.parseInt(named.getOrDefault("port", "1234")),
+                Boolean.parseBoolean(named.getOrDefault("server", "false")),
+                TransportMode.parse(named.getOrDefault("transport", "nio")),
+                Integer.parseInt(named.getOrDefault("users", "100")),
+                Double.parseDouble(named.getOrDefault("rate", "1")),
+                Integer.parseInt(named.getOrDefault("size", "128")),
+                parseMix(named.getOrDefault("mix", "none:70,aes:20,rsa:5,hybrid:5")),
+                Integer.parseInt(named.getOrDefault("warmup", "5")),
+                Integer.parseInt(named.getOrDefault("duration", "30")),
+                named.containsKey("link") ? NetworkConditions.parse(named.get("link")) : null);
+        if (profile.users < 2) {
+            throw new IllegalArgumentException("Нужно хотя бы два пользователя");
+        }
+        if (profile.rate <= 0 || profile.size < STAMP_LENGTH) {
+            throw new IllegalArgumentException("rate должен быть положительным, size - не меньше " + STAMP_LENGTH);
+        }
+        return profile;
+    }
+
+    // Адрес, к которому подключаются пользователи: встроенный сервер или прокси перед ним
+    LoadProfile withAddress(String host, int port) {
+        return new LoadProfile(host, port, false, transport, users, rate, size, weights, warmupSeconds,
+                durationSeconds, link);
+    }
+
+    Encryption pick(RandomGenerator random) {
+        int total = 0;
+        for (int weight : weights) {
+            total += weight;
+        }
+        int value = random.nextInt(total);
+        for (Encryption encryption : Encryption.values()) {
+            value -= weights[encryption.ordinal()];
+            if (value < 0) {
+                return encryption;
+            }
+        }
+        return Encryption.NONE;
+    }
+
+    String describe() {
+        StringBuilder mix = new StringBuilder();
+        for (Encryption encryption : Encryption.values()) {
+            if (weights[encryption.ordinal()] > 0) {
+                mix.append(mix.isEmpty() ? "" : ",").append(encryption.name().toLowerCase(Locale.ROOT))
+                        .append(':').append(weights[encryption.ordinal()]);
+            }
+        }
+        return String.format(Locale.ROOT, "%s:%d, %s, пользователей %d, %.2f сообщ./с на пользователя, "
+                        + "%d байт, смесь %s, прогрев %d с, замер %d с%s",
+                host, port, transport, users, rate, size, mix, warmupSeconds, durationSeconds,
+                link == null ? "" : ", канал: " + link.describe());
+    }
+
+    private static int[] parseMix(String value) {
+        int[] weights = new int[Encryption.values().length];
+        for (String part : value.split(",")) {
+            String[] pair = part.trim().split(":");
+            Encryption encryption = Encryption.valueOf(pair[0].trim().toUpperCase(Locale.ROOT));
+            weights[encryption.ordinal()] = pair.length > 1 ? Integer.parseInt(pair[1].trim()) : 1;
+        }
+        int total = 0;
+        for (int weight : weights) {
+            if (weight < 0) {
+                throw new IllegalArgumentException("Доля не может быть отрицательной: " + value);
+            }
+            total += weight;
+        }
+        if (total == 0) {
+            throw new IllegalArgumentException("Пустая смесь шифрования: " + value);
+        }
+        return weights;
+    }
+}
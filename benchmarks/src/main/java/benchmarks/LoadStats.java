@@ -0,0 +1,102 @@
+package benchmarks;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+import benchmarks.LoadProfile.Encryption;
+import protocol.LatencyHistogram;
+
+/**
+ * Счётчики прогона по видам шифрования. Задержка - от запланированного момента отправки
+ * до расшифровки у получателя, так что отставание генератора тоже попадает в замер.
+ */
+final class LoadStats {
+    private final LongAdder[] sent = adders();
+    private final LongAdder[] delivered = adders();
+    private final LatencyHistogram[] latency = new LatencyHistogram[Encryption.values().length];
+    final LongAdder sendFailures = new LongAdder();
+    final LongAdder decryptFailures = new LongAdder();
+    final LongAdder disconnects = new LongAdder();
+
+    // Сообщения, запланированные раньше, в замер не попадают (прогрев)
+    private volatile long measureFrom = Long.MAX_VALUE;
+
+    LoadStats() {
+        for (int i = 0; i < latency.length; i++) {
+            latency[i] = new LatencyHistogram();
+        }
+    }
+
+    void startMeasurement() {
+        for (int i = 0; i < latency.length; i++) {
+            sent[i].reset();
+            delivered[i].reset();
+            latency[i].reset();
+        }
+        sendFailures.reset();
+        decryptFailures.reset();
+        measureFrom = System.nanoTime();
+    }
+
+    void sent(Encryption encryption, long scheduledAt) {
+        if (scheduledAt - measureFrom >= 0) {
+            sent[encryption.ordinal()].increment();
+        }
+    }
+
+    void delivered(Encryption encryption, long scheduledAt) {
+        if (scheduledAt - measureFrom >= 0) {
+            delivered[encryption.ordinal()].increment();
+            latency[encryption.ordinal()].recordSince(scheduledAt);
+        }
+    }
+
+    long totalSent() {
+        long total = 0;
+        for (LongAdder adder : sent) {
+            total += adder.sum();
+        }
+        return total;
+    }
+
+    long totalDelivered() {
+        long total = 0;
+        for (LongAdder adder : delivered) {
+            total += adder.sum();
+        }
+        return total;
+    }
+
+    void print(PrintStream out, double seconds) {
+        out.printf(Locale.ROOT, "%-8s %10s %10s %12s %9s %9s %9s %9s %9s%n",
+                "вид", "отправлено", "доставлено", "доставок/с", "p50 мс", "p90 мс", "p99 мс", "p99.9 мс", "max мс");
+        for (Encryption encryption : Encryption.values()) {
+            int i = encryption.ordinal();
+            if (sent[i].sum() == 0 && delivered[i].sum() == 0) {
+                continue;
+            }
+            LatencyHistogram histogram = latency[i];
+            out.printf(Locale.ROOT, "%-8s %10d %10d %12.0f %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                    encryption.name().toLowerCase(Locale.ROOT), sent[i].sum(), delivered[i].sum(),
+                    delivered[i].sum() / seconds, millis(histogram.percentile(0.5)), millis(histogram.percentile(0.9)),
+                    millis(histogram.percentile(0.99)), millis(histogram.percentile(0.999)), millis(histogram.max()));
+        }
+        out.printf(Locale.ROOT, "всего: отправлено %.0f сообщ./с, доставлено %.0f сообщ./с; ошибки отправки %d, "
+                        + "расшифровки %d, разрывов %d%n",
+                totalSent() / seconds, totalDelivered() / seconds, sendFailures.sum(), decryptFailures.sum(),
+                disconnects.sum());
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static LongAdder[] adders() {
+        LongAdder[] adders = new LongAdder[Encryption.values().length];
+        for (int i = 0; i < adders.length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+}
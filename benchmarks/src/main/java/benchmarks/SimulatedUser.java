@@ -0,0 +1,329 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import benchmarks.LoadProfile.Encryption;
+import protocol.ChatConnection;
+import protocol.ChatMetrics;
+import protocol.CipherSuite;
+import protocol.CipherSuites;
+import protocol.Compression;
+import protocol.Envelope;
+import protocol.FileTransfers;
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.FrameListener;
+import protocol.SuiteNegotiation;
+
+/**
+ * Пользователь без окна: то же подключение, конверты и шифры, что у клиентов, но сообщения
+ * генерируются по расписанию в виртуальном потоке. Пользователи стоят в кольце: зашифрованные
+ * сообщения адресуются следующему, открытые - как у клиентов, всем сразу.
+ * <p>
+ * Набор шифров согласуется по приветствиям, как у клиентов. Шифрование и расшифровка - код самих клиентов
+ * без окна: AES - PairwiseMessages из SyncChatClient (попарный ключ согласуется в чате обменом PairwiseKeys),
+ * HYBRID и RSA - SessionMessages из AsyncChatClient с сеансовыми ключами в KeyManager, в том числе их сменой.
+ */
+final class SimulatedUser implements FrameListener {
+    private static final String PAIRWISE_KEYS = "PairwiseKeys";
+    private static final String PAIRWISE_MESSAGES = "PairwiseMessages";
+    private static final String KEY_MANAGER = "KeyManager";
+    private static final String SESSION_MESSAGES = "SessionMessages";
+    private static final Class<?> SESSION_KEY = ClientHandles.type("SessionKey");
+
+    private static final MethodHandle NEW_PAIRWISE_KEYS =
+            ClientHandles.constructor(PAIRWISE_KEYS, String.class, FileTransfers.Output.class);
+    private static final MethodHandle ESTABLISH =
+            ClientHandles.method(PAIRWISE_KEYS, "establish", void.class, String.class);
+    private static final MethodHandle HAS_KEY =
+            ClientHandles.method(PAIRWISE_KEYS, "hasKey", boolean.class, String.class);
+    private static final MethodHandle HANDLE_EXCHANGE =
+            ClientHandles.method(PAIRWISE_KEYS, "handle", void.class, String.class, Envelope.class);
+    private static final MethodHandle NEW_PAIRWISE_MESSAGES = ClientHandles.constructor(PAIRWISE_MESSAGES,
+            String.class, ClientHandles.type(PAIRWISE_KEYS), SuiteNegotiation.class, ChatMetrics.class);
+    private static final MethodHandle PAIRWISE_ENCODE = ClientHandles.method(PAIRWISE_MESSAGES, "encode",
+            ByteBuffer.class, String.class, byte.class, byte[].class);
+    private static final MethodHandle PAIRWISE_DECRYPT = ClientHandles.method(PAIRWISE_MESSAGES, "decrypt",
+            ByteBuffer.class, String.class, CipherSuite.class, ByteBuffer.class);
+
+    private static final MethodHandle NEW_KEY_MANAGER = ClientHandles.constructor(KEY_MANAGER, KeyPair.class);
+    private static final MethodHandle ADD_PUBLIC_KEY =
+            ClientHandles.method(KEY_MANAGER, "addPublicKey", void.class, String.class, String.class);
+    private static final MethodHandle EXPORT_PUBLIC_KEY =
+            ClientHandles.method(KEY_MANAGER, "exportPublicKey", String.class);
+    private static final MethodHandle INBOUND_SESSION =
+            ClientHandles.method(KEY_MANAGER, "getInboundSession", SESSION_KEY, String.class, long.class);
+    private static final MethodHandle NEW_SESSION_MESSAGES = ClientHandles.constructor(SESSION_MESSAGES,
+            String.class, ClientHandles.type(KEY_MANAGER), SuiteNegotiation.class, ChatMetrics.class,
+            FileTransfers.Output.class);
+    private static final MethodHandle SESSION_ENCODE = ClientHandles.method(SESSION_MESSAGES, "encode",
+            ByteBuffer.class, String.class, byte.class, byte[].class, boolean.class);
+    private static final MethodHandle ACCEPT_SESSION_KEY = ClientHandles.method(SESSION_MESSAGES,
+            "acceptSessionKey", void.class, String.class, ByteBuffer.class);
+    private static final MethodHandle SESSION_DECRYPT = ClientHandles.method(SESSION_MESSAGES,
+            "decryptSessionMessage", ByteBuffer.class, String.class, CipherSuite.class, ByteBuffer.class);
+    private static final MethodHandle RSA_DECRYPT = ClientHandles.method(SESSION_MESSAGES, "decryptMessage",
+            ByteBuffer.class, ByteBuffer.class);
+
+    // SessionCipher.ID_LENGTH
+    private static final int SESSION_ID_LENGTH = 8;
+
+    private final LoadProfile profile;
+    private final LoadStats stats;
+    private final ChatMetrics metrics;
+    private final String name;
+    private final byte[] nameBytes;
+    private final String next;
+    private final byte[] filler;
+    private final CountDownLatch connected = new CountDownLatch(1);
+    // Наборы шифров, как в SyncChatClient и AsyncChatClient
+    private final SuiteNegotiation pairwiseCiphers = new SuiteNegotiation(CipherSuites.AES_ECB);
+    private final SuiteNegotiation sessionCiphers = new SuiteNegotiation(null);
+    private final Object pairwiseKeys;
+    private final Object pairwiseMessages;
+    private final Object keyManager;
+    private final Object sessionMessages;
+
+    private ChatConnection connection;
+    private volatile boolean running = true;
+
+    // Одна пара ключей RSA на всех: генерация 2048-битной пары на пользователя заняла бы минуты
+    SimulatedUser(LoadProfile profile, LoadStats stats, ChatMetrics metrics, String name, String next,
+                  KeyPair rsaPair) throws Throwable {
+        this.profile = profile;
+        this.stats = stats;
+        this.metrics = metrics;
+        this.name = name;
+        this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        this.next = next;
+        this.filler = new byte[profile.size() - LoadProfile.STAMP_LENGTH];
+        Arrays.fill(filler, (byte) 'x');
+        // Конверты обмена ключами и сеансовые ключи уходят в то же соединение
+        FileTransfers.Output output = body -> connection.send(body).exceptionally(this::failed);
+        this.pairwiseKeys = NEW_PAIRWISE_KEYS.invoke(name, output);
+        this.pairwiseMessages = NEW_PAIRWISE_MESSAGES.invoke(name, pairwiseKeys, pairwiseCiphers, metrics);
+        this.keyManager = NEW_KEY_MANAGER.invoke(rsaPair);
+        // Ключ RSA следующего в кольце - та же общая пара
+        ADD_PUBLIC_KEY.invoke(keyManager, next, (String) EXPORT_PUBLIC_KEY.invoke(keyManager));
+        this.sessionMessages = NEW_SESSION_MESSAGES.invoke(name, keyManager, sessionCiphers, metrics, output);
+    }
+
+    void connect() throws IOException {
+        connection = ChatConnection.open(profile.transport(), profile.host(), profile.port(), new FrameCodec(),
+                this, metrics);
+    }
+
+    boolean awaitConnected(long timeout, TimeUnit unit) throws InterruptedException {
+        return connected.await(timeout, unit);
+    }
+
+    // Открытый цикл: моменты отправки планируются заранее, задержка считается от запланированного момента
+    void sendLoop() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double meanInterval = TimeUnit.SECONDS.toNanos(1) / profile.rate();
+        // Случайный сдвиг, чтобы пользователи не отправляли синхронно
+        long scheduled = System.nanoTime() + (long) (random.nextDouble() * meanInterval);
+        while (running) {
+            long delay = scheduled - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(delay);
+                continue;
+            }
+            Encryption encryption = profile.pick(random);
+            long planned = scheduled;
+            try {
+                // Отправленным сообщение считается, когда его принял транспорт
+                send(encryption, planned).whenComplete((ignored, e) -> {
+                    if (e == null) {
+                        stats.sent(encryption, planned);
+                    } else {
+                        stats.sendFailures.increment();
+                    }
+                });
+            } catch (Throwable e) {
+                stats.sendFailures.increment();
+            }
+            scheduled += (long) (-Math.log(1 - random.nextDouble()) * meanInterval);
+        }
+    }
+
+    void stop() {
+        running = false;
+    }
+
+    void close() throws IOException {
+        running = false;
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    @Override
+    public void onConnected(ChatConnection connection) throws IOException {
+        connection.send(name);
+        // По приветствиям собеседники согласуют наборы шифров
+        connection.send(Compression.hello(name, ""));
+        connected.countDown();
+    }
+
+    @Override
+    public void onFrame(Frame frame) {
+        if (!frame.hasSender()) {
+            return;
+        }
+        ByteBuffer body = frame.body();
+        if (!Envelope.isEnvelope(body)) {
+            long scheduled = stamp(body);
+            if (scheduled != -1) {
+                stats.delivered(Encryption.NONE, scheduled);
+            }
+            return;
+        }
+        try {
+            Envelope envelope = Envelope.parse(body);
+            boolean broadcast = !envelope.recipient().hasRemaining();
+            if (envelope.type() == Envelope.TYPE_HELLO && (broadcast || envelope.isAddressedTo(nameBytes))) {
+                onHello(frame.senderAsString(), envelope, broadcast);
+                return;
+            }
+            // Чужие конверты отбрасываются по заголовку, как в клиентах
+            if (!envelope.isAddressedTo(nameBytes)) {
+                return;
+            }
+            String sender = frame.senderAsString();
+            switch (envelope.type()) {
+                case Envelope.TYPE_KEY_EXCHANGE -> HANDLE_EXCHANGE.invoke(pairwiseKeys, sender, envelope);
+                case Envelope.TYPE_SESSION_KEY -> {
+                    if (envelope.suite() == Envelope.SUITE_RSA_OAEP) {
+                        ACCEPT_SESSION_KEY.invoke(sessionMessages, sender, envelope.payload());
+                    }
+                }
+                case Envelope.TYPE_ENCRYPTED -> onEncrypted(sender, envelope);
+                default -> {
+                }
+            }
+        } catch (Throwable e) {
+            stats.decryptFailures.increment();
+        }
+    }
+
+    @Override
+    public void onDisconnected(IOException e) {
+        if (running) {
+            stats.disconnects.increment();
+            System.err.println(name + ": соединение разорвано: " + e.getMessage());
+        }
+    }
+
+    private void onHello(String sender, Envelope envelope, boolean broadcast) throws IOException {
+        pairwiseCiphers.onHello(sender, envelope);
+        sessionCiphers.onHello(sender, envelope);
+        // Как клиенты: на общее приветствие отвечаем адресным, чтобы новичок узнал наши наборы
+        if (broadcast) {
+            connection.send(Compression.hello(name, sender)).exceptionally(this::failed);
+        }
+    }
+
+    // Генератор играет обоих клиентов сразу. Сообщение сеанса узнаётся по id входящего сеанса в начале
+    // (случайные 8 байт), остальное - попарный ключ с номером звена
+    private void onEncrypted(String sender, Envelope envelope) throws Throwable {
+        ByteBuffer payload = envelope.payload();
+        if (envelope.suite() == Envelope.SUITE_RSA_PKCS1) {
+            delivered(Encryption.RSA, (ByteBuffer) RSA_DECRYPT.invoke(sessionMessages, payload));
+            return;
+        }
+        if (envelope.suite() == Envelope.SUITE_AES_GCM) {
+            delivered(Encryption.HYBRID, (ByteBuffer) SESSION_DECRYPT.invoke(sessionMessages, sender, null, payload));
+            return;
+        }
+        if (payload.remaining() >= SESSION_ID_LENGTH
+                && INBOUND_SESSION.invoke(keyManager, sender, payload.getLong(payload.position())) != null) {
+            CipherSuite suite = sessionCiphers.accepted(sender, envelope.suite());
+            if (suite == null) {
+                stats.decryptFailures.increment();
+                return;
+            }
+            delivered(Encryption.HYBRID, (ByteBuffer) SESSION_DECRYPT.invoke(sessionMessages, sender, suite, payload));
+            return;
+        }
+        CipherSuite suite = pairwiseCiphers.accepted(sender, envelope.suite());
+        ByteBuffer plain = suite == null ? null
+                : (ByteBuffer) PAIRWISE_DECRYPT.invoke(pairwiseMessages, sender, suite, payload);
+        if (plain == null) {
+            stats.decryptFailures.increment();
+            return;
+        }
+        delivered(Encryption.AES, plain);
+    }
+
+    private CompletableFuture<Void> send(Encryption encryption, long scheduled) throws Throwable {
+        byte[] text = text(scheduled, encryption == Encryption.RSA ? LoadProfile.RSA_MAX_PLAINTEXT : Integer.MAX_VALUE);
+        ByteBuffer body = switch (encryption) {
+            case NONE -> ByteBuffer.allocate(nameBytes.length + 1 + text.length).put(nameBytes).put((byte) ':')
+                    .put(text).flip();
+            case AES -> {
+                // Как SyncChatClient: ключ согласуется перед первым сообщением
+                if (!(boolean) HAS_KEY.invoke(pairwiseKeys, next)) {
+                    ESTABLISH.invoke(pairwiseKeys, next);
+                }
+                yield (ByteBuffer) PAIRWISE_ENCODE.invoke(pairwiseMessages, next, Envelope.TYPE_ENCRYPTED, text);
+            }
+            // Первое сообщение и каждая смена ключа сначала отправляют сеансовый ключ, как в AsyncChatClient
+            case HYBRID -> (ByteBuffer) SESSION_ENCODE.invoke(sessionMessages, next, Envelope.TYPE_ENCRYPTED, text,
+                    true);
+            case RSA -> (ByteBuffer) SESSION_ENCODE.invoke(sessionMessages, next, Envelope.TYPE_ENCRYPTED, text,
+                    false);
+        };
+        return connection.send(body);
+    }
+
+    private Void failed(Throwable e) {
+        stats.sendFailures.increment();
+        return null;
+    }
+
+    private void delivered(Encryption encryption, ByteBuffer plain) {
+        long scheduled = stamp(plain);
+        if (scheduled == -1) {
+            stats.decryptFailures.increment();
+        } else {
+            stats.delivered(encryption, scheduled);
+        }
+    }
+
+    private byte[] text(long scheduled, int limit) {
+        byte[] text = new byte[Math.min(profile.size(), limit)];
+        for (int i = 15, shift = 0; i >= 0; i--, shift += 4) {
+            text[i] = (byte) Character.forDigit((int) (scheduled >>> shift) & 0xF, 16);
+        }
+        text[16] = ' ';
+        System.arraycopy(filler, 0, text, LoadProfile.STAMP_LENGTH, text.length - LoadProfile.STAMP_LENGTH);
+        return text;
+    }
+
+    // Запланированный момент отправки из начала текста или -1, если это не сообщение генератора
+    private static long stamp(ByteBuffer text) {
+        if (text.remaining() < LoadProfile.STAMP_LENGTH || text.get(text.position() + 16) != ' ') {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < 16; i++) {
+            int digit = Character.digit(text.get(text.position() + i), 16);
+            if (digit < 0) {
+                return -1;
+            }
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,144 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import protocol.ChatMetrics;
+import protocol.CipherSuite;
+import protocol.CipherSuites;
+import protocol.Envelope;
+import protocol.FileTransfers;
+import protocol.Frame;
+import protocol.SuiteNegotiation;
+
+/**
+ * Путь сообщения в SyncChatClient: PairwiseMessages.encrypt/decrypt выбранным набором шифров вместе
+ * с получением ключа из PairwiseKeys, а также разбор конверта и hasKeyFor, через которые проходит каждый входящий кадр.
+ * Ключи согласуются настоящим обменом X25519 между двумя экземплярами PairwiseKeys без сети;
+ * его стоимость отдельно - establishKeys.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SymmetricBenchmark {
+    private static final String CLIENT = "SyncChatClient";
+    private static final String KEYS = "PairwiseKeys";
+    private static final String MESSAGES = "PairwiseMessages";
+    private static final String USERNAME = "bench_alice";
+    private static final String PEER = "bench_bob";
+    private static final byte[] USERNAME_BYTES = USERNAME.getBytes(StandardCharsets.UTF_8);
+
+    private static final MethodHandle NEW_MESSAGES = ClientHandles.constructor(MESSAGES, String.class,
+            ClientHandles.type(KEYS), SuiteNegotiation.class, ChatMetrics.class);
+    private static final MethodHandle ENCRYPT =
+            ClientHandles.method(MESSAGES, "encrypt", byte[].class, String.class, CipherSuite.class, byte[].class);
+    private static final MethodHandle DECRYPT =
+            ClientHandles.method(MESSAGES, "decrypt", ByteBuffer.class, String.class, CipherSuite.class,
+                    ByteBuffer.class);
+    private static final MethodHandle HAS_KEY_FOR =
+            ClientHandles.method(CLIENT, "hasKeyFor", boolean.class, String.class);
+    private static final MethodHandle NEW_KEYS =
+            ClientHandles.constructor(KEYS, String.class, FileTransfers.Output.class);
+    private static final MethodHandle HANDLE =
+            ClientHandles.method(KEYS, "handle", void.class, String.class, Envelope.class);
+    private static final MethodHandle ESTABLISH =
+            ClientHandles.method(KEYS, "establish", void.class, String.class);
+
+    @Param({"16", "256", "4096"})
+    private int messageSize;
+
+    // Прежний AES-128-ECB и наборы, которые согласуют новые клиенты
+    @Param({"AES-128-ECB", "AES-128-GCM", "ChaCha20-Poly1305"})
+    private String suiteName;
+
+    private CipherSuite suite;
+    private Object client;
+    private Object messages;
+    private String message;
+    private ByteBuffer encrypted;
+    private ByteBuffer envelopeBody;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        suite = CipherSuites.all().stream().filter(s -> s.name().equals(suiteName)).findFirst().orElseThrow();
+        Object[] keys = connectKeys();
+        client = ClientHandles.newInstance(CLIENT);
+        ClientHandles.setField(client, "username", USERNAME);
+        ClientHandles.setField(client, "pairwiseKeys", keys[0]);
+        messages = NEW_MESSAGES.invoke(USERNAME, keys[0], new SuiteNegotiation(CipherSuites.AES_ECB),
+                new ChatMetrics());
+        Object peer = NEW_MESSAGES.invoke(PEER, keys[1], new SuiteNegotiation(CipherSuites.AES_ECB),
+                new ChatMetrics());
+
+        message = ClientHandles.message(messageSize);
+        // Входящее сообщение шифрует собеседник: ключи у направлений разные
+        byte[] ciphertext = (byte[]) ENCRYPT.invoke(peer, USERNAME, suite, message.getBytes(StandardCharsets.UTF_8));
+        encrypted = ByteBuffer.wrap(ciphertext);
+        ByteBuffer body = Envelope.encode(PEER, Envelope.TYPE_ENCRYPTED, suite.id(), USERNAME, ciphertext);
+        envelopeBody = body.position(PEER.length() + 1).slice();
+    }
+
+    // Два экземпляра PairwiseKeys, соединённые напрямую: конверт одного сразу обрабатывает другой
+    private static Object[] connectKeys() throws Throwable {
+        Object[] keys = new Object[2];
+        keys[0] = NEW_KEYS.invoke(USERNAME, (FileTransfers.Output) body -> deliver(keys[1], USERNAME, body));
+        keys[1] = NEW_KEYS.invoke(PEER, (FileTransfers.Output) body -> deliver(keys[0], PEER, body));
+        ESTABLISH.invoke(keys[0], PEER);
+        return keys;
+    }
+
+    private static void deliver(Object receiver, String sender, ByteBuffer body) {
+        try {
+            HANDLE.invoke(receiver, sender, Envelope.parse(body.position(sender.length() + 1).slice()));
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws Throwable {
+        return (byte[]) ENCRYPT.invoke(messages, PEER, suite, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public String decrypt() throws Throwable {
+        return Frame.decode((ByteBuffer) DECRYPT.invoke(messages, PEER, suite, encrypted.duplicate()));
+    }
+
+    // Классификация входящего кадра: раньше здесь был isBase64 с полным декодированием
+    @Benchmark
+    public boolean classifyEnvelope() throws ProtocolException {
+        return Envelope.isEnvelope(envelopeBody) && Envelope.parse(envelopeBody).isAddressedTo(USERNAME_BYTES);
+    }
+
+    // Согласование ключа целиком: два X25519, подписи Ed25519 и их проверка (с объявлениями), вывод HKDF
+    // и разбор конвертов
+    @Benchmark
+    public Object establishKeys() throws Throwable {
+        return connectKeys();
+    }
+
+    @Benchmark
+    public boolean hasKeyFor() throws Throwable {
+        return (boolean) HAS_KEY_FOR.invoke(client, PEER);
+    }
+}
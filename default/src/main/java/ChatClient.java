@@ -1,10 +1,7 @@
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
-import java.nio.charset.StandardCharsets;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
 
 import javafx.application.Application;
 import javafx.application.Platform;
@@ -13,19 +10,36 @@ import javafx.scene.control.*;
 import javafx.scene.layout.*;
 import javafx.stage.Stage;
 
-public class ChatClient extends Application {
-    private static final int HEADER_LENGTH = 10;
+import history.HistoryStore;
+import protocol.ChatConnection;
+import protocol.ChatMetrics;
+import protocol.Envelope;
+import protocol.Frame;
+import protocol.FrameCapture;
+import protocol.FrameCodec;
+import protocol.FrameListener;
+import protocol.ResumableConnection;
+import protocol.TransportMode;
+import ui.ChatLog;
+import ui.HistorySearch;
+
+public class ChatClient extends Application implements FrameListener {
     private static final String SERVER_IP = "127.0.0.1";
     private static final int SERVER_PORT = 1234;
 
-    private DataOutputStream outputStream;
-    private DataInputStream inputStream;
-    private Socket socket;
+    private ChatConnection connection;
+    private TransportMode transportMode;
+    // --capture=<файл>: кадры соединения пишутся в файл для воспроизведения без сети (см. FrameReplay)
+    private Path captureFile;
+    private FrameCapture capture;
+    private final FrameCodec frameCodec = new FrameCodec();
+    // До входа пользователя - заглушка без регистрации в JMX
+    private ChatMetrics metrics = new ChatMetrics();
 
-    private TextArea chatArea;
+    private ChatLog chatLog;
+    private HistoryStore history;
     private TextField inputField;
     private String username;
-    private Thread connectionThread;
 
     public static void main(String[] args) {
         launch(args);
@@ -33,6 +47,10 @@ public class ChatClient extends Application {
 
     @Override
     public void start(Stage stage) {
+        transportMode = TransportMode.parse(getParameters().getNamed().get("transport"));
+        String captureParameter = getParameters().getNamed().get("capture");
+        captureFile = captureParameter == null || captureParameter.isBlank() ? null : Path.of(captureParameter);
+
         Stage usernameStage = new Stage();
         VBox usernameRoot = new VBox(10);
         usernameRoot.setPrefSize(300, 150);
@@ -47,8 +65,8 @@ public class ChatClient extends Application {
             if (username != null && !username.trim().isEmpty()) {
                 usernameStage.close();
                 showChatWindow(stage);
-                connectionThread = new Thread(this::connectToServer);
-                connectionThread.start();
+                openHistory();
+                connectToServer();
             }
         });
 
@@ -72,9 +90,8 @@ public class ChatClient extends Application {
         Label usernameLabel = new Label("Вы вошли как: " + username);
         usernameLabel.setStyle("-fx-font-size: 14px; -fx-font-weight: bold;");
 
-        chatArea = new TextArea();
-        chatArea.setEditable(false);
-        chatArea.setWrapText(true);
+        // История ограничена, старые сообщения вытесняются
+        chatLog = new ChatLog(ChatLog.DEFAULT_CAPACITY);
 
         inputField = new TextField();
         inputField.setPromptText("Введите сообщение...");
@@ -84,12 +101,20 @@ public class ChatClient extends Application {
         sendButton.setOnAction(event -> sendMessage());
 
         Button clearChatButton = new Button("Очистить чат");
-        clearChatButton.setOnAction(event -> chatArea.clear());
+        clearChatButton.setOnAction(event -> chatLog.clear());
+
+        // Более ранние сообщения подгружаются из журнала страницами
+        Button olderButton = new Button("Ранее");
+        olderButton.setOnAction(event -> showOlderHistory());
+        // Поиск по всей истории через полнотекстовый индекс журнала
+        TextField searchField = new HistorySearch(chatLog).getField();
+        HBox.setHgrow(searchField, Priority.ALWAYS);
+        HBox historyBox = new HBox(10, olderButton, clearChatButton, searchField);
 
         HBox inputBox = new HBox(10, inputField, sendButton);
         inputBox.setPrefHeight(50);
 
-        root.getChildren().addAll(usernameLabel, chatArea, inputBox, clearChatButton);
+        root.getChildren().addAll(usernameLabel, chatLog.getView(), inputBox, historyBox);
 
         Scene scene = new Scene(root);
         stage.setScene(scene);
@@ -99,36 +124,68 @@ public class ChatClient extends Application {
 
     private void connectToServer() {
         try {
-            socket = new Socket(SERVER_IP, SERVER_PORT);
-            outputStream = new DataOutputStream(socket.getOutputStream());
-            inputStream = new DataInputStream(socket.getInputStream());
-
-            // Отправка имени пользователя
-            sendHeaderMessage(username);
-
-            while (!Thread.currentThread().isInterrupted()) {
-                String fullMessage = receiveHeaderMessage();
-                if (!fullMessage.contains(":")) {
-                    continue;
-                }
-                String[] parts = fullMessage.split(":", 2);
-                String sender = parts[0];
-                String message = parts[1];
-                appendMessage(sender + " > " + message);
+            metrics = ChatMetrics.register("default", username);
+            chatLog.setDelayRecorder(metrics.uiDelay()::record);
+            if (captureFile != null) {
+                capture = FrameCapture.open(captureFile);
             }
+            // Неподтверждённые сервером сообщения лежат на диске и отправляются заново после переподключения
+            connection = ResumableConnection.open(transportMode, SERVER_IP, SERVER_PORT, frameCodec, this, metrics,
+                    HistoryStore.directoryFor(Path.of("spool"), username).resolve("outbound.spool"), capture);
         } catch (IOException e) {
             appendMessage("Ошибка соединения: " + e.getMessage());
-        } finally {
-            closeConnection();
         }
     }
 
+    @Override
+    public void onConnected(ChatConnection connection) throws IOException {
+        // Отправка имени пользователя
+        connection.send(username);
+    }
+
+    @Override
+    public void onFrame(Frame frame) {
+        if (!frame.hasSender()) {
+            return;
+        }
+        // Конверты других клиентов (приветствия, ключи, шифртексты, файлы) служебные. Этот клиент пишет сразу
+        // всем, а сжатие договаривается с каждым собеседником отдельно, поэтому его сообщения уходят без сжатия
+        if (isService(frame.body())) {
+            return;
+        }
+        chatLog.record(frame.senderAsString(), frame.bodyAsString());
+    }
+
+    @Override
+    public void onDisconnected(IOException e) {
+        appendMessage("Ошибка соединения: " + e.getMessage());
+        closeConnection();
+    }
+
+    @Override
+    public void onReconnecting(IOException e, long delayMillis) {
+        appendMessage(String.format("Соединение потеряно (%s), повторное подключение через %.1f с",
+                e.getMessage(), delayMillis / 1000.0));
+    }
+
+    @Override
+    public void onResumed(int replayed) {
+        appendMessage(replayed > 0 ? "Соединение восстановлено, повторно отправлено сообщений: " + replayed
+                : "Соединение восстановлено");
+    }
+
+    // Конверт (0xF5 не встречается в UTF-8) этот клиент показать не может: ни расшифровать, ни разжать,
+    // ни принять файл. Выводить его как текст и писать в историю бессмысленно
+    private static boolean isService(ByteBuffer body) {
+        return Envelope.isEnvelope(body);
+    }
+
     private void sendMessage() {
         String message = inputField.getText();
         if (!message.isEmpty()) {
             try {
-                sendHeaderMessage(username + ":" + message);
-                appendMessage(username + " > " + message);
+                sendHeaderMessage(username + ":" + message).exceptionally(this::reportSendFailure);
+                chatLog.record(username, message);
                 inputField.clear();
             } catch (IOException e) {
                 appendMessage("Ошибка отправки сообщения: " + e.getMessage());
@@ -136,48 +193,70 @@ public class ChatClient extends Application {
         }
     }
 
-    private void sendHeaderMessage(String message) throws IOException {
-        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
-        String header = String.format("%-" + HEADER_LENGTH + "d", messageBytes.length);
-        outputStream.write(header.getBytes(StandardCharsets.UTF_8));
-        outputStream.write(messageBytes);
-        outputStream.flush();
+    private CompletableFuture<Void> sendHeaderMessage(String message) throws IOException {
+        if (connection == null) {
+            throw new IOException("Нет соединения с сервером");
+        }
+        return connection.send(message);
+    }
+
+    // Запись идёт в потоке транспорта, о неудаче сообщаем, когда она станет известна
+    private Void reportSendFailure(Throwable e) {
+        appendMessage("Сообщение не доставлено: " + e.getMessage());
+        return null;
     }
 
-    private String receiveHeaderMessage() throws IOException {
-        byte[] headerBytes = new byte[HEADER_LENGTH];
-        inputStream.readFully(headerBytes);
-        int messageLength = Integer.parseInt(new String(headerBytes).trim());
-        byte[] messageBytes = new byte[messageLength];
-        inputStream.readFully(messageBytes);
-        return new String(messageBytes, StandardCharsets.UTF_8);
+    private void openHistory() {
+        try {
+            // Окно одно на всех собеседников, поэтому и журнал один на пользователя, а не на переписку
+            history = HistoryStore.open(HistoryStore.directoryFor(Path.of("history"), username));
+            chatLog.attachHistory(history, ChatLog.HISTORY_PAGE);
+        } catch (IOException e) {
+            appendMessage("Не удалось открыть историю: " + e.getMessage());
+        }
+    }
+
+    private void showOlderHistory() {
+        try {
+            if (!chatLog.showOlder()) {
+                appendMessage("Более ранних сообщений нет");
+            }
+        } catch (IOException e) {
+            appendMessage("Ошибка чтения истории: " + e.getMessage());
+        }
     }
 
     private void appendMessage(String message) {
-        Platform.runLater(() -> chatArea.appendText(message + "\n"));
+        // Сообщения копятся в очереди и выводятся пачкой раз за кадр
+        chatLog.append(message);
     }
 
     private void closeConnection() {
         try {
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
-            }
-            if (outputStream != null) {
-                outputStream.close();
-            }
-            if (inputStream != null) {
-                inputStream.close();
+            if (connection != null) {
+                connection.close();
             }
         } catch (IOException e) {
             appendMessage("Ошибка при закрытии соединения: " + e.getMessage());
         }
+        if (capture != null) {
+            try {
+                capture.close();
+            } catch (IOException e) {
+                appendMessage("Ошибка записи кадров: " + e.getMessage());
+            }
+        }
     }
 
     private void exitApplication() {
-        if (connectionThread != null) {
-            connectionThread.interrupt();
-        }
         closeConnection();
+        metrics.close();
+        if (history != null) {
+            try {
+                history.close();
+            } catch (IOException ignored) {
+            }
+        }
         Platform.exit();
         System.exit(0);
     }
@@ -0,0 +1,5 @@
+package history;
+
+// Сообщение из журнала истории: номер по порядку, время в миллисекундах, отправитель и текст
+public record HistoryRecord(long sequence, long timestamp, String sender, String text) {
+}
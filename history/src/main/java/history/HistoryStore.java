@@ -0,0 +1,264 @@
+package history;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Журнал истории одной переписки (у клиентов - всего окна пользователя со всеми собеседниками,
+ * см. directoryFor): только дописывание, сегменты фиксированного размера
+ * отображаются в память (см. Segment). Последние N сообщений читаются с конца журнала за O(N),
+ * более ранние - страницами по запросу, файлы целиком в память не загружаются.
+ * Когда сегмент заполняется, он запечатывается и обрезается до занятой части,
+ * сверх maxSegments самые старые сегменты удаляются.
+ * Новые сообщения индексирует фоновый поток (см. SearchIndex, подкаталог index): append вызывается из потока
+ * окна, а сброс и слияние сегментов индекса его бы останавливали. Поэтому search находит сообщение с небольшой
+ * задержкой после append; ошибка индексации выбрасывается из следующего append.
+ */
+public final class HistoryStore implements Closeable {
+    public static final int DEFAULT_SEGMENT_SIZE = 8 << 20;
+    public static final int DEFAULT_MAX_SEGMENTS = 64;
+
+    private static final int REINDEX_BATCH = 4096;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final SearchIndex index;
+    // Один поток - сообщения попадают в индекс по порядку
+    private final ExecutorService indexer =
+            Executors.newSingleThreadExecutor(Thread.ofPlatform().name("history-index").daemon().factory());
+    private volatile IOException indexFailure;
+    private Segment active;
+    private long nextSequence;
+
+    public HistoryStore(Path directory, int segmentSize, int maxSegments) throws IOException {
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("maxSegments должен быть положительным");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        Files.createDirectories(directory);
+
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.endsWith(Segment.LOG_SUFFIX))
+                    .mapToLong(Segment::parseName)
+                    .forEach(first -> segments.put(first, Segment.existing(directory, first, segmentSize)));
+        }
+        if (segments.isEmpty()) {
+            active = Segment.create(directory, 1, segmentSize);
+            segments.put(1L, active);
+        } else {
+            active = segments.lastEntry().getValue();
+            active.openForAppend();
+        }
+        nextSequence = active.lastSequence() + 1;
+
+        index = new SearchIndex(directory.resolve("index"));
+        index.retainFrom(firstSequence());
+        // После аварийного завершения в индексе нет сообщений, которые не успели сброситься на диск
+        long sequence = Math.max(index.indexedUpTo() + 1, firstSequence());
+        while (sequence < nextSequence) {
+            List<HistoryRecord> batch = from(sequence, REINDEX_BATCH);
+            if (batch.isEmpty()) {
+                break;
+            }
+            for (HistoryRecord record : batch) {
+                index.add(record);
+            }
+            sequence = batch.getLast().sequence() + 1;
+        }
+    }
+
+    public static HistoryStore open(Path directory) throws IOException {
+        return new HistoryStore(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    // Каталог переписки внутри root. Символы, недопустимые в именах файлов, заменяются
+    public static Path directoryFor(Path root, String conversation) {
+        String name = conversation.replaceAll("[\\\\/:*?\"<>|\\p{Cntrl}]", "_").strip();
+        return root.resolve(name.isEmpty() || name.startsWith(".") ? "_" + name : name);
+    }
+
+    public synchronized HistoryRecord append(String sender, String text) throws IOException {
+        byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        if (senderBytes.length > 0xFFFF || Segment.OVERHEAD + 2 + senderBytes.length + textBytes.length > segmentSize) {
+            throw new IOException("Сообщение не помещается в сегмент журнала");
+        }
+        IOException failure = indexFailure;
+        if (failure != null) {
+            throw new IOException("Индекс истории не обновляется", failure);
+        }
+        ByteBuffer payload = ByteBuffer.allocate(2 + senderBytes.length + textBytes.length)
+                .putShort((short) senderBytes.length).put(senderBytes).put(textBytes).flip();
+
+        long sequence = nextSequence;
+        long timestamp = System.currentTimeMillis();
+        if (!active.append(sequence, timestamp, payload)) {
+            rotate();
+            active.append(sequence, timestamp, payload);
+        }
+        nextSequence++;
+        HistoryRecord record = new HistoryRecord(sequence, timestamp, sender, text);
+        indexer.execute(() -> {
+            try {
+                index.add(record);
+            } catch (IOException e) {
+                indexFailure = e;
+            }
+        });
+        return record;
+    }
+
+    // Последние count сообщений в порядке отправки
+    public synchronized List<HistoryRecord> last(int count) throws IOException {
+        return before(nextSequence, count);
+    }
+
+    // До count сообщений строго раньше sequence, в порядке отправки. Журнал читается с конца по длинам записей
+    public synchronized List<HistoryRecord> before(long sequence, int count) throws IOException {
+        List<HistoryRecord> page = new ArrayList<>(Math.min(count, 1024));
+        Map.Entry<Long, Segment> entry = sequence >= nextSequence
+                ? segments.lastEntry() : segments.floorEntry(sequence);
+        if (entry == null) {
+            return page;
+        }
+        Segment segment = entry.getValue();
+        int offset = sequence >= nextSequence ? segment.end() : segment.offsetOf(sequence);
+        while (page.size() < count) {
+            if (offset == 0) {
+                Map.Entry<Long, Segment> previous = segments.lowerEntry(segment.firstSequence);
+                if (previous == null) {
+                    break;
+                }
+                segment = previous.getValue();
+                offset = segment.end();
+                continue;
+            }
+            offset = segment.previous(offset);
+            page.add(segment.read(offset));
+        }
+        Collections.reverse(page);
+        return page;
+    }
+
+    // До count сообщений начиная с sequence, в порядке отправки
+    public synchronized List<HistoryRecord> from(long sequence, int count) throws IOException {
+        List<HistoryRecord> page = new ArrayList<>(Math.min(count, 1024));
+        sequence = Math.max(sequence, firstSequence());
+        Map.Entry<Long, Segment> entry = segments.floorEntry(sequence);
+        if (entry == null || sequence >= nextSequence) {
+            return page;
+        }
+        Segment segment = entry.getValue();
+        int offset = segment.offsetOf(sequence);
+        while (page.size() < count) {
+            if (offset >= segment.end()) {
+                Map.Entry<Long, Segment> following = segments.higherEntry(segment.firstSequence);
+                if (following == null) {
+                    break;
+                }
+                segment = following.getValue();
+                offset = 0;
+                continue;
+            }
+            page.add(segment.read(offset));
+            offset = segment.next(offset);
+        }
+        return page;
+    }
+
+    // Последние limit сообщений, содержащих все слова запроса, от новых к старым. Журнал читается
+    // только для найденных сообщений
+    public synchronized List<HistoryRecord> search(String query, int limit) throws IOException {
+        long[] matches = index.search(query, firstSequence());
+        List<HistoryRecord> found = new ArrayList<>(Math.min(limit, matches.length));
+        for (int i = matches.length - 1; i >= 0 && found.size() < limit; i--) {
+            HistoryRecord record = get(matches[i]);
+            if (record != null) {
+                found.add(record);
+            }
+        }
+        return found;
+    }
+
+    // Сообщение по номеру или null, если его нет (например, удалено вместе со старым сегментом)
+    public synchronized HistoryRecord get(long sequence) throws IOException {
+        Map.Entry<Long, Segment> entry = segments.floorEntry(sequence);
+        if (entry == null || sequence >= nextSequence || sequence > entry.getValue().lastSequence()) {
+            return null;
+        }
+        return entry.getValue().read(entry.getValue().offsetOf(sequence));
+    }
+
+    // Номер первого сообщения не раньше timestamp (nextSequence, если таких нет)
+    public synchronized long sequenceAt(long timestamp) throws IOException {
+        for (Segment segment : segments.values()) {
+            long sequence = segment.sequenceAt(timestamp);
+            if (sequence >= 0) {
+                return sequence;
+            }
+        }
+        return nextSequence;
+    }
+
+    public synchronized long firstSequence() {
+        return segments.firstKey();
+    }
+
+    public synchronized long nextSequence() {
+        return nextSequence;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        // Поставленные в очередь сообщения дописываются в индекс до закрытия
+        indexer.shutdown();
+        try {
+            indexer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        index.close();
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+    }
+
+    private void rotate() throws IOException {
+        active.seal();
+        active = Segment.create(directory, nextSequence, segmentSize);
+        segments.put(nextSequence, active);
+        if (segments.size() <= maxSegments) {
+            return;
+        }
+        while (segments.size() > maxSegments) {
+            segments.pollFirstEntry().getValue().delete();
+        }
+        // Индекс забывает удалённые сообщения в том же фоновом потоке
+        long first = firstSequence();
+        indexer.execute(() -> {
+            try {
+                index.retainFrom(first);
+            } catch (IOException e) {
+                indexFailure = e;
+            }
+        });
+    }
+}
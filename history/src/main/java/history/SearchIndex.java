@@ -0,0 +1,545 @@
+package history;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Инвертированный индекс по тексту сообщений: слово -> возрастающий список номеров сообщений.
+ * Новые сообщения копятся в памяти и время от времени сбрасываются в неизменяемый сегмент из двух файлов:
+ * <pre>
+ * .post   списки номеров, каждый - разности соседних номеров в varint
+ * .terms  [записи: длина слова 2, слово UTF-8, смещение списка 8, длина списка 4, число сообщений 4]
+ *         [смещения записей 4 * count][count 4][минимальный номер 8][максимальный номер 8]
+ * </pre>
+ * Слова в .terms отсортированы по байтам, поэтому поиск - двоичный поиск по отображённому в память файлу,
+ * журнал при поиске не читается. Сегменты идут по возрастанию номеров сообщений и сливаются с хвоста по
+ * соотношению размеров: новые сегменты присоединяются к предыдущему, пока он не больше их суммы. Размеры
+ * растут геометрически, поэтому сегментов O(log n) и каждый номер переписывается O(log n) раз.
+ * Номера раньше retainFrom (удалённые из журнала сообщения) при слиянии отбрасываются.
+ * <p>
+ * Методы синхронизированы: сообщения добавляет фоновый поток HistoryStore, ищет - поток окна.
+ */
+final class SearchIndex implements Closeable {
+    private static final String TERMS_SUFFIX = ".terms";
+    private static final String POSTINGS_SUFFIX = ".post";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int FLUSH_POSTINGS = 200_000;
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final int FOOTER = 4 + 8 + 8;
+
+    private final Path directory;
+    private final List<IndexSegment> segments = new ArrayList<>();
+    // Ещё не сброшенные на диск списки
+    private final HashMap<String, PostingList> memory = new HashMap<>();
+    private int memoryPostings;
+    private long memoryMin = Long.MAX_VALUE;
+    private long memoryMax = -1;
+    private long generation;
+    // Первый номер, который ещё есть в журнале
+    private long retainFrom;
+
+    SearchIndex(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.sorted().toList()) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    Files.delete(file);
+                } else if (name.endsWith(POSTINGS_SUFFIX)) {
+                    // Списки без словаря остались от прерванной записи или слияния
+                    Path terms = directory.resolve(name.substring(0, name.length() - POSTINGS_SUFFIX.length())
+                            + TERMS_SUFFIX);
+                    if (!Files.exists(terms)) {
+                        Files.delete(file);
+                    }
+                } else if (name.endsWith(TERMS_SUFFIX)) {
+                    long number = Long.parseLong(name.substring(0, name.length() - TERMS_SUFFIX.length()));
+                    segments.add(new IndexSegment(directory, number));
+                    generation = Math.max(generation, number + 1);
+                }
+            }
+        }
+        // Диапазоны живых сегментов не пересекаются. Пересечение значит, что слияние прервалось после записи
+        // нового сегмента, но до удаления исходных: новый (с большим номером) их заменяет
+        List<IndexSegment> covered = new ArrayList<>();
+        for (IndexSegment segment : segments) {
+            for (IndexSegment other : segments) {
+                if (other != segment && other.number > segment.number
+                        && other.minSequence <= segment.maxSequence && other.maxSequence >= segment.minSequence) {
+                    covered.add(segment);
+                    break;
+                }
+            }
+        }
+        for (IndexSegment segment : covered) {
+            segments.remove(segment);
+            segment.delete();
+        }
+        // Переписанный при очистке сегмент получает новый номер, но остаётся первым по номерам сообщений
+        segments.sort(Comparator.comparingLong((IndexSegment segment) -> segment.minSequence));
+    }
+
+    // Номер последнего сообщения, попавшего в индекс на диске. Всё, что позже, нужно проиндексировать заново
+    synchronized long indexedUpTo() {
+        long max = 0;
+        for (IndexSegment segment : segments) {
+            max = Math.max(max, segment.maxSequence);
+        }
+        return max;
+    }
+
+    synchronized void add(HistoryRecord record) throws IOException {
+        long sequence = record.sequence();
+        for (String term : terms(record.sender() + " " + record.text())) {
+            if (memory.computeIfAbsent(term, key -> new PostingList()).add(sequence)) {
+                memoryPostings++;
+            }
+        }
+        memoryMin = Math.min(memoryMin, sequence);
+        memoryMax = Math.max(memoryMax, sequence);
+        if (memoryPostings >= FLUSH_POSTINGS) {
+            flush();
+        }
+    }
+
+    // Номера сообщений, содержащих все слова запроса, по возрастанию. Номера до minSequence отбрасываются
+    synchronized long[] search(String query, long minSequence) {
+        List<String> queryTerms = terms(query);
+        if (queryTerms.isEmpty()) {
+            return new long[0];
+        }
+        long[] result = null;
+        for (String term : queryTerms) {
+            long[] postings = postings(term);
+            result = result == null ? postings : intersect(result, postings);
+            if (result.length == 0) {
+                break;
+            }
+        }
+        int from = 0;
+        while (from < result.length && result[from] < minSequence) {
+            from++;
+        }
+        return from == 0 ? result : Arrays.copyOfRange(result, from, result.length);
+    }
+
+    synchronized void flush() throws IOException {
+        if (memory.isEmpty()) {
+            return;
+        }
+        List<Map.Entry<byte[], PostingList>> sorted = new ArrayList<>(memory.size());
+        memory.forEach((term, list) -> sorted.add(Map.entry(term.getBytes(StandardCharsets.UTF_8), list)));
+        sorted.sort((a, b) -> Arrays.compareUnsigned(a.getKey(), b.getKey()));
+
+        long number = generation++;
+        try (SegmentWriter writer = new SegmentWriter(directory, number)) {
+            for (Map.Entry<byte[], PostingList> entry : sorted) {
+                writer.addTerm(entry.getKey(), entry.getValue().values, 0, entry.getValue().size);
+            }
+            writer.finish(memoryMin, memoryMax);
+        }
+        segments.add(new IndexSegment(directory, number));
+        memory.clear();
+        memoryPostings = 0;
+        memoryMin = Long.MAX_VALUE;
+        memoryMax = -1;
+        mergeTail();
+    }
+
+    // Сообщения раньше sequence удалены из журнала. Сегменты целиком из них удаляются сразу, первый сегмент,
+    // больше чем наполовину из них, переписывается без них; остальное отбрасывается при следующих слияниях
+    synchronized void retainFrom(long sequence) throws IOException {
+        if (sequence <= retainFrom) {
+            return;
+        }
+        retainFrom = sequence;
+        while (!segments.isEmpty() && segments.getFirst().maxSequence < retainFrom) {
+            segments.removeFirst().delete();
+        }
+        if (!segments.isEmpty()) {
+            IndexSegment first = segments.getFirst();
+            if (retainFrom - first.minSequence > (first.maxSequence - first.minSequence) / 2) {
+                merge(0, 1);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        segments.clear();
+    }
+
+    // Слова: последовательности букв и цифр в нижнем регистре, без повторов
+    static List<String> terms(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && !Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            if (i > start) {
+                String term = text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase(Locale.ROOT);
+                terms.add(term);
+            }
+        }
+        return List.copyOf(terms);
+    }
+
+    private long[] postings(String term) {
+        byte[] key = term.getBytes(StandardCharsets.UTF_8);
+        // Сегменты идут по возрастанию номеров сообщений, поэтому списки просто склеиваются
+        PostingList all = new PostingList();
+        for (IndexSegment segment : segments) {
+            segment.decode(key, all);
+        }
+        PostingList recent = memory.get(term);
+        if (recent != null) {
+            for (int i = 0; i < recent.size; i++) {
+                all.add(recent.values[i]);
+            }
+        }
+        return Arrays.copyOf(all.values, all.size);
+    }
+
+    // Пересечение возрастающих списков: меньший ищется в большем двоичным поиском с продвигающейся границей
+    private static long[] intersect(long[] a, long[] b) {
+        long[] small = a.length <= b.length ? a : b;
+        long[] large = small == a ? b : a;
+        long[] result = new long[small.length];
+        int count = 0;
+        int from = 0;
+        for (long value : small) {
+            int found = Arrays.binarySearch(large, from, large.length, value);
+            if (found >= 0) {
+                result[count++] = value;
+                from = found + 1;
+            } else {
+                from = -found - 1;
+            }
+            if (from >= large.length) {
+                break;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    // Хвост сегментов растёт назад, пока предыдущий сегмент не больше суммы уже взятых, и сливается в один.
+    // Повторяется, пока сливать нечего: при равных сбросах это двоичный счётчик
+    private void mergeTail() throws IOException {
+        while (true) {
+            int from = segments.size() - 1;
+            long tail = from < 0 ? 0 : segments.get(from).bytes();
+            while (from > 0 && segments.get(from - 1).bytes() <= tail) {
+                from--;
+                tail += segments.get(from).bytes();
+            }
+            if (segments.size() - from < 2) {
+                return;
+            }
+            merge(from, segments.size());
+        }
+    }
+
+    // Слияние сегментов [from, to) в один: k-путевой проход по отсортированным словарям.
+    // Номера раньше retainFrom не переносятся
+    private void merge(int from, int to) throws IOException {
+        List<IndexSegment> sources = new ArrayList<>(segments.subList(from, to));
+        long min = Long.MAX_VALUE;
+        long max = -1;
+        for (IndexSegment segment : sources) {
+            min = Math.min(min, segment.minSequence);
+            max = Math.max(max, segment.maxSequence);
+        }
+        min = Math.max(min, retainFrom);
+        IndexSegment replacement = null;
+        if (min <= max) {
+            long number = generation++;
+            int[] positions = new int[sources.size()];
+            PostingList merged = new PostingList();
+            try (SegmentWriter writer = new SegmentWriter(directory, number)) {
+                while (true) {
+                    byte[] smallest = null;
+                    for (int i = 0; i < sources.size(); i++) {
+                        if (positions[i] < sources.get(i).count) {
+                            byte[] term = sources.get(i).term(positions[i]);
+                            if (smallest == null || Arrays.compareUnsigned(term, smallest) < 0) {
+                                smallest = term;
+                            }
+                        }
+                    }
+                    if (smallest == null) {
+                        break;
+                    }
+                    merged.size = 0;
+                    for (int i = 0; i < sources.size(); i++) {
+                        IndexSegment segment = sources.get(i);
+                        if (positions[i] < segment.count && Arrays.equals(segment.term(positions[i]), smallest)) {
+                            segment.decodeEntry(positions[i], merged);
+                            positions[i]++;
+                        }
+                    }
+                    // Списки возрастают, удалённые номера - в начале
+                    int live = 0;
+                    while (live < merged.size && merged.values[live] < retainFrom) {
+                        live++;
+                    }
+                    writer.addTerm(smallest, merged.values, live, merged.size);
+                }
+                writer.finish(min, max);
+            }
+            replacement = new IndexSegment(directory, number);
+        }
+        segments.subList(from, to).clear();
+        if (replacement != null) {
+            segments.add(from, replacement);
+        }
+        for (IndexSegment segment : sources) {
+            segment.delete();
+        }
+    }
+
+    private static final class PostingList {
+        private long[] values = new long[4];
+        private int size;
+
+        // Одно сообщение может встретиться в списке только один раз подряд
+        boolean add(long value) {
+            if (size > 0 && values[size - 1] == value) {
+                return false;
+            }
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+            return true;
+        }
+    }
+
+    private static final class IndexSegment {
+        private final long number;
+        private final Path termsPath;
+        private final Path postingsPath;
+        private final MappedByteBuffer terms;
+        private final MappedByteBuffer postings;
+        private final int count;
+        private final int table;
+        private final long minSequence;
+        private final long maxSequence;
+
+        IndexSegment(Path directory, long number) throws IOException {
+            this.number = number;
+            this.termsPath = directory.resolve(name(number) + TERMS_SUFFIX);
+            this.postingsPath = directory.resolve(name(number) + POSTINGS_SUFFIX);
+            this.terms = map(termsPath);
+            this.postings = map(postingsPath);
+            int footer = terms.limit() - FOOTER;
+            this.count = terms.getInt(footer);
+            this.minSequence = terms.getLong(footer + 4);
+            this.maxSequence = terms.getLong(footer + 12);
+            this.table = footer - count * 4;
+        }
+
+        long bytes() {
+            return terms.limit() + (long) postings.limit();
+        }
+
+        byte[] term(int index) {
+            int offset = terms.getInt(table + index * 4);
+            byte[] term = new byte[terms.getShort(offset) & 0xFFFF];
+            terms.get(offset + 2, term);
+            return term;
+        }
+
+        void decode(byte[] key, PostingList out) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int compared = compare(middle, key);
+                if (compared == 0) {
+                    decodeEntry(middle, out);
+                    return;
+                }
+                if (compared < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+        }
+
+        void decodeEntry(int index, PostingList out) {
+            int offset = terms.getInt(table + index * 4);
+            int entry = offset + 2 + (terms.getShort(offset) & 0xFFFF);
+            long position = terms.getLong(entry);
+            int length = terms.getInt(entry + 8);
+            int end = (int) position + length;
+            long value = 0;
+            int i = (int) position;
+            while (i < end) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = postings.get(i++);
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                value += delta;
+                out.add(value);
+            }
+        }
+
+        // Сравнение слова в словаре с ключом без создания массивов
+        private int compare(int index, byte[] key) {
+            int offset = terms.getInt(table + index * 4);
+            int length = terms.getShort(offset) & 0xFFFF;
+            int common = Math.min(length, key.length);
+            for (int i = 0; i < common; i++) {
+                int difference = (terms.get(offset + 2 + i) & 0xFF) - (key[i] & 0xFF);
+                if (difference != 0) {
+                    return difference;
+                }
+            }
+            return length - key.length;
+        }
+
+        void delete() throws IOException {
+            Files.deleteIfExists(termsPath);
+            Files.deleteIfExists(postingsPath);
+        }
+
+        private static MappedByteBuffer map(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+    }
+
+    // Пишет сегмент во временные файлы и переименовывает: .terms появляется последним,
+    // так что сегмент без него при следующем запуске считается недописанным
+    private static final class SegmentWriter implements Closeable {
+        private final Path termsPath;
+        private final Path postingsPath;
+        private final Path termsTemp;
+        private final Path postingsTemp;
+        private final DataOutputStream termsOut;
+        private final CountingStream postingsOut;
+        private int[] offsets = new int[1024];
+        private int count;
+        private int termsWritten;
+        private boolean finished;
+
+        SegmentWriter(Path directory, long number) throws IOException {
+            this.termsPath = directory.resolve(name(number) + TERMS_SUFFIX);
+            this.postingsPath = directory.resolve(name(number) + POSTINGS_SUFFIX);
+            this.termsTemp = directory.resolve(name(number) + TERMS_SUFFIX + TEMP_SUFFIX);
+            this.postingsTemp = directory.resolve(name(number) + POSTINGS_SUFFIX + TEMP_SUFFIX);
+            this.termsOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(termsTemp), 1 << 16));
+            this.postingsOut = new CountingStream(new BufferedOutputStream(Files.newOutputStream(postingsTemp), 1 << 16));
+        }
+
+        // Список - values[from, to)
+        void addTerm(byte[] term, long[] values, int from, int to) throws IOException {
+            if (from >= to) {
+                return;
+            }
+            long start = postingsOut.written;
+            long previous = 0;
+            for (int i = from; i < to; i++) {
+                long delta = values[i] - previous;
+                previous = values[i];
+                while ((delta & ~0x7FL) != 0) {
+                    postingsOut.write((int) (delta & 0x7F) | 0x80);
+                    delta >>>= 7;
+                }
+                postingsOut.write((int) delta);
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = termsWritten;
+            termsOut.writeShort(term.length);
+            termsOut.write(term);
+            termsOut.writeLong(start);
+            termsOut.writeInt((int) (postingsOut.written - start));
+            termsOut.writeInt(to - from);
+            termsWritten += 2 + term.length + 8 + 4 + 4;
+        }
+
+        void finish(long minSequence, long maxSequence) throws IOException {
+            for (int i = 0; i < count; i++) {
+                termsOut.writeInt(offsets[i]);
+            }
+            termsOut.writeInt(count);
+            termsOut.writeLong(minSequence);
+            termsOut.writeLong(maxSequence);
+            postingsOut.close();
+            termsOut.close();
+            Files.move(postingsTemp, postingsPath, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(termsTemp, termsPath, StandardCopyOption.ATOMIC_MOVE);
+            finished = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!finished) {
+                postingsOut.close();
+                termsOut.close();
+                Files.deleteIfExists(postingsTemp);
+                Files.deleteIfExists(termsTemp);
+            }
+        }
+    }
+
+    private static final class CountingStream extends OutputStream {
+        private final OutputStream out;
+        private long written;
+
+        CountingStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            written++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static String name(long number) {
+        return String.format("%020d", number);
+    }
+}
@@ -0,0 +1,307 @@
+package history;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * Файл сегмента журнала, отображённый в память. Формат записи:
+ * <pre>
+ * [длина данных 4][crc32c 4][номер 8][время 8][данные][длина данных 4]
+ * данные: [длина имени отправителя 2][отправитель][текст], всё в UTF-8
+ * </pre>
+ * Длина повторяется в конце записи, поэтому журнал читается и с конца, без сканирования всего файла.
+ * Рядом лежит разреженный индекс .idx: [номер 8][время 8][смещение 4] примерно на каждые 4 КиБ журнала.
+ * Запечатанные сегменты отображаются только при первом обращении.
+ */
+final class Segment implements Closeable {
+    static final String LOG_SUFFIX = ".log";
+    static final String INDEX_SUFFIX = ".idx";
+    static final int OVERHEAD = 4 + 4 + 8 + 8 + 4;
+
+    private static final int HEADER = 24;
+    private static final int INDEX_INTERVAL = 4096;
+    private static final int INDEX_ENTRY = 20;
+
+    final long firstSequence;
+    private final Path logPath;
+    private final Path indexPath;
+    private final int capacity;
+    private final CRC32C crc = new CRC32C();
+
+    private MappedByteBuffer map;
+    private FileChannel indexChannel;
+    private boolean writable;
+    private int end;
+    private long lastSequence;
+
+    // Разреженный индекс в памяти
+    private long[] indexSequence = new long[16];
+    private long[] indexTime = new long[16];
+    private int[] indexOffset = new int[16];
+    private int indexSize;
+    private int lastIndexed = -INDEX_INTERVAL;
+
+    private Segment(Path directory, long firstSequence, int capacity) {
+        this.firstSequence = firstSequence;
+        this.logPath = directory.resolve(name(firstSequence) + LOG_SUFFIX);
+        this.indexPath = directory.resolve(name(firstSequence) + INDEX_SUFFIX);
+        this.capacity = capacity;
+        this.lastSequence = firstSequence - 1;
+    }
+
+    // Новый пустой сегмент для записи
+    static Segment create(Path directory, long firstSequence, int capacity) throws IOException {
+        Segment segment = new Segment(directory, firstSequence, capacity);
+        segment.load(true);
+        return segment;
+    }
+
+    // Существующий сегмент, файл будет открыт при первом обращении
+    static Segment existing(Path directory, long firstSequence, int capacity) {
+        return new Segment(directory, firstSequence, capacity);
+    }
+
+    static long parseName(String fileName) {
+        return Long.parseLong(fileName.substring(0, fileName.length() - LOG_SUFFIX.length()));
+    }
+
+    // Запись в конец сегмента. false - места не осталось, пора открывать следующий сегмент
+    boolean append(long sequence, long timestamp, ByteBuffer payload) throws IOException {
+        ensureLoaded();
+        int length = payload.remaining();
+        if (end + OVERHEAD + length > map.capacity()) {
+            return false;
+        }
+        int position = end;
+        map.putLong(position + 8, sequence);
+        map.putLong(position + 16, timestamp);
+        map.put(position + HEADER, payload, payload.position(), length);
+        map.putInt(position + HEADER + length, length);
+        map.putInt(position + 4, checksum(position, length));
+        // Длина в начале пишется последней: до этого запись не считается существующей
+        map.putInt(position, length);
+
+        if (position - lastIndexed >= INDEX_INTERVAL) {
+            addIndex(sequence, timestamp, position);
+            indexChannel.write(ByteBuffer.allocate(INDEX_ENTRY)
+                    .putLong(sequence).putLong(timestamp).putInt(position).flip());
+        }
+        end = position + OVERHEAD + length;
+        lastSequence = sequence;
+        return true;
+    }
+
+    HistoryRecord read(int offset) throws IOException {
+        ensureLoaded();
+        int length = map.getInt(offset);
+        int senderLength = map.getShort(offset + HEADER) & 0xFFFF;
+        int textStart = offset + HEADER + 2 + senderLength;
+        return new HistoryRecord(map.getLong(offset + 8), map.getLong(offset + 16),
+                decode(offset + HEADER + 2, senderLength), decode(textStart, offset + HEADER + length - textStart));
+    }
+
+    // Начало записи, которая заканчивается на offset
+    int previous(int offset) throws IOException {
+        ensureLoaded();
+        return offset - OVERHEAD - map.getInt(offset - 4);
+    }
+
+    int next(int offset) throws IOException {
+        ensureLoaded();
+        return offset + OVERHEAD + map.getInt(offset);
+    }
+
+    // Смещение записи с номером sequence: ближайшая точка индекса и короткий проход вперёд
+    int offsetOf(long sequence) throws IOException {
+        ensureLoaded();
+        int slot = floor(indexSequence, sequence);
+        int offset = slot < 0 ? 0 : indexOffset[slot];
+        long current = slot < 0 ? firstSequence : indexSequence[slot];
+        while (current < sequence && offset < end) {
+            offset = next(offset);
+            current++;
+        }
+        return offset;
+    }
+
+    // Номер первой записи не раньше timestamp или -1, если таких в сегменте нет
+    long sequenceAt(long timestamp) throws IOException {
+        ensureLoaded();
+        int slot = floor(indexTime, timestamp);
+        int offset = slot < 0 ? 0 : indexOffset[slot];
+        while (offset < end) {
+            if (map.getLong(offset + 16) >= timestamp) {
+                return map.getLong(offset + 8);
+            }
+            offset = next(offset);
+        }
+        return -1;
+    }
+
+    int end() throws IOException {
+        ensureLoaded();
+        return end;
+    }
+
+    long lastSequence() throws IOException {
+        ensureLoaded();
+        return lastSequence;
+    }
+
+    // Сегмент больше не пишется: файл обрезается до занятой части, чтобы не держать запас на диске
+    void seal() throws IOException {
+        if (!writable) {
+            return;
+        }
+        map.force();
+        indexChannel.close();
+        indexChannel = null;
+        writable = false;
+        try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.WRITE)) {
+            channel.truncate(end);
+        } catch (IOException e) {
+            // Некоторые ОС не дают обрезать отображённый файл, хвост из нулей читатель всё равно пропустит
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (map != null && writable) {
+            map.force();
+        }
+        if (indexChannel != null) {
+            indexChannel.close();
+            indexChannel = null;
+        }
+        map = null;
+    }
+
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(logPath);
+        Files.deleteIfExists(indexPath);
+    }
+
+    void openForAppend() throws IOException {
+        if (map == null) {
+            load(true);
+        }
+    }
+
+    private void ensureLoaded() throws IOException {
+        if (map == null) {
+            load(false);
+        }
+    }
+
+    private void load(boolean forWrite) throws IOException {
+        try (FileChannel channel = FileChannel.open(logPath, forWrite
+                ? new StandardOpenOption[]{StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE}
+                : new StandardOpenOption[]{StandardOpenOption.READ})) {
+            long size = channel.size();
+            // Отображение на запись растягивает файл до ёмкости сегмента, новые страницы заполнены нулями
+            map = forWrite
+                    ? channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, capacity))
+                    : channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        loadIndex();
+        recover();
+        if (forWrite) {
+            indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            // Точки индекса после оборванной записи отброшены, дописываем за последней верной
+            indexChannel.truncate((long) indexSize * INDEX_ENTRY);
+            indexChannel.position((long) indexSize * INDEX_ENTRY);
+            writable = true;
+        }
+    }
+
+    private void loadIndex() throws IOException {
+        indexSize = 0;
+        if (!Files.exists(indexPath)) {
+            return;
+        }
+        ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(indexPath));
+        while (entries.remaining() >= INDEX_ENTRY) {
+            addIndex(entries.getLong(), entries.getLong(), entries.getInt());
+        }
+    }
+
+    // Конец журнала ищется от последней точки индекса: проверяются длины, crc и непрерывность номеров
+    private void recover() {
+        while (indexSize > 0 && indexOffset[indexSize - 1] + OVERHEAD > map.limit()) {
+            indexSize--;
+        }
+        int offset = indexSize == 0 ? 0 : indexOffset[indexSize - 1];
+        long expected = indexSize == 0 ? firstSequence : indexSequence[indexSize - 1];
+        while (offset + OVERHEAD <= map.limit()) {
+            int length = map.getInt(offset);
+            if (length <= 0 || offset + OVERHEAD + length > map.limit()
+                    || map.getInt(offset + HEADER + length) != length
+                    || map.getLong(offset + 8) != expected
+                    || map.getInt(offset + 4) != checksum(offset, length)) {
+                break;
+            }
+            offset += OVERHEAD + length;
+            expected++;
+        }
+        end = offset;
+        lastSequence = expected - 1;
+        while (indexSize > 0 && indexOffset[indexSize - 1] >= end) {
+            indexSize--;
+        }
+        lastIndexed = indexSize == 0 ? -INDEX_INTERVAL : indexOffset[indexSize - 1];
+    }
+
+    private int checksum(int offset, int length) {
+        crc.reset();
+        crc.update(map.slice(offset + 8, HEADER - 8 + length));
+        return (int) crc.getValue();
+    }
+
+    private void addIndex(long sequence, long timestamp, int offset) {
+        if (indexSize == indexSequence.length) {
+            indexSequence = Arrays.copyOf(indexSequence, indexSize * 2);
+            indexTime = Arrays.copyOf(indexTime, indexSize * 2);
+            indexOffset = Arrays.copyOf(indexOffset, indexSize * 2);
+        }
+        indexSequence[indexSize] = sequence;
+        indexTime[indexSize] = timestamp;
+        indexOffset[indexSize] = offset;
+        indexSize++;
+        lastIndexed = offset;
+    }
+
+    // Последняя точка индекса со значением не больше key или -1
+    private int floor(long[] keys, long key) {
+        int low = 0;
+        int high = indexSize - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (keys[middle] <= key) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    private String decode(int offset, int length) {
+        return StandardCharsets.UTF_8.decode(map.slice(offset, length)).toString();
+    }
+
+    private static String name(long firstSequence) {
+        return String.format("%020d", firstSequence);
+    }
+}
@@ -0,0 +1,119 @@
+package netem;
+
+import java.util.Locale;
+
+/**
+ * Условия канала, которые NetworkProxy добавляет к каждому направлению каждого соединения.
+ * Текстовая форма - пары через запятую, неуказанные берутся из базовых условий:
+ * <pre>
+ * latency=50        задержка в одну сторону, мс
+ * jitter=10         разброс задержки ±мс; порядок байт сохраняется, как в TCP
+ * bandwidth=256k    предел скорости, байт/с (суффиксы k и m - КиБ и МиБ), 0 - без предела
+ * segment=7         данные уходят кусками не больше стольких байт, 0 - как прочитаны
+ * stall-every=10000 раз в столько мс канал замирает...
+ * stall=2000        ...на столько мс (одновременно для всех соединений)
+ * </pre>
+ */
+public record NetworkConditions(long latencyMillis, long jitterMillis, long bytesPerSecond, int segmentSize,
+                                long stallEveryMillis, long stallMillis) {
+
+    public static final NetworkConditions NONE = new NetworkConditions(0, 0, 0, 0, 0, 0);
+
+    public NetworkConditions {
+        if (latencyMillis < 0 || jitterMillis < 0 || bytesPerSecond < 0 || segmentSize < 0
+                || stallEveryMillis < 0 || stallMillis < 0) {
+            throw new IllegalArgumentException("Параметры канала не могут быть отрицательными");
+        }
+        if (stallMillis > 0 && stallMillis >= stallEveryMillis) {
+            throw new IllegalArgumentException("stall должен быть меньше stall-every");
+        }
+    }
+
+    public static NetworkConditions parse(String spec) {
+        return parse(spec, NONE);
+    }
+
+    // Меняются только указанные параметры, так условия можно подкручивать на ходу
+    public static NetworkConditions parse(String spec, NetworkConditions base) {
+        long latency = base.latencyMillis;
+        long jitter = base.jitterMillis;
+        long bandwidth = base.bytesPerSecond;
+        int segment = base.segmentSize;
+        long stallEvery = base.stallEveryMillis;
+        long stall = base.stallMillis;
+        for (String part : spec.split(",")) {
+            if (part.isBlank()) {
+                continue;
+            }
+            String[] pair = part.trim().split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Ожидалось имя=значение: " + part);
+            }
+            String value = pair[1].trim();
+            switch (pair[0].trim()) {
+                case "latency" -> latency = Long.parseLong(value);
+                case "jitter" -> jitter = Long.parseLong(value);
+                case "bandwidth" -> bandwidth = parseBytes(value);
+                case "segment" -> segment = Math.toIntExact(parseBytes(value));
+                case "stall-every" -> stallEvery = Long.parseLong(value);
+                case "stall" -> stall = Long.parseLong(value);
+                default -> throw new IllegalArgumentException("Неизвестный параметр канала: " + pair[0]);
+            }
+        }
+        return new NetworkConditions(latency, jitter, bandwidth, segment, stallEvery, stall);
+    }
+
+    public NetworkConditions withLatency(long latencyMillis, long jitterMillis) {
+        return new NetworkConditions(latencyMillis, jitterMillis, bytesPerSecond, segmentSize, stallEveryMillis,
+                stallMillis);
+    }
+
+    public NetworkConditions withBandwidth(long bytesPerSecond) {
+        return new NetworkConditions(latencyMillis, jitterMillis, bytesPerSecond, segmentSize, stallEveryMillis,
+                stallMillis);
+    }
+
+    public NetworkConditions withSegmentSize(int segmentSize) {
+        return new NetworkConditions(latencyMillis, jitterMillis, bytesPerSecond, segmentSize, stallEveryMillis,
+                stallMillis);
+    }
+
+    public NetworkConditions withStalls(long stallEveryMillis, long stallMillis) {
+        return new NetworkConditions(latencyMillis, jitterMillis, bytesPerSecond, segmentSize, stallEveryMillis,
+                stallMillis);
+    }
+
+    public String describe() {
+        if (equals(NONE)) {
+            return "без искажений";
+        }
+        StringBuilder text = new StringBuilder();
+        if (latencyMillis > 0 || jitterMillis > 0) {
+            text.append(String.format(Locale.ROOT, "задержка %d±%d мс", latencyMillis, jitterMillis));
+        }
+        if (bytesPerSecond > 0) {
+            text.append(text.isEmpty() ? "" : ", ")
+                    .append(String.format(Locale.ROOT, "%.1f КиБ/с", bytesPerSecond / 1024.0));
+        }
+        if (segmentSize > 0) {
+            text.append(text.isEmpty() ? "" : ", ").append("сегменты по ").append(segmentSize).append(" байт");
+        }
+        if (stallMillis > 0) {
+            text.append(text.isEmpty() ? "" : ", ")
+                    .append(String.format(Locale.ROOT, "замирание на %d мс каждые %d мс", stallMillis,
+                            stallEveryMillis));
+        }
+        return text.toString();
+    }
+
+    private static long parseBytes(String value) {
+        String lower = value.toLowerCase(Locale.ROOT);
+        if (lower.endsWith("k")) {
+            return Long.parseLong(lower.substring(0, lower.length() - 1)) * 1024;
+        }
+        if (lower.endsWith("m")) {
+            return Long.parseLong(lower.substring(0, lower.length() - 1)) * 1024 * 1024;
+        }
+        return Long.parseLong(lower);
+    }
+}
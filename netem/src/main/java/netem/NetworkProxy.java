@@ -0,0 +1,228 @@
+package netem;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TCP-прокси между клиентами и сервером, который изображает настоящий канал: задержку с разбросом,
+ * предел скорости, мелкие сегменты (кадр приходит за много чтений) и периодическое замирание.
+ * Условия (NetworkConditions) меняются на ходу через setConditions и действуют на уже открытые соединения,
+ * disconnectAll обрывает все соединения, чтобы проверить переподключение.
+ * <p>
+ * Из кода (нагрузочный клиент, интеграционные проверки):
+ * <pre>
+ * try (NetworkProxy proxy = new NetworkProxy(0, "127.0.0.1", server.port(), NetworkConditions.NONE)) {
+ *     proxy.start();
+ *     ... подключения к proxy.port() ...
+ *     proxy.setConditions(NetworkConditions.NONE.withLatency(50, 10).withSegmentSize(7));
+ * }
+ * </pre>
+ * Из командной строки - параметры вида --имя=значение, условия как в NetworkConditions. Клиенты подключаются
+ * к порту 1234, поэтому по умолчанию прокси слушает его, а сервер ожидается на 1235. Каждая строка stdin -
+ * новые условия (например, latency=200) или disconnect.
+ */
+public final class NetworkProxy implements Closeable {
+    public static final int DEFAULT_LISTEN_PORT = 1234;
+    public static final String DEFAULT_TARGET = "127.0.0.1:1235";
+
+    private final ServerSocketChannel serverChannel;
+    private final InetSocketAddress target;
+    private final Set<ProxiedConnection> connections = ConcurrentHashMap.newKeySet();
+    private final LongAdder bytesForwarded = new LongAdder();
+    private final LongAdder segmentsForwarded = new LongAdder();
+    // Отсчёт периодов замирания, общий для всех соединений
+    private final long startedAt = System.nanoTime();
+    private volatile NetworkConditions conditions;
+    private volatile boolean running = true;
+    private Thread acceptThread;
+
+    public NetworkProxy(int listenPort, String targetHost, int targetPort, NetworkConditions conditions)
+            throws IOException {
+        this.target = new InetSocketAddress(targetHost, targetPort);
+        this.conditions = conditions;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(listenPort), 4096);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> named = new HashMap<>();
+        StringBuilder spec = new StringBuilder();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Ожидался параметр вида --имя=значение: " + arg);
+            }
+            String name = arg.substring(2, separator);
+            String value = arg.substring(separator + 1);
+            if (name.equals("listen") || name.equals("target")) {
+                named.put(name, value);
+            } else {
+                spec.append(name).append('=').append(value).append(',');
+            }
+        }
+        String target = named.getOrDefault("target", DEFAULT_TARGET);
+        int colon = target.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Ожидалось --target=хост:порт: " + target);
+        }
+        NetworkProxy proxy = new NetworkProxy(
+                Integer.parseInt(named.getOrDefault("listen", String.valueOf(DEFAULT_LISTEN_PORT))),
+                target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)),
+                NetworkConditions.parse(spec.toString()));
+        proxy.start();
+        System.out.println("Прокси " + proxy.port() + " -> " + target + ": " + proxy.conditions().describe());
+
+        BufferedReader console = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = console.readLine()) != null) {
+            line = line.trim();
+            try {
+                if (line.equals("disconnect")) {
+                    System.out.println("Оборвано соединений: " + proxy.disconnectAll());
+                } else if (!line.isEmpty()) {
+                    proxy.setConditions(NetworkConditions.parse(line, proxy.conditions()));
+                    System.out.println("Условия: " + proxy.conditions().describe());
+                }
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+        // stdin закрыт (запуск в фоне) - работаем до остановки процесса
+        proxy.acceptThread.join();
+    }
+
+    // При запуске с портом 0 возвращает фактически выбранный порт
+    public int port() throws IOException {
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    public synchronized void start() {
+        if (acceptThread == null) {
+            acceptThread = Thread.ofVirtual().name("netem-accept").start(this::acceptLoop);
+        }
+    }
+
+    public NetworkConditions conditions() {
+        return conditions;
+    }
+
+    // Действует и на открытые соединения, начиная со следующего прочитанного куска
+    public void setConditions(NetworkConditions conditions) {
+        this.conditions = conditions;
+    }
+
+    public int connectionCount() {
+        return connections.size();
+    }
+
+    // Обе стороны видят обрыв; возвращает число оборванных соединений
+    public int disconnectAll() {
+        List<ProxiedConnection> open = List.copyOf(connections);
+        for (ProxiedConnection connection : open) {
+            connection.close();
+        }
+        return open.size();
+    }
+
+    // Байты и сегменты, переданные в обе стороны всеми соединениями
+    public long bytesForwarded() {
+        return bytesForwarded.sum();
+    }
+
+    public long segmentsForwarded() {
+        return segmentsForwarded.sum();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverChannel.close();
+        disconnectAll();
+    }
+
+    void forwarded(int bytes) {
+        bytesForwarded.add(bytes);
+        segmentsForwarded.increment();
+    }
+
+    void closed(ProxiedConnection connection) {
+        connections.remove(connection);
+    }
+
+    // Замирание - последние stallMillis каждого периода stallEveryMillis
+    void awaitLinkUp(NetworkConditions conditions) throws InterruptedException {
+        if (conditions.stallMillis() == 0) {
+            return;
+        }
+        long period = TimeUnit.MILLISECONDS.toNanos(conditions.stallEveryMillis());
+        long elapsed = System.nanoTime() - startedAt;
+        long phase = elapsed % period;
+        if (phase >= period - TimeUnit.MILLISECONDS.toNanos(conditions.stallMillis())) {
+            ProxiedConnection.sleepUntil(startedAt + elapsed - phase + period);
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            SocketChannel client;
+            try {
+                client = serverChannel.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (!running) {
+                    return;
+                }
+                continue;
+            }
+            // Подключение к серверу тоже проходит через канал, поэтому не задерживает приём следующих
+            Thread.ofVirtual().name("netem-connect").start(() -> connect(client));
+        }
+    }
+
+    private void connect(SocketChannel client) {
+        try {
+            SocketChannel server = SocketChannel.open();
+            try {
+                // Установка соединения стоит круг туда и обратно
+                ProxiedConnection.sleepUntil(System.nanoTime()
+                        + TimeUnit.MILLISECONDS.toNanos(conditions.latencyMillis() * 2));
+                server.connect(target);
+                // Иначе Нейгл склеит мелкие сегменты обратно
+                client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                server.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException | InterruptedException e) {
+                server.close();
+                throw e;
+            }
+            ProxiedConnection connection = new ProxiedConnection(this, client, server);
+            connections.add(connection);
+            if (!running) {
+                connection.close();
+                return;
+            }
+            connection.start();
+        } catch (IOException | InterruptedException e) {
+            try {
+                client.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package netem;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Одно соединение через прокси: клиент ↔ сервер. Каждое направление - пара виртуальных потоков:
+ * чтение складывает прочитанное с отметкой времени в очередь, запись выдерживает задержку, замирание
+ * и предел скорости и пишет кусками по segmentSize. Очередь ограничена BUFFER_BYTES, дальше чтение
+ * ждёт и отправителя сдерживает TCP, как при заполненном окне.
+ */
+final class ProxiedConnection implements Closeable {
+    private static final int READ_SIZE = 64 * 1024;
+    private static final int BUFFER_BYTES = 256 * 1024;
+    private static final long PACING_SLACK_NANOS = 1_000_000;
+
+    // Прочитанные байты; data == null - отправитель закрыл своё направление
+    private record Chunk(long readAt, ByteBuffer data) {
+    }
+
+    private final NetworkProxy proxy;
+    private final SocketChannel client;
+    private final SocketChannel server;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // Направления, дошедшие до конца потока; после обоих соединение закрывается
+    private final AtomicInteger finished = new AtomicInteger();
+    private final Direction upstream;
+    private final Direction downstream;
+
+    ProxiedConnection(NetworkProxy proxy, SocketChannel client, SocketChannel server) {
+        this.proxy = proxy;
+        this.client = client;
+        this.server = server;
+        this.upstream = new Direction("netem-up", client, server);
+        this.downstream = new Direction("netem-down", server, client);
+    }
+
+    void start() {
+        upstream.start();
+        downstream.start();
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        upstream.stop();
+        downstream.stop();
+        try {
+            client.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            server.close();
+        } catch (IOException ignored) {
+        }
+        proxy.closed(this);
+    }
+
+    private final class Direction {
+        private final String name;
+        private final SocketChannel from;
+        private final SocketChannel to;
+        private final LinkedBlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+        private final Semaphore buffered = new Semaphore(BUFFER_BYTES);
+        private volatile Thread reader;
+        private volatile Thread writer;
+        // Только в потоке записи
+        private long lastDue;
+        private long nextSend;
+
+        Direction(String name, SocketChannel from, SocketChannel to) {
+            this.name = name;
+            this.from = from;
+            this.to = to;
+        }
+
+        void start() {
+            reader = Thread.ofVirtual().name(name + "-read").start(this::readLoop);
+            writer = Thread.ofVirtual().name(name + "-write").start(this::writeLoop);
+        }
+
+        void stop() {
+            if (reader != null) {
+                reader.interrupt();
+            }
+            if (writer != null) {
+                writer.interrupt();
+            }
+        }
+
+        private void readLoop() {
+            // Чтение идёт в один буфер, в очередь - копия ровно прочитанного: лимит buffered считает
+            // байты в очереди, и 64 КиБ на каждый мелкий кусок его бы обходили
+            ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+            try {
+                while (true) {
+                    buffer.clear();
+                    if (from.read(buffer) < 0) {
+                        queue.put(new Chunk(System.nanoTime(), null));
+                        return;
+                    }
+                    buffered.acquire(buffer.position());
+                    ByteBuffer data = ByteBuffer.allocate(buffer.position()).put(buffer.flip()).flip();
+                    queue.put(new Chunk(System.nanoTime(), data));
+                }
+            } catch (IOException | InterruptedException e) {
+                close();
+            }
+        }
+
+        private void writeLoop() {
+            try {
+                while (true) {
+                    Chunk chunk = queue.take();
+                    NetworkConditions conditions = proxy.conditions();
+                    awaitDelivery(chunk, conditions);
+                    if (chunk.data() == null) {
+                        to.shutdownOutput();
+                        if (finished.incrementAndGet() == 2) {
+                            close();
+                        }
+                        return;
+                    }
+                    int length = chunk.data().remaining();
+                    write(chunk.data(), conditions);
+                    buffered.release(length);
+                }
+            } catch (IOException | InterruptedException e) {
+                close();
+            }
+        }
+
+        // Задержка с разбросом, но не раньше предыдущего куска: TCP не переставляет байты
+        private void awaitDelivery(Chunk chunk, NetworkConditions conditions) throws InterruptedException {
+            long delay = TimeUnit.MILLISECONDS.toNanos(conditions.latencyMillis());
+            if (conditions.jitterMillis() > 0) {
+                long jitter = TimeUnit.MILLISECONDS.toNanos(conditions.jitterMillis());
+                delay = Math.max(0, delay + ThreadLocalRandom.current().nextLong(-jitter, jitter + 1));
+            }
+            lastDue = Math.max(lastDue, chunk.readAt() + delay);
+            sleepUntil(lastDue);
+        }
+
+        private void write(ByteBuffer data, NetworkConditions conditions) throws IOException, InterruptedException {
+            int segment = conditions.segmentSize() > 0 ? conditions.segmentSize() : data.remaining();
+            while (data.hasRemaining()) {
+                ByteBuffer piece = data.slice(data.position(), Math.min(segment, data.remaining()));
+                data.position(data.position() + piece.remaining());
+                proxy.awaitLinkUp(conditions);
+                // Предел скорости: сон короче миллисекунды длится дольше заказанного, поэтому мелкие куски
+                // уходят сразу, пока расписание опережает часы меньше чем на PACING_SLACK_NANOS
+                if (conditions.bytesPerSecond() > 0) {
+                    long now = System.nanoTime();
+                    nextSend = Math.max(nextSend, now);
+                    if (nextSend - now > PACING_SLACK_NANOS) {
+                        sleepUntil(nextSend);
+                    }
+                    nextSend += piece.remaining() * 1_000_000_000L / conditions.bytesPerSecond();
+                }
+                int length = piece.remaining();
+                while (piece.hasRemaining()) {
+                    to.write(piece);
+                }
+                proxy.forwarded(length);
+            }
+        }
+    }
+
+    static void sleepUntil(long deadline) throws InterruptedException {
+        long wait;
+        while ((wait = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+// AEAD-набор (AES-GCM или ChaCha20-Poly1305): [nonce 12][шифртекст + тег 16]. Cipher один на поток,
+// инициализируется на каждое сообщение - у AEAD новый nonce каждый раз. Nonce - 4 случайных байта процесса
+// и общий счётчик, поэтому с одним ключом не повторяется. Ключ набора - HMAC-SHA256 секрета с именем набора:
+// у разных наборов разные ключи, даже если секрет один
+final class AeadCipherSuite implements CipherSuite {
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH = 16;
+    private static final int NONCE_PREFIX = new SecureRandom().nextInt();
+    private static final AtomicLong COUNTER = new AtomicLong();
+
+    private final byte id;
+    private final String name;
+    private final String transformation;
+    private final String keyAlgorithm;
+    private final int keyLength;
+    private final byte[] label;
+    private final ThreadLocal<Cipher> cipher;
+
+    AeadCipherSuite(byte id, String name, String transformation, String keyAlgorithm, int keyLength)
+            throws GeneralSecurityException {
+        this.id = id;
+        this.name = name;
+        this.transformation = transformation;
+        this.keyAlgorithm = keyAlgorithm;
+        this.keyLength = keyLength;
+        this.label = ("chat-suite:" + name).getBytes(StandardCharsets.US_ASCII);
+        // Недоступный у провайдера набор не регистрируется
+        Cipher.getInstance(transformation);
+        this.cipher = ThreadLocal.withInitial(this::newCipher);
+    }
+
+    @Override
+    public byte id() {
+        return id;
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public boolean isAuthenticated() {
+        return true;
+    }
+
+    @Override
+    public SecretKey key(byte[] secret) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+        byte[] derived = mac.doFinal(label);
+        SecretKey key = new SecretKeySpec(derived, 0, keyLength, keyAlgorithm);
+        Arrays.fill(derived, (byte) 0);
+        return key;
+    }
+
+    @Override
+    public int sealedLength(int plainLength) {
+        return NONCE_LENGTH + plainLength + TAG_LENGTH;
+    }
+
+    @Override
+    public void seal(SecretKey key, byte[] aad, ByteBuffer plain, ByteBuffer out) throws GeneralSecurityException {
+        byte[] nonce = ByteBuffer.allocate(NONCE_LENGTH).putInt(NONCE_PREFIX).putLong(COUNTER.getAndIncrement()).array();
+        Cipher current = cipher.get();
+        current.init(Cipher.ENCRYPT_MODE, key, parameters(nonce));
+        current.updateAAD(aad);
+        out.put(nonce);
+        current.doFinal(plain, out);
+    }
+
+    @Override
+    public ByteBuffer open(SecretKey key, byte[] aad, ByteBuffer sealed) throws GeneralSecurityException {
+        if (sealed.remaining() < NONCE_LENGTH + TAG_LENGTH) {
+            throw new GeneralSecurityException("Сообщение слишком короткое");
+        }
+        byte[] nonce = new byte[NONCE_LENGTH];
+        sealed.get(sealed.position(), nonce);
+        Cipher current = cipher.get();
+        current.init(Cipher.DECRYPT_MODE, key, parameters(nonce));
+        current.updateAAD(aad);
+        ByteBuffer ciphertext = sealed.slice(sealed.position() + NONCE_LENGTH, sealed.remaining() - NONCE_LENGTH);
+        ByteBuffer plain = ByteBuffer.allocate(current.getOutputSize(ciphertext.remaining()));
+        current.doFinal(ciphertext, plain);
+        return plain.flip();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private AlgorithmParameterSpec parameters(byte[] nonce) {
+        return keyAlgorithm.equals("AES") ? new GCMParameterSpec(TAG_LENGTH * 8, nonce) : new IvParameterSpec(nonce);
+    }
+
+    private Cipher newCipher() {
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Шифр " + transformation + " недоступен", e);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Пул буферов, разбитый на классы размеров по степеням двойки.
+ * Буфер больше максимального класса выделяется напрямую и в пул не возвращается.
+ */
+public final class BufferPool {
+    private static final int MIN_CLASS_SHIFT = 8; // 256 байт
+    private static final int MAX_CLASS_SHIFT = 20; // 1 МиБ
+
+    private final ArrayBlockingQueue<ByteBuffer>[] classes;
+    private final boolean direct;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int buffersPerClass, boolean direct) {
+        this.direct = direct;
+        this.classes = new ArrayBlockingQueue[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new ArrayBlockingQueue<>(buffersPerClass);
+        }
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    // Возвращает очищенный буфер ёмкостью не меньше capacity, limit выставлен в capacity
+    public ByteBuffer acquire(int capacity) {
+        int index = classIndex(capacity);
+        if (index < 0) {
+            return allocate(capacity);
+        }
+        ByteBuffer buffer = classes[index].poll();
+        if (buffer == null) {
+            buffer = allocate(1 << (index + MIN_CLASS_SHIFT));
+        }
+        buffer.clear().limit(capacity);
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() != direct) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        // Принимаем только буферы, выданные этим пулом (ёмкость ровно степень двойки своего класса)
+        if (Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        int index = classIndex(capacity);
+        if (index >= 0) {
+            classes[index].offer(buffer);
+        }
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private static int classIndex(int capacity) {
+        int shift = capacity <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(capacity - 1);
+        if (shift > MAX_CLASS_SHIFT) {
+            return -1;
+        }
+        return Math.max(shift, MIN_CLASS_SHIFT) - MIN_CLASS_SHIFT;
+    }
+}
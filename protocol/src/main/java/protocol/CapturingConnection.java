@@ -0,0 +1,95 @@
+package protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Соединение, которое пишет свои кадры в FrameCapture: отправленные - при постановке в очередь,
+ * принятые - до передачи слушателю. Слушатель получает в onConnected это соединение,
+ * поэтому в запись попадает и то, что он отправляет сразу после подключения (имя пользователя).
+ */
+final class CapturingConnection implements ChatConnection, FrameListener {
+    private final FrameListener listener;
+    private final FrameCapture capture;
+    // onConnected может прийти из потока транспорта раньше, чем open вернёт соединение
+    private volatile ChatConnection connection;
+
+    CapturingConnection(FrameListener listener, FrameCapture capture) {
+        this.listener = listener;
+        this.capture = capture;
+    }
+
+    void opened(ChatConnection opened) {
+        connection = opened;
+    }
+
+    @Override
+    public CompletableFuture<Void> send(CharSequence message) throws IOException {
+        return send(StandardCharsets.UTF_8.encode(CharBuffer.wrap(message)));
+    }
+
+    @Override
+    public CompletableFuture<Void> send(ByteBuffer body) throws IOException {
+        ChatConnection current = connection;
+        if (current == null) {
+            throw new IOException("Нет соединения с сервером");
+        }
+        capture.outbound(body);
+        return current.send(body);
+    }
+
+    @Override
+    public void pauseReading() {
+        ChatConnection current = connection;
+        if (current != null) {
+            current.pauseReading();
+        }
+    }
+
+    @Override
+    public void resumeReading() {
+        ChatConnection current = connection;
+        if (current != null) {
+            current.resumeReading();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        ChatConnection current = connection;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    @Override
+    public void onConnected(ChatConnection opened) throws IOException {
+        connection = opened;
+        capture.connected();
+        listener.onConnected(this);
+    }
+
+    @Override
+    public void onFrame(Frame frame) {
+        capture.inbound(frame.payload());
+        listener.onFrame(frame);
+    }
+
+    @Override
+    public void onDisconnected(IOException cause) {
+        listener.onDisconnected(cause);
+    }
+
+    @Override
+    public void onReconnecting(IOException cause, long delayMillis) {
+        listener.onReconnecting(cause, delayMillis);
+    }
+
+    @Override
+    public void onResumed(int replayed) {
+        listener.onResumed(replayed);
+    }
+}
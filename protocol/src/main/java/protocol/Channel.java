@@ -0,0 +1,41 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Логический канал внутри одного соединения: собеседник и класс трафика. Порядок кадров сохраняется
+ * внутри канала, а служебные кадры собеседника не обгоняют его более ранние сообщения и фрагменты.
+ * Пустая строка - общий канал: сообщения без получателя и групповые.
+ */
+public record Channel(String conversation, TrafficClass trafficClass) {
+    // Служебные кадры без отправителя: имя пользователя, "resume", подтверждения сервера
+    public static final Channel CONTROL = new Channel("", TrafficClass.CONTROL);
+
+    // Канал исходящего кадра у отправителя: по получателю конверта
+    public static Channel byRecipient(ByteBuffer body) {
+        int separator = Frame.separator(body);
+        if (separator < 0) {
+            return CONTROL;
+        }
+        ByteBuffer message = body.slice(body.position() + separator + 1, body.remaining() - separator - 1);
+        TrafficClass trafficClass = TrafficClass.ofMessage(message);
+        if (!Envelope.isEnvelope(message)) {
+            return new Channel("", trafficClass);
+        }
+        // Ключ отправителя адресован участнику, но должен прийти раньше сообщений группы, зашифрованных им
+        if (Envelope.typeOf(message) == Envelope.TYPE_SENDER_KEY) {
+            return new Channel("", trafficClass);
+        }
+        return new Channel(Envelope.recipientOf(message), trafficClass);
+    }
+
+    // Канал кадра на стороне сервера, в соединении получателя: по отправителю
+    public static Channel bySender(ByteBuffer body) {
+        int separator = Frame.separator(body);
+        if (separator < 0) {
+            return CONTROL;
+        }
+        ByteBuffer message = body.slice(body.position() + separator + 1, body.remaining() - separator - 1);
+        return new Channel(Frame.decode(body.slice(body.position(), separator)), TrafficClass.ofMessage(message));
+    }
+}
@@ -0,0 +1,227 @@
+package protocol;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Очередь кадров одного соединения по логическим каналам (см. Channel). Служебные кадры уходят первыми
+ * в порядке поступления, но не раньше более ранних кадров того же собеседника: новый ключ не обгоняет
+ * сообщения, зашифрованные прежним. Остальные каналы делят соединение взвешенно-справедливо
+ * (self-clocked fair queueing): кадру назначается виртуальное время окончания
+ * max(V, окончание предыдущего кадра канала) + размер / вес класса, уходит кадр с наименьшим,
+ * а V - время окончания последнего отправленного. Поэтому передача файла одному собеседнику
+ * задерживает набор текста в другом разговоре не больше чем на один фрагмент.
+ * <p>
+ * С кредитами у канала не больше TrafficClass.credit() отправленных, но не подтверждённых байт,
+ * у всего соединения - не больше window, подтверждённое возвращается через release().
+ * Без кредитов (на сервере) отправку сдерживает сам сокет. Не потокобезопасен, защищается владельцем.
+ */
+public final class ChannelScheduler<T> {
+    // Цена байта для класса с весом 1; веса классов делят её без остатка
+    private static final long COST_SCALE = 64;
+
+    public record Entry<T>(Channel channel, T value, int size) {
+    }
+
+    private record Item<T>(T value, int size, long order, long finish) {
+    }
+
+    private static final class Lane<T> {
+        private final Channel channel;
+        private final Conversation<T> conversation;
+        private final ArrayDeque<Item<T>> items = new ArrayDeque<>();
+        private long lastFinish;
+        private long inFlight;
+        // Лежит в одной из очередей готовых
+        private boolean ready;
+
+        Lane(Channel channel, Conversation<T> conversation) {
+            this.channel = channel;
+            this.conversation = conversation;
+        }
+
+        Item<T> head() {
+            return items.peekFirst();
+        }
+    }
+
+    private static final class Conversation<T> {
+        private final String id;
+        private final List<Lane<T>> lanes = new ArrayList<>(TrafficClass.values().length);
+        private int pending;
+        private long inFlight;
+
+        Conversation(String id) {
+            this.id = id;
+        }
+
+        Lane<T> lane(Channel channel) {
+            for (Lane<T> lane : lanes) {
+                if (lane.channel.trafficClass() == channel.trafficClass()) {
+                    return lane;
+                }
+            }
+            Lane<T> lane = new Lane<>(channel, this);
+            lanes.add(lane);
+            return lane;
+        }
+    }
+
+    private final Map<String, Conversation<T>> conversations = new HashMap<>();
+    private final PriorityQueue<Lane<T>> readyControl =
+            new PriorityQueue<>(Comparator.comparingLong(lane -> lane.head().order()));
+    private final PriorityQueue<Lane<T>> readyData = new PriorityQueue<>(
+            Comparator.<Lane<T>>comparingLong(lane -> lane.head().finish()).thenComparingLong(lane -> lane.head().order()));
+    private final long window;
+    private boolean credited;
+    private long virtualTime;
+    private long nextOrder;
+    private long inFlight;
+    private int size;
+    private long bytes;
+
+    private ChannelScheduler(boolean credited, long window) {
+        this.credited = credited;
+        this.window = window;
+    }
+
+    // window - сколько байт всех каналов может ждать подтверждения
+    public static <T> ChannelScheduler<T> withCredits(long window) {
+        return new ChannelScheduler<>(true, window);
+    }
+
+    public static <T> ChannelScheduler<T> unlimited() {
+        return new ChannelScheduler<>(false, Long.MAX_VALUE);
+    }
+
+    public void add(Channel channel, T value, int bytes) {
+        Conversation<T> conversation = conversations.computeIfAbsent(channel.conversation(), Conversation::new);
+        Lane<T> lane = conversation.lane(channel);
+        TrafficClass trafficClass = channel.trafficClass();
+        long finish = 0;
+        if (trafficClass != TrafficClass.CONTROL) {
+            finish = Math.max(virtualTime, lane.lastFinish) + bytes * (COST_SCALE / trafficClass.weight());
+            lane.lastFinish = finish;
+        }
+        lane.items.addLast(new Item<>(value, bytes, nextOrder++, finish));
+        conversation.pending++;
+        size++;
+        this.bytes += bytes;
+        refresh(lane);
+    }
+
+    // Следующий кадр или null, если ждать нечего либо всё упирается в кредиты
+    public Entry<T> poll() {
+        Lane<T> lane = readyControl.poll();
+        if (lane == null) {
+            if (credited && inFlight >= window) {
+                return null;
+            }
+            lane = readyData.poll();
+            if (lane == null) {
+                return null;
+            }
+        }
+        lane.ready = false;
+        Item<T> item = lane.items.pollFirst();
+        virtualTime = Math.max(virtualTime, item.finish());
+        Conversation<T> conversation = lane.conversation;
+        conversation.pending--;
+        size--;
+        bytes -= item.size();
+        if (credited) {
+            lane.inFlight += item.size();
+            conversation.inFlight += item.size();
+            inFlight += item.size();
+        }
+        for (Lane<T> sibling : conversation.lanes) {
+            refresh(sibling);
+        }
+        forgetIfIdle(conversation);
+        return new Entry<>(lane.channel, item.value(), item.size());
+    }
+
+    // Кадр, выданный poll(), подтверждён: кредит канала и окно освобождаются
+    public void release(Channel channel, int bytes) {
+        if (!credited) {
+            return;
+        }
+        inFlight -= bytes;
+        Conversation<T> conversation = conversations.get(channel.conversation());
+        if (conversation == null) {
+            return;
+        }
+        Lane<T> lane = conversation.lane(channel);
+        lane.inFlight -= bytes;
+        conversation.inFlight -= bytes;
+        refresh(lane);
+        forgetIfIdle(conversation);
+    }
+
+    // Всё ожидающее в порядке отправки, без учёта кредитов: например, чтобы сохранить при закрытии.
+    // После этого планировщик работает без кредитов
+    public List<Entry<T>> drain() {
+        credited = false;
+        for (Conversation<T> conversation : conversations.values()) {
+            for (Lane<T> lane : conversation.lanes) {
+                refresh(lane);
+            }
+        }
+        List<Entry<T>> drained = new ArrayList<>(size);
+        Entry<T> next;
+        while ((next = poll()) != null) {
+            drained.add(next);
+        }
+        return drained;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Байты кадров, которые ещё ждут отправки
+    public long queuedBytes() {
+        return bytes;
+    }
+
+    private void refresh(Lane<T> lane) {
+        if (!lane.ready && isEligible(lane)) {
+            lane.ready = true;
+            (lane.channel.trafficClass() == TrafficClass.CONTROL ? readyControl : readyData).add(lane);
+        }
+    }
+
+    // Пока канал в очереди готовых, его голова не меняется, а готовность может только появиться:
+    // новые кадры позже всех ожидающих, кредит тратит только отправка из самого канала
+    private boolean isEligible(Lane<T> lane) {
+        Item<T> head = lane.head();
+        if (head == null) {
+            return false;
+        }
+        boolean control = lane.channel.trafficClass() == TrafficClass.CONTROL;
+        for (Lane<T> sibling : lane.conversation.lanes) {
+            Item<T> other = sibling.head();
+            boolean blocks = control ? sibling != lane : sibling.channel.trafficClass() == TrafficClass.CONTROL;
+            if (blocks && other != null && other.order() < head.order()) {
+                return false;
+            }
+        }
+        return control || !credited || lane.inFlight == 0
+                || lane.inFlight + head.size() <= lane.channel.trafficClass().credit();
+    }
+
+    private void forgetIfIdle(Conversation<T> conversation) {
+        if (conversation.pending == 0 && conversation.inFlight == 0) {
+            conversations.remove(conversation.id);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Соединение с сервером чата. Подключение выполняется асинхронно:
+ * о готовности сообщает FrameListener.onConnected.
+ */
+public interface ChatConnection extends Closeable {
+    // Кадр только ставится в очередь, запись выполняет поток транспорта. Future завершается,
+    // когда кадр целиком передан в сокет, или с ошибкой, если соединение закрылось раньше
+    CompletableFuture<Void> send(CharSequence message) throws IOException;
+
+    // Тело кадра уже в байтах (например, "отправитель:" + двоичный конверт)
+    CompletableFuture<Void> send(ByteBuffer body) throws IOException;
+
+    // Перестать читать сокет, пока получатель не разберёт принятое; можно вызывать из любого потока,
+    // в том числе из onFrame. Кадры, уже прочитанные в буфер, ещё будут переданы слушателю
+    default void pauseReading() {
+    }
+
+    default void resumeReading() {
+    }
+
+    static ChatConnection open(TransportMode mode, String host, int port, FrameCodec codec,
+                               FrameListener listener) throws IOException {
+        return open(mode, host, port, codec, listener, new ChatMetrics());
+    }
+
+    // Транспорт учитывает в metrics принятые и отправленные кадры и время их разбора
+    static ChatConnection open(TransportMode mode, String host, int port, FrameCodec codec,
+                               FrameListener listener, ChatMetrics metrics) throws IOException {
+        return switch (mode) {
+            case SOCKET -> new SocketConnection(host, port, codec, listener, metrics);
+            case NIO -> NioEventLoop.shared().connect(host, port, codec, listener, metrics);
+        };
+    }
+
+    // capture != null - все кадры соединения пишутся в запись (см. FrameCapture)
+    static ChatConnection open(TransportMode mode, String host, int port, FrameCodec codec,
+                               FrameListener listener, ChatMetrics metrics, FrameCapture capture) throws IOException {
+        if (capture == null) {
+            return open(mode, host, port, codec, listener, metrics);
+        }
+        CapturingConnection capturing = new CapturingConnection(listener, capture);
+        capturing.opened(open(mode, host, port, codec, capturing, metrics));
+        return capturing;
+    }
+}
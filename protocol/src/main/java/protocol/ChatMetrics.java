@@ -0,0 +1,188 @@
+package protocol;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Счётчики и гистограммы одного клиента. Запись не выделяет память и не берёт блокировок,
+ * чтение (из JMX) собирает срез. Экземпляр без регистрации годится как заглушка.
+ */
+public final class ChatMetrics implements ChatMetricsMXBean, Closeable {
+    private final LongAdder framesIn = new LongAdder();
+    private final LongAdder framesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder failedDecryptions = new LongAdder();
+    private final LatencyHistogram aesEncrypt = new LatencyHistogram();
+    private final LatencyHistogram aesDecrypt = new LatencyHistogram();
+    private final LatencyHistogram rsaEncrypt = new LatencyHistogram();
+    private final LatencyHistogram rsaDecrypt = new LatencyHistogram();
+    private final LatencyHistogram frameParse = new LatencyHistogram();
+    private final LatencyHistogram uiDelay = new LatencyHistogram();
+    private final LatencyHistogram interactiveQueue = new LatencyHistogram();
+    private final LatencyHistogram bulkQueue = new LatencyHistogram();
+    private ObjectName name;
+
+    // Регистрирует метрики как chat:type=ClientMetrics,client=<client>,name=<user>
+    public static ChatMetrics register(String client, String user) {
+        ChatMetrics metrics = new ChatMetrics();
+        try {
+            ObjectName name = new ObjectName("chat:type=ClientMetrics,client=" + ObjectName.quote(client)
+                    + ",name=" + ObjectName.quote(user));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(metrics, name);
+            metrics.name = name;
+        } catch (JMException e) {
+            // Без JMX клиент работает как раньше, метрики просто не видны снаружи
+        }
+        return metrics;
+    }
+
+    public void frameIn(int bytes) {
+        framesIn.increment();
+        bytesIn.add(bytes);
+    }
+
+    public void frameOut(int bytes) {
+        framesOut.increment();
+        bytesOut.add(bytes);
+    }
+
+    public void failedDecryption() {
+        failedDecryptions.increment();
+    }
+
+    public LatencyHistogram aesEncrypt() {
+        return aesEncrypt;
+    }
+
+    public LatencyHistogram aesDecrypt() {
+        return aesDecrypt;
+    }
+
+    public LatencyHistogram rsaEncrypt() {
+        return rsaEncrypt;
+    }
+
+    public LatencyHistogram rsaDecrypt() {
+        return rsaDecrypt;
+    }
+
+    public LatencyHistogram frameParse() {
+        return frameParse;
+    }
+
+    public LatencyHistogram uiDelay() {
+        return uiDelay;
+    }
+
+    // Ожидание в планировщике отправки для класса трафика, null для служебных кадров
+    public LatencyHistogram sendQueue(TrafficClass trafficClass) {
+        return switch (trafficClass) {
+            case INTERACTIVE -> interactiveQueue;
+            case BULK -> bulkQueue;
+            case CONTROL -> null;
+        };
+    }
+
+    @Override
+    public long getFramesIn() {
+        return framesIn.sum();
+    }
+
+    @Override
+    public long getFramesOut() {
+        return framesOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getFailedDecryptions() {
+        return failedDecryptions.sum();
+    }
+
+    @Override
+    public LatencySnapshot getAesEncrypt() {
+        return aesEncrypt.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getAesDecrypt() {
+        return aesDecrypt.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getRsaEncrypt() {
+        return rsaEncrypt.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getRsaDecrypt() {
+        return rsaDecrypt.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getFrameParse() {
+        return frameParse.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getUiDelay() {
+        return uiDelay.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getInteractiveQueue() {
+        return interactiveQueue.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getBulkQueue() {
+        return bulkQueue.snapshot();
+    }
+
+    @Override
+    public void reset() {
+        framesIn.reset();
+        framesOut.reset();
+        bytesIn.reset();
+        bytesOut.reset();
+        failedDecryptions.reset();
+        aesEncrypt.reset();
+        aesDecrypt.reset();
+        rsaEncrypt.reset();
+        rsaDecrypt.reset();
+        frameParse.reset();
+        uiDelay.reset();
+        interactiveQueue.reset();
+        bulkQueue.reset();
+    }
+
+    @Override
+    public void close() {
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException ignored) {
+            }
+            name = null;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package protocol;
+
+/**
+ * Метрики клиента чата в JMX (jconsole, VisualVM): объём трафика, время шифрования и разбора кадров,
+ * задержка вывода сообщений. Задержки в наносекундах.
+ */
+public interface ChatMetricsMXBean {
+    long getFramesIn();
+
+    long getFramesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    // Сообщения, которые не удалось расшифровать (чужой ключ, повреждение, подмена)
+    long getFailedDecryptions();
+
+    LatencySnapshot getAesEncrypt();
+
+    LatencySnapshot getAesDecrypt();
+
+    LatencySnapshot getRsaEncrypt();
+
+    LatencySnapshot getRsaDecrypt();
+
+    // Сборка кадра из прочитанных байт
+    LatencySnapshot getFrameParse();
+
+    // От получения сообщения до его появления в окне переписки
+    LatencySnapshot getUiDelay();
+
+    // Ожидание отправки в планировщике каналов: переписка и фрагменты файлов
+    LatencySnapshot getInteractiveQueue();
+
+    LatencySnapshot getBulkQueue();
+
+    void reset();
+}
@@ -0,0 +1,33 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Набор шифров для сообщений. Встроенные наборы перечислены в CipherSuites, дополнительные подключаются
+ * через ServiceLoader (META-INF/services/protocol.CipherSuite) со своим кодом в заголовке конверта.
+ * Ключ набора выводится из общего секрета собеседников (см. KeyMaterial), формат шифртекста определяет
+ * сам набор. Реализации потокобезопасны.
+ */
+public interface CipherSuite {
+    // Код в заголовке конверта (Envelope.SUITE_*)
+    byte id();
+
+    String name();
+
+    // С проверкой целостности (AEAD). При согласовании выбираются только такие
+    boolean isAuthenticated();
+
+    // Ключ набора из секрета длиной 32 байта
+    SecretKey key(byte[] secret) throws GeneralSecurityException;
+
+    // Длина шифртекста для открытого текста длины plainLength
+    int sealedLength(int plainLength);
+
+    // Шифрует plain прямо в out. aad - заголовок, который проверяется вместе с шифртекстом
+    void seal(SecretKey key, byte[] aad, ByteBuffer plain, ByteBuffer out) throws GeneralSecurityException;
+
+    ByteBuffer open(SecretKey key, byte[] aad, ByteBuffer sealed) throws GeneralSecurityException;
+}
@@ -0,0 +1,208 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Реестр наборов шифров: AES-128-GCM и AES-256-GCM (JIT использует инструкции AES-NI и PCLMULQDQ процессора),
+ * ChaCha20-Poly1305 (быстрее AES там, где аппаратного AES нет), прежний AES-128-ECB для совместимости
+ * и наборы, найденные ServiceLoader. Порядок предпочтения аутентифицированных наборов задаёт самопроверка
+ * в фоновом потоке при первом обращении: наборы по очереди шифруют и расшифровывают сообщения по 1 КиБ,
+ * сначала прогрев JIT, потом замер. До её окончания действует порядок регистрации.
+ */
+public final class CipherSuites {
+    public static final CipherSuite AES_128_GCM =
+            aead(Envelope.SUITE_AES_128_GCM, "AES-128-GCM", "AES/GCM/NoPadding", "AES", 16);
+    public static final CipherSuite AES_256_GCM =
+            aead(Envelope.SUITE_AES_256_GCM, "AES-256-GCM", "AES/GCM/NoPadding", "AES", 32);
+    public static final CipherSuite CHACHA20_POLY1305 =
+            aead(Envelope.SUITE_CHACHA20_POLY1305, "ChaCha20-Poly1305", "ChaCha20-Poly1305", "ChaCha20", 32);
+    public static final CipherSuite AES_ECB = new LegacyCipherSuite();
+
+    private static final int SAMPLE_SIZE = 1024;
+    // Наборы замеряются по очереди короткими отрезками, чтобы прогрев общего кода (GCM у двух AES)
+    // не доставался только первому
+    private static final int WARMUP_ROUNDS = 6;
+    private static final int MEASURE_ROUNDS = 3;
+    private static final long SLICE_NANOS = 40_000_000;
+
+    // Пропускная способность набора на этой машине: шифрование и расшифровка сообщения SAMPLE_SIZE байт
+    public record Measurement(CipherSuite suite, double megabytesPerSecond) {
+    }
+
+    private static final Map<Byte, CipherSuite> BY_ID = register();
+    private static final List<CipherSuite> DEFAULT_ORDER =
+            BY_ID.values().stream().filter(CipherSuite::isAuthenticated).toList();
+    private static final CompletableFuture<List<Measurement>> MEASUREMENTS = new CompletableFuture<>();
+    private static final AtomicBoolean STARTED = new AtomicBoolean();
+
+    private CipherSuites() {
+    }
+
+    // null, если набор с таким кодом неизвестен
+    public static CipherSuite byId(byte id) {
+        return BY_ID.get(id);
+    }
+
+    public static Collection<CipherSuite> all() {
+        return BY_ID.values();
+    }
+
+    // Аутентифицированные наборы от быстрого к медленному, ждёт окончания самопроверки
+    public static List<Measurement> benchmark() {
+        startBenchmark();
+        return MEASUREMENTS.join();
+    }
+
+    // Не ждёт самопроверки: пока она идёт, порядок регистрации
+    public static List<CipherSuite> preferred() {
+        startBenchmark();
+        List<Measurement> measured = MEASUREMENTS.getNow(null);
+        return measured == null ? DEFAULT_ORDER : measured.stream().map(Measurement::suite).toList();
+    }
+
+    // Коды наборов в порядке предпочтения, для приветствия (см. Compression.hello)
+    public static byte[] preferredIds() {
+        List<CipherSuite> preferred = preferred();
+        byte[] ids = new byte[preferred.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = preferred.get(i).id();
+        }
+        return ids;
+    }
+
+    public static String report() {
+        startBenchmark();
+        List<Measurement> measured = MEASUREMENTS.getNow(null);
+        if (measured == null) {
+            return "Наборы шифров: идёт самопроверка";
+        }
+        return "Наборы шифров (самопроверка, " + SAMPLE_SIZE + " байт): " + measured.stream()
+                .map(m -> String.format("%s %.0f МБ/с", m.suite().name(), m.megabytesPerSecond()))
+                .collect(Collectors.joining(", "));
+    }
+
+    private static void startBenchmark() {
+        if (STARTED.compareAndSet(false, true)) {
+            Thread.ofPlatform().name("chat-cipher-benchmark").daemon().priority(Thread.MIN_PRIORITY)
+                    .start(() -> MEASUREMENTS.complete(measureAll()));
+        }
+    }
+
+    private static List<Measurement> measureAll() {
+        List<Sample> samples = new ArrayList<>();
+        for (CipherSuite suite : DEFAULT_ORDER) {
+            samples.add(new Sample(suite));
+        }
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+            for (Sample sample : samples) {
+                sample.run(round >= WARMUP_ROUNDS);
+            }
+        }
+        List<Measurement> measured = new ArrayList<>();
+        for (Sample sample : samples) {
+            measured.add(sample.result());
+        }
+        measured.sort(Comparator.comparingDouble(Measurement::megabytesPerSecond).reversed());
+        return Collections.unmodifiableList(measured);
+    }
+
+    // Замер одного набора; неработающий набор оказывается в конце списка
+    private static final class Sample {
+        private final CipherSuite suite;
+        private final byte[] aad = new byte[4];
+        private final ByteBuffer plain = ByteBuffer.allocate(SAMPLE_SIZE);
+        private final ByteBuffer sealed;
+        private SecretKey key;
+        private long rounds;
+        private long nanos;
+        private boolean failed;
+
+        Sample(CipherSuite suite) {
+            this.suite = suite;
+            this.sealed = ByteBuffer.allocate(suite.sealedLength(SAMPLE_SIZE));
+            try {
+                byte[] secret = new byte[KeyMaterial.LENGTH];
+                new SecureRandom().nextBytes(secret);
+                key = new KeyMaterial(secret).keyFor(suite);
+            } catch (GeneralSecurityException | RuntimeException e) {
+                failed = true;
+            }
+        }
+
+        void run(boolean counted) {
+            if (failed) {
+                return;
+            }
+            try {
+                long started = System.nanoTime();
+                long deadline = started + SLICE_NANOS;
+                long done = 0;
+                while (System.nanoTime() < deadline) {
+                    roundTrip(suite, key, aad, plain, sealed);
+                    done++;
+                }
+                if (counted) {
+                    rounds += done;
+                    nanos += System.nanoTime() - started;
+                }
+            } catch (GeneralSecurityException | RuntimeException e) {
+                failed = true;
+            }
+        }
+
+        Measurement result() {
+            double seconds = nanos / 1e9;
+            return new Measurement(suite, failed || nanos == 0 ? 0 : rounds * SAMPLE_SIZE / seconds / (1 << 20));
+        }
+    }
+
+    private static void roundTrip(CipherSuite suite, SecretKey key, byte[] aad, ByteBuffer plain, ByteBuffer sealed)
+            throws GeneralSecurityException {
+        suite.seal(key, aad, plain.clear(), sealed.clear());
+        suite.open(key, aad, sealed.flip());
+    }
+
+    private static Map<Byte, CipherSuite> register() {
+        Map<Byte, CipherSuite> suites = new LinkedHashMap<>();
+        for (CipherSuite suite : new CipherSuite[] {AES_128_GCM, AES_256_GCM, CHACHA20_POLY1305, AES_ECB}) {
+            if (suite != null) {
+                suites.put(suite.id(), suite);
+            }
+        }
+        try {
+            // Встроенные коды и коды конвертов без наборов занять нельзя
+            for (CipherSuite suite : ServiceLoader.load(CipherSuite.class)) {
+                if (suite.id() > Envelope.SUITE_CHACHA20_POLY1305 || suite.id() < 0) {
+                    suites.putIfAbsent(suite.id(), suite);
+                }
+            }
+        } catch (ServiceConfigurationError e) {
+            // Сломанный внешний набор не мешает встроенным
+        }
+        return Collections.unmodifiableMap(suites);
+    }
+
+    private static CipherSuite aead(byte id, String name, String transformation, String keyAlgorithm, int keyLength) {
+        try {
+            return new AeadCipherSuite(id, name, transformation, keyAlgorithm, keyLength);
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Сжатие текста сообщений перед шифрованием: raw deflate с общим словарём частых слов чата.
+ * Каждый кадр сжимается независимо - сервер рассылает кадры всем, и собеседник, подключившийся позже
+ * или пропустивший кадр, иначе не смог бы распаковать следующие. Deflater и Inflater переиспользуются
+ * из небольшого пула без общей блокировки: кадры распаковываются параллельно в потоках конвейера.
+ * Сжатие включается только для собеседников, приславших приветствие TYPE_HELLO с FEATURE_DEFLATE,
+ * поэтому старые клиенты продолжают получать несжатые сообщения.
+ */
+public final class Compression {
+    public static final byte FEATURE_DEFLATE = 1;
+    // Короче этого сжатие почти никогда не окупает себя
+    public static final int MIN_LENGTH = 24;
+
+    private static final byte[] DICTIONARY = (
+            "http://https://www..com.ru .jpg.png.pdf.zip "
+            + "thanks please sorry what when where why how yes no ok okay hello hi "
+            + "the and you that this with for have are not but just know will "
+            + "пожалуйста спасибо извини хорошо сейчас сегодня завтра вчера потом "
+            + "почему когда где что как кто это все уже тоже только очень можно нужно "
+            + "привет пока да нет ок ладно давай может будет было есть был была "
+            + "я ты мы вы он она они не на в и с по к у за от до из о а но же ли бы "
+            + "файл сообщение ключ сервер чат ").getBytes(StandardCharsets.UTF_8);
+
+    private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors();
+
+    private final int maxLength;
+    private final Set<String> capablePeers = ConcurrentHashMap.newKeySet();
+    // Сверх ёмкости пула лишние освобождаются сразу: каждый держит нативную память zlib
+    private final ArrayBlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final ArrayBlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private final LongAdder rawBytes = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+    private final LongAdder compressedFrames = new LongAdder();
+    private final LongAdder skippedFrames = new LongAdder();
+    private final LongAdder deflateNanos = new LongAdder();
+    private final LongAdder inflateNanos = new LongAdder();
+
+    // maxLength - предел распакованного размера, защищает от "zip-бомб"
+    public Compression(int maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    // Приветствие: всем (recipient пустой) при подключении или адресное - в ответ на чужое.
+    // После байта возможностей - коды наборов шифров в порядке предпочтения (см. SuiteNegotiation),
+    // старые клиенты читают только первый байт
+    public static ByteBuffer hello(String sender, String recipient) {
+        byte[] suites = CipherSuites.preferredIds();
+        return Envelope.encode(sender, Envelope.TYPE_HELLO, Envelope.SUITE_NONE, recipient,
+                ByteBuffer.allocate(1 + suites.length).put(FEATURE_DEFLATE).put(suites).flip());
+    }
+
+    // Запоминает возможности собеседника. true - на общее приветствие нужно ответить адресным
+    public boolean onHello(String sender, Envelope envelope) {
+        ByteBuffer payload = envelope.payload();
+        boolean deflate = payload.hasRemaining() && (payload.get(0) & FEATURE_DEFLATE) != 0;
+        if (deflate) {
+            capablePeers.add(sender);
+        } else {
+            capablePeers.remove(sender);
+        }
+        return !envelope.recipient().hasRemaining();
+    }
+
+    // Тип конверта с флагом сжатия, если полезная нагрузка сжата
+    public static byte type(byte type, boolean compressed) {
+        return compressed ? (byte) (type | Envelope.FLAG_COMPRESSED) : type;
+    }
+
+    // Текст из расшифрованной полезной нагрузки конверта, распакованной при необходимости
+    public String text(Envelope envelope, ByteBuffer plain) throws ProtocolException {
+        return Frame.decode(envelope.isCompressed() ? ByteBuffer.wrap(decompress(plain)) : plain);
+    }
+
+    public boolean isSupportedBy(String peer) {
+        return capablePeers.contains(peer);
+    }
+
+    // Сжатый текст или null, если собеседник не поддерживает сжатие или оно не даёт выигрыша
+    public byte[] compress(String peer, byte[] plain) {
+        if (plain.length < MIN_LENGTH || !isSupportedBy(peer)) {
+            return null;
+        }
+        long started = System.nanoTime();
+        byte[] out = new byte[plain.length];
+        int length;
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED, true);
+        }
+        try {
+            deflater.reset();
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(plain);
+            deflater.finish();
+            length = deflater.deflate(out);
+            if (!deflater.finished() || length >= plain.length) {
+                length = -1;
+            }
+        } finally {
+            if (!deflaters.offer(deflater)) {
+                deflater.end();
+            }
+        }
+        deflateNanos.add(System.nanoTime() - started);
+        if (length < 0) {
+            skippedFrames.increment();
+            return null;
+        }
+        rawBytes.add(plain.length);
+        compressedBytes.add(length);
+        compressedFrames.increment();
+        byte[] compressed = new byte[length];
+        System.arraycopy(out, 0, compressed, 0, length);
+        return compressed;
+    }
+
+    public byte[] decompress(ByteBuffer compressed) throws ProtocolException {
+        long started = System.nanoTime();
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            inflater.reset();
+            // В режиме raw deflate словарь задаётся до распаковки, в потоке его идентификатора нет
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(compressed.duplicate());
+            ByteBuffer out = ByteBuffer.allocate(Math.min(maxLength, Math.max(256, compressed.remaining() * 4)));
+            while (!inflater.finished()) {
+                if (!out.hasRemaining()) {
+                    if (out.capacity() >= maxLength) {
+                        throw new ProtocolException("Распакованное сообщение больше " + maxLength + " байт");
+                    }
+                    out = ByteBuffer.allocate(Math.min(maxLength, out.capacity() * 2)).put(out.flip());
+                }
+                if (inflater.inflate(out) == 0 && inflater.needsInput()) {
+                    throw new ProtocolException("Сжатое сообщение обрезано");
+                }
+            }
+            byte[] plain = new byte[out.position()];
+            out.flip().get(plain);
+            return plain;
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Повреждённое сжатое сообщение: " + e.getMessage());
+        } finally {
+            if (!inflaters.offer(inflater)) {
+                inflater.end();
+            }
+            inflateNanos.add(System.nanoTime() - started);
+        }
+    }
+
+    // Степень сжатия и затраченное процессорное время
+    public String report() {
+        long raw = rawBytes.sum();
+        long compressed = compressedBytes.sum();
+        return String.format("Сжатие: %d сообщений, %d -> %d байт (%.1f%%), без выигрыша %d; "
+                        + "сжатие %.1f мс, распаковка %.1f мс",
+                compressedFrames.sum(), raw, compressed, raw == 0 ? 100.0 : 100.0 * compressed / raw,
+                skippedFrames.sum(), deflateNanos.sum() / 1e6, inflateNanos.sum() / 1e6);
+    }
+}
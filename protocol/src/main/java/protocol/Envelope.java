@@ -0,0 +1,172 @@
+package protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Двоичный конверт внутри кадра "отправитель:конверт":
+ * <pre>
+ * 1 байт  MAGIC (0xF5 не встречается в UTF-8, поэтому конверт не спутать с обычным текстом)
+ * 1 байт  версия
+ * 1 байт  тип сообщения, старший из свободных битов (FLAG_COMPRESSED) - полезная нагрузка сжата до шифрования
+ * 1 байт  набор шифров
+ * 1 байт  длина имени получателя, затем само имя в UTF-8
+ * дальше  шифртекст как есть, без Base64
+ * </pre>
+ * Разбор не выполняет криптографии, так что чужие и неизвестные сообщения отбрасываются сразу.
+ */
+public final class Envelope {
+    public static final byte MAGIC = (byte) 0xF5;
+    public static final byte VERSION = 1;
+
+    public static final byte TYPE_ENCRYPTED = 1;
+    // Сеансовый ключ, обёрнутый открытым ключом получателя
+    public static final byte TYPE_SESSION_KEY = 2;
+    // Передача файла: предложение, фрагмент и подтверждение (см. FileTransfers)
+    public static final byte TYPE_FILE_OFFER = 3;
+    public static final byte TYPE_FILE_CHUNK = 4;
+    public static final byte TYPE_FILE_ACK = 5;
+    // Возможности клиента, например поддержка сжатия (см. Compression)
+    public static final byte TYPE_HELLO = 6;
+    // Подписанные открытые ключи пользователя (см. KeyAnnouncement)
+    public static final byte TYPE_KEY_ANNOUNCE = 7;
+    // Обмен эфемерными ключами X25519 для попарного ключа (см. PairwiseKeys в клиенте symmetric)
+    public static final byte TYPE_KEY_EXCHANGE = 8;
+    // Групповое шифрование: ключ отправителя, обёрнутый для одного участника, и сообщение,
+    // зашифрованное этим ключом один раз для всей группы (см. SenderKeys в клиенте asymmetric)
+    public static final byte TYPE_SENDER_KEY = 9;
+    public static final byte TYPE_GROUP_ENCRYPTED = 10;
+
+    // Отправляется только собеседникам, объявившим поддержку сжатия, старые клиенты такой тип не увидят
+    public static final byte FLAG_COMPRESSED = 0x40;
+
+    public static final byte SUITE_NONE = 0;
+    public static final byte SUITE_AES_ECB = 1;
+    public static final byte SUITE_RSA_PKCS1 = 2;
+    public static final byte SUITE_RSA_OAEP = 3;
+    public static final byte SUITE_AES_GCM = 4;
+    // Наборы шифров с согласованием (см. CipherSuites): [nonce 12][шифртекст + тег 16]
+    public static final byte SUITE_AES_128_GCM = 5;
+    public static final byte SUITE_AES_256_GCM = 6;
+    public static final byte SUITE_CHACHA20_POLY1305 = 7;
+
+    private static final int FIXED_HEADER = 5;
+    private static final int MAX_RECIPIENT = 255;
+
+    private final byte type;
+    private final byte suite;
+    private final ByteBuffer recipient;
+    private final ByteBuffer payload;
+
+    private Envelope(byte type, byte suite, ByteBuffer recipient, ByteBuffer payload) {
+        this.type = type;
+        this.suite = suite;
+        this.recipient = recipient;
+        this.payload = payload;
+    }
+
+    public static boolean isEnvelope(ByteBuffer body) {
+        return body.remaining() >= FIXED_HEADER && body.get(body.position()) == MAGIC;
+    }
+
+    // Тип без флагов и получатель без разбора всего конверта, для планировщика отправки (см. Channel)
+    static byte typeOf(ByteBuffer envelope) {
+        return (byte) (envelope.get(envelope.position() + 2) & ~FLAG_COMPRESSED);
+    }
+
+    static String recipientOf(ByteBuffer envelope) {
+        int start = envelope.position() + FIXED_HEADER;
+        int length = Math.min(envelope.get(envelope.position() + 4) & 0xFF, envelope.limit() - start);
+        return Frame.decode(envelope.slice(start, length));
+    }
+
+    // Срезы recipient и payload ссылаются на тело кадра и живут, пока кадр не закрыт
+    public static Envelope parse(ByteBuffer body) throws ProtocolException {
+        if (!isEnvelope(body)) {
+            throw new ProtocolException("Сообщение не является конвертом");
+        }
+        int start = body.position();
+        if (body.get(start + 1) != VERSION) {
+            throw new ProtocolException("Неподдерживаемая версия конверта: " + body.get(start + 1));
+        }
+        byte type = body.get(start + 2);
+        byte suite = body.get(start + 3);
+        int recipientLength = body.get(start + 4) & 0xFF;
+        int recipientStart = start + FIXED_HEADER;
+        int payloadStart = recipientStart + recipientLength;
+        if (payloadStart > body.limit()) {
+            throw new ProtocolException("Конверт обрезан");
+        }
+        return new Envelope(type, suite,
+                body.slice(recipientStart, recipientLength),
+                body.slice(payloadStart, body.limit() - payloadStart));
+    }
+
+    // Тело кадра: "отправитель:" + конверт
+    public static ByteBuffer encode(String sender, byte type, byte suite, String recipient, ByteBuffer payload) {
+        byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] recipientBytes = recipient.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(headerLength(senderBytes, recipientBytes) + payload.remaining());
+        putHeader(body, senderBytes, type, suite, recipientBytes).put(payload.duplicate());
+        return body.flip();
+    }
+
+    public static ByteBuffer encode(String sender, byte type, byte suite, String recipient, byte[] payload) {
+        return encode(sender, type, suite, recipient, ByteBuffer.wrap(payload));
+    }
+
+    // Длина "отправитель:" вместе с заголовком конверта
+    public static int headerLength(byte[] senderUtf8, byte[] recipientUtf8) {
+        return senderUtf8.length + 1 + FIXED_HEADER + recipientUtf8.length;
+    }
+
+    // Пишет "отправитель:" и заголовок конверта, полезную нагрузку дописывает вызывающий.
+    // Так большие сообщения шифруются сразу в тело кадра, без промежуточного массива
+    public static ByteBuffer putHeader(ByteBuffer body, byte[] senderUtf8, byte type, byte suite,
+                                       byte[] recipientUtf8) {
+        if (recipientUtf8.length > MAX_RECIPIENT) {
+            throw new IllegalArgumentException("Слишком длинное имя получателя");
+        }
+        return body.put(senderUtf8).put((byte) ':')
+                .put(MAGIC).put(VERSION).put(type).put(suite)
+                .put((byte) recipientUtf8.length).put(recipientUtf8);
+    }
+
+    public byte type() {
+        return (byte) (type & ~FLAG_COMPRESSED);
+    }
+
+    public boolean isCompressed() {
+        return (type & FLAG_COMPRESSED) != 0;
+    }
+
+    public byte suite() {
+        return suite;
+    }
+
+    public ByteBuffer recipient() {
+        return recipient.duplicate();
+    }
+
+    public String recipientAsString() {
+        return Frame.decode(recipient);
+    }
+
+    public ByteBuffer payload() {
+        return payload.duplicate();
+    }
+
+    // Сравнение по байтам, без декодирования строки
+    public boolean isAddressedTo(byte[] recipientUtf8) {
+        if (recipient.remaining() != recipientUtf8.length) {
+            return false;
+        }
+        for (int i = 0; i < recipientUtf8.length; i++) {
+            if (recipient.get(i) != recipientUtf8[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,504 @@
+package protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Передача файлов через чат фрагментами фиксированного размера.
+ * <pre>
+ * TYPE_FILE_OFFER  [заголовок][соль 8][зашифрованные: размер 8, размер фрагмента 4, SHA-256 файла 32, имя файла]
+ * TYPE_FILE_CHUNK  [заголовок][шифртекст фрагмента]
+ * TYPE_FILE_ACK    [номер передачи 8][номер следующего нужного фрагмента 4], -1 - отказ
+ * заголовок:       [номер передачи 8][id ключа 8][номер фрагмента 4][флаги 1], входит в AAD
+ * </pre>
+ * Отправитель читает файл через FileChannel и шифрует фрагмент сразу в тело кадра (StreamCipher),
+ * получатель расшифровывает фрагмент и пишет его на диск в файл .part. Неподтверждённых фрагментов
+ * в пути не больше WINDOW, поэтому память не зависит от размера файла ни у одной стороны.
+ * Номер передачи вычисляется из получателя и файла, так что повторная отправка того же файла
+ * продолжается с первого фрагмента, которого нет в .part у получателя.
+ * <p>
+ * Номер передачи виден в открытом виде, поэтому передача у получателя - это пара (отправитель, номер):
+ * чужой кадр с тем же номером не трогает ни её, ни её .part. Каждое предложение идёт с новой солью,
+ * и начало .part, принятое по прежнему предложению, заново не проверить; поэтому рядом с .part лежит
+ * .meta с размером и SHA-256 из подлинного предложения. Другое описание - .part удаляется, а не продолжается,
+ * и готовый файл сверяется с SHA-256 целиком.
+ */
+public final class FileTransfers {
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final int MAX_CHUNK_SIZE = 256 * 1024;
+    private static final int WINDOW = 16;
+    private static final long ACK_TIMEOUT_SECONDS = 30;
+    private static final int HEADER_LENGTH = 8 + 8 + 4 + 1;
+    private static final int SALT_LENGTH = 8;
+    private static final int OFFER_INDEX = -1;
+    private static final int REJECTED = -1;
+    private static final byte FLAG_LAST = 1;
+    // Предложение с SHA-256 файла; без него начало .part не проверить
+    private static final byte FLAG_DIGEST = 2;
+    private static final int DIGEST_LENGTH = 32;
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final String PART_SUFFIX = ".part";
+    private static final String META_SUFFIX = ".meta";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // Ключи собеседников. Сам ключ передачи выводится из них в StreamCipher
+    public interface Keys {
+        // Ключ для отправки файла получателю
+        TransferKey outboundKey(String recipient) throws Exception;
+
+        // Ключ отправителя по его идентификатору или null, если ключа нет
+        SecretKey inboundKey(String sender, long keyId) throws Exception;
+    }
+
+    public record TransferKey(long id, SecretKey key) {
+    }
+
+    @FunctionalInterface
+    public interface Output {
+        void send(ByteBuffer body) throws IOException;
+    }
+
+    // Входящая передача: номер выбирает отправитель, поэтому сам по себе он не уникален
+    private record Source(String sender, long transferId) {
+    }
+
+    private final String username;
+    private final byte[] usernameBytes;
+    private final Path downloads;
+    private final Keys keys;
+    private final Output output;
+    private final Consumer<String> status;
+    private final ConcurrentHashMap<Long, Outgoing> outgoing = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Source, Incoming> incoming = new ConcurrentHashMap<>();
+
+    public FileTransfers(String username, Path downloads, Keys keys, Output output, Consumer<String> status) {
+        this.username = username;
+        this.usernameBytes = username.getBytes(StandardCharsets.UTF_8);
+        this.downloads = downloads;
+        this.keys = keys;
+        this.output = output;
+        this.status = status;
+    }
+
+    // Отправка идёт в отдельном виртуальном потоке, ход передачи сообщается через status
+    public void send(String recipient, Path file) {
+        Thread.ofVirtual().name("file-sender").start(() -> {
+            Outgoing transfer = null;
+            try {
+                transfer = new Outgoing(recipient, file);
+                if (outgoing.putIfAbsent(transfer.id, transfer) != null) {
+                    status.accept("Файл " + file.getFileName() + " уже отправляется");
+                    return;
+                }
+                transfer.run();
+            } catch (Exception e) {
+                status.accept("Ошибка отправки файла " + file.getFileName() + ": " + e.getMessage());
+            } finally {
+                if (transfer != null) {
+                    outgoing.remove(transfer.id, transfer);
+                }
+            }
+        });
+    }
+
+    // true для любого кадра передачи файла, в том числе адресованного не нам: такие кадры в чат не выводятся
+    public boolean handle(String sender, Envelope envelope) {
+        byte type = envelope.type();
+        if (type != Envelope.TYPE_FILE_OFFER && type != Envelope.TYPE_FILE_CHUNK && type != Envelope.TYPE_FILE_ACK) {
+            return false;
+        }
+        if (!envelope.isAddressedTo(usernameBytes)) {
+            return true;
+        }
+        ByteBuffer payload = envelope.payload();
+        try {
+            switch (type) {
+                case Envelope.TYPE_FILE_OFFER -> onOffer(sender, payload);
+                case Envelope.TYPE_FILE_CHUNK -> onChunk(sender, payload);
+                default -> onAck(sender, payload);
+            }
+        } catch (Exception e) {
+            status.accept("Ошибка приёма файла от " + sender + ": " + e.getMessage());
+        }
+        return true;
+    }
+
+    // Прерывает все передачи. Недокачанные .part остаются на диске для продолжения
+    public void close() {
+        outgoing.values().forEach(Outgoing::abort);
+        incoming.values().forEach(Incoming::closeQuietly);
+        incoming.clear();
+    }
+
+    private void onOffer(String sender, ByteBuffer payload) throws Exception {
+        if (payload.remaining() < HEADER_LENGTH + SALT_LENGTH + StreamCipher.TAG_LENGTH) {
+            throw new EOFException("Предложение файла обрезано");
+        }
+        int start = payload.position();
+        long transferId = payload.getLong(start);
+        long keyId = payload.getLong(start + 8);
+        if (payload.getInt(start + 16) != OFFER_INDEX) {
+            throw new GeneralSecurityException("Некорректное предложение файла");
+        }
+        if ((payload.get(start + 20) & FLAG_DIGEST) == 0) {
+            sendAck(sender, transferId, REJECTED);
+            throw new GeneralSecurityException("Предложение без SHA-256 файла, у отправителя старая версия клиента");
+        }
+        SecretKey baseKey = keys.inboundKey(sender, keyId);
+        if (baseKey == null) {
+            sendAck(sender, transferId, REJECTED);
+            throw new GeneralSecurityException("Нет ключа для расшифровки");
+        }
+        int aadLength = HEADER_LENGTH + SALT_LENGTH;
+        long salt = payload.getLong(start + HEADER_LENGTH);
+        StreamCipher cipher = StreamCipher.derive(baseKey, transferId, salt);
+        ByteBuffer metadata = ByteBuffer.allocate(payload.remaining() - aadLength);
+        cipher.open(OFFER_INDEX, payload.slice(start, aadLength),
+                payload.slice(start + aadLength, payload.remaining() - aadLength), metadata);
+        metadata.flip();
+
+        if (metadata.remaining() < 12 + DIGEST_LENGTH) {
+            throw new EOFException("Предложение файла обрезано");
+        }
+        long size = metadata.getLong();
+        int chunkSize = metadata.getInt();
+        byte[] digest = new byte[DIGEST_LENGTH];
+        metadata.get(digest);
+        String name = safeFileName(Frame.decode(metadata), transferId);
+        if (size < 0 || chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new GeneralSecurityException("Некорректные параметры файла");
+        }
+
+        Source source = new Source(sender, transferId);
+        Incoming previous = incoming.remove(source);
+        if (previous != null) {
+            previous.closeQuietly();
+        }
+        Incoming transfer = new Incoming(source, keyId, cipher, name, size, chunkSize, digest);
+        incoming.put(source, transfer);
+        status.accept(transfer.next == 0
+                ? "Приём файла " + name + " от " + sender + " (" + size + " байт)"
+                : "Продолжение приёма файла " + name + " от " + sender + " с фрагмента " + transfer.next);
+        sendAck(sender, transferId, transfer.next);
+    }
+
+    private void onChunk(String sender, ByteBuffer payload) throws Exception {
+        if (payload.remaining() < HEADER_LENGTH + StreamCipher.TAG_LENGTH) {
+            throw new EOFException("Фрагмент файла обрезан");
+        }
+        int start = payload.position();
+        long transferId = payload.getLong(start);
+        Source source = new Source(sender, transferId);
+        Incoming transfer = incoming.get(source);
+        if (transfer == null || transfer.keyId != payload.getLong(start + 8)) {
+            return;
+        }
+        int index = payload.getInt(start + 16);
+        boolean last = (payload.get(start + 20) & FLAG_LAST) != 0;
+        Path target = null;
+        try {
+            if (index != transfer.next || last != (index == transfer.chunks - 1)) {
+                throw new GeneralSecurityException("Фрагмент " + index + " пришёл не по порядку");
+            }
+            transfer.write(index, payload.slice(start, HEADER_LENGTH),
+                    payload.slice(start + HEADER_LENGTH, payload.remaining() - HEADER_LENGTH));
+            if (last) {
+                incoming.remove(source, transfer);
+                target = transfer.complete();
+            }
+        } catch (Exception e) {
+            incoming.remove(source, transfer);
+            transfer.closeQuietly();
+            sendAck(sender, transferId, REJECTED);
+            throw e;
+        }
+        if (target != null) {
+            status.accept("Файл " + transfer.name + " от " + sender + " сохранён: " + target.toAbsolutePath());
+        }
+        sendAck(sender, transferId, transfer.next);
+    }
+
+    private void onAck(String sender, ByteBuffer payload) throws EOFException {
+        if (payload.remaining() < 12) {
+            throw new EOFException("Подтверждение обрезано");
+        }
+        Outgoing transfer = outgoing.get(payload.getLong(payload.position()));
+        if (transfer != null && transfer.recipient.equals(sender)) {
+            transfer.acknowledge(payload.getInt(payload.position() + 8));
+        }
+    }
+
+    private void sendAck(String recipient, long transferId, int next) throws IOException {
+        ByteBuffer ack = ByteBuffer.allocate(12).putLong(transferId).putInt(next).flip();
+        output.send(Envelope.encode(username, Envelope.TYPE_FILE_ACK, Envelope.SUITE_NONE, recipient, ack));
+    }
+
+    private static int chunkCount(long size, int chunkSize) {
+        // Пустой файл передаётся одним пустым последним фрагментом
+        return (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+    }
+
+    // Имя .part и .meta: хеш отправителя и номера, имя отправителя в путь не попадает
+    private static String partName(Source source) throws GeneralSecurityException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(source.sender().getBytes(StandardCharsets.UTF_8));
+        digest.update(ByteBuffer.allocate(9).put((byte) 0).putLong(source.transferId()).flip());
+        return HexFormat.of().formatHex(digest.digest(), 0, 16);
+    }
+
+    // SHA-256 первых size байт канала; buffer - рабочий, его содержимое теряется
+    private static byte[] digest(FileChannel channel, long size, ByteBuffer buffer)
+            throws IOException, GeneralSecurityException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        long position = 0;
+        while (position < size) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), size - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Файл короче заявленного");
+            }
+            position += read;
+            digest.update(buffer.flip());
+        }
+        return digest.digest();
+    }
+
+    private static String safeFileName(String name, long transferId) {
+        String cleaned = name.replaceAll("[\\\\/:*?\"<>|\\p{Cntrl}]", "_").strip();
+        if (cleaned.isEmpty() || cleaned.equals(".") || cleaned.equals("..")) {
+            return HexFormat.of().toHexDigits(transferId);
+        }
+        return cleaned;
+    }
+
+    // Номер передачи одинаков для того же файла тому же получателю, пока файл не изменился
+    private static long transferId(String recipient, Path file, long size, long modified) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update((recipient + '\0' + file.toAbsolutePath() + '\0' + size + '\0' + modified)
+                .getBytes(StandardCharsets.UTF_8));
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    private final class Outgoing {
+        private final String recipient;
+        private final byte[] recipientBytes;
+        private final Path file;
+        private final long id;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition acked = lock.newCondition();
+        private int nextNeeded = -1;
+        private boolean aborted;
+
+        Outgoing(String recipient, Path file) throws Exception {
+            this.recipient = recipient;
+            this.recipientBytes = recipient.getBytes(StandardCharsets.UTF_8);
+            this.file = file;
+            this.id = transferId(recipient, file, Files.size(file), Files.getLastModifiedTime(file).toMillis());
+        }
+
+        void run() throws Exception {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                int chunks = chunkCount(size, CHUNK_SIZE);
+                TransferKey key = keys.outboundKey(recipient);
+                long salt = RANDOM.nextLong();
+                StreamCipher cipher = StreamCipher.derive(key.key(), id, salt);
+
+                byte[] name = file.getFileName().toString().getBytes(StandardCharsets.UTF_8);
+                int nameLength = Math.min(name.length, MAX_NAME_LENGTH);
+                int prefix = Envelope.headerLength(usernameBytes, recipientBytes);
+                // Один буфер под открытый текст и один под тело кадра на всю передачу
+                ByteBuffer plain = ByteBuffer.allocate(CHUNK_SIZE);
+                ByteBuffer body = ByteBuffer.allocate(prefix + HEADER_LENGTH + SALT_LENGTH
+                        + Math.max(CHUNK_SIZE, 12 + DIGEST_LENGTH + MAX_NAME_LENGTH) + StreamCipher.TAG_LENGTH);
+                // Лишний проход по файлу: по SHA-256 получатель проверит и продолженный .part
+                byte[] digest = digest(channel, size, plain);
+
+                plain.clear();
+                plain.putLong(size).putInt(CHUNK_SIZE).put(digest).put(name, 0, nameLength).flip();
+                body.clear();
+                Envelope.putHeader(body, usernameBytes, Envelope.TYPE_FILE_OFFER, Envelope.SUITE_AES_GCM,
+                        recipientBytes);
+                int aadStart = body.position();
+                body.putLong(id).putLong(key.id()).putInt(OFFER_INDEX).put(FLAG_DIGEST).putLong(salt);
+                cipher.seal(OFFER_INDEX, body.slice(aadStart, body.position() - aadStart), plain, body);
+                output.send(body.flip());
+
+                int first = awaitAck(0);
+                if (first > 0) {
+                    status.accept("Продолжение отправки " + file.getFileName() + " с фрагмента " + first);
+                }
+                for (int index = first; index < chunks; index++) {
+                    // Не уходим дальше окна от последнего подтверждённого фрагмента
+                    awaitAck(index - WINDOW + 1);
+                    long position = (long) index * CHUNK_SIZE;
+                    plain.clear().limit((int) Math.min(CHUNK_SIZE, size - position));
+                    while (plain.hasRemaining()) {
+                        if (channel.read(plain, position + plain.position()) < 0) {
+                            throw new EOFException("Файл изменился во время отправки");
+                        }
+                    }
+                    plain.flip();
+
+                    body.clear();
+                    Envelope.putHeader(body, usernameBytes, Envelope.TYPE_FILE_CHUNK, Envelope.SUITE_AES_GCM,
+                            recipientBytes);
+                    aadStart = body.position();
+                    body.putLong(id).putLong(key.id()).putInt(index).put(index == chunks - 1 ? FLAG_LAST : 0);
+                    cipher.seal(index, body.slice(aadStart, HEADER_LENGTH), plain, body);
+                    output.send(body.flip());
+                }
+                awaitAck(chunks);
+                status.accept("Файл " + file.getFileName() + " отправлен " + recipient + " (" + size + " байт)");
+            }
+        }
+
+        void acknowledge(int next) {
+            lock.lock();
+            try {
+                if (next == REJECTED) {
+                    aborted = true;
+                } else {
+                    nextNeeded = Math.max(nextNeeded, next);
+                }
+                acked.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void abort() {
+            acknowledge(REJECTED);
+        }
+
+        // Ждёт, пока получателю будут нужны фрагменты не раньше atLeast, и возвращает номер нужного
+        private int awaitAck(int atLeast) throws IOException, InterruptedException {
+            lock.lock();
+            try {
+                long remaining = TimeUnit.SECONDS.toNanos(ACK_TIMEOUT_SECONDS);
+                while (!aborted && nextNeeded < atLeast) {
+                    if (remaining <= 0) {
+                        throw new IOException("Получатель не отвечает");
+                    }
+                    remaining = acked.awaitNanos(remaining);
+                }
+                if (aborted) {
+                    throw new IOException("Передача прервана");
+                }
+                return nextNeeded;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private final class Incoming {
+        private final long keyId;
+        private final StreamCipher cipher;
+        private final String name;
+        private final long size;
+        private final int chunkSize;
+        private final int chunks;
+        private final byte[] digest;
+        private final Path part;
+        private final Path meta;
+        private final FileChannel channel;
+        private final ByteBuffer plain;
+        private int next;
+
+        Incoming(Source source, long keyId, StreamCipher cipher, String name, long size, int chunkSize,
+                 byte[] digest) throws IOException, GeneralSecurityException {
+            this.keyId = keyId;
+            this.cipher = cipher;
+            this.name = name;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunks = chunkCount(size, chunkSize);
+            this.digest = digest;
+            this.plain = ByteBuffer.allocate(chunkSize);
+
+            Files.createDirectories(downloads);
+            String base = partName(source);
+            this.part = downloads.resolve(base + PART_SUFFIX);
+            this.meta = downloads.resolve(base + META_SUFFIX);
+            byte[] description = ByteBuffer.allocate(8 + 4 + DIGEST_LENGTH).putLong(size).putInt(chunkSize)
+                    .put(digest).array();
+            if (!Files.exists(meta) || !Arrays.equals(Files.readAllBytes(meta), description)) {
+                // Другой файл (или .part без описания): его начало не проверить, принимаем заново
+                Files.deleteIfExists(part);
+                Files.write(meta, description);
+            }
+            this.channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            // Продолжаем с первого неполного фрагмента; последний всегда запрашиваем заново
+            this.next = (int) Math.min(channel.size() / chunkSize, chunks - 1);
+            channel.truncate((long) next * chunkSize);
+        }
+
+        void write(int index, ByteBuffer aad, ByteBuffer sealed) throws Exception {
+            long position = (long) index * chunkSize;
+            plain.clear();
+            cipher.open(index, aad, sealed, plain);
+            plain.flip();
+            if (plain.remaining() != Math.min(chunkSize, size - position)) {
+                throw new GeneralSecurityException("Неверный размер фрагмента " + index);
+            }
+            while (plain.hasRemaining()) {
+                channel.write(plain, position + plain.position());
+            }
+            next = index + 1;
+        }
+
+        // Файл целиком сверяется с SHA-256 из предложения: начало могло прийти по прежнему предложению
+        Path complete() throws IOException, GeneralSecurityException {
+            boolean intact;
+            try {
+                intact = MessageDigest.isEqual(digest, digest(channel, size, plain));
+            } finally {
+                channel.close();
+            }
+            if (!intact) {
+                Files.deleteIfExists(part);
+                Files.deleteIfExists(meta);
+                throw new GeneralSecurityException("Файл " + name + " не совпадает с отправленным, удалён");
+            }
+            Files.deleteIfExists(meta);
+            // Не перезаписываем существующие файлы: "имя", "1_имя", "2_имя", ...
+            for (int attempt = 0; ; attempt++) {
+                Path target = downloads.resolve(attempt == 0 ? name : attempt + "_" + name);
+                try {
+                    return Files.move(part, target);
+                } catch (FileAlreadyExistsException e) {
+                    // пробуем следующее имя
+                }
+            }
+        }
+
+        void closeQuietly() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
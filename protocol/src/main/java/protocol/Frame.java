@@ -0,0 +1,102 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Принятый кадр вида "отправитель:сообщение". Тело лежит в буфере из пула,
+ * отправитель и сообщение отдаются срезами без копирования.
+ * После обработки кадр нужно закрыть, чтобы вернуть буфер в пул.
+ */
+public final class Frame implements AutoCloseable {
+    private static final byte SEPARATOR = ':';
+
+    private final BufferPool pool;
+    private ByteBuffer payload;
+    private final int length;
+    private final int separator;
+
+    Frame(BufferPool pool, ByteBuffer payload, int length) {
+        this.pool = pool;
+        this.payload = payload;
+        this.length = length;
+        this.separator = indexOf(payload, length, SEPARATOR);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    // Кадры без ":" - это служебные сообщения (например, имя пользователя)
+    public boolean hasSender() {
+        return separator >= 0;
+    }
+
+    public ByteBuffer payload() {
+        return buffer().slice(0, length);
+    }
+
+    public ByteBuffer sender() {
+        return buffer().slice(0, Math.max(separator, 0));
+    }
+
+    public ByteBuffer body() {
+        int start = separator + 1;
+        return buffer().slice(start, length - start);
+    }
+
+    public String payloadAsString() {
+        return decode(payload());
+    }
+
+    public String senderAsString() {
+        return decode(sender());
+    }
+
+    public String bodyAsString() {
+        return decode(body());
+    }
+
+    @Override
+    public void close() {
+        if (payload != null) {
+            pool.release(payload);
+            payload = null;
+        }
+    }
+
+    private ByteBuffer buffer() {
+        if (payload == null) {
+            throw new IllegalStateException("Кадр уже закрыт");
+        }
+        return payload;
+    }
+
+    // То же правило для тела, которое ещё не стало кадром: есть ли в нём ":"
+    public static boolean hasSender(ByteBuffer payload) {
+        return separator(payload) >= 0;
+    }
+
+    // Смещение ":" от position() или -1
+    static int separator(ByteBuffer payload) {
+        return indexOf(payload.slice(), payload.remaining(), SEPARATOR);
+    }
+
+    public static String decode(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(),
+                    StandardCharsets.UTF_8);
+        }
+        return StandardCharsets.UTF_8.decode(buffer.duplicate()).toString();
+    }
+
+    // ':' в UTF-8 не встречается внутри многобайтовых последовательностей, поэтому ищем прямо по байтам
+    private static int indexOf(ByteBuffer buffer, int length, byte value) {
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
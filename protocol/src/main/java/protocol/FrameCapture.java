@@ -0,0 +1,199 @@
+package protocol;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Запись кадров соединения в файл, чтобы потом воспроизвести её без сети (см. FrameReplay):
+ * <pre>
+ * заголовок  "CHATCAP", версия (1 байт), начало записи в мс от эпохи (8 байт)
+ * запись     [вид 1][нс от предыдущей записи, varint][длина varint][тело кадра]
+ * </pre>
+ * Вид - принятый кадр, отправленный кадр или новое подключение (тело пустое). Тело пишется как на проводе,
+ * вместе с номером продолжения сеанса, а 10-байтный заголовок кадра нет: он восстанавливается по длине.
+ * Записи копятся в буфере и уходят на диск пачками: когда буфер полон или с прошлого сброса прошло
+ * больше секунды. Ошибка записи останавливает только запись, соединение продолжает работать.
+ */
+public final class FrameCapture implements Closeable {
+    public static final byte INBOUND = 1;
+    public static final byte OUTBOUND = 2;
+    public static final byte CONNECTED = 3;
+
+    private static final byte[] MAGIC = "CHATCAP".getBytes(StandardCharsets.US_ASCII);
+    private static final byte VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long FLUSH_INTERVAL_NANOS = 1_000_000_000L;
+    // Вид и два varint
+    private static final int MAX_RECORD_HEADER = 1 + 10 + 5;
+
+    // nanos - от начала записи
+    public record Entry(byte kind, long nanos, ByteBuffer body) {
+    }
+
+    private final FileChannel channel;
+    // Поля ниже защищены this
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private long lastNanos = System.nanoTime();
+    private long flushedAt = lastNanos;
+    private boolean closed;
+
+    private FrameCapture(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    // Существующий файл перезаписывается
+    public static FrameCapture open(Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        FrameCapture capture = new FrameCapture(channel);
+        synchronized (capture) {
+            capture.buffer.put(MAGIC).put(VERSION).putLong(System.currentTimeMillis());
+        }
+        return capture;
+    }
+
+    public void inbound(ByteBuffer body) {
+        record(INBOUND, body);
+    }
+
+    public void outbound(ByteBuffer body) {
+        record(OUTBOUND, body);
+    }
+
+    public void connected() {
+        record(CONNECTED, ByteBuffer.allocate(0));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Вся запись в памяти: при воспроизведении на максимальной скорости диск не должен попадать в замер
+    public static List<Entry> read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new ProtocolException("Файл не является записью кадров: " + file);
+            }
+            byte version = in.readByte();
+            if (version != VERSION) {
+                throw new ProtocolException("Неподдерживаемая версия записи: " + version);
+            }
+            in.readLong();
+            List<Entry> records = new ArrayList<>();
+            long nanos = 0;
+            int kind;
+            while ((kind = in.read()) >= 0) {
+                nanos += readVarint(in);
+                long length = readVarint(in);
+                if (length > Integer.MAX_VALUE - 8) {
+                    throw new ProtocolException("Запись повреждена: длина кадра " + length);
+                }
+                byte[] body = new byte[(int) length];
+                in.readFully(body);
+                records.add(new Entry((byte) kind, nanos, ByteBuffer.wrap(body)));
+            }
+            return records;
+        } catch (EOFException e) {
+            throw new ProtocolException("Запись обрезана: " + file);
+        }
+    }
+
+    private synchronized void record(byte kind, ByteBuffer body) {
+        if (closed) {
+            return;
+        }
+        long now = System.nanoTime();
+        long delta = now - lastNanos;
+        lastNanos = now;
+        ByteBuffer source = body.duplicate();
+        try {
+            if (buffer.remaining() < MAX_RECORD_HEADER) {
+                flush();
+            }
+            buffer.put(kind);
+            putVarint(delta);
+            putVarint(source.remaining());
+            while (source.hasRemaining()) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int count = Math.min(buffer.remaining(), source.remaining());
+                buffer.put(buffer.position(), source, source.position(), count);
+                buffer.position(buffer.position() + count);
+                source.position(source.position() + count);
+            }
+            if (now - flushedAt > FLUSH_INTERVAL_NANOS) {
+                flush();
+            }
+        } catch (IOException e) {
+            closed = true;
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // Вызывается под this
+    private void flush() throws IOException {
+        flushedAt = System.nanoTime();
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // Вызывается под this
+    private void putVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int next = in.read();
+            if (next < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (next & 0x7F) << shift;
+            if ((next & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Запись повреждена: слишком длинное число");
+    }
+}
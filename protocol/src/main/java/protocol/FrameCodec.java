@@ -0,0 +1,194 @@
+package protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Кодек кадров чата: 10 байт ASCII-заголовка с длиной тела (число, дополненное пробелами справа),
+ * затем тело в UTF-8. Формат совпадает с прежним String.format("%-10d", length).
+ */
+public final class FrameCodec {
+    public static final int HEADER_LENGTH = 10;
+    public static final int DEFAULT_MAX_FRAME_SIZE = 1 << 20;
+
+    private static final ThreadLocal<CharsetEncoder> ENCODER = ThreadLocal.withInitial(() ->
+            StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE));
+    private static final ThreadLocal<ByteBuffer> HEADER = ThreadLocal.withInitial(() ->
+            ByteBuffer.allocate(HEADER_LENGTH));
+
+    private final BufferPool pool;
+    private final int maxFrameSize;
+
+    public FrameCodec() {
+        this(new BufferPool(16, false), DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    public FrameCodec(BufferPool pool, int maxFrameSize) {
+        if (maxFrameSize <= 0) {
+            throw new IllegalArgumentException("maxFrameSize должен быть положительным");
+        }
+        this.pool = pool;
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    public BufferPool pool() {
+        return pool;
+    }
+
+    public int maxFrameSize() {
+        return maxFrameSize;
+    }
+
+    // Кодирует сообщение вместе с заголовком в буфер из пула (position = 0, limit = конец кадра).
+    // Буфер нужно вернуть через pool().release()
+    public ByteBuffer encode(CharSequence message) throws ProtocolException {
+        // В UTF-8 на один char приходится не больше трёх байт
+        long worstCase = (long) message.length() * 3;
+        int bodyCapacity = (int) Math.min(worstCase, maxFrameSize);
+        ByteBuffer frame = pool.acquire(HEADER_LENGTH + bodyCapacity);
+        frame.position(HEADER_LENGTH);
+
+        CharsetEncoder encoder = ENCODER.get().reset();
+        CoderResult result = encoder.encode(CharBuffer.wrap(message), frame, true);
+        if (!result.isOverflow()) {
+            result = encoder.flush(frame);
+        }
+        if (result.isOverflow()) {
+            pool.release(frame);
+            throw new ProtocolException("Размер сообщения превышает " + maxFrameSize + " байт");
+        }
+
+        writeHeader(frame, 0, frame.position() - HEADER_LENGTH);
+        return frame.flip();
+    }
+
+    // То же для уже готового тела в байтах
+    public ByteBuffer encode(ByteBuffer body) throws ProtocolException {
+        int length = body.remaining();
+        checkLength(length);
+        ByteBuffer frame = pool.acquire(HEADER_LENGTH + length);
+        writeHeader(frame, 0, length);
+        frame.position(HEADER_LENGTH);
+        frame.put(body.duplicate());
+        return frame.flip();
+    }
+
+    public void writeFrame(OutputStream out, CharSequence message) throws IOException {
+        ByteBuffer frame = encode(message);
+        try {
+            write(out, frame);
+        } finally {
+            pool.release(frame);
+        }
+    }
+
+    public void writeFrame(OutputStream out, ByteBuffer body) throws IOException {
+        ByteBuffer frame = encode(body);
+        try {
+            write(out, frame);
+        } finally {
+            pool.release(frame);
+        }
+    }
+
+    // Читает один кадр целиком. Пул должен выдавать heap-буферы
+    public Frame readFrame(InputStream in) throws IOException {
+        ByteBuffer header = HEADER.get();
+        readFully(in, header.array(), 0, HEADER_LENGTH);
+        int length = parseHeader(header, 0);
+        checkLength(length);
+
+        ByteBuffer payload = pool.acquire(length);
+        try {
+            readFully(in, payload.array(), payload.arrayOffset(), length);
+        } catch (IOException e) {
+            pool.release(payload);
+            throw e;
+        }
+        return new Frame(pool, payload, length);
+    }
+
+    public static int parseHeader(ByteBuffer buffer, int offset) throws ProtocolException {
+        int end = offset + HEADER_LENGTH;
+        int i = offset;
+        // Прежний приёмник делал trim(), поэтому пробелы допустимы с обеих сторон
+        while (i < end && buffer.get(i) <= ' ') {
+            i++;
+        }
+        if (i < end && buffer.get(i) == '+') {
+            i++;
+        }
+        int digitsStart = i;
+        long value = 0;
+        while (i < end) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                break;
+            }
+            value = value * 10 + (b - '0');
+            i++;
+        }
+        int digitsEnd = i;
+        while (i < end && buffer.get(i) <= ' ') {
+            i++;
+        }
+        if (digitsStart == digitsEnd || i != end || value > Integer.MAX_VALUE) {
+            throw new ProtocolException("Некорректный заголовок кадра");
+        }
+        return (int) value;
+    }
+
+    public static void writeHeader(ByteBuffer buffer, int offset, int length) {
+        int digits = 1;
+        for (int v = length; v >= 10; v /= 10) {
+            digits++;
+        }
+        int v = length;
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            buffer.put(i, (byte) ('0' + v % 10));
+            v /= 10;
+        }
+        for (int i = offset + digits; i < offset + HEADER_LENGTH; i++) {
+            buffer.put(i, (byte) ' ');
+        }
+    }
+
+    void checkLength(int length) throws ProtocolException {
+        if (length > maxFrameSize) {
+            throw new ProtocolException("Размер кадра " + length + " превышает " + maxFrameSize + " байт");
+        }
+    }
+
+    private static void write(OutputStream out, ByteBuffer frame) throws IOException {
+        if (frame.hasArray()) {
+            out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        } else {
+            byte[] copy = new byte[frame.remaining()];
+            frame.duplicate().get(copy);
+            out.write(copy);
+        }
+        out.flush();
+    }
+
+    private static void readFully(InputStream in, byte[] bytes, int offset, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int count = in.read(bytes, offset + read, length - read);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            read += count;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Потоковый разбор кадров для неблокирующего чтения: данные могут приходить
+ * любыми кусками, заголовок и тело собираются по мере поступления.
+ */
+public final class FrameDecoder {
+    private final FrameCodec codec;
+    private final ByteBuffer header = ByteBuffer.allocate(FrameCodec.HEADER_LENGTH);
+    private ByteBuffer payload;
+    private int length;
+
+    public FrameDecoder(FrameCodec codec) {
+        this.codec = codec;
+    }
+
+    // Возвращает очередной полный кадр или null, если входные данные закончились раньше.
+    // Вызывать, пока не вернёт null: весь вход к этому моменту будет поглощён
+    public Frame decode(ByteBuffer in) throws ProtocolException {
+        if (payload == null) {
+            transfer(in, header);
+            if (header.hasRemaining()) {
+                return null;
+            }
+            length = FrameCodec.parseHeader(header, 0);
+            codec.checkLength(length);
+            payload = codec.pool().acquire(length);
+        }
+
+        transfer(in, payload);
+        if (payload.hasRemaining()) {
+            return null;
+        }
+
+        Frame frame = new Frame(codec.pool(), payload, length);
+        payload = null;
+        header.clear();
+        return frame;
+    }
+
+    // Возвращает в пул недособранный кадр, если соединение закрылось посреди него
+    public void release() {
+        if (payload != null) {
+            codec.pool().release(payload);
+            payload = null;
+        }
+        header.clear();
+    }
+
+    private static void transfer(ByteBuffer from, ByteBuffer to) {
+        int count = Math.min(from.remaining(), to.remaining());
+        to.put(to.position(), from, from.position(), count);
+        to.position(to.position() + count);
+        from.position(from.position() + count);
+    }
+}
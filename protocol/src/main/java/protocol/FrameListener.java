@@ -0,0 +1,26 @@
+package protocol;
+
+import java.io.IOException;
+
+/**
+ * Обработчик событий соединения. Вызывается из потока транспорта,
+ * поэтому долгие операции здесь задерживают приём следующих кадров.
+ */
+public interface FrameListener {
+    // Соединение установлено, можно отправлять первый кадр (имя пользователя)
+    void onConnected(ChatConnection connection) throws IOException;
+
+    // Кадр закрывается транспортом после возврата из метода
+    void onFrame(Frame frame);
+
+    // Соединение разорвано не по нашей инициативе
+    void onDisconnected(IOException cause);
+
+    // ResumableConnection: соединение потеряно, следующая попытка через delayMillis
+    default void onReconnecting(IOException cause, long delayMillis) {
+    }
+
+    // ResumableConnection: соединение восстановлено, replayed сообщений отправлено повторно
+    default void onResumed(int replayed) {
+    }
+}
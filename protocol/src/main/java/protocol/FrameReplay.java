@@ -0,0 +1,178 @@
+package protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Воспроизведение записи FrameCapture без сети. Принятые кадры снова получают заголовок и проходят через
+ * FrameDecoder кусками по 64 КиБ, как из сокета, после чего отдаются слушателю. На каждую отметку
+ * подключения слушатель получает onConnected с соединением-заглушкой (Sink): отправленное им только считается.
+ * <p>
+ * speed > 0 - кадр отдаётся не раньше записанного момента, ускоренного в speed раз. speed <= 0 - так быстро,
+ * как успевает слушатель: подряд идущие кадры тогда склеиваются в один поток и делятся на куски как попало,
+ * кадр может начаться в одном куске и закончиться в другом.
+ */
+public final class FrameReplay {
+    private static final int READ_CHUNK = 64 * 1024;
+
+    public record Result(int frames, long bytes, int sent, long nanos) {
+        public double framesPerSecond() {
+            return nanos == 0 ? 0 : frames * 1e9 / nanos;
+        }
+
+        public double megabytesPerSecond() {
+            return nanos == 0 ? 0 : bytes * 1e9 / nanos / (1 << 20);
+        }
+    }
+
+    // Соединение без сокета: кадры отбрасываются, future сразу завершено.
+    // pauseReading останавливает воспроизведение перед следующим куском, как чтение сокета
+    public static final class Sink implements ChatConnection {
+        private final AtomicInteger sent = new AtomicInteger();
+        private volatile boolean paused;
+        private volatile Thread reader;
+
+        @Override
+        public CompletableFuture<Void> send(CharSequence message) {
+            sent.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Void> send(ByteBuffer body) {
+            sent.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public void pauseReading() {
+            paused = true;
+        }
+
+        @Override
+        public void resumeReading() {
+            paused = false;
+            Thread current = reader;
+            if (current != null) {
+                LockSupport.unpark(current);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        public int sent() {
+            return sent.get();
+        }
+
+        private void awaitReading() {
+            while (paused) {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    // Подключение или кадры в том виде, в каком их отдал бы сокет
+    private record Step(long nanos, ByteBuffer wire) {
+    }
+
+    private FrameReplay() {
+    }
+
+    public static Result replay(List<FrameCapture.Entry> entries, FrameCodec codec, FrameListener listener,
+                                double speed) throws IOException {
+        return replay(entries, codec, listener, speed, new Sink());
+    }
+
+    // sink - соединение, которое получит слушатель; через него же слушатель может остановить чтение
+    public static Result replay(List<FrameCapture.Entry> entries, FrameCodec codec, FrameListener listener,
+                                double speed, Sink sink) throws IOException {
+        List<Step> steps = plan(entries, codec, speed > 0);
+        sink.reader = Thread.currentThread();
+        FrameDecoder decoder = new FrameDecoder(codec);
+        int frames = 0;
+        long bytes = 0;
+        long started = System.nanoTime();
+        try {
+            for (Step step : steps) {
+                if (speed > 0) {
+                    long due = started + (long) (step.nanos() / speed);
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                if (step.wire() == null) {
+                    decoder.release();
+                    listener.onConnected(sink);
+                    continue;
+                }
+                ByteBuffer wire = step.wire().duplicate();
+                while (wire.hasRemaining()) {
+                    sink.awaitReading();
+                    int length = Math.min(READ_CHUNK, wire.remaining());
+                    ByteBuffer chunk = wire.slice(wire.position(), length);
+                    wire.position(wire.position() + length);
+                    Frame next;
+                    while ((next = decoder.decode(chunk)) != null) {
+                        frames++;
+                        bytes += FrameCodec.HEADER_LENGTH + next.length();
+                        try (Frame frame = next) {
+                            listener.onFrame(frame);
+                        }
+                    }
+                }
+            }
+        } finally {
+            decoder.release();
+            sink.reader = null;
+        }
+        return new Result(frames, bytes, sink.sent(), System.nanoTime() - started);
+    }
+
+    // Заголовки кадров расставляются заранее, чтобы не попасть в замер
+    private static List<Step> plan(List<FrameCapture.Entry> entries, FrameCodec codec, boolean paced)
+            throws IOException {
+        List<Step> steps = new ArrayList<>();
+        List<FrameCapture.Entry> run = new ArrayList<>();
+        for (FrameCapture.Entry entry : entries) {
+            if (entry.kind() == FrameCapture.INBOUND) {
+                codec.checkLength(entry.body().remaining());
+                run.add(entry);
+                if (paced) {
+                    steps.add(wire(run));
+                    run.clear();
+                }
+            } else if (entry.kind() == FrameCapture.CONNECTED) {
+                if (!run.isEmpty()) {
+                    steps.add(wire(run));
+                    run.clear();
+                }
+                steps.add(new Step(entry.nanos(), null));
+            }
+        }
+        if (!run.isEmpty()) {
+            steps.add(wire(run));
+        }
+        return steps;
+    }
+
+    private static Step wire(List<FrameCapture.Entry> run) {
+        int total = 0;
+        for (FrameCapture.Entry entry : run) {
+            total += FrameCodec.HEADER_LENGTH + entry.body().remaining();
+        }
+        ByteBuffer wire = ByteBuffer.allocate(total);
+        for (FrameCapture.Entry entry : run) {
+            FrameCodec.writeHeader(wire, wire.position(), entry.body().remaining());
+            wire.position(wire.position() + FrameCodec.HEADER_LENGTH).put(entry.body().duplicate());
+        }
+        return new Step(run.get(0).nanos(), wire.flip());
+    }
+}
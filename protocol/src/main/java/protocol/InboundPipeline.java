@@ -0,0 +1,252 @@
+package protocol;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Конвейер входящих кадров: чтение → разбор → расшифровка → вывод. Поток транспорта только копирует кадр
+ * и определяет класс трафика (TrafficClass), расшифровка идёт на пуле по числу ядер, вывод - в отдельном
+ * потоке в порядке поступления от каждого отправителя (буфер переупорядочивания).
+ * <p>
+ * Сообщения одного отправителя расшифровываются параллельно. Служебные кадры (ключи, приветствия, файлы)
+ * меняют состояние клиента, поэтому выполняются по одному на весь конвейер, после всех более ранних кадров
+ * своего отправителя и раньше всех более поздних. Когда в конвейере capacity кадров, соединение, из которого
+ * они пришли, перестаёт читать сокет (ChatConnection.pauseReading) и дальше отправителя сдерживает TCP;
+ * чтение возобновляется, когда конвейер освободится наполовину. Поток транспорта при этом не ждёт:
+ * у NIO он общий для всех соединений, поэтому уже прочитанные кадры принимаются сверх capacity.
+ */
+public final class InboundPipeline<R> implements Closeable {
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    // Разбор и расшифровка одного кадра; null - выводить нечего. Вызывается из потоков пула
+    @FunctionalInterface
+    public interface Decoder<R> {
+        R decode(String sender, ByteBuffer body);
+    }
+
+    // Вывод результата, вызывается из одного потока в порядке кадров отправителя
+    @FunctionalInterface
+    public interface Renderer<R> {
+        void render(String sender, R result);
+    }
+
+    private final Decoder<R> decoder;
+    private final Renderer<R> renderer;
+    private final int limit;
+    private final ExecutorService workers;
+    private final ExecutorService serial;
+    // Готовые кадры в порядке вывода; размер ограничен capacity
+    private final LinkedBlockingQueue<Task> rendered = new LinkedBlockingQueue<>();
+    private final Thread renderThread;
+
+    // Поля ниже защищены lanes
+    private final Map<String, Lane> lanes = new HashMap<>();
+    // Принятые и ещё не выведенные кадры
+    private int inFlight;
+    // Соединения, чтение которых остановлено из-за полного конвейера
+    private final Set<ChatConnection> paused = Collections.newSetFromMap(new IdentityHashMap<>());
+    private boolean closed;
+
+    private final class Task implements Runnable {
+        private final Lane lane;
+        private final ByteBuffer body;
+        private final boolean serial;
+        private R result;
+        private boolean done;
+
+        Task(Lane lane, ByteBuffer body, boolean serial) {
+            this.lane = lane;
+            this.body = body;
+            this.serial = serial;
+        }
+
+        @Override
+        public void run() {
+            try {
+                result = decoder.decode(lane.sender, body);
+            } catch (RuntimeException e) {
+                result = null;
+            }
+            completed(this);
+        }
+    }
+
+    // Кадры одного отправителя
+    private final class Lane {
+        private final String sender;
+        // Все принятые и ещё не выведенные, в порядке поступления
+        private final ArrayDeque<Task> order = new ArrayDeque<>();
+        // Ещё не начатые
+        private final ArrayDeque<Task> waiting = new ArrayDeque<>();
+        private int running;
+        private boolean serialRunning;
+
+        Lane(String sender) {
+            this.sender = sender;
+        }
+    }
+
+    public InboundPipeline(Decoder<R> decoder, Renderer<R> renderer) {
+        this(decoder, renderer, Runtime.getRuntime().availableProcessors(), DEFAULT_CAPACITY);
+    }
+
+    public InboundPipeline(Decoder<R> decoder, Renderer<R> renderer, int threads, int capacity) {
+        this.decoder = decoder;
+        this.renderer = renderer;
+        this.limit = capacity;
+        this.workers = Executors.newFixedThreadPool(threads,
+                Thread.ofPlatform().name("chat-decrypt-", 0).daemon().factory());
+        this.serial = Executors.newSingleThreadExecutor(Thread.ofPlatform().name("chat-control").daemon().factory());
+        this.renderThread = Thread.ofVirtual().name("chat-render").start(this::renderLoop);
+    }
+
+    // Вызывается из потока транспорта и не блокирует его. Тело копируется: буфер кадра вернётся в пул
+    // сразу после onFrame. source - соединение, из которого пришёл кадр; null - остановить чтение нечем
+    public void submit(Frame frame, ChatConnection source) {
+        if (!frame.hasSender()) {
+            return;
+        }
+        String sender = frame.senderAsString();
+        ByteBuffer body = copy(frame);
+        synchronized (lanes) {
+            if (closed) {
+                return;
+            }
+            enqueue(sender, body);
+            if (inFlight >= limit && source != null && paused.add(source)) {
+                source.pauseReading();
+            }
+        }
+    }
+
+    // Ждёт, пока все переданные кадры будут разобраны и выведены, например в конце воспроизведения записи
+    public void awaitIdle() throws InterruptedException {
+        synchronized (lanes) {
+            while (inFlight > 0 && !closed) {
+                lanes.wait();
+            }
+        }
+    }
+
+    // Необработанные кадры отбрасываются
+    @Override
+    public void close() {
+        synchronized (lanes) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lanes.clear();
+            resumeReading();
+            // awaitIdle
+            lanes.notifyAll();
+        }
+        workers.shutdownNow();
+        serial.shutdownNow();
+        renderThread.interrupt();
+    }
+
+    private static ByteBuffer copy(Frame frame) {
+        ByteBuffer source = frame.body();
+        return ByteBuffer.allocate(source.remaining()).put(source).flip();
+    }
+
+    // Вызывается под lanes
+    private void enqueue(String sender, ByteBuffer body) {
+        boolean control = TrafficClass.ofMessage(body) != TrafficClass.INTERACTIVE;
+        Lane lane = lanes.computeIfAbsent(sender, Lane::new);
+        Task task = new Task(lane, body, control);
+        lane.order.addLast(task);
+        lane.waiting.addLast(task);
+        inFlight++;
+        start(lane);
+    }
+
+    // Вызывается под lanes
+    private void resumeReading() {
+        for (ChatConnection connection : paused) {
+            connection.resumeReading();
+        }
+        paused.clear();
+    }
+
+    // Вызывается под lanes: запускает кадры отправителя, которым больше нечего ждать
+    private void start(Lane lane) {
+        while (!lane.waiting.isEmpty()) {
+            Task next = lane.waiting.peekFirst();
+            if (lane.serialRunning || next.serial && lane.running > 0) {
+                return;
+            }
+            lane.waiting.pollFirst();
+            if (next.serial) {
+                lane.serialRunning = true;
+                serial.execute(next);
+            } else {
+                lane.running++;
+                workers.execute(next);
+            }
+        }
+    }
+
+    private void completed(Task task) {
+        synchronized (lanes) {
+            if (closed) {
+                return;
+            }
+            Lane lane = task.lane;
+            task.done = true;
+            if (task.serial) {
+                lane.serialRunning = false;
+            } else {
+                lane.running--;
+            }
+            start(lane);
+            while (!lane.order.isEmpty() && lane.order.peekFirst().done) {
+                rendered.add(lane.order.pollFirst());
+            }
+            if (lane.order.isEmpty()) {
+                lanes.remove(lane.sender);
+            }
+        }
+    }
+
+    private void released() {
+        synchronized (lanes) {
+            inFlight--;
+            if (inFlight <= limit / 2 && !paused.isEmpty()) {
+                resumeReading();
+            }
+            if (inFlight == 0) {
+                lanes.notifyAll();
+            }
+        }
+    }
+
+    private void renderLoop() {
+        try {
+            while (true) {
+                Task task = rendered.take();
+                try {
+                    if (task.result != null) {
+                        renderer.render(task.lane.sender, task.result);
+                    }
+                } catch (RuntimeException e) {
+                    // Ошибка вывода одного сообщения не останавливает остальные
+                } finally {
+                    released();
+                }
+            }
+        } catch (InterruptedException ignored) {
+            // Конвейер закрыт
+        }
+    }
+}
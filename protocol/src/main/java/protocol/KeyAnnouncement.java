@@ -0,0 +1,157 @@
+package protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+/**
+ * Объявление открытых ключей пользователя (конверт TYPE_KEY_ANNOUNCE), клиент рассылает его при подключении:
+ * <pre>
+ * [версия 1][время создания 8][число ключей 1] { [вид 1][длина 2][ключ X.509] } [длина подписи 2][подпись]
+ * </pre>
+ * Подпись Ed25519 покрывает имя отправителя и всё, что идёт до неё, так что без закрытого ключа
+ * нельзя ни подменить ключи, ни выдать объявление за чужое. Отпечаток пользователя - SHA-256 ключа Ed25519.
+ */
+public final class KeyAnnouncement {
+    public static final byte KIND_RSA = 1;
+    public static final byte KIND_X25519 = 2;
+    public static final byte KIND_ED25519 = 3;
+
+    private static final byte VERSION = 1;
+    private static final int KINDS = 4;
+    private static final byte[] CONTEXT = "chat-key-announce".getBytes(StandardCharsets.US_ASCII);
+
+    // Подпись данных ключом Ed25519 пользователя (KeyManager.sign)
+    @FunctionalInterface
+    public interface Signer {
+        byte[] sign(byte[] data) throws GeneralSecurityException;
+    }
+
+    private final long timestamp;
+    private final byte[][] keys;
+    private final byte[] signed;
+    private final byte[] signature;
+
+    private KeyAnnouncement(long timestamp, byte[][] keys, byte[] signed, byte[] signature) {
+        this.timestamp = timestamp;
+        this.keys = keys;
+        this.signed = signed;
+        this.signature = signature;
+    }
+
+    // Полезная нагрузка объявления; rsa и agreement могут отсутствовать (null)
+    public static byte[] create(String sender, long timestamp, PublicKey rsa, PublicKey agreement, PublicKey signing,
+                                Signer signer) throws GeneralSecurityException {
+        byte[][] keys = new byte[KINDS][];
+        keys[KIND_RSA] = rsa == null ? null : rsa.getEncoded();
+        keys[KIND_X25519] = agreement == null ? null : agreement.getEncoded();
+        keys[KIND_ED25519] = signing.getEncoded();
+
+        int length = 1 + 8 + 1;
+        int count = 0;
+        for (byte[] key : keys) {
+            if (key != null) {
+                length += 1 + 2 + key.length;
+                count++;
+            }
+        }
+        ByteBuffer body = ByteBuffer.allocate(length).put(VERSION).putLong(timestamp).put((byte) count);
+        for (byte kind = 1; kind < KINDS; kind++) {
+            if (keys[kind] != null) {
+                body.put(kind).putShort((short) keys[kind].length).put(keys[kind]);
+            }
+        }
+        byte[] signed = body.array();
+        byte[] signature = signer.sign(signedData(sender, signed));
+        return ByteBuffer.allocate(signed.length + 2 + signature.length)
+                .put(signed).putShort((short) signature.length).put(signature).array();
+    }
+
+    // Всем (recipient пустой) при подключении или адресно - в ответ на чужое общее объявление
+    public static ByteBuffer envelope(String sender, String recipient, byte[] announcement) {
+        return Envelope.encode(sender, Envelope.TYPE_KEY_ANNOUNCE, Envelope.SUITE_NONE, recipient, announcement);
+    }
+
+    // Разбор без криптографии: подпись проверяет KeyDirectory, переиспользуя уже разобранный ключ
+    public static KeyAnnouncement parse(ByteBuffer payload) throws ProtocolException {
+        try {
+            ByteBuffer in = payload.duplicate();
+            int start = in.position();
+            if (in.get() != VERSION) {
+                throw new ProtocolException("Неподдерживаемая версия объявления ключей");
+            }
+            long timestamp = in.getLong();
+            int count = in.get() & 0xFF;
+            byte[][] keys = new byte[KINDS][];
+            for (int i = 0; i < count; i++) {
+                byte kind = in.get();
+                byte[] key = new byte[in.getShort() & 0xFFFF];
+                in.get(key);
+                if (kind > 0 && kind < KINDS) {
+                    keys[kind] = key;
+                }
+            }
+            byte[] signed = new byte[in.position() - start];
+            payload.get(start, signed);
+            byte[] signature = new byte[in.getShort() & 0xFFFF];
+            in.get(signature);
+            if (keys[KIND_ED25519] == null) {
+                throw new ProtocolException("В объявлении нет ключа подписи");
+            }
+            return new KeyAnnouncement(timestamp, keys, signed, signature);
+        } catch (RuntimeException e) {
+            throw new ProtocolException("Объявление ключей обрезано");
+        }
+    }
+
+    public long timestamp() {
+        return timestamp;
+    }
+
+    // Ключ в кодировке X.509 или null
+    public byte[] key(byte kind) {
+        return keys[kind];
+    }
+
+    byte[] signedData(String sender) {
+        return signedData(sender, signed);
+    }
+
+    byte[] signature() {
+        return signature;
+    }
+
+    // SHA-256 ключа, первые 16 байт группами по 4 цифры - для сверки голосом или в другом мессенджере
+    public static String fingerprint(byte[] encodedKey) {
+        byte[] digest = Arrays.copyOf(sha256(encodedKey), 16);
+        String hex = HexFormat.of().formatHex(digest);
+        StringBuilder grouped = new StringBuilder(hex.length() + hex.length() / 4);
+        for (int i = 0; i < hex.length(); i += 4) {
+            if (i > 0) {
+                grouped.append(' ');
+            }
+            grouped.append(hex, i, i + 4);
+        }
+        return grouped.toString();
+    }
+
+    private static byte[] signedData(String sender, byte[] signed) {
+        byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(CONTEXT.length + 2 + senderBytes.length + signed.length)
+                .put(CONTEXT).putShort((short) senderBytes.length).put(senderBytes).put(signed).array();
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
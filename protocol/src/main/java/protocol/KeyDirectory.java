@@ -0,0 +1,531 @@
+package protocol;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Справочник открытых ключей собеседников. Ключи приходят в объявлениях (KeyAnnouncement) или вставляются
+ * вручную, разбираются KeyFactory один раз и дальше отдаются готовыми объектами PublicKey.
+ * Первый увиденный ключ подписи закрепляется за именем: объявление с другим ключом отклоняется (CHANGED),
+ * пока пользователь сам не удалит прежнюю запись.
+ * <p>
+ * Чтение без блокировок (ConcurrentHashMap), поэтому справочник можно трогать и из потока JavaFX,
+ * и из потока транспорта. Ключи RSA и X25519 из объявлений, которые давно не обновлялись (TTL), забываются,
+ * а сверх capacity вытесняются давно не использованные (LRU). Закреплённый ключ подписи и вставленные
+ * вручную записи остаются до явного remove: иначе чужое объявление под тем же именем после вытеснения
+ * было бы принято как новое.
+ * <p>
+ * На диске - журнал строк "вид время имя данные", только дописывание; последняя строка имени побеждает.
+ * Когда устаревших строк становится много, журнал переписывается целиком.
+ */
+public final class KeyDirectory implements Closeable {
+    public static final int DEFAULT_CAPACITY = 10_000;
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.DAYS.toMillis(30);
+
+    private static final String ANNOUNCED = "A";
+    private static final String MANUAL = "M";
+    private static final String REMOVED = "D";
+    // Только закреплённый ключ подписи, ключи шифрования забыты
+    private static final String PINNED = "P";
+    private static final int COMPACT_SLACK = 1024;
+    // Продление срока пишется в журнал не чаще, чем раз в сутки: для TTL в 30 дней этого достаточно
+    private static final long PERSIST_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    public enum Result {
+        // Новый собеседник
+        ADDED,
+        // Те же ключи, продлён срок
+        REFRESHED,
+        // Тот же ключ подписи, но новые ключи шифрования
+        UPDATED,
+        // Ключ подписи не совпадает с закреплённым - объявление отклонено
+        CHANGED,
+        // Объявление старше уже известного (повтор)
+        STALE,
+        // Подпись или формат неверны
+        INVALID
+    }
+
+    /**
+     * Запись справочника. Любой из ключей может отсутствовать: у вставленного вручную есть только RSA.
+     */
+    public record Entry(String user, String fingerprint, PublicKey rsa, PublicKey agreement, PublicKey signing,
+                        boolean manual, long announcedAt, long lastSeen) {
+    }
+
+    // Запись вместе с исходными байтами: по ним повторное объявление сравнивается без разбора ключей
+    private static final class Stored {
+        final Entry entry;
+        final byte[][] encoded;
+        final byte[] record;
+        // lastSeen, записанный в журнал
+        final long persisted;
+        volatile long lastUsed;
+
+        Stored(Entry entry, byte[][] encoded, byte[] record) {
+            this(entry, encoded, record, entry.lastSeen());
+        }
+
+        private Stored(Entry entry, byte[][] encoded, byte[] record, long persisted) {
+            this.entry = entry;
+            this.encoded = encoded;
+            this.record = record;
+            this.persisted = persisted;
+            this.lastUsed = System.nanoTime();
+        }
+
+        Stored refreshed(long now) {
+            Entry e = entry;
+            return new Stored(new Entry(e.user(), e.fingerprint(), e.rsa(), e.agreement(), e.signing(), e.manual(),
+                    e.announcedAt(), now), encoded, record, persisted);
+        }
+
+        byte[] encoded(byte kind) {
+            return encoded[kind];
+        }
+    }
+
+    private final ConcurrentHashMap<String, Stored> entries = new ConcurrentHashMap<>();
+    // Закреплённые ключи подписи (X.509) по имени; переживают TTL и вытеснение записи
+    private final ConcurrentHashMap<String, byte[]> pins = new ConcurrentHashMap<>();
+    private final Path file;
+    private final int capacity;
+    private final long ttlMillis;
+    // Ошибки записи журнала
+    private final Consumer<String> status;
+
+    // Поля ниже защищены this
+    private BufferedWriter log;
+    private int logLines;
+
+    private KeyDirectory(Path file, int capacity, long ttlMillis, Consumer<String> status) {
+        this.file = file;
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+        this.status = status;
+    }
+
+    // Только в памяти
+    public static KeyDirectory inMemory() {
+        return new KeyDirectory(null, DEFAULT_CAPACITY, DEFAULT_TTL_MILLIS, message -> {
+        });
+    }
+
+    // status получает сообщения о том, что журнал не удалось дописать: запись тогда живёт до конца сеанса
+    public static KeyDirectory open(Path file, Consumer<String> status) throws IOException {
+        return open(file, DEFAULT_CAPACITY, DEFAULT_TTL_MILLIS, status);
+    }
+
+    public static KeyDirectory open(Path file, int capacity, long ttlMillis, Consumer<String> status)
+            throws IOException {
+        KeyDirectory directory = new KeyDirectory(file, capacity, ttlMillis, status);
+        directory.load();
+        return directory;
+    }
+
+    // Проверяет объявление от sender и запоминает ключи, если оно подлинное и не противоречит закреплённому
+    public Result offer(String sender, ByteBuffer payload) {
+        // Повтор уже проверенного объявления (при каждом подключении собеседника) - без разбора и подписи
+        Stored known = lookup(sender);
+        if (known != null && !known.entry.manual() && payload.equals(ByteBuffer.wrap(known.record))) {
+            synchronized (this) {
+                if (entries.get(sender) == known) {
+                    long now = System.currentTimeMillis();
+                    if (now - known.persisted < PERSIST_INTERVAL_MILLIS) {
+                        entries.put(sender, known.refreshed(now));
+                    } else {
+                        store(ANNOUNCED, new Stored(known.refreshed(now).entry, known.encoded, known.record));
+                    }
+                    return Result.REFRESHED;
+                }
+            }
+        }
+        KeyAnnouncement announcement;
+        try {
+            announcement = KeyAnnouncement.parse(payload);
+        } catch (ProtocolException e) {
+            return Result.INVALID;
+        }
+        synchronized (this) {
+            Stored existing = lookup(sender);
+            byte[] signingBytes = announcement.key(KeyAnnouncement.KIND_ED25519);
+            byte[] pinned = pins.get(sender);
+            if (existing != null && !sameIdentity(existing, announcement)
+                    || pinned != null && !Arrays.equals(pinned, signingBytes)) {
+                return Result.CHANGED;
+            }
+            try {
+                PublicKey signing = reuse(existing, KeyAnnouncement.KIND_ED25519, signingBytes, "Ed25519");
+                if (!verify(signing, announcement.signedData(sender), announcement.signature())) {
+                    return Result.INVALID;
+                }
+                if (existing != null && !existing.entry.manual() && announcement.timestamp() < existing.entry.announcedAt()) {
+                    return Result.STALE;
+                }
+                byte[][] encoded = new byte[4][];
+                encoded[KeyAnnouncement.KIND_RSA] = announcement.key(KeyAnnouncement.KIND_RSA);
+                encoded[KeyAnnouncement.KIND_X25519] = announcement.key(KeyAnnouncement.KIND_X25519);
+                encoded[KeyAnnouncement.KIND_ED25519] = signingBytes;
+                boolean same = existing != null && !existing.entry.manual()
+                        && Arrays.equals(existing.encoded(KeyAnnouncement.KIND_RSA), encoded[KeyAnnouncement.KIND_RSA])
+                        && Arrays.equals(existing.encoded(KeyAnnouncement.KIND_X25519),
+                        encoded[KeyAnnouncement.KIND_X25519]);
+                Entry entry = new Entry(sender, KeyAnnouncement.fingerprint(signingBytes),
+                        reuse(existing, KeyAnnouncement.KIND_RSA, encoded[KeyAnnouncement.KIND_RSA], "RSA"),
+                        reuse(existing, KeyAnnouncement.KIND_X25519, encoded[KeyAnnouncement.KIND_X25519], "X25519"),
+                        signing, false, announcement.timestamp(), System.currentTimeMillis());
+                byte[] record = new byte[payload.remaining()];
+                payload.get(payload.position(), record);
+                pins.put(sender, signingBytes);
+                store(ANNOUNCED, new Stored(entry, encoded, record));
+                if (existing == null) {
+                    // Ключи шифрования были вытеснены, но ключ подписи тот же, что закреплён
+                    return pinned == null ? Result.ADDED : Result.UPDATED;
+                }
+                return same ? Result.REFRESHED : Result.UPDATED;
+            } catch (GeneralSecurityException | IllegalArgumentException e) {
+                return Result.INVALID;
+            }
+        }
+    }
+
+    // Ключ RSA, вставленный вручную: доверие выражено явно, поэтому прежняя запись заменяется
+    public synchronized Entry pin(String user, byte[] encodedRsaKey) throws GeneralSecurityException {
+        PublicKey rsa = parse("RSA", encodedRsaKey);
+        byte[][] encoded = new byte[4][];
+        encoded[KeyAnnouncement.KIND_RSA] = encodedRsaKey.clone();
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(user, KeyAnnouncement.fingerprint(encodedRsaKey), rsa, null, null, true, now, now);
+        pins.remove(user);
+        store(MANUAL, new Stored(entry, encoded, encoded[KeyAnnouncement.KIND_RSA]));
+        return entry;
+    }
+
+    public Entry get(String user) {
+        Stored stored = lookup(user);
+        if (stored == null) {
+            return null;
+        }
+        stored.lastUsed = System.nanoTime();
+        return stored.entry;
+    }
+
+    public PublicKey rsaKey(String user) {
+        Entry entry = get(user);
+        return entry == null ? null : entry.rsa();
+    }
+
+    public PublicKey agreementKey(String user) {
+        Entry entry = get(user);
+        return entry == null ? null : entry.agreement();
+    }
+
+    public PublicKey signingKey(String user) {
+        Entry entry = get(user);
+        return entry == null ? null : entry.signing();
+    }
+
+    // Записи по имени пользователя
+    public List<Entry> entries() {
+        List<Entry> list = new ArrayList<>();
+        for (Stored stored : entries.values()) {
+            if (!isExpired(stored)) {
+                list.add(stored.entry);
+            }
+        }
+        list.sort(Comparator.comparing(Entry::user));
+        return list;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // После удаления следующее объявление пользователя будет принято как новое
+    public synchronized void remove(String user) throws IOException {
+        boolean removed = entries.remove(user) != null;
+        if (pins.remove(user) != null || removed) {
+            append(REMOVED, user, 0, new byte[0]);
+        }
+    }
+
+    public synchronized void clear() throws IOException {
+        entries.clear();
+        pins.clear();
+        if (file != null) {
+            rewrite();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+
+    // Вызывается под this
+    private void store(String kind, Stored stored) {
+        entries.put(stored.entry.user(), stored);
+        try {
+            append(kind, stored.entry.user(), stored.entry.lastSeen(), stored.record);
+        } catch (IOException e) {
+            // Запись работает до конца сеанса, при следующем запуске придёт новое объявление
+            status.accept("Не удалось сохранить ключ " + stored.entry.user() + ": " + e.getMessage());
+        }
+        if (entries.size() > capacity) {
+            evictLeastRecentlyUsed();
+        }
+    }
+
+    private Stored lookup(String user) {
+        Stored stored = entries.get(user);
+        if (stored != null && isExpired(stored)) {
+            entries.remove(user, stored);
+            return null;
+        }
+        return stored;
+    }
+
+    // Вставленные вручную записи не устаревают: доверие к ним выражено явно
+    private boolean isExpired(Stored stored) {
+        return !stored.entry.manual() && System.currentTimeMillis() - stored.entry.lastSeen() > ttlMillis;
+    }
+
+    // Объявление принадлежит тому же владельцу, если совпадает ключ подписи,
+    // а для вставленной вручную записи - ключ RSA
+    private static boolean sameIdentity(Stored existing, KeyAnnouncement announcement) {
+        if (existing.entry.signing() != null) {
+            return Arrays.equals(existing.encoded(KeyAnnouncement.KIND_ED25519),
+                    announcement.key(KeyAnnouncement.KIND_ED25519));
+        }
+        return Arrays.equals(existing.encoded(KeyAnnouncement.KIND_RSA), announcement.key(KeyAnnouncement.KIND_RSA));
+    }
+
+    // Уже разобранный ключ, если байты не изменились, иначе разбор KeyFactory
+    private static PublicKey reuse(Stored existing, byte kind, byte[] encoded, String algorithm)
+            throws GeneralSecurityException {
+        if (encoded == null) {
+            return null;
+        }
+        if (existing != null && Arrays.equals(existing.encoded(kind), encoded)) {
+            return switch (kind) {
+                case KeyAnnouncement.KIND_RSA -> existing.entry.rsa();
+                case KeyAnnouncement.KIND_X25519 -> existing.entry.agreement();
+                default -> existing.entry.signing();
+            };
+        }
+        return parse(algorithm, encoded);
+    }
+
+    private static PublicKey parse(String algorithm, byte[] encoded) throws GeneralSecurityException {
+        return KeyFactory.getInstance(algorithm).generatePublic(new X509EncodedKeySpec(encoded));
+    }
+
+    private static boolean verify(PublicKey signingKey, byte[] data, byte[] signatureBytes)
+            throws GeneralSecurityException {
+        Signature signature = Signature.getInstance("Ed25519");
+        signature.initVerify(signingKey);
+        signature.update(data);
+        return signature.verify(signatureBytes);
+    }
+
+    // Вызывается под this. Вытесняются только ключи шифрования: закрепление остаётся в pins, а в журнале -
+    // строкой PINNED, чтобы после перезапуска запись не вернулась
+    private boolean evictLeastRecentlyUsed() {
+        String oldest = null;
+        long oldestUse = Long.MAX_VALUE;
+        for (Map.Entry<String, Stored> candidate : entries.entrySet()) {
+            Stored stored = candidate.getValue();
+            if (!stored.entry.manual() && stored.lastUsed < oldestUse) {
+                oldestUse = stored.lastUsed;
+                oldest = candidate.getKey();
+            }
+        }
+        if (oldest == null) {
+            return false;
+        }
+        entries.remove(oldest);
+        try {
+            append(PINNED, oldest, 0, pins.get(oldest));
+        } catch (IOException e) {
+            status.accept("Не удалось сохранить справочник ключей: " + e.getMessage());
+        }
+        return true;
+    }
+
+    private void load() throws IOException {
+        if (file == null || !Files.exists(file)) {
+            return;
+        }
+        // Сначала последняя строка каждого имени, ключи разбираются только у победивших
+        Map<String, String[]> latest = new HashMap<>();
+        int lines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ", 4);
+                if (parts.length < 3) {
+                    continue;
+                }
+                lines++;
+                String user;
+                try {
+                    user = decodeName(parts[2]);
+                } catch (IllegalArgumentException e) {
+                    // Повреждённая строка пропускается, как и строка с повреждённым ключом ниже
+                    continue;
+                }
+                if (REMOVED.equals(parts[0])) {
+                    latest.remove(user);
+                } else if (parts.length == 4) {
+                    latest.put(user, parts);
+                }
+            }
+        }
+        for (Map.Entry<String, String[]> line : latest.entrySet()) {
+            try {
+                restore(line.getKey(), line.getValue());
+            } catch (GeneralSecurityException | IllegalArgumentException | ProtocolException e) {
+                // Повреждённая строка: собеседник объявит ключи заново
+            }
+        }
+        logLines = lines;
+        // Журнал мог быть записан с большей capacity
+        boolean evicted = true;
+        while (entries.size() > capacity && evicted) {
+            evicted = evictLeastRecentlyUsed();
+        }
+        if (logLines > 2 * liveNames() + COMPACT_SLACK) {
+            rewrite();
+        }
+    }
+
+    // Последняя строка имени: запись с ключами и/или закреплённый ключ подписи
+    private void restore(String user, String[] parts) throws GeneralSecurityException, ProtocolException {
+        long lastSeen = Long.parseLong(parts[1]);
+        byte[] record = Base64.getDecoder().decode(parts[3]);
+        byte[][] encoded = new byte[4][];
+        if (MANUAL.equals(parts[0])) {
+            encoded[KeyAnnouncement.KIND_RSA] = record;
+            Entry entry = new Entry(user, KeyAnnouncement.fingerprint(record), parse("RSA", record), null, null,
+                    true, lastSeen, lastSeen);
+            entries.put(user, new Stored(entry, encoded, record));
+            return;
+        }
+        if (PINNED.equals(parts[0])) {
+            parse("Ed25519", record);
+            pins.put(user, record);
+            return;
+        }
+        if (!ANNOUNCED.equals(parts[0])) {
+            return;
+        }
+        // Подпись проверена при получении, журнал свой
+        KeyAnnouncement announcement = KeyAnnouncement.parse(ByteBuffer.wrap(record));
+        for (byte kind = 1; kind < 4; kind++) {
+            encoded[kind] = announcement.key(kind);
+        }
+        byte[] rsa = encoded[KeyAnnouncement.KIND_RSA];
+        byte[] agreement = encoded[KeyAnnouncement.KIND_X25519];
+        byte[] signing = encoded[KeyAnnouncement.KIND_ED25519];
+        Entry entry = new Entry(user, KeyAnnouncement.fingerprint(signing),
+                rsa == null ? null : parse("RSA", rsa), agreement == null ? null : parse("X25519", agreement),
+                parse("Ed25519", signing), false, announcement.timestamp(), lastSeen);
+        pins.put(user, signing);
+        Stored stored = new Stored(entry, encoded, record);
+        if (!isExpired(stored)) {
+            entries.put(user, stored);
+        }
+    }
+
+    // Имена, у которых в журнале есть живая строка
+    private int liveNames() {
+        int count = pins.size();
+        for (Stored stored : entries.values()) {
+            if (stored.entry.manual()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Вызывается под this
+    private void append(String kind, String user, long time, byte[] data) throws IOException {
+        if (file == null) {
+            return;
+        }
+        if (log == null) {
+            Path parent = file.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            log = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+        }
+        log.write(line(kind, user, time, data));
+        log.newLine();
+        log.flush();
+        if (++logLines > 2 * liveNames() + COMPACT_SLACK) {
+            rewrite();
+        }
+    }
+
+    // Вызывается под this: журнал из одной строки на каждую живую запись
+    private void rewrite() throws IOException {
+        close();
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temporary = parent.resolve(file.getFileName() + ".tmp");
+        int lines = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            for (Stored stored : entries.values()) {
+                writer.write(line(stored.entry.manual() ? MANUAL : ANNOUNCED, stored.entry.user(),
+                        stored.entry.lastSeen(), stored.record));
+                writer.newLine();
+                lines++;
+            }
+            for (Map.Entry<String, byte[]> pin : pins.entrySet()) {
+                if (!entries.containsKey(pin.getKey())) {
+                    writer.write(line(PINNED, pin.getKey(), 0, pin.getValue()));
+                    writer.newLine();
+                    lines++;
+                }
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logLines = lines;
+    }
+
+    private static String line(String kind, String user, long time, byte[] data) {
+        return kind + " " + time + " " + Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(user.getBytes(StandardCharsets.UTF_8)) + " " + Base64.getEncoder().encodeToString(data);
+    }
+
+    private static String decodeName(String encoded) {
+        return new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,36 @@
+package protocol;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Общий секрет собеседников (32 байта), из которого каждый набор шифров выводит свой ключ.
+ * Последний выведенный ключ запоминается: с одним собеседником обычно работает один набор,
+ * так что на сообщение вывод ключа не тратится.
+ */
+public final class KeyMaterial {
+    public static final int LENGTH = 32;
+
+    private record Derived(CipherSuite suite, SecretKey key) {
+    }
+
+    private final byte[] secret;
+    private volatile Derived last;
+
+    public KeyMaterial(byte[] secret) {
+        if (secret.length < LENGTH) {
+            throw new IllegalArgumentException("Секрет короче " + LENGTH + " байт");
+        }
+        this.secret = secret.clone();
+    }
+
+    public SecretKey keyFor(CipherSuite suite) throws GeneralSecurityException {
+        Derived derived = last;
+        if (derived == null || derived.suite() != suite) {
+            derived = new Derived(suite, suite.key(secret));
+            last = derived;
+        }
+        return derived.key();
+    }
+}
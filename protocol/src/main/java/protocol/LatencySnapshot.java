@@ -0,0 +1,44 @@
+package protocol;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Срез гистограммы задержек для JMX, все значения в наносекундах.
+ * В MXBean превращается в CompositeData, поэтому читается любым JMX-клиентом без классов проекта.
+ */
+public final class LatencySnapshot {
+    private final long count;
+    private final long mean;
+    private final long p50;
+    private final long p99;
+    private final long max;
+
+    @ConstructorProperties({"count", "mean", "p50", "p99", "max"})
+    public LatencySnapshot(long count, long mean, long p50, long p99, long max) {
+        this.count = count;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p99 = p99;
+        this.max = max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMean() {
+        return mean;
+    }
+
+    public long getP50() {
+        return p50;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    public long getMax() {
+        return max;
+    }
+}
@@ -0,0 +1,92 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+// Прежний формат клиента symmetric: AES-128 в режиме ECB без проверки целостности, ключ - первые 16 байт
+// секрета. Только для собеседников, которые не прислали список наборов. aad не используется.
+// После doFinal шифр возвращается в состояние после init, поэтому при том же ключе и режиме
+// повторная инициализация не нужна
+final class LegacyCipherSuite implements CipherSuite {
+    private static final String TRANSFORMATION = "AES/ECB/PKCS5Padding";
+    private static final int KEY_LENGTH = 16;
+    private static final int BLOCK = 16;
+
+    private static final class State {
+        private final Cipher cipher;
+        private Key key;
+        private int mode;
+
+        private State(Cipher cipher) {
+            this.cipher = cipher;
+        }
+    }
+
+    private final ThreadLocal<State> state = ThreadLocal.withInitial(LegacyCipherSuite::newState);
+
+    @Override
+    public byte id() {
+        return Envelope.SUITE_AES_ECB;
+    }
+
+    @Override
+    public String name() {
+        return "AES-128-ECB";
+    }
+
+    @Override
+    public boolean isAuthenticated() {
+        return false;
+    }
+
+    @Override
+    public SecretKey key(byte[] secret) {
+        return new SecretKeySpec(secret, 0, KEY_LENGTH, "AES");
+    }
+
+    @Override
+    public int sealedLength(int plainLength) {
+        return (plainLength / BLOCK + 1) * BLOCK;
+    }
+
+    @Override
+    public void seal(SecretKey key, byte[] aad, ByteBuffer plain, ByteBuffer out) throws GeneralSecurityException {
+        cipher(Cipher.ENCRYPT_MODE, key).doFinal(plain, out);
+    }
+
+    @Override
+    public ByteBuffer open(SecretKey key, byte[] aad, ByteBuffer sealed) throws GeneralSecurityException {
+        Cipher cipher = cipher(Cipher.DECRYPT_MODE, key);
+        ByteBuffer plain = ByteBuffer.allocate(cipher.getOutputSize(sealed.remaining()));
+        cipher.doFinal(sealed.duplicate(), plain);
+        return plain.flip();
+    }
+
+    @Override
+    public String toString() {
+        return name();
+    }
+
+    private Cipher cipher(int mode, Key key) throws GeneralSecurityException {
+        State current = state.get();
+        if (current.key != key || current.mode != mode) {
+            current.cipher.init(mode, key);
+            current.key = key;
+            current.mode = mode;
+        }
+        return current.cipher;
+    }
+
+    private static State newState() {
+        try {
+            return new State(Cipher.getInstance(TRANSFORMATION));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Шифр " + TRANSFORMATION + " недоступен", e);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Неблокирующее соединение. send() только кодирует кадр в direct-буфер и ставит его в очередь,
+ * запись и чтение выполняет поток NioEventLoop с учётом частичных операций.
+ * Накопившиеся кадры уходят одной gathering-записью. pauseReading снимает OP_READ только с этого канала.
+ */
+public final class NioConnection implements ChatConnection {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final NioEventLoop loop;
+    private final SocketChannel channel;
+    private final FrameListener listener;
+    private final FrameCodec outboundCodec;
+    private final FrameDecoder decoder;
+    private final ByteBuffer readBuffer;
+    private final OutboundQueue outbound;
+    private final ChatMetrics metrics;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    // Поля ниже трогает только поток NioEventLoop
+    private SelectionKey key;
+    private boolean connected;
+    private boolean readingPaused;
+    private volatile boolean closed;
+
+    NioConnection(NioEventLoop loop, SocketChannel channel, FrameCodec codec, FrameListener listener,
+                  ChatMetrics metrics) {
+        this.loop = loop;
+        this.channel = channel;
+        this.listener = listener;
+        this.metrics = metrics;
+        this.outboundCodec = new FrameCodec(loop.directPool(), codec.maxFrameSize());
+        this.outbound = new OutboundQueue(loop.directPool(), metrics);
+        this.decoder = new FrameDecoder(codec);
+        this.readBuffer = loop.directPool().acquire(READ_BUFFER_SIZE);
+    }
+
+    @Override
+    public CompletableFuture<Void> send(CharSequence message) throws IOException {
+        if (closed) {
+            throw new IOException("Соединение закрыто");
+        }
+        return enqueue(outboundCodec.encode(message));
+    }
+
+    @Override
+    public CompletableFuture<Void> send(ByteBuffer body) throws IOException {
+        if (closed) {
+            throw new IOException("Соединение закрыто");
+        }
+        return enqueue(outboundCodec.encode(body));
+    }
+
+    @Override
+    public void pauseReading() {
+        runInLoop(() -> setReading(false));
+    }
+
+    @Override
+    public void resumeReading() {
+        runInLoop(() -> setReading(true));
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            loop.execute(() -> closeNow(null));
+        }
+    }
+
+    void register(Selector selector, boolean connectedImmediately) {
+        try {
+            key = channel.register(selector, connectedImmediately
+                    ? (readingPaused ? 0 : SelectionKey.OP_READ) : SelectionKey.OP_CONNECT, this);
+            if (connectedImmediately) {
+                onConnected();
+            }
+        } catch (IOException e) {
+            closeNow(e);
+        } catch (RuntimeException e) {
+            closeNow(new IOException(e));
+        }
+    }
+
+    void handle(SelectionKey key) {
+        try {
+            if (key.isConnectable() && channel.finishConnect()) {
+                key.interestOps(readingPaused ? 0 : SelectionKey.OP_READ);
+                onConnected();
+            }
+            if (key.isValid() && key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+        } catch (IOException e) {
+            closeNow(e);
+        } catch (CancelledKeyException e) {
+            closeNow(null);
+        } catch (RuntimeException e) {
+            // Ошибка обработчика не должна останавливать общий цикл
+            closeNow(new IOException(e));
+        }
+    }
+
+    void closeNow(IOException cause) {
+        if (key == null && !channel.isOpen()) {
+            return;
+        }
+        boolean wasClosed = closed;
+        closed = true;
+        if (key != null) {
+            key.cancel();
+            key = null;
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+
+        outbound.fail(cause != null ? cause : new IOException("Соединение закрыто"));
+        decoder.release();
+        loop.directPool().release(readBuffer);
+
+        if (!wasClosed && cause != null) {
+            try {
+                listener.onDisconnected(cause);
+            } catch (RuntimeException ignored) {
+                // Соединение уже закрыто, а поток цикла общий для всех
+            }
+        }
+    }
+
+    private void onConnected() throws IOException {
+        connected = true;
+        listener.onConnected(this);
+        flush();
+    }
+
+    private void read() throws IOException {
+        int count = channel.read(readBuffer);
+        if (count < 0) {
+            throw new EOFException("Сервер закрыл соединение");
+        }
+        readBuffer.flip();
+        Frame next;
+        // Время разбора - без времени обработчика кадра
+        long started = System.nanoTime();
+        while ((next = decoder.decode(readBuffer)) != null) {
+            metrics.frameParse().recordSince(started);
+            metrics.frameIn(FrameCodec.HEADER_LENGTH + next.length());
+            try (Frame frame = next) {
+                listener.onFrame(frame);
+            }
+            started = System.nanoTime();
+        }
+        readBuffer.clear();
+    }
+
+    private void runInLoop(Runnable task) {
+        if (loop.inEventLoop()) {
+            task.run();
+        } else {
+            loop.execute(task);
+        }
+    }
+
+    // Только в потоке NioEventLoop. До подключения запоминается и применяется в handle
+    private void setReading(boolean reading) {
+        readingPaused = !reading;
+        if (!connected || key == null || !key.isValid()) {
+            return;
+        }
+        int ops = key.interestOps();
+        key.interestOps(reading ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ);
+    }
+
+    private CompletableFuture<Void> enqueue(ByteBuffer frame) {
+        CompletableFuture<Void> done = outbound.add(frame);
+        if (closed) {
+            // Соединение закрылось, пока кадр кодировался: closeNow мог уже разобрать очередь
+            outbound.failQueued(new IOException("Соединение закрыто"));
+        } else {
+            scheduleFlush();
+        }
+        return done;
+    }
+
+    private void scheduleFlush() {
+        if (loop.inEventLoop()) {
+            flushFromTask();
+            return;
+        }
+        // Пока задача записи уже стоит в очереди, повторно будить селектор не нужно
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flushFromTask);
+        }
+    }
+
+    private void flushFromTask() {
+        flushScheduled.set(false);
+        try {
+            flush();
+        } catch (IOException e) {
+            closeNow(e);
+        } catch (CancelledKeyException e) {
+            closeNow(null);
+        } catch (RuntimeException e) {
+            closeNow(new IOException(e));
+        }
+    }
+
+    // Пишет накопившиеся кадры gathering-записью, пока сокет принимает данные. Остаток дописывается по OP_WRITE
+    private void flush() throws IOException {
+        if (!connected || key == null) {
+            return;
+        }
+        if (outbound.writeTo(channel)) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } else {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Один поток с Selector, который обслуживает все NIO-соединения процесса.
+ * Остальные потоки общаются с ним только через очередь задач.
+ */
+public final class NioEventLoop implements Closeable {
+    private static NioEventLoop shared;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final BufferPool directPool = new BufferPool(64, true);
+    private volatile boolean running = true;
+
+    public NioEventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public static synchronized NioEventLoop shared() throws IOException {
+        if (shared == null) {
+            shared = new NioEventLoop("chat-nio");
+        }
+        return shared;
+    }
+
+    public NioConnection connect(String host, int port, FrameCodec codec, FrameListener listener)
+            throws IOException {
+        return connect(host, port, codec, listener, new ChatMetrics());
+    }
+
+    public NioConnection connect(String host, int port, FrameCodec codec, FrameListener listener,
+                                 ChatMetrics metrics) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            NioConnection connection = new NioConnection(this, channel, codec, listener, metrics);
+            boolean connected = channel.connect(new InetSocketAddress(host, port));
+            execute(() -> connection.register(selector, connected));
+            return connection;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    BufferPool directPool() {
+        return directPool;
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select();
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        connection.handle(key);
+                    } catch (RuntimeException e) {
+                        // Ошибка в обработчике одного соединения закрывает только его, а не общий поток
+                        connection.closeNow(new IOException(e));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    ((NioConnection) key.attachment()).closeNow(null);
+                } catch (RuntimeException ignored) {
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            // Задачи соединений сами закрывают своё соединение при ошибке (см. NioConnection),
+            // сюда доходит только то, что не относится ни к одному из них
+            try {
+                task.run();
+            } catch (RuntimeException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Очередь исходящих кадров: добавляют любые потоки, разбирает один поток транспорта.
+ * Накопившиеся кадры уходят одной gathering-записью, до MAX_BATCH кадров за системный вызов.
+ * Future кадра завершается в потоке транспорта, когда кадр целиком передан в сокет,
+ * тогда же кадр учитывается в метриках.
+ */
+final class OutboundQueue {
+    private static final int MAX_BATCH = 64;
+
+    private record Pending(ByteBuffer frame, CompletableFuture<Void> done) {
+    }
+
+    private final BufferPool pool;
+    private final ChatMetrics metrics;
+    private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+
+    // Поля ниже трогает только поток транспорта
+    private final ArrayDeque<Pending> batch = new ArrayDeque<>(MAX_BATCH);
+    private final ByteBuffer[] buffers = new ByteBuffer[MAX_BATCH];
+
+    OutboundQueue(BufferPool pool, ChatMetrics metrics) {
+        this.pool = pool;
+        this.metrics = metrics;
+    }
+
+    // Кадр должен быть взят из pool, после записи он возвращается туда же
+    CompletableFuture<Void> add(ByteBuffer frame) {
+        Pending pending = new Pending(frame, new CompletableFuture<>());
+        queue.add(pending);
+        return pending.done();
+    }
+
+    boolean isEmpty() {
+        return batch.isEmpty() && queue.isEmpty();
+    }
+
+    // Пишет, пока канал принимает данные. false - неблокирующий канал заполнен, остаток ждёт OP_WRITE
+    boolean writeTo(GatheringByteChannel channel) throws IOException {
+        while (true) {
+            Pending next;
+            while (batch.size() < MAX_BATCH && (next = queue.poll()) != null) {
+                batch.add(next);
+            }
+            if (batch.isEmpty()) {
+                return true;
+            }
+
+            int count = 0;
+            for (Pending pending : batch) {
+                buffers[count++] = pending.frame();
+            }
+            long written = channel.write(buffers, 0, count);
+            Arrays.fill(buffers, 0, count, null);
+
+            while (!batch.isEmpty() && !batch.peekFirst().frame().hasRemaining()) {
+                Pending sent = batch.pollFirst();
+                metrics.frameOut(sent.frame().limit());
+                pool.release(sent.frame());
+                sent.done().complete(null);
+            }
+            if (written == 0 && !batch.isEmpty()) {
+                return false;
+            }
+        }
+    }
+
+    // Вызывается потоком транспорта при закрытии: все недописанные кадры завершаются ошибкой
+    void fail(IOException cause) {
+        Pending pending;
+        while ((pending = batch.pollFirst()) != null) {
+            pool.release(pending.frame());
+            pending.done().completeExceptionally(cause);
+        }
+        failQueued(cause);
+    }
+
+    // Безопасно из любого потока: отправитель мог добавить кадр уже после закрытия соединения
+    void failQueued(IOException cause) {
+        Pending pending;
+        while ((pending = queue.poll()) != null) {
+            pool.release(pending.frame());
+            pending.done().completeExceptionally(cause);
+        }
+    }
+}
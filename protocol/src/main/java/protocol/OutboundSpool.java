@@ -0,0 +1,302 @@
+package protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32C;
+
+/**
+ * Очередь исходящих сообщений на диске: всё, что ещё не подтвердил сервер, переживает и разрыв
+ * соединения, и перезапуск клиента. Формат файла:
+ * <pre>
+ * заголовок: [MAGIC 4][идентификатор сеанса 16][последний подтверждённый номер 8]
+ * запись:    [длина тела 4][crc32c 4][номер 8][тело "отправитель:сообщение"]
+ * </pre>
+ * Сообщение записывается сразу при отправке с номером 0 (queue), а номер получает, когда уходит
+ * на провод (number): он пишется на место нуля, crc его не покрывает. Записи без номера после
+ * перезапуска возвращаются через queued(). Когда подтверждено всё, файл обрезается до заголовка,
+ * а если подтверждённые записи разрослись, живые переписываются в новый файл.
+ * Без fsync: сообщения теряются только при сбое самой ОС, зато запись не ждёт диска.
+ */
+final class OutboundSpool implements Closeable {
+    private static final int MAGIC = 0x53504C31; // "SPL1"
+    private static final int HEADER = 4 + 16 + 8;
+    private static final int RECORD_OVERHEAD = 4 + 4 + 8;
+    private static final int ACKED_OFFSET = 4 + 16;
+    private static final long COMPACT_THRESHOLD = 1 << 20;
+    static final long DEFAULT_CAPACITY = 64L << 20;
+
+    private static final long UNNUMBERED = 0;
+
+    record Entry(long sequence, ByteBuffer body) {
+    }
+
+    // Запись ещё без номера; offset - её начало в файле
+    static final class Queued {
+        private final ByteBuffer body;
+        private long offset;
+
+        private Queued(ByteBuffer body, long offset) {
+            this.body = body;
+            this.offset = offset;
+        }
+
+        ByteBuffer body() {
+            return body.duplicate();
+        }
+    }
+
+    private final Path path;
+    private final long capacity;
+    private final String sessionId;
+    private final ArrayDeque<Entry> pending = new ArrayDeque<>();
+    private final LinkedHashSet<Queued> queued = new LinkedHashSet<>();
+    private final CRC32C crc = new CRC32C();
+    private final ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_OVERHEAD);
+
+    private FileChannel channel;
+    private long acknowledged;
+    private long lastSequence;
+    private long pendingBytes;
+    // Байты подтверждённых записей, ещё лежащих в файле
+    private long deadBytes;
+
+    private OutboundSpool(Path path, long capacity, String sessionId, FileChannel channel) {
+        this.path = path;
+        this.capacity = capacity;
+        this.sessionId = sessionId;
+        this.channel = channel;
+    }
+
+    static OutboundSpool open(Path path) throws IOException {
+        return open(path, DEFAULT_CAPACITY);
+    }
+
+    // Существующий файл продолжает прежний сеанс, иначе создаётся новый со случайным идентификатором
+    static OutboundSpool open(Path path, long capacity) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            if (channel.read(header, 0) == HEADER && header.getInt(0) == MAGIC) {
+                UUID id = new UUID(header.getLong(4), header.getLong(12));
+                OutboundSpool spool = new OutboundSpool(path, capacity, format(id), channel);
+                spool.acknowledged = header.getLong(ACKED_OFFSET);
+                spool.lastSequence = spool.acknowledged;
+                spool.load();
+                return spool;
+            }
+            UUID id = UUID.randomUUID();
+            channel.truncate(0);
+            channel.write(header.clear().putInt(MAGIC).putLong(id.getMostSignificantBits())
+                    .putLong(id.getLeastSignificantBits()).putLong(0).flip(), 0);
+            return new OutboundSpool(path, capacity, format(id), channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    String sessionId() {
+        return sessionId;
+    }
+
+    synchronized long lastSequence() {
+        return lastSequence;
+    }
+
+    synchronized int size() {
+        return pending.size();
+    }
+
+    // Дописывает тело в конец файла без номера
+    synchronized Queued queue(ByteBuffer body) throws IOException {
+        int length = body.remaining();
+        if (pendingBytes + length > capacity) {
+            throw new IOException("Очередь неотправленных сообщений переполнена");
+        }
+        ByteBuffer copy = ByteBuffer.allocate(length).put(body.duplicate()).flip();
+        long end = channel.size();
+        try {
+            writeRecord(channel, end, UNNUMBERED, copy);
+        } catch (IOException e) {
+            // Недописанная запись не должна оказаться перед следующими
+            channel.truncate(end);
+            throw e;
+        }
+        Queued entry = new Queued(copy, end);
+        queued.add(entry);
+        pendingBytes += length;
+        return entry;
+    }
+
+    // Присваивает записи из queue следующий номер; номера идут в порядке вызовов, а не записи в файл
+    synchronized long number(Queued entry) throws IOException {
+        if (!queued.contains(entry)) {
+            throw new IllegalStateException("Запись уже получила номер");
+        }
+        long sequence = lastSequence + 1;
+        ByteBuffer value = ByteBuffer.allocate(Long.BYTES).putLong(0, sequence);
+        while (value.hasRemaining()) {
+            channel.write(value, entry.offset + 8 + value.position());
+        }
+        queued.remove(entry);
+        lastSequence = sequence;
+        pending.add(new Entry(sequence, entry.body));
+        return sequence;
+    }
+
+    // Неподтверждённые записи по порядку номеров
+    synchronized List<Entry> pending() {
+        return new ArrayList<>(pending);
+    }
+
+    // Записи без номера в порядке отправки
+    synchronized List<Queued> queued() {
+        return new ArrayList<>(queued);
+    }
+
+    // Сервер принял все номера до sequence включительно
+    synchronized void acknowledge(long sequence) throws IOException {
+        if (sequence <= acknowledged) {
+            return;
+        }
+        acknowledged = Math.min(sequence, lastSequence);
+        while (!pending.isEmpty() && pending.peekFirst().sequence() <= acknowledged) {
+            Entry entry = pending.pollFirst();
+            pendingBytes -= entry.body().remaining();
+            deadBytes += RECORD_OVERHEAD + entry.body().remaining();
+        }
+        if (pending.isEmpty() && queued.isEmpty()) {
+            channel.truncate(HEADER);
+            deadBytes = 0;
+        } else if (deadBytes > COMPACT_THRESHOLD && deadBytes > pendingBytes) {
+            compact();
+        }
+        writeAcknowledged();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private void load() throws IOException {
+        long size = channel.size();
+        long position = HEADER;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_OVERHEAD);
+        List<Entry> numbered = new ArrayList<>();
+        while (position + RECORD_OVERHEAD <= size) {
+            header.clear();
+            readFully(header, position);
+            int length = header.getInt(0);
+            long sequence = header.getLong(8);
+            if (length < 0 || sequence < 0 || position + RECORD_OVERHEAD + length > size) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(length);
+            readFully(body, position + RECORD_OVERHEAD);
+            body.flip();
+            crc.reset();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != header.getInt(4)) {
+                break;
+            }
+            if (sequence == UNNUMBERED) {
+                queued.add(new Queued(body, position));
+                pendingBytes += length;
+            } else if (sequence <= acknowledged) {
+                deadBytes += RECORD_OVERHEAD + length;
+            } else {
+                numbered.add(new Entry(sequence, body));
+                pendingBytes += length;
+            }
+            position += RECORD_OVERHEAD + length;
+            lastSequence = Math.max(lastSequence, sequence);
+        }
+        // Номер достаётся позже, чем запись попадает в файл, поэтому порядок в файле не по номерам
+        numbered.sort(Comparator.comparingLong(Entry::sequence));
+        pending.addAll(numbered);
+        // Оборванная при сбое запись в конце отбрасывается
+        channel.truncate(position);
+    }
+
+    // Переписывает живые записи в новый файл и атомарно заменяет им прежний
+    private void compact() throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        readFully(header, 0);
+        header.flip();
+        Map<Queued, Long> offsets = new HashMap<>();
+        try (FileChannel target = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (header.hasRemaining()) {
+                target.write(header);
+            }
+            long position = HEADER;
+            for (Entry entry : pending) {
+                position = writeRecord(target, position, entry.sequence(), entry.body());
+            }
+            for (Queued entry : queued) {
+                offsets.put(entry, position);
+                position = writeRecord(target, position, UNNUMBERED, entry.body);
+            }
+        }
+        channel.close();
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        offsets.forEach((entry, offset) -> entry.offset = offset);
+        deadBytes = 0;
+    }
+
+    // Возвращает позицию за записью
+    private long writeRecord(FileChannel target, long position, long sequence, ByteBuffer body) throws IOException {
+        crc.reset();
+        crc.update(body.duplicate());
+        recordHeader.clear().putInt(body.remaining()).putInt((int) crc.getValue()).putLong(sequence).flip();
+        for (ByteBuffer buffer : new ByteBuffer[]{recordHeader, body.duplicate()}) {
+            while (buffer.hasRemaining()) {
+                position += target.write(buffer, position);
+            }
+        }
+        return position;
+    }
+
+    private void writeAcknowledged() throws IOException {
+        ByteBuffer value = ByteBuffer.allocate(Long.BYTES).putLong(0, acknowledged);
+        channel.write(value, ACKED_OFFSET);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Файл очереди обрезан: " + path);
+            }
+            position += read;
+        }
+    }
+
+    private static String format(UUID id) {
+        return HexFormat.of().toHexDigits(id.getMostSignificantBits())
+                + HexFormat.of().toHexDigits(id.getLeastSignificantBits());
+    }
+}
@@ -0,0 +1,439 @@
+package protocol;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Соединение, которое переживает разрывы. Сообщения ("отправитель:...") сначала попадают в OutboundSpool
+ * и получают номер, после разрыва транспорт переподключается с экспоненциальной задержкой и случайным
+ * разбросом, а по ответу сервера на "resume" повторно уходит только неподтверждённый хвост (см. SessionResume).
+ * Служебные кадры без ":" (имя пользователя) идут напрямую в текущее соединение.
+ * <p>
+ * Если сервер не отвечает на "resume", он считается старым: сообщения уходят без номеров, а из очереди
+ * удаляются, как только записаны в сокет.
+ * <p>
+ * Future сообщения завершается подтверждением сервера. FrameListener.onConnected вызывается
+ * при каждом подключении, поэтому имя пользователя отправляется заново.
+ * <p>
+ * На диск сообщение попадает сразу при отправке, а ChannelScheduler решает только, когда оно уйдёт: номер
+ * получает тот кадр, который планировщик выпустил, так что на провод они уходят по возрастанию номеров,
+ * а неподтверждённых байт каждого канала и всего соединения не больше кредита. Ещё не выпущенные
+ * сообщения прошлого запуска снова ставятся в планировщик при открытии.
+ */
+public final class ResumableConnection implements ChatConnection {
+    private static final long INITIAL_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+    // Столько ждём ответа на "resume", потом сервер считается старым
+    private static final long RESUME_TIMEOUT_MILLIS = 3000;
+    // Неподтверждённые байты всех каналов: новое сообщение ждёт за уже отправленными не дольше этого
+    private static final long SEND_WINDOW = 128 * 1024;
+
+    private enum State {
+        CONNECTING, HANDSHAKE, RESUMED, LEGACY, CLOSED
+    }
+
+    private record Waiter(long sequence, CompletableFuture<Void> done, Channel channel, int size) {
+    }
+
+    private record Outgoing(OutboundSpool.Queued stored, CompletableFuture<Void> done, long queuedAt) {
+    }
+
+    private final TransportMode mode;
+    private final String host;
+    private final int port;
+    private final FrameCodec codec;
+    private final FrameListener listener;
+    private final ChatMetrics metrics;
+    private final OutboundSpool spool;
+    private final FrameCapture capture;
+
+    // Поля ниже защищены this
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+    private final ChannelScheduler<Outgoing> scheduler = ChannelScheduler.withCredits(SEND_WINDOW);
+    private State state = State.CONNECTING;
+    private Link link;
+    private int failures;
+    private boolean connectedBefore;
+    // Применяется и к соединениям после переподключения
+    private boolean readingPaused;
+
+    private ResumableConnection(TransportMode mode, String host, int port, FrameCodec codec, FrameListener listener,
+                                ChatMetrics metrics, OutboundSpool spool, FrameCapture capture) {
+        this.mode = mode;
+        this.host = host;
+        this.port = port;
+        this.codec = codec;
+        this.listener = listener;
+        this.metrics = metrics;
+        this.spool = spool;
+        this.capture = capture;
+    }
+
+    // Неподтверждённые сообщения из spoolFile, оставшиеся с прошлого запуска, уйдут после первого подключения
+    public static ResumableConnection open(TransportMode mode, String host, int port, FrameCodec codec,
+                                           FrameListener listener, ChatMetrics metrics, Path spoolFile)
+            throws IOException {
+        return open(mode, host, port, codec, listener, metrics, spoolFile, null);
+    }
+
+    // capture != null - кадры всех подключений пишутся в одну запись, закрывает её вызывающий
+    public static ResumableConnection open(TransportMode mode, String host, int port, FrameCodec codec,
+                                           FrameListener listener, ChatMetrics metrics, Path spoolFile,
+                                           FrameCapture capture) throws IOException {
+        ResumableConnection connection = new ResumableConnection(mode, host, port, codec, listener, metrics,
+                OutboundSpool.open(spoolFile), capture);
+        try {
+            connection.requeue();
+        } catch (IOException e) {
+            connection.spool.close();
+            throw e;
+        }
+        connection.connect();
+        return connection;
+    }
+
+    // Сообщения, которые сервер ещё не подтвердил
+    public synchronized int pendingCount() {
+        return spool.size() + scheduler.size();
+    }
+
+    @Override
+    public CompletableFuture<Void> send(CharSequence message) throws IOException {
+        return send(StandardCharsets.UTF_8.encode(CharBuffer.wrap(message)));
+    }
+
+    @Override
+    public CompletableFuture<Void> send(ByteBuffer body) throws IOException {
+        if (!Frame.hasSender(body)) {
+            return sendControl(body);
+        }
+        if (body.remaining() + SessionResume.SEQUENCE_LENGTH > codec.maxFrameSize()) {
+            throw new ProtocolException("Размер сообщения превышает " + codec.maxFrameSize() + " байт");
+        }
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                throw new IOException("Соединение закрыто");
+            }
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            OutboundSpool.Queued stored = spool.queue(body);
+            scheduler.add(Channel.byRecipient(body), new Outgoing(stored, done, System.nanoTime()), body.remaining());
+            dispatch();
+            return done;
+        }
+    }
+
+    // Сообщения прошлого запуска, которые так и не получили номер; их future никто не ждёт
+    private synchronized void requeue() throws IOException {
+        for (OutboundSpool.Queued stored : spool.queued()) {
+            ByteBuffer body = stored.body();
+            scheduler.add(Channel.byRecipient(body), new Outgoing(stored, new CompletableFuture<>(), System.nanoTime()),
+                    body.remaining());
+        }
+        dispatch();
+    }
+
+    @Override
+    public void pauseReading() {
+        setReading(false);
+    }
+
+    @Override
+    public void resumeReading() {
+        setReading(true);
+    }
+
+    // Под this, чтобы остановка и возобновление дошли до соединения в том же порядке
+    private synchronized void setReading(boolean reading) {
+        readingPaused = !reading;
+        ChatConnection current = link == null ? null : link.connection;
+        if (current == null) {
+            return;
+        }
+        if (reading) {
+            current.resumeReading();
+        } else {
+            current.pauseReading();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        List<Waiter> left;
+        List<ChannelScheduler.Entry<Outgoing>> queued;
+        Link current;
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                return;
+            }
+            state = State.CLOSED;
+            current = link;
+            link = null;
+            left = new ArrayList<>(waiters);
+            waiters.clear();
+            queued = scheduler.drain();
+        }
+        try {
+            if (current != null) {
+                current.close();
+            }
+        } finally {
+            spool.close();
+            IOException cause = new IOException("Соединение закрыто, сообщение останется в очереди до следующего запуска");
+            for (Waiter waiter : left) {
+                waiter.done().completeExceptionally(cause);
+            }
+            for (ChannelScheduler.Entry<Outgoing> entry : queued) {
+                entry.value().done().completeExceptionally(cause);
+            }
+        }
+    }
+
+    private CompletableFuture<Void> sendControl(ByteBuffer body) throws IOException {
+        ChatConnection current;
+        synchronized (this) {
+            current = state == State.CLOSED || link == null ? null : link.connection;
+        }
+        if (current == null) {
+            throw new IOException("Нет соединения с сервером");
+        }
+        return current.send(body);
+    }
+
+    private void connect() {
+        Link next = new Link();
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                return;
+            }
+            link = next;
+        }
+        try {
+            next.opened(ChatConnection.open(mode, host, port, codec, next, metrics, capture));
+        } catch (IOException e) {
+            lost(next, e);
+        }
+    }
+
+    private void lost(Link lostLink, IOException cause) {
+        long delay;
+        synchronized (this) {
+            if (lostLink != link || state == State.CLOSED) {
+                return;
+            }
+            link = null;
+            state = State.CONNECTING;
+            delay = backoff(failures++);
+        }
+        lostLink.close();
+        listener.onReconnecting(cause, delay);
+        Thread.ofVirtual().name("chat-reconnect").start(() -> {
+            try {
+                Thread.sleep(delay);
+                connect();
+            } catch (InterruptedException ignored) {
+            }
+        });
+    }
+
+    // Сервер сообщил последний принятый номер (resumable) или не ответил вовсе
+    private void restore(Link restored, long lastSequence, boolean resumable) {
+        int replayed = 0;
+        boolean notify;
+        try {
+            synchronized (this) {
+                if (restored != link || state != State.HANDSHAKE) {
+                    return;
+                }
+                if (resumable) {
+                    acknowledge(lastSequence);
+                }
+                state = resumable ? State.RESUMED : State.LEGACY;
+                for (OutboundSpool.Entry entry : spool.pending()) {
+                    transmit(restored, entry.sequence(), entry.body());
+                    if (entry.sequence() <= restored.resumeLimit) {
+                        replayed++;
+                    }
+                }
+                failures = 0;
+                notify = connectedBefore || replayed > 0;
+                connectedBefore = true;
+            }
+        } catch (IOException e) {
+            spoolFailed(e);
+            return;
+        }
+        if (notify) {
+            listener.onResumed(replayed);
+        }
+    }
+
+    private void acknowledged(Link from, long sequence) {
+        try {
+            synchronized (this) {
+                if (from != link || state == State.CLOSED) {
+                    return;
+                }
+                acknowledge(sequence);
+            }
+        } catch (IOException e) {
+            spoolFailed(e);
+        }
+    }
+
+    // Вызывается под this
+    private void acknowledge(long sequence) throws IOException {
+        boolean released = false;
+        while (!waiters.isEmpty() && waiters.peekFirst().sequence() <= sequence) {
+            Waiter waiter = waiters.pollFirst();
+            scheduler.release(waiter.channel(), waiter.size());
+            waiter.done().complete(null);
+            released = true;
+        }
+        spool.acknowledge(sequence);
+        if (released) {
+            dispatch();
+        }
+    }
+
+    // Вызывается под this: выпущенные планировщиком сообщения получают номер и уходят, если есть соединение.
+    // Без соединения кредит не возвращается, поэтому номер получает не больше окна
+    private void dispatch() throws IOException {
+        ChannelScheduler.Entry<Outgoing> next;
+        while ((next = scheduler.poll()) != null) {
+            Outgoing outgoing = next.value();
+            LatencyHistogram queueDelay = metrics.sendQueue(next.channel().trafficClass());
+            if (queueDelay != null) {
+                queueDelay.recordSince(outgoing.queuedAt());
+            }
+            long sequence;
+            try {
+                sequence = spool.number(outgoing.stored());
+            } catch (IOException e) {
+                scheduler.release(next.channel(), next.size());
+                outgoing.done().completeExceptionally(e);
+                throw e;
+            }
+            waiters.add(new Waiter(sequence, outgoing.done(), next.channel(), next.size()));
+            if (state == State.RESUMED || state == State.LEGACY) {
+                transmit(link, sequence, outgoing.stored().body());
+            }
+        }
+    }
+
+    // Вызывается под this. Ошибку записи обработает onDisconnected текущего соединения
+    private void transmit(Link target, long sequence, ByteBuffer body) {
+        try {
+            if (state == State.RESUMED) {
+                target.connection.send(SessionResume.sequenced(sequence, body));
+            } else {
+                target.connection.send(body).thenRun(() -> acknowledged(target, sequence));
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    // Очередь на диске больше не отражает отправленное - дальше работать нельзя
+    private void spoolFailed(IOException cause) {
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                return;
+            }
+        }
+        try {
+            close();
+        } catch (IOException ignored) {
+        }
+        listener.onDisconnected(new IOException("Ошибка очереди сообщений: " + cause.getMessage(), cause));
+    }
+
+    // Половина задержки случайна, чтобы клиенты после перезапуска сервера не подключались одновременно
+    private static long backoff(int failures) {
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(failures, 16));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    /**
+     * Одна попытка подключения. События устаревших попыток игнорируются.
+     */
+    private final class Link implements FrameListener {
+        private volatile ChatConnection connection;
+        private volatile boolean closed;
+        // Номера до этого включительно отправлялись ещё до подключения - их повтор показывается пользователю
+        private long resumeLimit;
+
+        void opened(ChatConnection opened) {
+            connection = opened;
+            if (closed) {
+                close();
+            }
+        }
+
+        void close() {
+            closed = true;
+            ChatConnection current = connection;
+            if (current != null) {
+                try {
+                    current.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        @Override
+        public void onConnected(ChatConnection opened) throws IOException {
+            synchronized (ResumableConnection.this) {
+                if (this != link || state == State.CLOSED) {
+                    opened.close();
+                    return;
+                }
+                connection = opened;
+                state = State.HANDSHAKE;
+                resumeLimit = spool.lastSequence();
+                if (readingPaused) {
+                    opened.pauseReading();
+                }
+            }
+            listener.onConnected(ResumableConnection.this);
+            opened.send(SessionResume.request(spool.sessionId()));
+            Thread.ofVirtual().name("chat-resume-timeout").start(() -> {
+                try {
+                    Thread.sleep(RESUME_TIMEOUT_MILLIS);
+                    restore(this, 0, false);
+                } catch (InterruptedException ignored) {
+                }
+            });
+        }
+
+        @Override
+        public void onFrame(Frame frame) {
+            if (!frame.hasSender()) {
+                String control = frame.payloadAsString();
+                long resumed = SessionResume.parseResumed(control);
+                if (resumed >= 0) {
+                    restore(this, resumed, true);
+                    return;
+                }
+                long ack = SessionResume.parseAck(control);
+                if (ack >= 0) {
+                    acknowledged(this, ack);
+                    return;
+                }
+            }
+            listener.onFrame(frame);
+        }
+
+        @Override
+        public void onDisconnected(IOException cause) {
+            lost(this, cause);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Служебные кадры продолжения сеанса. В них нет ":", поэтому старые клиенты и серверы их пропускают.
+ * <pre>
+ * клиент -> сервер  "resume &lt;id&gt;"      сразу после имени пользователя
+ * сервер -> клиент  "resumed &lt;n&gt;"      последний принятый номер сеанса id (0 - сеанс новый)
+ * клиент -> сервер  [номер, 8 байт]отправитель:сообщение
+ * сервер -> клиент  "ack &lt;n&gt;"          приняты все сообщения до номера n включительно
+ * </pre>
+ * Номера сообщений идут подряд с 1 в пределах сеанса. Сервер рассылает сообщение без номера
+ * и только один раз, повтор после переподключения лишь подтверждается.
+ */
+public final class SessionResume {
+    public static final int SEQUENCE_LENGTH = Long.BYTES;
+
+    private static final String REQUEST = "resume ";
+    private static final String RESUMED = "resumed ";
+    private static final String ACK = "ack ";
+    private static final int MAX_ID_LENGTH = 64;
+
+    private SessionResume() {
+    }
+
+    public static String request(String sessionId) {
+        return REQUEST + sessionId;
+    }
+
+    public static String resumed(long lastSequence) {
+        return RESUMED + lastSequence;
+    }
+
+    public static String ack(long sequence) {
+        return ACK + sequence;
+    }
+
+    // Идентификатор сеанса или null, если это не запрос продолжения
+    public static String parseRequest(String control) {
+        if (!control.startsWith(REQUEST)) {
+            return null;
+        }
+        String id = control.substring(REQUEST.length());
+        if (id.isEmpty() || id.length() > MAX_ID_LENGTH) {
+            return null;
+        }
+        for (int i = 0; i < id.length(); i++) {
+            if (Character.digit(id.charAt(i), 16) < 0) {
+                return null;
+            }
+        }
+        return id;
+    }
+
+    // -1, если кадр другого вида
+    public static long parseResumed(String control) {
+        return parseNumber(control, RESUMED);
+    }
+
+    public static long parseAck(String control) {
+        return parseNumber(control, ACK);
+    }
+
+    // Тело кадра с номером: номер и затем "отправитель:сообщение" как есть
+    public static ByteBuffer sequenced(long sequence, ByteBuffer body) {
+        ByteBuffer framed = ByteBuffer.allocate(SEQUENCE_LENGTH + body.remaining());
+        return framed.putLong(sequence).put(body.duplicate()).flip();
+    }
+
+    private static long parseNumber(String control, String prefix) {
+        if (!control.startsWith(prefix)) {
+            return -1;
+        }
+        try {
+            long value = Long.parseLong(control, prefix.length(), control.length(), 10);
+            return value < 0 ? -1 : value;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Блокирующий транспорт: на соединение два потока. Поток чтения разбирает кадры в цикле,
+ * поток записи забирает кадры из OutboundQueue и отправляет накопившиеся одной gathering-записью.
+ * send() только кодирует кадр и ставит его в очередь, поэтому не блокирует поток JavaFX.
+ * pauseReading останавливает поток чтения этого соединения перед следующим чтением.
+ */
+final class SocketConnection implements ChatConnection {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final String host;
+    private final int port;
+    private final FrameCodec codec;
+    private final FrameCodec outboundCodec;
+    private final FrameListener listener;
+    private final OutboundQueue outbound;
+    private final ChatMetrics metrics;
+    private final Thread readerThread;
+    private final Thread writerThread;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile boolean readingPaused;
+
+    private volatile SocketChannel channel;
+
+    SocketConnection(String host, int port, FrameCodec codec, FrameListener listener, ChatMetrics metrics) {
+        this.host = host;
+        this.port = port;
+        this.codec = codec;
+        this.listener = listener;
+        this.metrics = metrics;
+        // Gathering-запись из direct-буферов обходится без промежуточного копирования в JDK
+        BufferPool outboundPool = new BufferPool(16, true);
+        this.outboundCodec = new FrameCodec(outboundPool, codec.maxFrameSize());
+        this.outbound = new OutboundQueue(outboundPool, metrics);
+        this.writerThread = new Thread(this::writeLoop, "chat-socket-writer");
+        this.writerThread.setDaemon(true);
+        this.readerThread = new Thread(this::run, "chat-socket-reader");
+        this.readerThread.start();
+    }
+
+    @Override
+    public CompletableFuture<Void> send(CharSequence message) throws IOException {
+        checkOpen();
+        return enqueue(outboundCodec.encode(message));
+    }
+
+    @Override
+    public CompletableFuture<Void> send(ByteBuffer body) throws IOException {
+        checkOpen();
+        return enqueue(outboundCodec.encode(body));
+    }
+
+    @Override
+    public void pauseReading() {
+        readingPaused = true;
+    }
+
+    @Override
+    public void resumeReading() {
+        readingPaused = false;
+        LockSupport.unpark(readerThread);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed.compareAndSet(false, true)) {
+            LockSupport.unpark(writerThread);
+            LockSupport.unpark(readerThread);
+            SocketChannel current = channel;
+            if (current != null) {
+                current.close();
+            }
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed.get()) {
+            throw new IOException("Соединение закрыто");
+        }
+    }
+
+    // До подключения кадры копятся в очереди и уходят сразу после него
+    private CompletableFuture<Void> enqueue(ByteBuffer frame) {
+        CompletableFuture<Void> done = outbound.add(frame);
+        if (closed.get()) {
+            outbound.failQueued(new IOException("Соединение закрыто"));
+        } else {
+            LockSupport.unpark(writerThread);
+        }
+        return done;
+    }
+
+    private void run() {
+        FrameDecoder decoder = new FrameDecoder(codec);
+        try (SocketChannel current = SocketChannel.open()) {
+            channel = current;
+            current.connect(new InetSocketAddress(host, port));
+            if (closed.get()) {
+                return;
+            }
+            writerThread.start();
+            listener.onConnected(this);
+
+            ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+            while (!closed.get()) {
+                // Поток чтения у соединения свой, поэтому он может просто ждать
+                while (readingPaused && !closed.get()) {
+                    LockSupport.park(this);
+                }
+                if (current.read(readBuffer) < 0) {
+                    throw new EOFException("Сервер закрыл соединение");
+                }
+                readBuffer.flip();
+                Frame next;
+                // Время разбора - без времени обработчика кадра
+                long started = System.nanoTime();
+                while ((next = decoder.decode(readBuffer)) != null) {
+                    metrics.frameParse().recordSince(started);
+                    metrics.frameIn(FrameCodec.HEADER_LENGTH + next.length());
+                    try (Frame frame = next) {
+                        listener.onFrame(frame);
+                    }
+                    started = System.nanoTime();
+                }
+                readBuffer.clear();
+            }
+        } catch (IOException e) {
+            disconnect(e);
+        } finally {
+            decoder.release();
+            if (!writerThread.isAlive()) {
+                outbound.fail(new IOException("Соединение закрыто"));
+            }
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (!closed.get()) {
+                outbound.writeTo(channel);
+                if (outbound.isEmpty()) {
+                    // Кадр, добавленный после проверки, оставит разрешение, и park сразу вернётся
+                    LockSupport.park(this);
+                }
+            }
+        } catch (IOException e) {
+            disconnect(e);
+        } finally {
+            outbound.fail(new IOException("Соединение закрыто"));
+        }
+    }
+
+    // О разрыве сообщает только тот поток, который заметил его первым
+    private void disconnect(IOException cause) {
+        if (closed.compareAndSet(false, true)) {
+            LockSupport.unpark(writerThread);
+            LockSupport.unpark(readerThread);
+            SocketChannel current = channel;
+            if (current != null) {
+                try {
+                    current.close();
+                } catch (IOException ignored) {
+                }
+            }
+            listener.onDisconnected(cause);
+        }
+    }
+}
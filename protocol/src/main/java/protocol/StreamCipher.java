@@ -0,0 +1,78 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Потоковое AEAD для больших сообщений (схема STREAM поверх AES-256-GCM).
+ * Ключ передачи выводится из общего ключа собеседников, номера передачи и случайной соли через HMAC-SHA256,
+ * nonce - номер фрагмента. Заголовок фрагмента с признаком последнего фрагмента идёт в AAD,
+ * поэтому фрагменты нельзя незаметно переставить, подменить фрагментом другой передачи или отрезать хвост.
+ */
+public final class StreamCipher {
+    public static final int TAG_LENGTH = 16;
+
+    private static final int NONCE_LENGTH = 12;
+    private static final byte[] LABEL = "chat-file-stream".getBytes(StandardCharsets.US_ASCII);
+    private static final ThreadLocal<Cipher> GCM = ThreadLocal.withInitial(StreamCipher::newCipher);
+    private static final ThreadLocal<Mac> HMAC = ThreadLocal.withInitial(StreamCipher::newMac);
+
+    private final SecretKey key;
+
+    private StreamCipher(SecretKey key) {
+        this.key = key;
+    }
+
+    public static StreamCipher derive(SecretKey base, long transferId, long salt) throws GeneralSecurityException {
+        Mac mac = HMAC.get();
+        mac.init(new SecretKeySpec(base.getEncoded(), "HmacSHA256"));
+        mac.update(LABEL);
+        mac.update(ByteBuffer.allocate(2 * Long.BYTES).putLong(transferId).putLong(salt).flip());
+        return new StreamCipher(new SecretKeySpec(mac.doFinal(), "AES"));
+    }
+
+    // Дописывает шифртекст с тегом в out. Шифртекст длиннее открытого текста на TAG_LENGTH
+    public void seal(int index, ByteBuffer aad, ByteBuffer plain, ByteBuffer out) throws GeneralSecurityException {
+        Cipher cipher = init(Cipher.ENCRYPT_MODE, index);
+        cipher.updateAAD(aad.duplicate());
+        cipher.doFinal(plain, out);
+    }
+
+    // Проверяет тег и дописывает открытый текст в out
+    public void open(int index, ByteBuffer aad, ByteBuffer sealed, ByteBuffer out) throws GeneralSecurityException {
+        Cipher cipher = init(Cipher.DECRYPT_MODE, index);
+        cipher.updateAAD(aad.duplicate());
+        cipher.doFinal(sealed, out);
+    }
+
+    private Cipher init(int mode, int index) throws GeneralSecurityException {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        ByteBuffer.wrap(nonce).putInt(NONCE_LENGTH - Integer.BYTES, index);
+        Cipher cipher = GCM.get();
+        cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        return cipher;
+    }
+
+    private static Cipher newCipher() {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Шифр AES/GCM/NoPadding недоступен", e);
+        }
+    }
+
+    private static Mac newMac() {
+        try {
+            return Mac.getInstance("HmacSHA256");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 недоступен", e);
+        }
+    }
+}
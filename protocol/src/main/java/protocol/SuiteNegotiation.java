@@ -0,0 +1,82 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Согласование набора шифров с каждым собеседником по приветствию TYPE_HELLO: после байта возможностей
+ * в нём перечислены коды наборов (см. Compression.hello). Для отправки выбирается первый из своих
+ * предпочтений (CipherSuites.preferred), который есть у собеседника. Направления согласуются независимо,
+ * набор входящего сообщения указан в его конверте.
+ * <p>
+ * Приветствие не подписано, поэтому сервер может подделать его. Собеседник, хоть раз объявивший набор
+ * с проверкой целостности, запоминается: его приветствия без таких наборов игнорируются, а сообщения
+ * от него без проверки целостности (fallback) больше не принимаются.
+ */
+public final class SuiteNegotiation {
+    private final CipherSuite fallback;
+    // Коды наборов, объявленные собеседником
+    private final ConcurrentHashMap<String, byte[]> supported = new ConcurrentHashMap<>();
+    // Собеседники, объявлявшие наборы с проверкой целостности
+    private final Set<String> authenticated = ConcurrentHashMap.newKeySet();
+
+    // fallback - для собеседников без списка наборов (старые клиенты); null - клиент сам знает прежний формат
+    public SuiteNegotiation(CipherSuite fallback) {
+        this.fallback = fallback;
+    }
+
+    public void onHello(String peer, Envelope hello) {
+        ByteBuffer payload = hello.payload();
+        byte[] ids = new byte[Math.max(0, payload.remaining() - 1)];
+        if (ids.length > 0) {
+            payload.get(payload.position() + 1, ids);
+        }
+        if (hasAuthenticated(ids)) {
+            authenticated.add(peer);
+        } else if (authenticated.contains(peer)) {
+            // Понижение до наборов без проверки целостности не принимается
+            return;
+        }
+        if (ids.length > 0) {
+            supported.put(peer, ids);
+        } else {
+            supported.remove(peer);
+        }
+    }
+
+    // Выбор пересчитывается на каждое сообщение: своё предпочтение может уточниться после самопроверки
+    public CipherSuite suiteFor(String peer) {
+        byte[] ids = supported.get(peer);
+        if (ids != null) {
+            for (CipherSuite suite : CipherSuites.preferred()) {
+                for (byte id : ids) {
+                    if (id == suite.id()) {
+                        return suite;
+                    }
+                }
+            }
+        }
+        return fallback;
+    }
+
+    // Набор для входящего сообщения или null: без проверки целостности принимается только fallback
+    // и только от собеседника, который не объявлял наборов с проверкой целостности
+    public CipherSuite accepted(String peer, byte id) {
+        CipherSuite suite = CipherSuites.byId(id);
+        if (suite == null || !suite.isAuthenticated() && (suite != fallback || authenticated.contains(peer))) {
+            return null;
+        }
+        return suite;
+    }
+
+    private static boolean hasAuthenticated(byte[] ids) {
+        for (byte id : ids) {
+            CipherSuite suite = CipherSuites.byId(id);
+            if (suite != null && suite.isAuthenticated()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,42 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Класс трафика логического канала (см. ChannelScheduler). Служебные кадры - ключи, возможности,
+ * предложения и подтверждения файлов - уходят раньше всего остального, переписка и фрагменты файлов
+ * делят соединение по весам. Кредит - сколько байт канала может быть отправлено, но ещё не подтверждено.
+ */
+public enum TrafficClass {
+    CONTROL(0, Integer.MAX_VALUE),
+    INTERACTIVE(4, 64 * 1024),
+    BULK(1, 128 * 1024);
+
+    private final int weight;
+    private final int credit;
+
+    TrafficClass(int weight, int credit) {
+        this.weight = weight;
+        this.credit = credit;
+    }
+
+    public int weight() {
+        return weight;
+    }
+
+    public int credit() {
+        return credit;
+    }
+
+    // Класс по сообщению после "отправитель:"
+    static TrafficClass ofMessage(ByteBuffer message) {
+        if (!Envelope.isEnvelope(message)) {
+            return INTERACTIVE;
+        }
+        return switch (Envelope.typeOf(message)) {
+            case Envelope.TYPE_ENCRYPTED, Envelope.TYPE_GROUP_ENCRYPTED -> INTERACTIVE;
+            case Envelope.TYPE_FILE_CHUNK -> BULK;
+            default -> CONTROL;
+        };
+    }
+}
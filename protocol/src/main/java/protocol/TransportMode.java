@@ -0,0 +1,18 @@
+package protocol;
+
+import java.util.Locale;
+
+public enum TransportMode {
+    // Блокирующий Socket и отдельный поток чтения на каждое соединение
+    SOCKET,
+    // Неблокирующий SocketChannel, все соединения процесса обслуживает один Selector
+    NIO;
+
+    // Значение параметра запуска --transport=socket|nio, по умолчанию SOCKET
+    public static TransportMode parse(String value) {
+        if (value == null || value.isBlank()) {
+            return SOCKET;
+        }
+        return valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,178 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import protocol.BufferPool;
+import protocol.Channel;
+import protocol.FrameCodec;
+import protocol.SessionResume;
+
+/**
+ * Эталонный сервер чата для нагрузочных и интеграционных проверок клиентов.
+ * Протокол тот же, что у клиентов: первый кадр - имя пользователя, дальше кадры "отправитель:сообщение",
+ * которые рассылаются всем остальным подключённым. На каждое соединение - пара виртуальных потоков.
+ * Клиенты с ResumableConnection нумеруют сообщения (см. SessionResume): сервер подтверждает принятые
+ * и не рассылает повторно то, что уже получил до разрыва.
+ */
+public final class ChatServer implements Closeable {
+    public static final int DEFAULT_PORT = 1234;
+    // Сколько сеансов помнить для продолжения; сверх этого забываются те, у кого нет соединения
+    private static final int MAX_RESUMABLE = 65_536;
+
+    private final ServerSocketChannel serverChannel;
+    private final FrameCodec codec = new FrameCodec(new BufferPool(256, false), FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+    private final Set<ClientSession> sessions = ConcurrentHashMap.newKeySet();
+    private final Map<String, ResumeState> resumable = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+    private Thread acceptThread;
+
+    public ChatServer(int port) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port), 4096);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        ChatServer server = new ChatServer(port);
+        server.start();
+        System.out.println("Сервер запущен на порту " + server.port());
+        server.acceptThread.join();
+    }
+
+    // При запуске с портом 0 возвращает фактически выбранный порт
+    public int port() throws IOException {
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    public int sessionCount() {
+        return sessions.size();
+    }
+
+    public synchronized void start() {
+        if (acceptThread == null) {
+            acceptThread = Thread.ofVirtual().name("chat-accept").start(this::acceptLoop);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverChannel.close();
+        for (ClientSession session : sessions) {
+            session.close();
+        }
+    }
+
+    // Кадр кодируется и классифицируется один раз, получатели пишут его через собственный duplicate()
+    void broadcast(ClientSession from, ByteBuffer body) {
+        ByteBuffer shared = frame(body).asReadOnlyBuffer();
+        Channel channel = Channel.bySender(body);
+
+        for (ClientSession session : sessions) {
+            if (session != from && session.isRegistered()) {
+                session.enqueue(channel, shared);
+            }
+        }
+    }
+
+    void remove(ClientSession session) {
+        sessions.remove(session);
+    }
+
+    // Сеанс переходит к новому соединению, прежнее (если клиент не заметил его разрыва) закрывается
+    ResumeState resume(String sessionId, ClientSession session) {
+        if (resumable.size() >= MAX_RESUMABLE) {
+            resumable.values().removeIf(ResumeState::isDetached);
+        }
+        ResumeState state = resumable.computeIfAbsent(sessionId, id -> new ResumeState());
+        ClientSession previous = state.attach(session);
+        if (previous != null && previous != session) {
+            previous.close();
+        }
+        return state;
+    }
+
+    static ByteBuffer frame(ByteBuffer body) {
+        int length = body.remaining();
+        ByteBuffer frame = ByteBuffer.allocate(FrameCodec.HEADER_LENGTH + length);
+        FrameCodec.writeHeader(frame, 0, length);
+        return frame.put(FrameCodec.HEADER_LENGTH, body, body.position(), length);
+    }
+
+    static ByteBuffer frame(String control) {
+        return frame(ByteBuffer.wrap(control.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    FrameCodec codec() {
+        return codec;
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                ClientSession session = new ClientSession(this, channel);
+                sessions.add(session);
+                session.start();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Ошибка приёма соединения: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Последний принятый номер сеанса. Общий для прежнего и нового соединения, поэтому
+     * сообщение, которое успели прислать оба, рассылается один раз.
+     */
+    static final class ResumeState {
+        private long lastSequence;
+        private ClientSession owner;
+
+        synchronized long lastSequence() {
+            return lastSequence;
+        }
+
+        // true - сообщение новое и его нужно разослать. Пропуск номеров допускается:
+        // после перезапуска сервера клиент продолжает нумерацию с того места, где остановился
+        synchronized boolean accept(long sequence) {
+            if (sequence <= lastSequence) {
+                return false;
+            }
+            lastSequence = sequence;
+            return true;
+        }
+
+        synchronized ClientSession attach(ClientSession session) {
+            ClientSession previous = owner;
+            owner = session;
+            return previous;
+        }
+
+        synchronized void detach(ClientSession session) {
+            if (owner == session) {
+                owner = null;
+            }
+        }
+
+        synchronized boolean isDetached() {
+            return owner == null;
+        }
+    }
+}
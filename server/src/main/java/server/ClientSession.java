@@ -0,0 +1,189 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import protocol.Channel;
+import protocol.ChannelScheduler;
+import protocol.Frame;
+import protocol.FrameDecoder;
+import protocol.SessionResume;
+
+/**
+ * Одно подключение к серверу: виртуальный поток чтения и виртуальный поток записи.
+ * Исходящие кадры копятся в ограниченной очереди по каналам отправителей (ChannelScheduler) и уходят пачкой
+ * одной gathering-записью, так что чужая передача файла не задерживает сообщения в остальных разговорах.
+ * Номера сообщений продолжаемого сеанса подтверждаются одним кадром "ack" на каждое чтение из сокета.
+ */
+final class ClientSession {
+    private static final int OUTBOUND_LIMIT = 4096;
+    private static final int MAX_BATCH = 64;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private final ChatServer server;
+    private final SocketChannel channel;
+    private final FrameDecoder decoder;
+    // Очередь защищена lock: виртуальный поток записи ждёт на Condition, не занимая поток-носитель
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ChannelScheduler<ByteBuffer> outbound = ChannelScheduler.unlimited();
+
+    private volatile String username;
+    private volatile boolean closed;
+    // Трогает только поток чтения, кроме close()
+    private volatile ChatServer.ResumeState resume;
+    private boolean ackDue;
+    private Thread readerThread;
+    private Thread writerThread;
+
+    ClientSession(ChatServer server, SocketChannel channel) {
+        this.server = server;
+        this.channel = channel;
+        this.decoder = new FrameDecoder(server.codec());
+    }
+
+    void start() {
+        readerThread = Thread.ofVirtual().name("chat-session-reader").start(this::readLoop);
+        writerThread = Thread.ofVirtual().name("chat-session-writer").start(this::writeLoop);
+    }
+
+    boolean isRegistered() {
+        return username != null;
+    }
+
+    void enqueue(Channel channel, ByteBuffer frame) {
+        boolean overflow;
+        lock.lock();
+        try {
+            overflow = outbound.size() >= OUTBOUND_LIMIT;
+            if (!overflow) {
+                outbound.add(channel, frame, frame.remaining());
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        // Клиент, который не успевает читать, отключается, чтобы не копить память на сервере
+        if (overflow) {
+            close();
+        }
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        server.remove(this);
+        ChatServer.ResumeState state = resume;
+        if (state != null) {
+            state.detach(this);
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        if (writerThread != null) {
+            writerThread.interrupt();
+        }
+    }
+
+    private void readLoop() {
+        ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        try {
+            while (channel.read(readBuffer) >= 0) {
+                readBuffer.flip();
+                Frame next;
+                while ((next = decoder.decode(readBuffer)) != null) {
+                    try (Frame frame = next) {
+                        onFrame(frame);
+                    }
+                }
+                if (ackDue) {
+                    ackDue = false;
+                    enqueue(Channel.CONTROL, ChatServer.frame(SessionResume.ack(resume.lastSequence())));
+                }
+                readBuffer.clear();
+            }
+        } catch (IOException ignored) {
+            // Разрыв соединения или некорректный кадр - просто закрываем сессию
+        } finally {
+            decoder.release();
+            close();
+        }
+    }
+
+    private void onFrame(Frame frame) {
+        // Первый кадр - имя пользователя
+        if (username == null) {
+            username = frame.payloadAsString();
+            return;
+        }
+        ChatServer.ResumeState state = resume;
+        if (state != null) {
+            onSequenced(state, frame.payload());
+            return;
+        }
+        if (frame.hasSender()) {
+            server.broadcast(this, frame.payload());
+            return;
+        }
+        // Остальные кадры без ":" клиенты всё равно пропускают
+        String sessionId = SessionResume.parseRequest(frame.payloadAsString());
+        if (sessionId != null) {
+            state = server.resume(sessionId, this);
+            resume = state;
+            enqueue(Channel.CONTROL, ChatServer.frame(SessionResume.resumed(state.lastSequence())));
+        }
+    }
+
+    // После "resume" каждое сообщение начинается с номера; повтор уже принятого только подтверждается
+    private void onSequenced(ChatServer.ResumeState state, ByteBuffer payload) {
+        if (payload.remaining() < SessionResume.SEQUENCE_LENGTH) {
+            return;
+        }
+        long sequence = payload.getLong(payload.position());
+        ByteBuffer body = payload.slice(payload.position() + SessionResume.SEQUENCE_LENGTH,
+                payload.remaining() - SessionResume.SEQUENCE_LENGTH);
+        if (state.accept(sequence) && Frame.hasSender(body)) {
+            server.broadcast(this, body);
+        }
+        ackDue = true;
+    }
+
+    private void writeLoop() {
+        ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+        try {
+            while (!closed) {
+                int count = 0;
+                lock.lockInterruptibly();
+                try {
+                    while (outbound.isEmpty()) {
+                        notEmpty.await();
+                    }
+                    ChannelScheduler.Entry<ByteBuffer> next;
+                    while (count < MAX_BATCH && (next = outbound.poll()) != null) {
+                        batch[count++] = next.value().duplicate();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                int offset = 0;
+                while (offset < count) {
+                    channel.write(batch, offset, count - offset);
+                    while (offset < count && !batch[offset].hasRemaining()) {
+                        batch[offset++] = null;
+                    }
+                }
+            }
+        } catch (IOException | InterruptedException ignored) {
+            // Сессия закрыта
+        } finally {
+            close();
+        }
+    }
+}
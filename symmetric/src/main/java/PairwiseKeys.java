@@ -0,0 +1,511 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import protocol.Envelope;
+import protocol.FileTransfers;
+import protocol.KeyDirectory;
+import protocol.KeyMaterial;
+
+// Попарные ключи с собеседниками вместо файлов key_<a>_<b>.key. Ключ согласуется в самом чате
+// за один обмен конвертами TYPE_KEY_EXCHANGE:
+// [вид 1][длина 2][объявление ключа подписи][длина 2][эфемерный открытый ключ X25519 в X.509][подпись Ed25519].
+// Подпись покрывает вид, имена обеих сторон и эфемерный ключ, а ответ - ещё и ключ предложения, на которое он
+// отвечает. Ключ подписи из объявления закрепляется за именем в справочнике (KeyDirectory) при первом обмене
+// и остаётся закреплённым, даже когда справочник забывает давние ключи шифрования, поэтому сервер не может
+// подставить свой эфемерный ключ ни сразу, ни позже; отпечаток нового собеседника выводится для сверки.
+// Из общего секрета X25519 через HKDF-SHA256 выводятся две цепочки, по одной на направление.
+// Ключ сообщения - производная текущего звена цепочки, а цепочка периодически сдвигается (храповик),
+// и прежнее звено забывается, так что утечка текущего ключа не раскрывает старую переписку.
+// Из 32 байт ключа звена каждый набор шифров выводит свой ключ (KeyMaterial). AES-128-ECB остаётся только
+// для собеседников с этим же обменом, но без списка наборов; клиенты до обмена X25519 (с общими файлами
+// key_<a>_<b>.key) таких ключей вывести не могут и переписываться с этим клиентом не будут.
+// Всё хранится только в памяти: после перезапуска ключ согласуется заново
+public class PairwiseKeys {
+    static final int EPOCH_LENGTH = 4;
+
+    // 1 и 2 - прежний обмен без подписи, такие конверты отклоняются
+    private static final byte UNSIGNED_OFFER = 1;
+    private static final byte UNSIGNED_REPLY = 2;
+    private static final byte OFFER = 3;
+    private static final byte REPLY = 4;
+    private static final int CHAIN_LENGTH = 32;
+    private static final long RATCHET_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(10);
+    private static final int RATCHET_MESSAGES = 1000;
+    // Ключи прежних звеньев у получателя - для сообщений и файлов, отправленных перед сдвигом
+    private static final int KEPT_EPOCHS = 8;
+    // Дальше сдвигать входящую цепочку за одно сообщение не будем
+    private static final int MAX_SKIP = 1024;
+    private static final long HANDSHAKE_TIMEOUT_MILLIS = 10_000;
+    private static final byte[] LABEL = "chat-pairwise".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] EXCHANGE_CONTEXT = "chat-key-exchange".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CHAIN_STEP = {1};
+    private static final byte[] MESSAGE_STEP = {2};
+
+    // Ключ сообщений текущего звена и его номер, номер передаётся перед шифртекстом
+    record Epoch(int number, KeyMaterial key) {
+    }
+
+    // Отправка, которая ждёт согласования ключа
+    @FunctionalInterface
+    interface Task {
+        CompletableFuture<Void> run() throws Exception;
+    }
+
+    private record Waiting(Task task, CompletableFuture<Void> done) {
+    }
+
+    private final String username;
+    private final byte[] usernameBytes;
+    private final FileTransfers.Output output;
+    private final SigningKey signingKey;
+    private final KeyDirectory directory;
+    // Новые собеседники и отклонённые обмены - для окна чата
+    private final Consumer<String> status;
+    // Своё объявление, вкладывается в каждый конверт обмена
+    private final byte[] announcement;
+    private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<>();
+
+    // Конверты обмена уходят тем же путём, что и фрагменты файлов
+    public PairwiseKeys(String username, FileTransfers.Output output, SigningKey signingKey, KeyDirectory directory,
+                        Consumer<String> status) throws GeneralSecurityException {
+        this.username = username;
+        this.usernameBytes = username.getBytes(StandardCharsets.UTF_8);
+        this.output = output;
+        this.signingKey = signingKey;
+        this.directory = directory;
+        this.status = status;
+        this.announcement = signingKey.announcement(username);
+    }
+
+    // Ключ подписи и справочник только в памяти - для замеров и воспроизведения записей
+    public PairwiseKeys(String username, FileTransfers.Output output) throws GeneralSecurityException {
+        this(username, output, new SigningKey(), KeyDirectory.inMemory(), message -> {
+        });
+    }
+
+    // Выполняет task, когда ключ с собеседником готов. Если ключа нет, отправляет предложение обмена;
+    // отложенные задачи выполняются в порядке вызова
+    public CompletableFuture<Void> whenReady(String peerName, Task task) {
+        Peer peer = peer(peerName);
+        Waiting waiting = new Waiting(task, new CompletableFuture<>());
+        ByteBuffer offer = null;
+        boolean runNow = false;
+        synchronized (peer) {
+            if (peer.send != null) {
+                runNow = true;
+            } else {
+                peer.waiting.add(waiting);
+                if (peer.offer == null) {
+                    try {
+                        peer.offer = generate();
+                        offer = exchange(peerName, OFFER, peer.offer, null);
+                    } catch (GeneralSecurityException e) {
+                        peer.offer = null;
+                        fail(peer, e);
+                        return waiting.done();
+                    }
+                    startTimeout(peerName, peer, peer.offer);
+                }
+            }
+        }
+        if (offer != null) {
+            transmit(peer, offer);
+        } else if (runNow) {
+            run(waiting);
+        }
+        return waiting.done();
+    }
+
+    // Ждёт согласования ключа, например перед отправкой файла
+    public void establish(String peerName) throws Exception {
+        whenReady(peerName, () -> CompletableFuture.completedFuture(null))
+                .get(HANDSHAKE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean hasKey(String peerName) {
+        Peer peer = peers.get(peerName);
+        return peer != null && peer.send != null;
+    }
+
+    // Ключ для очередного сообщения собеседнику; цепочка сдвигается по времени или числу сообщений
+    public Epoch outbound(String peerName) throws GeneralSecurityException {
+        Peer peer = peers.get(peerName);
+        if (peer == null) {
+            return null;
+        }
+        synchronized (peer) {
+            if (peer.send == null) {
+                return null;
+            }
+            if (peer.sentInEpoch >= RATCHET_MESSAGES || System.nanoTime() - peer.epochStarted > RATCHET_INTERVAL_NANOS) {
+                peer.advanceSend();
+            }
+            peer.sentInEpoch++;
+            return peer.sendKey;
+        }
+    }
+
+    // Ключ сообщений собеседника для звена epoch или null, если звено забыто или ключа нет
+    public KeyMaterial inbound(String peerName, int epoch) throws GeneralSecurityException {
+        Peer peer = peers.get(peerName);
+        if (peer == null) {
+            return null;
+        }
+        synchronized (peer) {
+            if (peer.receive == null || epoch < 0) {
+                return null;
+            }
+            if (epoch > peer.receiveEpoch) {
+                if (epoch - peer.receiveEpoch > MAX_SKIP) {
+                    return null;
+                }
+                while (peer.receiveEpoch < epoch) {
+                    peer.advanceReceive();
+                }
+            }
+            int age = peer.receiveEpoch - epoch;
+            return age < KEPT_EPOCHS ? peer.received[epoch % KEPT_EPOCHS] : null;
+        }
+    }
+
+    // Собеседник подключился заново: ключи в его памяти могли пропасть, следующее сообщение согласует новые
+    public void forget(String peerName) {
+        Peer peer = peers.get(peerName);
+        if (peer != null) {
+            synchronized (peer) {
+                if (peer.offer == null) {
+                    peer.reset();
+                }
+            }
+        }
+    }
+
+    // Обрабатывает конверт TYPE_KEY_EXCHANGE, адресованный этому пользователю
+    public void handle(String sender, Envelope envelope) throws GeneralSecurityException {
+        if (!envelope.isAddressedTo(usernameBytes)) {
+            return;
+        }
+        ByteBuffer payload = envelope.payload();
+        if (!payload.hasRemaining()) {
+            throw new GeneralSecurityException("Пустой конверт обмена ключами");
+        }
+        byte kind = payload.get();
+        if (kind == UNSIGNED_OFFER || kind == UNSIGNED_REPLY) {
+            status.accept("Пользователь " + sender + " предлагает обмен ключами без подписи, он отклонён: "
+                    + "собеседнику нужно обновить клиент");
+            return;
+        }
+        if (kind != OFFER && kind != REPLY) {
+            throw new GeneralSecurityException("Неизвестный вид обмена ключами: " + kind);
+        }
+        byte[] peerAnnouncement;
+        byte[] encoded;
+        byte[] signature;
+        try {
+            peerAnnouncement = new byte[payload.getShort() & 0xFFFF];
+            payload.get(peerAnnouncement);
+            encoded = new byte[payload.getShort() & 0xFFFF];
+            payload.get(encoded);
+            signature = new byte[payload.remaining()];
+            payload.get(signature);
+        } catch (BufferUnderflowException e) {
+            throw new GeneralSecurityException("Конверт обмена ключами обрезан");
+        }
+        PublicKey peerSigning = identify(sender, peerAnnouncement);
+        Peer peer = peer(sender);
+        if (peerSigning == null) {
+            // Причина уже выведена; предложение этому собеседнику, если оно было, не состоится
+            if (kind == REPLY) {
+                reject(peer, sender);
+            }
+            return;
+        }
+        byte[] offered = null;
+        if (kind == REPLY) {
+            synchronized (peer) {
+                if (peer.offer == null) {
+                    return; // Ответ на предложение, которое уже не ждём
+                }
+                offered = peer.offer.getPublic().getEncoded();
+            }
+        }
+        if (!SigningKey.verify(peerSigning, signedData(kind, sender, username, encoded, offered), signature)) {
+            status.accept("Отклонён обмен ключами с неверной подписью от " + sender);
+            if (kind == REPLY) {
+                reject(peer, sender);
+            }
+            return;
+        }
+        PublicKey peerPublic = KeyFactory.getInstance("X25519").generatePublic(new X509EncodedKeySpec(encoded));
+
+        List<Waiting> ready;
+        ByteBuffer reply = null;
+        synchronized (peer) {
+            if (kind == OFFER) {
+                // Оба предложили одновременно: остаётся предложение пользователя с меньшим именем
+                if (peer.offer != null && username.compareTo(sender) < 0) {
+                    return;
+                }
+                KeyPair own = generate();
+                reply = exchange(sender, REPLY, own, encoded);
+                peer.install(agree(own, peerPublic), encoded, own.getPublic().getEncoded(), sender, username);
+            } else {
+                // Пока подпись проверялась, предложение могло смениться новым
+                if (peer.offer == null || !Arrays.equals(peer.offer.getPublic().getEncoded(), offered)) {
+                    return;
+                }
+                peer.install(agree(peer.offer, peerPublic), offered, encoded, username, sender);
+            }
+            peer.offer = null;
+            ready = new ArrayList<>(peer.waiting);
+            peer.waiting.clear();
+        }
+        if (reply != null) {
+            transmit(peer, reply);
+        }
+        for (Waiting waiting : ready) {
+            run(waiting);
+        }
+    }
+
+    private Peer peer(String peerName) {
+        return peers.computeIfAbsent(peerName, name -> new Peer());
+    }
+
+    // Ключ подписи собеседника из вложенного объявления или null, если объявление отклонено.
+    // Справочник проверяет подпись объявления и закрепляет ключ подписи за именем при первой встрече;
+    // закрепление переживает вытеснение записи, тогда повторная встреча - UPDATED, а не ADDED
+    private PublicKey identify(String sender, byte[] peerAnnouncement) {
+        KeyDirectory.Result result = directory.offer(sender, ByteBuffer.wrap(peerAnnouncement));
+        switch (result) {
+            case ADDED -> status.accept("Ключ подписи пользователя " + sender + " закреплён, отпечаток: "
+                    + directory.get(sender).fingerprint() + ". Сверьте его с собеседником");
+            case CHANGED -> {
+                status.accept("ВНИМАНИЕ: ключ подписи пользователя " + sender + " изменился, обмен ключами "
+                        + "отклонён. Сверьте отпечаток с собеседником и, если смена ожидаема, удалите строки " + sender
+                        + " из справочника keys/" + username + "/peers.log");
+                return null;
+            }
+            case INVALID -> {
+                status.accept("Отклонён обмен ключами с неверным объявлением от " + sender);
+                return null;
+            }
+            default -> {
+            }
+        }
+        return directory.signingKey(sender);
+    }
+
+    // Ответ не прошёл проверку: подлинный ответ на то же предложение уже не придёт, ждать нечего
+    private void reject(Peer peer, String sender) {
+        synchronized (peer) {
+            if (peer.offer != null) {
+                peer.offer = null;
+                fail(peer, new GeneralSecurityException("Ответ " + sender + " на обмен ключами не подписан "
+                        + "закреплённым ключом, ключ не согласован"));
+            }
+        }
+    }
+
+    // offered - ключ предложения, на которое отвечают, у самого предложения null
+    private ByteBuffer exchange(String peerName, byte kind, KeyPair own, byte[] offered)
+            throws GeneralSecurityException {
+        byte[] encoded = own.getPublic().getEncoded();
+        byte[] signature = signingKey.sign(signedData(kind, username, peerName, encoded, offered));
+        byte[] payload = ByteBuffer.allocate(1 + 2 + announcement.length + 2 + encoded.length + signature.length)
+                .put(kind).putShort((short) announcement.length).put(announcement)
+                .putShort((short) encoded.length).put(encoded).put(signature).array();
+        return Envelope.encode(username, Envelope.TYPE_KEY_EXCHANGE, Envelope.SUITE_NONE, peerName, payload);
+    }
+
+    // Контекст, вид, отправитель и получатель (с длинами), эфемерный ключ и ключ предложения в ответе
+    private static byte[] signedData(byte kind, String from, String to, byte[] encoded, byte[] offered) {
+        byte[] fromBytes = from.getBytes(StandardCharsets.UTF_8);
+        byte[] toBytes = to.getBytes(StandardCharsets.UTF_8);
+        byte[] offeredBytes = offered == null ? new byte[0] : offered;
+        return ByteBuffer.allocate(EXCHANGE_CONTEXT.length + 1 + 2 + fromBytes.length + 2 + toBytes.length
+                        + 2 + encoded.length + offeredBytes.length)
+                .put(EXCHANGE_CONTEXT).put(kind)
+                .putShort((short) fromBytes.length).put(fromBytes)
+                .putShort((short) toBytes.length).put(toBytes)
+                .putShort((short) encoded.length).put(encoded).put(offeredBytes).array();
+    }
+
+    // Вне монитора собеседника: транспорт может вызвать обработчики синхронно
+    private void transmit(Peer peer, ByteBuffer body) {
+        try {
+            output.send(body);
+        } catch (IOException e) {
+            synchronized (peer) {
+                peer.offer = null;
+                fail(peer, e);
+            }
+        }
+    }
+
+    // Собеседник не ответил (не в сети или клиент без поддержки обмена) - отложенные отправки не состоялись
+    private void startTimeout(String peerName, Peer peer, KeyPair offer) {
+        Thread.ofVirtual().name("key-exchange-timeout").start(() -> {
+            try {
+                Thread.sleep(HANDSHAKE_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (peer) {
+                if (peer.offer == offer) {
+                    peer.offer = null;
+                    fail(peer, new IOException("Пользователь " + peerName + " не ответил на обмен ключами"));
+                }
+            }
+        });
+    }
+
+    // Вызывается под монитором собеседника
+    private static void fail(Peer peer, Exception cause) {
+        for (Waiting waiting : peer.waiting) {
+            waiting.done().completeExceptionally(cause);
+        }
+        peer.waiting.clear();
+    }
+
+    private static void run(Waiting waiting) {
+        try {
+            waiting.task().run().whenComplete((ignored, e) -> {
+                if (e == null) {
+                    waiting.done().complete(null);
+                } else {
+                    waiting.done().completeExceptionally(e);
+                }
+            });
+        } catch (Exception e) {
+            waiting.done().completeExceptionally(e);
+        }
+    }
+
+    private static KeyPair generate() throws GeneralSecurityException {
+        return KeyPairGenerator.getInstance("X25519").generateKeyPair();
+    }
+
+    private static byte[] agree(KeyPair own, PublicKey peerPublic) throws GeneralSecurityException {
+        KeyAgreement agreement = KeyAgreement.getInstance("X25519");
+        agreement.init(own.getPrivate());
+        agreement.doPhase(peerPublic, true);
+        return agreement.generateSecret();
+    }
+
+    // HKDF-Extract (RFC 5869)
+    private static byte[] extract(byte[] salt, byte[] secret) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        return mac.doFinal(secret);
+    }
+
+    // HKDF-Expand (RFC 5869), length не больше 32 байт - одного блока HMAC-SHA256 достаточно
+    private static byte[] expand(byte[] key, byte[] info, int length) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        mac.update(info);
+        mac.update((byte) 1);
+        return Arrays.copyOf(mac.doFinal(), length);
+    }
+
+    private static byte[] direction(String from, String to) {
+        byte[] fromBytes = from.getBytes(StandardCharsets.UTF_8);
+        byte[] toBytes = to.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(LABEL.length + 2 + fromBytes.length + toBytes.length)
+                .put(LABEL).put(fromBytes).put((byte) 0).put(toBytes).put((byte) 0).array();
+    }
+
+    /**
+     * Ключи с одним собеседником. Поля защищены монитором объекта, кроме send, который читает hasKey.
+     */
+    private final class Peer {
+        private final List<Waiting> waiting = new ArrayList<>();
+        private KeyPair offer;
+
+        private volatile byte[] send;
+        private Epoch sendKey;
+        private long epochStarted;
+        private int sentInEpoch;
+
+        private byte[] receive;
+        private int receiveEpoch;
+        private final KeyMaterial[] received = new KeyMaterial[KEPT_EPOCHS];
+
+        // Соль - оба эфемерных ключа в порядке предложение, ответ; цепочки - по направлениям
+        void install(byte[] shared, byte[] offerKey, byte[] replyKey, String offerer, String replier)
+                throws GeneralSecurityException {
+            reset();
+            byte[] salt = ByteBuffer.allocate(offerKey.length + replyKey.length).put(offerKey).put(replyKey).array();
+            byte[] root = extract(salt, shared);
+            Arrays.fill(shared, (byte) 0);
+            boolean offered = username.equals(offerer);
+            String peerName = offered ? replier : offerer;
+            byte[] sendChain = expand(root, direction(username, peerName), CHAIN_LENGTH);
+            receive = expand(root, direction(peerName, username), CHAIN_LENGTH);
+            Arrays.fill(root, (byte) 0);
+            Arrays.fill(received, null);
+            receiveEpoch = 0;
+            received[0] = messageKey(receive);
+            sendKey = new Epoch(0, messageKey(sendChain));
+            epochStarted = System.nanoTime();
+            sentInEpoch = 0;
+            send = sendChain;
+        }
+
+        void reset() {
+            if (send != null) {
+                Arrays.fill(send, (byte) 0);
+                Arrays.fill(receive, (byte) 0);
+            }
+            send = null;
+            receive = null;
+            sendKey = null;
+            Arrays.fill(received, null);
+        }
+
+        void advanceSend() throws GeneralSecurityException {
+            byte[] next = expand(send, CHAIN_STEP, CHAIN_LENGTH);
+            Arrays.fill(send, (byte) 0);
+            send = next;
+            sendKey = new Epoch(sendKey.number() + 1, messageKey(next));
+            epochStarted = System.nanoTime();
+            sentInEpoch = 0;
+        }
+
+        void advanceReceive() throws GeneralSecurityException {
+            byte[] next = expand(receive, CHAIN_STEP, CHAIN_LENGTH);
+            Arrays.fill(receive, (byte) 0);
+            receive = next;
+            receiveEpoch++;
+            received[receiveEpoch % KEPT_EPOCHS] = messageKey(next);
+        }
+
+        // HKDF-Expand одним блоком: первые 16 байт те же, что у прежнего 16-байтного ключа
+        private KeyMaterial messageKey(byte[] chain) throws GeneralSecurityException {
+            byte[] key = expand(chain, MESSAGE_STEP, KeyMaterial.LENGTH);
+            KeyMaterial material = new KeyMaterial(key);
+            Arrays.fill(key, (byte) 0);
+            return material;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import protocol.ChatMetrics;
+import protocol.CipherSuite;
+import protocol.Envelope;
+import protocol.KeyMaterial;
+import protocol.SuiteNegotiation;
+
+// Зашифрованные сообщения SyncChatClient без окна: [номер звена 4][шифртекст набора], номер звена
+// проверяется вместе с шифртекстом как aad. Нагрузочный генератор вызывает те же методы
+public class PairwiseMessages {
+    private final String username;
+    private final PairwiseKeys pairwiseKeys;
+    private final SuiteNegotiation ciphers;
+    private final ChatMetrics metrics;
+
+    public PairwiseMessages(String username, PairwiseKeys pairwiseKeys, SuiteNegotiation ciphers,
+                            ChatMetrics metrics) {
+        this.username = username;
+        this.pairwiseKeys = pairwiseKeys;
+        this.ciphers = ciphers;
+        this.metrics = metrics;
+    }
+
+    // Конверт для получателя; ключ уже должен быть согласован (PairwiseKeys.whenReady или establish).
+    // Набор шифров выбирается здесь: приветствие собеседника могло прийти, пока согласовывался ключ
+    public ByteBuffer encode(String recipient, byte type, byte[] message) throws Exception {
+        CipherSuite suite = ciphers.suiteFor(recipient);
+        return Envelope.encode(username, type, suite.id(), recipient, encrypt(recipient, suite, message));
+    }
+
+    // null, если звено цепочки уже забыто
+    public ByteBuffer decrypt(String sender, CipherSuite suite, ByteBuffer encryptedMessage) throws Exception {
+        if (encryptedMessage.remaining() < PairwiseKeys.EPOCH_LENGTH) {
+            throw new Exception("Сообщение обрезано");
+        }
+        byte[] aad = new byte[PairwiseKeys.EPOCH_LENGTH];
+        encryptedMessage.get(aad);
+        KeyMaterial key = pairwiseKeys.inbound(sender, ByteBuffer.wrap(aad).getInt());
+        if (key == null) {
+            return null;
+        }
+
+        // Расшифровываем сообщение прямо из тела кадра
+        long started = System.nanoTime();
+        ByteBuffer decrypted = suite.open(key.keyFor(suite), aad, encryptedMessage);
+        metrics.aesDecrypt().recordSince(started);
+
+        return decrypted;
+    }
+
+    private byte[] encrypt(String recipient, CipherSuite suite, byte[] message) throws Exception {
+        PairwiseKeys.Epoch epoch = pairwiseKeys.outbound(recipient);
+        if (epoch == null) {
+            throw new Exception("Нет ключа для пользователя " + recipient);
+        }
+
+        long started = System.nanoTime();
+        byte[] encrypted = new byte[PairwiseKeys.EPOCH_LENGTH + suite.sealedLength(message.length)];
+        ByteBuffer out = ByteBuffer.wrap(encrypted).putInt(epoch.number());
+        // Шифруем сообщение сразу после номера звена
+        suite.seal(epoch.key().keyFor(suite), Arrays.copyOf(encrypted, PairwiseKeys.EPOCH_LENGTH),
+                ByteBuffer.wrap(message), out);
+        metrics.aesEncrypt().recordSince(started);
+        return encrypted;
+    }
+}
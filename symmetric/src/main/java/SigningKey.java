@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+import protocol.KeyAnnouncement;
+
+// Ключ подписи Ed25519 пользователя. Им подписываются эфемерные ключи обмена (PairwiseKeys), а собеседники
+// закрепляют его за именем при первом обмене (KeyDirectory), так что сервер не может подменить ключи обмена.
+// Хранится без пароля, с правами только для владельца, как ключи ssh: [длина 2][закрытый PKCS#8][открытый X.509]
+public class SigningKey {
+    static final String ED25519 = "Ed25519";
+
+    private final KeyPair pair;
+
+    // Только в памяти, новый при каждом создании
+    public SigningKey() throws GeneralSecurityException {
+        this(KeyPairGenerator.getInstance(ED25519).generateKeyPair());
+    }
+
+    private SigningKey(KeyPair pair) {
+        this.pair = pair;
+    }
+
+    // Ключ из файла; если файла нет, создаётся новый и сохраняется
+    public static SigningKey open(Path file) throws IOException, GeneralSecurityException {
+        if (Files.exists(file)) {
+            byte[] stored = Files.readAllBytes(file);
+            byte[] privateBytes = null;
+            try {
+                ByteBuffer in = ByteBuffer.wrap(stored);
+                privateBytes = new byte[in.getShort() & 0xFFFF];
+                in.get(privateBytes);
+                byte[] publicBytes = new byte[in.remaining()];
+                in.get(publicBytes);
+                KeyFactory factory = KeyFactory.getInstance(ED25519);
+                return new SigningKey(new KeyPair(factory.generatePublic(new X509EncodedKeySpec(publicBytes)),
+                        factory.generatePrivate(new PKCS8EncodedKeySpec(privateBytes))));
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Файл ключа подписи повреждён: " + file);
+            } finally {
+                Arrays.fill(stored, (byte) 0);
+                if (privateBytes != null) {
+                    Arrays.fill(privateBytes, (byte) 0);
+                }
+            }
+        }
+        SigningKey key = new SigningKey();
+        key.save(file);
+        return key;
+    }
+
+    public byte[] sign(byte[] data) throws GeneralSecurityException {
+        Signature signature = Signature.getInstance(ED25519);
+        signature.initSign(pair.getPrivate());
+        signature.update(data);
+        return signature.sign();
+    }
+
+    public static boolean verify(PublicKey signingKey, byte[] data, byte[] signatureBytes)
+            throws GeneralSecurityException {
+        Signature signature = Signature.getInstance(ED25519);
+        signature.initVerify(signingKey);
+        signature.update(data);
+        return signature.verify(signatureBytes);
+    }
+
+    public PublicKey publicKey() {
+        return pair.getPublic();
+    }
+
+    public String fingerprint() {
+        return KeyAnnouncement.fingerprint(pair.getPublic().getEncoded());
+    }
+
+    // Объявление только с ключом подписи: ключи RSA и X25519 этому клиенту не нужны
+    public byte[] announcement(String username) throws GeneralSecurityException {
+        return KeyAnnouncement.create(username, System.currentTimeMillis(), null, null, pair.getPublic(), this::sign);
+    }
+
+    // Файл пишется рядом и атомарно заменяет прежний; права выставляются до записи ключа
+    private void save(Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temporary = parent.resolve(file.getFileName() + ".tmp");
+        Files.deleteIfExists(temporary);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(temporary, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        byte[] privateBytes = pair.getPrivate().getEncoded();
+        byte[] publicBytes = pair.getPublic().getEncoded();
+        byte[] stored = ByteBuffer.allocate(2 + privateBytes.length + publicBytes.length)
+                .putShort((short) privateBytes.length).put(privateBytes).put(publicBytes).array();
+        try {
+            Files.write(temporary, stored);
+        } finally {
+            Arrays.fill(privateBytes, (byte) 0);
+            Arrays.fill(stored, (byte) 0);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
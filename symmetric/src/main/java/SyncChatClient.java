@@ -1,17 +1,12 @@
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.Base64;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CompletableFuture;
 
-import javax.crypto.Cipher;
-import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
 
 import javafx.application.Application;
 import javafx.application.Platform;
@@ -19,29 +14,70 @@ import javafx.scene.Scene;
 import javafx.scene.control.Button;
 import javafx.scene.control.CheckBox;
 import javafx.scene.control.Label;
-import javafx.scene.control.TextArea;
 import javafx.scene.control.TextField;
+import javafx.scene.control.Tooltip;
 import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
+import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
-public class SyncChatClient extends Application {
+import history.HistoryStore;
+import protocol.ChatConnection;
+import protocol.ChatMetrics;
+import protocol.CipherSuite;
+import protocol.CipherSuites;
+import protocol.Compression;
+import protocol.Envelope;
+import protocol.FileTransfers;
+import protocol.Frame;
+import protocol.FrameCapture;
+import protocol.FrameCodec;
+import protocol.FrameListener;
+import protocol.InboundPipeline;
+import protocol.KeyDirectory;
+import protocol.KeyMaterial;
+import protocol.ResumableConnection;
+import protocol.SuiteNegotiation;
+import protocol.TransportMode;
+import ui.ChatLog;
+import ui.HistorySearch;
+
+public class SyncChatClient extends Application implements FrameListener, FileTransfers.Keys {
     //TODO Вынести в параметры запуска
-    private static final int HEADER_LENGTH = 10;
     private static final String SERVER_IP = "127.0.0.1";
     private static final int SERVER_PORT = 1234;
 
-    private DataOutputStream outputStream;
-    private DataInputStream inputStream;
-    private Socket socket;
-
-    private TextArea chatArea;
+    private ChatConnection connection;
+    private TransportMode transportMode;
+    // --capture=<файл>: кадры соединения пишутся в файл для воспроизведения без сети (см. FrameReplay)
+    private Path captureFile;
+    private FrameCapture capture;
+    private final FrameCodec frameCodec = new FrameCodec();
+    // До входа пользователя - заглушка без регистрации в JMX
+    private ChatMetrics metrics = new ChatMetrics();
+    private final Compression compression = new Compression(frameCodec.maxFrameSize());
+    // Набор шифров с каждым собеседником; клиентам без списка наборов - прежний AES-128-ECB
+    private final SuiteNegotiation ciphers = new SuiteNegotiation(CipherSuites.AES_ECB);
+    // Попарные ключи с собеседниками, согласуются в чате при первом зашифрованном сообщении
+    private PairwiseKeys pairwiseKeys;
+    private PairwiseMessages pairwiseMessages;
+    // Ключи подписи собеседников, закреплённые при первом обмене
+    private KeyDirectory keyDirectory;
+
+    private ChatLog chatLog;
+    // Входящие кадры расшифровываются на пуле потоков, транспорт только читает сокет
+    private InboundPipeline<String> inbound;
+    private HistoryStore history;
+    // Журнал хранит расшифрованные сообщения открытым текстом, поэтому ведётся только с --history=on
+    private boolean historyEnabled;
     private TextField inputField;
     private TextField recipientField;
     private CheckBox encryptCheckBox;
+    private FileTransfers fileTransfers;
 
     private String username;
-    private Thread connectionThread;
+    private byte[] usernameBytes;
 
     public static void main(String[] args) {
         launch(args);
@@ -49,6 +85,11 @@ public class SyncChatClient extends Application {
 
     @Override
     public void start(Stage stage) {
+        transportMode = TransportMode.parse(getParameters().getNamed().get("transport"));
+        String captureParameter = getParameters().getNamed().get("capture");
+        captureFile = captureParameter == null || captureParameter.isBlank() ? null : Path.of(captureParameter);
+        historyEnabled = "on".equalsIgnoreCase(getParameters().getNamed().get("history"));
+
         // Окно для ввода имени пользователя
         Stage usernameStage = new Stage();
         VBox usernameRoot = new VBox(10);
@@ -79,8 +120,8 @@ public class SyncChatClient extends Application {
             if (username != null && !username.trim().isEmpty()) {
                 usernameStage.close();
                 showChatWindow(stage);
-                connectionThread = new Thread(this::connectToServer);
-                connectionThread.start();
+                openHistory();
+                connectToServer();
             }
         });
         return confirmButton;
@@ -92,6 +133,11 @@ public class SyncChatClient extends Application {
 
         Label usernameLabel = new Label("Вы вошли как: " + username);
         usernameLabel.setStyle("-fx-font-size: 14px; -fx-font-weight: bold;");
+        // Степень сжатия, затраты на него и скорость наборов шифров видны в подсказке
+        Tooltip compressionTooltip = new Tooltip();
+        compressionTooltip.setOnShowing(event ->
+                compressionTooltip.setText(compression.report() + "\n" + CipherSuites.report()));
+        usernameLabel.setTooltip(compressionTooltip);
 
         // Поле для ввода имени собеседника
         recipientField = new TextField();
@@ -99,20 +145,18 @@ public class SyncChatClient extends Application {
 
         // Переключатель для включения шифрования
         encryptCheckBox = new CheckBox("Шифровать сообщения");
+        // Обмен ключами начинается заранее, чтобы первое сообщение не ждало его
         encryptCheckBox.setOnAction(event -> {
-            if (encryptCheckBox.isSelected() && recipientField.getText() != null && !recipientField.getText().isBlank()) {
-                try {
-                    loadOrGenerateKey(username, recipientField.getText());
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
+            if (encryptCheckBox.isSelected() && recipientField.getText() != null && !recipientField.getText().isBlank()
+                    && pairwiseKeys != null) {
+                pairwiseKeys.whenReady(recipientField.getText(), () -> CompletableFuture.completedFuture(null))
+                        .exceptionally(this::reportSendFailure);
             }
         });
 
 
-        chatArea = new TextArea();
-        chatArea.setEditable(false);
-        chatArea.setWrapText(true);
+        // История ограничена, старые сообщения вытесняются
+        chatLog = new ChatLog(ChatLog.DEFAULT_CAPACITY);
 
         inputField = new TextField();
         inputField.setPromptText("Введите сообщение...");
@@ -121,13 +165,27 @@ public class SyncChatClient extends Application {
         Button sendButton = new Button("Отправить");
         sendButton.setOnAction(event -> sendMessage());
 
-        Button clearChatButton = new Button("Очистить чат");
-        clearChatButton.setOnAction(event -> chatArea.clear());
+        // Файл всегда шифруется общим ключом с собеседником
+        Button sendFileButton = new Button("Файл");
+        sendFileButton.setOnAction(event -> sendFile(stage));
 
-        HBox inputBox = new HBox(10, inputField, sendButton);
+        Button clearChatButton = new Button("Очистить чат");
+        clearChatButton.setOnAction(event -> chatLog.clear());
+
+        // Более ранние сообщения подгружаются из журнала страницами
+        Button olderButton = new Button("Ранее");
+        olderButton.setOnAction(event -> showOlderHistory());
+        // Поиск по всей истории через полнотекстовый индекс журнала
+        TextField searchField = new HistorySearch(chatLog).getField();
+        HBox.setHgrow(searchField, Priority.ALWAYS);
+        olderButton.setDisable(!historyEnabled);
+        searchField.setDisable(!historyEnabled);
+        HBox historyBox = new HBox(10, olderButton, clearChatButton, searchField);
+
+        HBox inputBox = new HBox(10, inputField, sendButton, sendFileButton);
         inputBox.setPrefHeight(50);
 
-        root.getChildren().addAll(usernameLabel, recipientField, encryptCheckBox, chatArea, inputBox, clearChatButton);
+        root.getChildren().addAll(usernameLabel, recipientField, encryptCheckBox, chatLog.getView(), inputBox, historyBox);
 
         Scene scene = new Scene(root);
         stage.setScene(scene);
@@ -136,44 +194,131 @@ public class SyncChatClient extends Application {
     }
 
     private void connectToServer() {
+        usernameBytes = username.getBytes(StandardCharsets.UTF_8);
+        pairwiseKeys = openPairwiseKeys();
+        fileTransfers = new FileTransfers(username, Path.of("downloads"), this, this::sendHeaderMessage,
+                this::appendMessage);
         try {
-            socket = new Socket(SERVER_IP, SERVER_PORT);
-            outputStream = new DataOutputStream(socket.getOutputStream());
-            inputStream = new DataInputStream(socket.getInputStream());
+            metrics = ChatMetrics.register("symmetric", username);
+            pairwiseMessages = new PairwiseMessages(username, pairwiseKeys, ciphers, metrics);
+            chatLog.setDelayRecorder(metrics.uiDelay()::record);
+            inbound = new InboundPipeline<>(this::decode, chatLog::record);
+            if (captureFile != null) {
+                capture = FrameCapture.open(captureFile);
+            }
+            // Неподтверждённые сервером сообщения лежат на диске и отправляются заново после переподключения
+            connection = ResumableConnection.open(transportMode, SERVER_IP, SERVER_PORT, frameCodec, this, metrics,
+                    HistoryStore.directoryFor(Path.of("spool"), username).resolve("outbound.spool"), capture);
+        } catch (IOException e) {
+            appendMessage("Ошибка соединения: " + e.getMessage());
+        }
+    }
 
-            // Отправка имени пользователя
-            sendHeaderMessage(username);
+    // Ключ подписи и справочник лежат в keys/<имя>/ рядом с хранилищем AsyncChatClient, но справочник свой
+    // (peers.log): у клиентов с одним именем разные ключи подписи
+    private PairwiseKeys openPairwiseKeys() {
+        Path keys = HistoryStore.directoryFor(Path.of("keys"), username);
+        try {
+            try {
+                SigningKey signingKey = SigningKey.open(keys.resolve("signing.key"));
+                keyDirectory = KeyDirectory.open(keys.resolve("peers.log"), this::appendMessage);
+                appendMessage("Ваш отпечаток: " + signingKey.fingerprint());
+                return new PairwiseKeys(username, this::sendHeaderMessage, signingKey, keyDirectory,
+                        this::appendMessage);
+            } catch (IOException e) {
+                // Собеседники, закрепившие прежний ключ, откажутся от обмена и покажут предупреждение
+                appendMessage("Не удалось открыть ключи: " + e.getMessage()
+                        + ". Ключ подписи создан только на этот запуск");
+                return new PairwiseKeys(username, this::sendHeaderMessage, new SigningKey(), KeyDirectory.inMemory(),
+                        this::appendMessage);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Ed25519 недоступен", e);
+        }
+    }
 
-            // Получение сообщений
-            while (!Thread.currentThread().isInterrupted()) {
-                String fullMessage = receiveHeaderMessage();
+    @Override
+    public void onConnected(ChatConnection connection) throws IOException {
+        // Отправка имени пользователя
+        connection.send(username);
+        // Объявляем поддержку сжатия, собеседники ответят своими возможностями
+        connection.send(Compression.hello(username, ""));
+    }
 
-                // Проверяем, содержит ли сообщение разделитель ":"
-                if (!fullMessage.contains(":")) {
-                    continue;
-                }
+    @Override
+    public void onFrame(Frame frame) {
+        // Кадры без разделителя ":" конвейер пропускает сам
+        inbound.submit(frame, connection);
+    }
 
-                String[] parts = fullMessage.split(":", 2);
-                String sender = parts[0];
-                String message = parts[1];
+    // Вызывается из пула конвейера; служебные сообщения (например, фрагменты файлов) не выводятся - null
+    private String decode(String sender, ByteBuffer body) {
+        return Envelope.isEnvelope(body) ? openEnvelope(sender, body) : Frame.decode(body);
+    }
 
-                // Проверяем в base64 и есть ли файл для дешифрации
-                if (isBase64(message) && hasKeyFor(sender)) {
-                    try {
-                        message = "[Зашифровано] > " + decryptMessage(sender, message);
-                    } catch (Exception e) {
-                    }
+    // Заголовок конверта разбирается без криптографии: чужие сообщения и сообщения без ключа отсеиваются сразу
+    private String openEnvelope(String sender, ByteBuffer body) {
+        try {
+            Envelope envelope = Envelope.parse(body);
+            if (fileTransfers.handle(sender, envelope)) {
+                return null;
+            }
+            if (envelope.type() == Envelope.TYPE_HELLO) {
+                ciphers.onHello(sender, envelope);
+                if (compression.onHello(sender, envelope)) {
+                    // Общее приветствие - собеседник подключился заново и мог потерять ключи
+                    pairwiseKeys.forget(sender);
+                    sendHeaderMessage(Compression.hello(username, sender));
                 }
-
-                appendMessage(sender + " > " + message);
+                return null;
             }
-        } catch (IOException e) {
-            appendMessage("Ошибка соединения: " + e.getMessage());
-        } finally {
-            closeConnection();
+            if (envelope.type() == Envelope.TYPE_KEY_EXCHANGE) {
+                pairwiseKeys.handle(sender, envelope);
+                return null;
+            }
+            // Ключи RSA этому клиенту не нужны
+            if (envelope.type() == Envelope.TYPE_KEY_ANNOUNCE) {
+                return null;
+            }
+            // Любой набор с проверкой целостности, независимо от выбранного для отправки, и прежний AES-128-ECB
+            // от собеседников, которые не объявляли ничего лучше
+            CipherSuite suite = ciphers.accepted(sender, envelope.suite());
+            if (envelope.type() != Envelope.TYPE_ENCRYPTED || suite == null) {
+                return "[Неподдерживаемое сообщение]";
+            }
+            if (!envelope.isAddressedTo(usernameBytes)) {
+                return "[Зашифровано для " + envelope.recipientAsString() + "]";
+            }
+            // Ключа нет, например собеседник помнит его с прошлого запуска этого клиента: согласуем новый
+            if (!hasKeyFor(sender)) {
+                pairwiseKeys.whenReady(sender, () -> CompletableFuture.completedFuture(null));
+                return "[Зашифровано, ключ не найден]";
+            }
+            ByteBuffer plain = pairwiseMessages.decrypt(sender, suite, envelope.payload());
+            return plain == null ? "[Зашифровано, ключ устарел]" : "[Зашифровано] > " + compression.text(envelope, plain);
+        } catch (Exception e) {
+            metrics.failedDecryption();
+            return "[Не удалось расшифровать сообщение]";
         }
     }
 
+    @Override
+    public void onDisconnected(IOException e) {
+        appendMessage("Ошибка соединения: " + e.getMessage());
+        closeConnection();
+    }
+
+    @Override
+    public void onReconnecting(IOException e, long delayMillis) {
+        appendMessage(String.format("Соединение потеряно (%s), повторное подключение через %.1f с",
+                e.getMessage(), delayMillis / 1000.0));
+    }
+
+    @Override
+    public void onResumed(int replayed) {
+        appendMessage(replayed > 0 ? "Соединение восстановлено, повторно отправлено сообщений: " + replayed
+                : "Соединение восстановлено");
+    }
 
     private void sendMessage() {
         String message = inputField.getText();
@@ -186,14 +331,22 @@ public class SyncChatClient extends Application {
                         appendMessage("Ошибка: Укажите получателя для шифрования");
                         return;
                     }
-                    message = encryptMessage(recipient, message);
+                    // Текст сжимается до шифрования, если получатель это поддерживает.
+                    // Шифртекст уходит в двоичном конверте, без Base64
+                    // До согласования ключа сообщения ждут в порядке отправки, набор шифров выбирается
+                    // при отправке: приветствие собеседника могло прийти за это время
+                    byte[] plain = message.getBytes(StandardCharsets.UTF_8);
+                    byte[] compressed = compression.compress(recipient, plain);
+                    pairwiseKeys.whenReady(recipient, () -> sendHeaderMessage(pairwiseMessages.encode(recipient,
+                            Compression.type(Envelope.TYPE_ENCRYPTED, compressed != null),
+                            compressed != null ? compressed : plain))).exceptionally(this::reportSendFailure);
+                } else {
+                    // сообщение в формате "отправитель:сообщение", дабы нормально его обработать
+                    sendHeaderMessage(username + ":" + message).exceptionally(this::reportSendFailure);
                 }
 
-                // сообщение в формате "отправитель:сообщение", дабы нормально его обработать
-                sendHeaderMessage(username + ":" + message);
-
                 // Отображаем сообщение у нас
-                appendMessage(username + " > " + inputField.getText());
+                chatLog.record(username, inputField.getText());
                 inputField.clear();
             } catch (Exception e) {
                 appendMessage("Ошибка отправки сообщения: " + e.getMessage());
@@ -202,121 +355,130 @@ public class SyncChatClient extends Application {
     }
 
 
-    private void sendHeaderMessage(String message) throws IOException {
-        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
-        String header = String.format("%-" + HEADER_LENGTH + "d", messageBytes.length);
-        outputStream.write(header.getBytes(StandardCharsets.UTF_8));
-        outputStream.write(messageBytes);
-        outputStream.flush();
+    private void sendFile(Stage stage) {
+        String recipient = recipientField.getText();
+        if (recipient == null || recipient.isBlank()) {
+            appendMessage("Ошибка: Укажите получателя файла");
+            return;
+        }
+        File file = new FileChooser().showOpenDialog(stage);
+        if (file != null) {
+            appendMessage("Отправка файла " + file.getName() + " пользователю " + recipient);
+            fileTransfers.send(recipient, file.toPath());
+        }
     }
 
-    private String receiveHeaderMessage() throws IOException {
-        byte[] headerBytes = new byte[HEADER_LENGTH];
-        inputStream.readFully(headerBytes);
-        int messageLength = Integer.parseInt(new String(headerBytes).trim());
-        byte[] messageBytes = new byte[messageLength];
-        inputStream.readFully(messageBytes);
-        return new String(messageBytes, StandardCharsets.UTF_8);
+    // Номер звена цепочки передаётся в заголовке фрагментов как id ключа. Ключ передачи выводится
+    // из прежнего 16-байтного ключа звена, чтобы файлы понимали и старые клиенты
+    @Override
+    public FileTransfers.TransferKey outboundKey(String recipient) throws Exception {
+        pairwiseKeys.establish(recipient);
+        PairwiseKeys.Epoch epoch = pairwiseKeys.outbound(recipient);
+        return new FileTransfers.TransferKey(epoch.number(), epoch.key().keyFor(CipherSuites.AES_ECB));
     }
 
-    private void appendMessage(String message) {
-        Platform.runLater(() -> chatArea.appendText(message + "\n"));
+    @Override
+    public SecretKey inboundKey(String sender, long keyId) throws Exception {
+        KeyMaterial key = keyId < 0 || keyId > Integer.MAX_VALUE ? null : pairwiseKeys.inbound(sender, (int) keyId);
+        return key == null ? null : key.keyFor(CipherSuites.AES_ECB);
     }
 
-    private void closeConnection() {
-        try {
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
-            }
-            if (outputStream != null) {
-                outputStream.close();
-            }
-            if (inputStream != null) {
-                inputStream.close();
-            }
-        } catch (IOException e) {
-            appendMessage("Ошибка при закрытии соединения: " + e.getMessage());
+    private CompletableFuture<Void> sendHeaderMessage(String message) throws IOException {
+        if (connection == null) {
+            throw new IOException("Нет соединения с сервером");
         }
+        return connection.send(message);
     }
 
-    private void exitApplication() {
-        if (connectionThread != null) {
-            connectionThread.interrupt();
+    private CompletableFuture<Void> sendHeaderMessage(ByteBuffer body) throws IOException {
+        if (connection == null) {
+            throw new IOException("Нет соединения с сервером");
         }
-        closeConnection();
-        Platform.exit();
-        System.exit(0);
+        return connection.send(body);
     }
 
-    private String encryptMessage(String recipient, String message) throws Exception {
-        // Загружаем или генерируем ключ
-        SecretKey key = loadOrGenerateKey(username, recipient);
-
-        // Инициализация шифрования
-        Cipher cipher = Cipher.getInstance("AES");
-        cipher.init(Cipher.ENCRYPT_MODE, key);
-
-        // Шифруем сообщение и преобразуем в строку Base64
-        byte[] encryptedBytes = cipher.doFinal(message.getBytes(StandardCharsets.UTF_8));
-        return Base64.getEncoder().encodeToString(encryptedBytes);
+    // Запись идёт в потоке транспорта, о неудаче сообщаем, когда она станет известна
+    private Void reportSendFailure(Throwable e) {
+        appendMessage("Сообщение не доставлено: " + e.getMessage());
+        return null;
     }
 
-
-    private String decryptMessage(String sender, String encryptedMessage) throws Exception {
-        // Загружаем или генерируем ключ
-        SecretKey key = loadOrGenerateKey(username, sender);
-
-        // Декодируем сообщение из Base64
-        byte[] encryptedBytes = Base64.getDecoder().decode(encryptedMessage);
-
-        // Расшифровываем сообщение
-        Cipher cipher = Cipher.getInstance("AES");
-        cipher.init(Cipher.DECRYPT_MODE, key);
-        byte[] decryptedBytes = cipher.doFinal(encryptedBytes);
-
-        return new String(decryptedBytes, StandardCharsets.UTF_8);
+    private void openHistory() {
+        if (!historyEnabled) {
+            appendMessage("История не сохраняется на диск; включается параметром --history=on");
+            return;
+        }
+        try {
+            // Окно одно на всех собеседников, поэтому и журнал один на пользователя, а не на переписку
+            history = HistoryStore.open(HistoryStore.directoryFor(Path.of("history"), username));
+            chatLog.attachHistory(history, ChatLog.HISTORY_PAGE);
+        } catch (IOException e) {
+            appendMessage("Не удалось открыть историю: " + e.getMessage());
+        }
     }
 
+    private void showOlderHistory() {
+        try {
+            if (!chatLog.showOlder()) {
+                appendMessage("Более ранних сообщений нет");
+            }
+        } catch (IOException e) {
+            appendMessage("Ошибка чтения истории: " + e.getMessage());
+        }
+    }
 
-    private SecretKey loadOrGenerateKey(String user1, String user2) throws Exception {
-        // Упорядочиваем имена пользователей в алфавитном порядке
-        String sortedUsers = user1.compareTo(user2) < 0 ? user1 + "_" + user2 : user2 + "_" + user1;
-        File keyFile = new File("key_" + sortedUsers + ".key");
+    private void appendMessage(String message) {
+        // Сообщения копятся в очереди и выводятся пачкой раз за кадр. Без окна (воспроизведение записи
+        // в CaptureReplay) служебные сообщения не выводятся
+        if (chatLog != null) {
+            chatLog.append(message);
+        }
+    }
 
-        if (keyFile.exists()) {
-            // Загрузка существующего ключа из файла
-            try (FileInputStream fis = new FileInputStream(keyFile)) {
-                byte[] keyBytes = fis.readAllBytes();
-                return new SecretKeySpec(keyBytes, "AES");
+    private void closeConnection() {
+        if (fileTransfers != null) {
+            fileTransfers.close();
+        }
+        try {
+            if (connection != null) {
+                connection.close();
             }
-        } else {
-            // Генерация нового ключа
-            KeyGenerator keyGen = KeyGenerator.getInstance("AES");
-            keyGen.init(128); // 128-битный ключ, потому что aes
-            SecretKey key = keyGen.generateKey();
-
-            // Сохранение ключа в фйл
-            try (FileOutputStream out = new FileOutputStream(keyFile)) {
-                out.write(key.getEncoded());
+        } catch (IOException e) {
+            appendMessage("Ошибка при закрытии соединения: " + e.getMessage());
+        }
+        if (capture != null) {
+            try {
+                capture.close();
+            } catch (IOException e) {
+                appendMessage("Ошибка записи кадров: " + e.getMessage());
+            }
+        }
+        if (inbound != null) {
+            inbound.close();
+        }
+        if (keyDirectory != null) {
+            try {
+                keyDirectory.close();
+            } catch (IOException e) {
+                appendMessage("Ошибка записи справочника ключей: " + e.getMessage());
             }
-
-            return key;
         }
     }
 
-    private boolean hasKeyFor(String otherUser) {
-        String sortedUsers = username.compareTo(otherUser) < 0 ? username + "_" + otherUser :
-                otherUser + "_" + username;
-        File keyFile = new File("key_" + sortedUsers + ".key");
-        return keyFile.exists();
+    private void exitApplication() {
+        closeConnection();
+        metrics.close();
+        if (history != null) {
+            try {
+                history.close();
+            } catch (IOException ignored) {
+            }
+        }
+        Platform.exit();
+        System.exit(0);
     }
 
-    private boolean isBase64(String message) {
-        try {
-            Base64.getDecoder().decode(message);
-            return true;
-        } catch (IllegalArgumentException e) {
-            return false;
-        }
+    private boolean hasKeyFor(String otherUser) {
+        return pairwiseKeys.hasKey(otherUser);
     }
 }
@@ -0,0 +1,200 @@
+package ui;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+
+import history.HistoryRecord;
+import history.HistoryStore;
+
+/**
+ * Окно переписки. Сообщения из любых потоков складываются в неблокирующую очередь,
+ * которая разбирается один раз за кадр JavaFX и применяется к списку одной пачкой. Таймер кадров работает,
+ * только пока в очереди что-то есть: без новых сообщений окно не просыпается.
+ * ListView отрисовывает только видимые строки, история ограничена кольцевым буфером.
+ * Если подключён журнал истории, сообщения сохраняются на диск, а более ранние подгружаются страницами.
+ */
+public final class ChatLog {
+    public static final int DEFAULT_CAPACITY = 5000;
+    public static final int HISTORY_PAGE = 200;
+
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+    private final RingBufferList<String> messages;
+    private final ListView<String> view;
+    private final ArrayList<String> batch = new ArrayList<>();
+    // Момент добавления самого старого сообщения в очереди (System.nanoTime()), 0 - очередь пуста
+    private final AtomicLong firstPending = new AtomicLong();
+    // Таймер запущен или запускается
+    private final AtomicBoolean pulsing = new AtomicBoolean();
+    private volatile boolean disposed;
+    private volatile LongConsumer delayRecorder;
+    private volatile HistoryStore history;
+    // Номер самого раннего показанного сообщения из журнала
+    private long oldestShown;
+    private final AnimationTimer pulse = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            drain();
+        }
+    };
+
+    // Создавать в потоке JavaFX
+    public ChatLog(int capacity) {
+        messages = new RingBufferList<>(capacity);
+        view = new ListView<>(messages);
+        view.setFocusTraversable(false);
+        view.setCellFactory(list -> new WrappingCell(list));
+    }
+
+    public ListView<String> getView() {
+        return view;
+    }
+
+    // Подключённый журнал или null
+    public HistoryStore getHistory() {
+        return history;
+    }
+
+    // Можно вызывать из любого потока
+    public void append(String message) {
+        pending.add(message);
+        firstPending.compareAndSet(0, System.nanoTime());
+        startPulse();
+    }
+
+    // Получает задержку в наносекундах от добавления самого старого сообщения пачки до её вывода
+    public void setDelayRecorder(LongConsumer recorder) {
+        delayRecorder = recorder;
+    }
+
+    // Сообщение собеседника: сохраняется в журнал и выводится. Можно вызывать из любого потока
+    public void record(String sender, String text) {
+        HistoryStore store = history;
+        if (store != null) {
+            try {
+                store.append(sender, text);
+            } catch (IOException e) {
+                append("Не удалось сохранить историю: " + e.getMessage());
+            }
+        }
+        append(line(sender, text));
+    }
+
+    // Подключает журнал и выводит последние restoreCount сообщений из него. Вызывать в потоке JavaFX
+    public void attachHistory(HistoryStore store, int restoreCount) throws IOException {
+        List<HistoryRecord> restored = store.last(restoreCount);
+        oldestShown = restored.isEmpty() ? store.nextSequence() : restored.getFirst().sequence();
+        messages.appendAll(restored.stream().map(ChatLog::line).toList());
+        history = store;
+        if (!messages.isEmpty()) {
+            view.scrollTo(messages.size() - 1);
+        }
+    }
+
+    // Подгружает предыдущую страницу журнала в начало списка. false - раньше ничего нет или нет места
+    public boolean showOlder() throws IOException {
+        HistoryStore store = history;
+        if (store == null) {
+            return false;
+        }
+        List<HistoryRecord> page = store.before(oldestShown, HISTORY_PAGE);
+        int shown = messages.prependAll(page.stream().map(ChatLog::line).toList());
+        if (shown == 0) {
+            return false;
+        }
+        oldestShown = page.get(page.size() - shown).sequence();
+        view.scrollTo(shown - 1);
+        return true;
+    }
+
+    // Очищает только окно, журнал на диске остаётся. Вызывать в потоке JavaFX
+    public void clear() {
+        pending.clear();
+        messages.clear();
+        HistoryStore store = history;
+        if (store != null) {
+            oldestShown = store.nextSequence();
+        }
+    }
+
+    public void dispose() {
+        disposed = true;
+        pulse.stop();
+    }
+
+    private void startPulse() {
+        if (!disposed && pulsing.compareAndSet(false, true)) {
+            if (Platform.isFxApplicationThread()) {
+                pulse.start();
+            } else {
+                Platform.runLater(() -> {
+                    if (!disposed) {
+                        pulse.start();
+                    }
+                });
+            }
+        }
+    }
+
+    private void drain() {
+        long since = firstPending.getAndSet(0);
+        // За один кадр забираем не больше, чем помещается в историю, остальное - в следующем кадре
+        String message;
+        while (batch.size() < messages.capacity() && (message = pending.poll()) != null) {
+            batch.add(message);
+        }
+        if (batch.isEmpty()) {
+            // Очередь разобрана - таймер не нужен до следующего сообщения. Сообщение, добавленное
+            // между poll и сбросом флага, не запустило таймер, поэтому очередь проверяется ещё раз
+            pulse.stop();
+            pulsing.set(false);
+            if (!pending.isEmpty()) {
+                startPulse();
+            }
+            return;
+        }
+        messages.appendAll(batch);
+        batch.clear();
+        view.scrollTo(messages.size() - 1);
+        if (!pending.isEmpty()) {
+            // Остаток ждёт следующего кадра, его задержку считаем от того же момента
+            firstPending.compareAndSet(0, since);
+        }
+        LongConsumer recorder = delayRecorder;
+        if (recorder != null && since != 0) {
+            recorder.accept(System.nanoTime() - since);
+        }
+    }
+
+    static String line(HistoryRecord record) {
+        return line(record.sender(), record.text());
+    }
+
+    private static String line(String sender, String text) {
+        return sender + " > " + text;
+    }
+
+    private static final class WrappingCell extends ListCell<String> {
+        private WrappingCell(ListView<String> list) {
+            setWrapText(true);
+            // Переносим строки по ширине списка, а не растягиваем его по горизонтали
+            prefWidthProperty().bind(list.widthProperty().subtract(20));
+            setMaxWidth(USE_PREF_SIZE);
+        }
+
+        @Override
+        protected void updateItem(String item, boolean empty) {
+            super.updateItem(item, empty);
+            setText(empty ? null : item);
+        }
+    }
+}
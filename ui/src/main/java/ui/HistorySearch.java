@@ -0,0 +1,79 @@
+package ui;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+
+import javafx.application.Platform;
+import javafx.scene.Scene;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListView;
+import javafx.scene.control.TextField;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+import javafx.stage.Stage;
+
+import history.HistoryRecord;
+import history.HistoryStore;
+
+/**
+ * Поле поиска по журналу истории. Поиск идёт по индексу в отдельном потоке,
+ * найденные сообщения показываются в отдельном окне от новых к старым.
+ */
+public final class HistorySearch {
+    public static final int MAX_RESULTS = 500;
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("dd.MM.yyyy HH:mm")
+            .withZone(ZoneId.systemDefault());
+
+    private final ChatLog chatLog;
+    private final TextField field = new TextField();
+
+    public HistorySearch(ChatLog chatLog) {
+        this.chatLog = chatLog;
+        field.setPromptText("Поиск по истории...");
+        field.setOnAction(event -> search(field.getText()));
+    }
+
+    public TextField getField() {
+        return field;
+    }
+
+    private void search(String query) {
+        HistoryStore store = chatLog.getHistory();
+        if (store == null || query.isBlank()) {
+            return;
+        }
+        Thread.ofVirtual().name("history-search").start(() -> {
+            long started = System.nanoTime();
+            try {
+                List<HistoryRecord> found = store.search(query, MAX_RESULTS);
+                long elapsed = (System.nanoTime() - started) / 1_000_000;
+                List<String> lines = found.stream()
+                        .map(record -> TIME.format(Instant.ofEpochMilli(record.timestamp())) + "  " + ChatLog.line(record))
+                        .toList();
+                Platform.runLater(() -> showResults(query, lines, elapsed));
+            } catch (IOException e) {
+                chatLog.append("Ошибка поиска по истории: " + e.getMessage());
+            }
+        });
+    }
+
+    private void showResults(String query, List<String> lines, long elapsed) {
+        String summary = lines.size() >= MAX_RESULTS
+                ? "Показаны последние " + MAX_RESULTS + " совпадений (" + elapsed + " мс)"
+                : "Найдено: " + lines.size() + " (" + elapsed + " мс)";
+        ListView<String> results = new ListView<>();
+        results.getItems().setAll(lines);
+        VBox.setVgrow(results, Priority.ALWAYS);
+        VBox root = new VBox(10, new Label(summary), results);
+        root.setStyle("-fx-padding: 10;");
+
+        Stage stage = new Stage();
+        stage.setTitle("Поиск: " + query);
+        stage.setScene(new Scene(root, 600, 400));
+        stage.show();
+    }
+}
@@ -0,0 +1,103 @@
+package ui;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import javafx.collections.ObservableListBase;
+
+/**
+ * Наблюдаемый список фиксированной ёмкости поверх кольцевого буфера.
+ * При переполнении самые старые элементы вытесняются, память не растёт сколько бы ни шла переписка.
+ */
+public final class RingBufferList<E> extends ObservableListBase<E> {
+    private final Object[] elements;
+    private int head;
+    private int size;
+
+    public RingBufferList(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity должен быть положительным");
+        }
+        this.elements = new Object[capacity];
+    }
+
+    public int capacity() {
+        return elements.length;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        Objects.checkIndex(index, size);
+        return (E) elements[(head + index) % elements.length];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    // Добавляет пачку одним событием изменения. Если пачка больше ёмкости, остаётся её хвост
+    public void appendAll(List<? extends E> batch) {
+        int count = batch.size();
+        if (count == 0) {
+            return;
+        }
+        int capacity = elements.length;
+        int skip = Math.max(0, count - capacity);
+        int overflow = Math.max(0, size + (count - skip) - capacity);
+
+        beginChange();
+        if (overflow > 0) {
+            List<E> removed = new ArrayList<>(overflow);
+            for (int i = 0; i < overflow; i++) {
+                removed.add(get(i));
+                elements[(head + i) % capacity] = null;
+            }
+            head = (head + overflow) % capacity;
+            size -= overflow;
+            nextRemove(0, removed);
+        }
+        int from = size;
+        for (int i = skip; i < count; i++) {
+            elements[(head + size) % capacity] = batch.get(i);
+            size++;
+        }
+        nextAdd(from, size);
+        endChange();
+    }
+
+    // Добавляет пачку в начало, только в свободное место: вытеснять ради старых строк новые нельзя.
+    // Возвращает, сколько элементов из конца пачки поместилось
+    public int prependAll(List<? extends E> batch) {
+        int count = Math.min(batch.size(), elements.length - size);
+        if (count == 0) {
+            return 0;
+        }
+        int capacity = elements.length;
+        beginChange();
+        head = (head - count + capacity) % capacity;
+        for (int i = 0; i < count; i++) {
+            elements[(head + i) % capacity] = batch.get(batch.size() - count + i);
+        }
+        size += count;
+        nextAdd(0, count);
+        endChange();
+        return count;
+    }
+
+    @Override
+    public void clear() {
+        if (size == 0) {
+            return;
+        }
+        beginChange();
+        nextRemove(0, new ArrayList<>(this));
+        Arrays.fill(elements, null);
+        head = 0;
+        size = 0;
+        endChange();
+    }
+}